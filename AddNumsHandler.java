@@ -0,0 +1,22 @@
+/**
+ * AddNumsHandler class for the addnums CGI at /cgi/addnums.fake-cgi?person=Ann&num1=4&num2=5.
+ * It uses the HTTPConstructor class to create the HTML that should be returned to the user.
+ * The page only depends on the arguments, so the handler is registered as pure and its pages are cached.
+ * */
+class AddNumsHandler implements DynamicHandler {
+	public Result handle(Request request) {
+		String contentString = "";
+		String cgiCalculation = HTTPConstructor.getCgiAddNums(request.parameters); //Get the string result from the CGI call.
+		
+		contentString += HTTPConstructor.getStartHtmlTag(); // <html>
+		//Wrap the cgi generated String in a paragraph tag.
+		contentString += HTTPConstructor.getParagraph(cgiCalculation); // e.g. <p>Dear Savannah, the sum of 8 and 6 is 14.</p>
+		contentString += HTTPConstructor.getEndHtmlTag(); // </html>
+		
+		if(ServerLog.debugEnabled) {
+			ServerLog.debug("The CGI content html will be: " + contentString + "\n"); //Add some padding to the output
+		}
+		
+		return Result.html(contentString);
+	}
+}
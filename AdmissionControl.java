@@ -0,0 +1,191 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AdmissionControl class that decides whether the server takes on a request, so that under overload it turns the excess away
+ * quickly instead of letting every request wait longer and longer.
+ * 
+ * 1. At most ServerConfig.admissionMaxInFlight requests are handled at the same time (0 means no limit).
+ *    A request counts from the end of its header until its response has been written.
+ * 2. Every client IP address can get its own token bucket: ServerConfig.perClientRate requests per second on average,
+ *    with bursts of up to ServerConfig.perClientBurst requests.  The buckets are in a concurrent map and every bucket has
+ *    its own lock, so clients never wait for each other.  When the map is full, a new client makes room by dropping one bucket
+ *    that a clock hand finds among the next few: the first one that has filled up again, or else the fullest of them.
+ *    So the cost per new client stays the same however many clients there are, and the clients that are being held back
+ *    keep their empty buckets.
+ * 3. Connections that the ConnectionEngine has no room for (see MyWebServer) get the same answer.
+ * 
+ * The answer is always the same 503 Service Unavailable with a Retry-After header, so it is encoded once when the class loads
+ * and written as it is.  The connection is closed after it without reading a request body.
+ * */
+class AdmissionControl {
+	private static final AtomicInteger inFlight = new AtomicInteger();
+	private static final ConcurrentHashMap<InetAddress, TokenBucket> clientBuckets = new ConcurrentHashMap<InetAddress, TokenBucket>();
+	private static final int evictionSample = 16; //Buckets looked at to make room for a new client.
+	private static Iterator<Map.Entry<InetAddress, TokenBucket>> evictionHand; //Where the last look stopped.  Guarded by the class lock.
+	private static final byte[] serviceUnavailable = encodeServiceUnavailable(ServerConfig.retryAfterSeconds);
+	
+	/**
+	 * admit method that is called once the header of a request has been read.  If it returns true the caller must call release
+	 * once the response has been written (or the connection was lost), and if it returns false the caller answers with rejection().
+	 * */
+	static boolean admit(InetAddress client) {
+		//The global limit goes first, so that a request turned away because the server is busy does not use up the client's token.
+		int maxInFlight = ServerConfig.admissionMaxInFlight;
+		if(inFlight.incrementAndGet() > maxInFlight && maxInFlight > 0) {
+			inFlight.decrementAndGet();
+			return false;
+		}
+		if(ServerConfig.perClientRate > 0 && client != null && !bucketFor(client).tryTake()) {
+			inFlight.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * release method for a request that admit let in.
+	 * */
+	static void release() {
+		inFlight.decrementAndGet();
+	}
+	
+	/**
+	 * rejection method that returns the pre-encoded 503 response.  The caller must close the connection after writing it.
+	 * */
+	static HttpResponse rejection() {
+		return HttpResponse.forHeaderOnly(503, ByteBuffer.wrap(serviceUnavailable));
+	}
+	
+	/**
+	 * rejectConnection method that is used by the acceptor when no worker can take a new connection.
+	 * The 503 is small enough to fit into the empty send buffer of a new socket, so the write does not hold up the acceptor.
+	 * */
+	static void rejectConnection(SocketChannel connection) {
+		try {
+			connection.configureBlocking(false);
+			connection.write(ByteBuffer.wrap(serviceUnavailable));
+		} catch (java.io.IOException e) {
+			//The client is gone already.
+		}
+	}
+	
+	/**
+	 * getInFlight method for the metrics: the requests that have been admitted and not answered yet.
+	 * */
+	static int getInFlight() {
+		return inFlight.get();
+	}
+	
+	private static TokenBucket bucketFor(InetAddress client) {
+		TokenBucket bucket = clientBuckets.get(client);
+		if(bucket == null) {
+			if(clientBuckets.size() >= ServerConfig.admissionMaxClients) {
+				dropOneBucket();
+			}
+			TokenBucket newBucket = new TokenBucket(ServerConfig.perClientRate, ServerConfig.perClientBurst);
+			bucket = clientBuckets.putIfAbsent(client, newBucket);
+			if(bucket == null) {
+				bucket = newBucket;
+			}
+		}
+		return bucket;
+	}
+	
+	/**
+	 * dropOneBucket makes room in the map of clients.  A bucket that has filled up again is no different from a new one,
+	 * so the first of those among the next evictionSample buckets is dropped.  If every one of them is in use, the fullest
+	 * is dropped, which is the one whose client loses the least by starting over with a full bucket.
+	 * The hand moves on from where it stopped last time, so every bucket gets looked at in turn.
+	 * */
+	private static synchronized void dropOneBucket() {
+		long now = System.nanoTime();
+		Map.Entry<InetAddress, TokenBucket> fullest = null;
+		double fullestLevel = -1;
+		for(int i = 0; i < evictionSample; i++) {
+			if(evictionHand == null || !evictionHand.hasNext()) {
+				evictionHand = clientBuckets.entrySet().iterator(); //Start over at the beginning of the map.
+				if(!evictionHand.hasNext()) {
+					return;
+				}
+			}
+			Map.Entry<InetAddress, TokenBucket> candidate = evictionHand.next();
+			double level = candidate.getValue().fillLevel(now);
+			if(level >= 1) {
+				clientBuckets.remove(candidate.getKey(), candidate.getValue());
+				return;
+			}
+			if(level > fullestLevel) {
+				fullest = candidate;
+				fullestLevel = level;
+			}
+		}
+		if(fullest != null) {
+			clientBuckets.remove(fullest.getKey(), fullest.getValue());
+		}
+	}
+	
+	private static byte[] encodeServiceUnavailable(int retryAfterSeconds) {
+		byte[] body = HTTPConstructor.getHttpErrorMessage(503).getBytes(StandardCharsets.UTF_8);
+		String header = HTTPConstructor.getHttpResponseStartLine("HTTP/1.1", 503)
+				+ HTTPConstructor.getServerDetails()
+				+ "Retry-After: " + retryAfterSeconds + "\r\n"
+				+ "Content-Type: " + RequestHandler.generatedHtmlType + "\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ HTTPConstructor.getConnectionClose()
+				+ "\r\n";
+		byte[] headerBytes = header.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] response = new byte[headerBytes.length + body.length];
+		System.arraycopy(headerBytes, 0, response, 0, headerBytes.length);
+		System.arraycopy(body, 0, response, headerBytes.length, body.length);
+		return response;
+	}
+	
+	/**
+	 * TokenBucket class for one client.  It holds up to burst tokens and gains rate tokens per second.
+	 * Every request takes a token and a request that finds the bucket empty is turned away.
+	 * */
+	private static class TokenBucket {
+		private final double tokensPerNano;
+		private final double capacity;
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+		
+		TokenBucket(double ratePerSecond, double burst) {
+			this.tokensPerNano = ratePerSecond / 1e9;
+			this.capacity = Math.max(1, burst);
+			this.tokens = capacity;
+		}
+		
+		synchronized boolean tryTake() {
+			refill(System.nanoTime());
+			if(tokens < 1) {
+				return false;
+			}
+			tokens -= 1;
+			return true;
+		}
+		
+		/**
+		 * fillLevel returns how full the bucket is, from 0 (the client is being held back) to 1 (a full bucket, like a new one).
+		 * */
+		synchronized double fillLevel(long now) {
+			refill(now);
+			return tokens / capacity;
+		}
+		
+		private void refill(long now) {
+			if(now <= lastRefill) {
+				return; //Another thread refilled the bucket after our caller read the clock.
+			}
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+		}
+	}
+}
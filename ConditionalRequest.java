@@ -0,0 +1,166 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * ConditionalRequest class that handles the validators of static files so that clients and caches can revalidate
+ * a file they already have instead of downloading it again.
+ * 
+ * 1. Every file response carries an ETag made from the file's size and modification time, and a Last-Modified date.
+ * 2. If-None-Match and If-Modified-Since are checked before the file is opened.  If the client's copy is current
+ *    it gets a 304 Not Modified with only a header, so the file contents are never touched.
+ * 3. A Cache-Control header can be configured per file extension with -Dserver.cacheControl, for example:
+ *    -Dserver.cacheControl=".html:no-cache;.css:max-age=86400;*:max-age=60"
+ *    where "*" is used for files whose extension is not listed.
+ * */
+class ConditionalRequest {
+	static final int notModified = 304;
+	
+	//Cache-Control value per file extension (".css" -> "max-age=86400"), "*" for everything else.
+	private static final HashMap<String, String> cacheControlByExtension = parseCacheControl(ServerConfig.cacheControl);
+	
+	/**
+	 * makeETag method that builds a strong entity tag from the file metadata, e.g. "1f4-171d8f9ad40".
+	 * A file that is changed in place gets a new modification time and therefore a new tag.
+	 * */
+	static String makeETag(long length, long lastModified) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+	
+	/**
+	 * isNotModified method that tells whether the client's cached copy is still current.
+	 * If-None-Match wins over If-Modified-Since when the client sends both, as HTTP requires.
+	 * */
+	static boolean isNotModified(RequestHeaders requestHeaders, String etag, long lastModified) {
+		String ifNoneMatch = requestHeaders.get("if-none-match");
+		if(ifNoneMatch != null) {
+			return matchesAny(ifNoneMatch, etag);
+		}
+		String ifModifiedSince = requestHeaders.get("if-modified-since");
+		if(ifModifiedSince != null) {
+			long sinceDate = HTTPConstructor.parseHttpDate(ifModifiedSince);
+			//HTTP dates only have whole seconds so compare at that precision.
+			return sinceDate >= 0 && (lastModified / 1000) * 1000 <= sinceDate;
+		}
+		return false;
+	}
+	
+	/**
+	 * matchesAny checks a list of entity tags such as: "abc", W/"def" (or "*") against our tag.
+	 * If-None-Match uses the weak comparison, so a W/ prefix is ignored.
+	 * */
+	private static boolean matchesAny(String entityTags, String etag) {
+		for(String entityTag : entityTags.split(",")) {
+			entityTag = entityTag.trim();
+			if(entityTag.equals("*")) {
+				return true;
+			}
+			if(entityTag.startsWith("W/")) {
+				entityTag = entityTag.substring(2);
+			}
+			if(entityTag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * getCacheControl returns the configured Cache-Control value for a file name or null if there is none.
+	 * */
+	static String getCacheControl(String fileName) {
+		if(cacheControlByExtension.isEmpty()) {
+			return null;
+		}
+		int dot = fileName.lastIndexOf('.');
+		int slash = fileName.lastIndexOf('/');
+		if(dot > slash) {
+			String cacheControl = cacheControlByExtension.get(fileName.substring(dot).toLowerCase(Locale.US));
+			if(cacheControl != null) {
+				return cacheControl;
+			}
+		}
+		return cacheControlByExtension.get("*");
+	}
+	
+	/**
+	 * respondNotModified method that builds the 304 response.  It has the validators but no body and no Content-Length.
+	 * */
+	static HttpResponse respondNotModified(ResponseHeaderBuilder headerBuilder, String httpVersion, boolean keepAlive, Validators validators) {
+		headerBuilder.startLine(httpVersion, notModified).date().server();
+		validators.addTo(headerBuilder);
+		ByteBuffer header = headerBuilder.connection(keepAlive).end();
+		return HttpResponse.forHeaderOnly(notModified, header);
+	}
+	
+	/**
+	 * parseCacheControl reads the -Dserver.cacheControl setting described at the top of this class.
+	 * */
+	private static HashMap<String, String> parseCacheControl(String setting) {
+		HashMap<String, String> cacheControl = new HashMap<String, String>();
+		if(setting == null) {
+			return cacheControl;
+		}
+		for(String entry : setting.split(";")) {
+			int colon = entry.indexOf(':');
+			if(colon > 0) {
+				String extension = entry.substring(0, colon).trim().toLowerCase(Locale.US);
+				if(!extension.equals("*") && !extension.startsWith(".")) {
+					extension = "." + extension;
+				}
+				cacheControl.put(extension, entry.substring(colon + 1).trim());
+			}
+		}
+		return cacheControl;
+	}
+	
+	/**
+	 * Validators class that holds the validator headers of one file (ETag, Last-Modified and the Cache-Control policy)
+	 * so that the 200, 206 and 304 responses all send the same ones.
+	 * It also carries the Content-Encoding that was chosen for the response and whether the response varies with Accept-Encoding,
+	 * because a compressed variant is a different representation and needs an entity tag of its own.
+	 * addTo does not write the Content-Encoding itself because a 304 response has no body to describe.
+	 * */
+	static class Validators {
+		final String etag;
+		final long lastModified;
+		final String cacheControl;
+		final String contentEncoding; //null when the body is sent as it is.
+		final boolean varyAcceptEncoding;
+		
+		Validators(String etag, long lastModified, String cacheControl, String contentEncoding, boolean varyAcceptEncoding) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.cacheControl = cacheControl;
+			this.contentEncoding = contentEncoding;
+			this.varyAcceptEncoding = varyAcceptEncoding;
+		}
+		
+		/**
+		 * Creates the validators for a file from its size, modification time and name.
+		 * */
+		static Validators forFile(String fileName, long length, long lastModified) {
+			return new Validators(makeETag(length, lastModified), lastModified, getCacheControl(fileName), null, false);
+		}
+		
+		/**
+		 * forEncoding returns the validators of a variant of a compressible file, e.g. "1f4-171d8f9ad40-gzip" for the gzipped variant.
+		 * Pass null for the variant that is sent as it is.  Both variants say "Vary: Accept-Encoding".
+		 * */
+		Validators forEncoding(String encoding) {
+			String variantTag = encoding == null ? etag : etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+			return new Validators(variantTag, lastModified, cacheControl, encoding, true);
+		}
+		
+		ResponseHeaderBuilder addTo(ResponseHeaderBuilder headerBuilder) {
+			headerBuilder.header("ETag", etag).header("Last-Modified", HTTPConstructor.formatHttpDate(lastModified));
+			if(cacheControl != null) {
+				headerBuilder.header("Cache-Control", cacheControl);
+			}
+			if(varyAcceptEncoding) {
+				headerBuilder.varyAcceptEncoding();
+			}
+			return headerBuilder;
+		}
+	}
+}
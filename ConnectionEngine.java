@@ -0,0 +1,160 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConnectionEngine class that runs the WebPageWorker tasks for the web server.
+ * It replaces the old "one new thread per connection" approach with either:
+ * 
+ * 1. A bounded pool of platform threads with a bounded queue of waiting connections
+ * 2. One virtual thread per connection (when the JVM supports it)
+ * 
+ * The engine keeps track of how many workers are busy and how many connections are waiting
+ * so that the pool can be sized from what the server actually sees under load.
+ * */
+class ConnectionEngine {
+	private final ExecutorService executor;
+	private final ThreadPoolExecutor pool; //Only set for the platform thread pool so that we can read the queue depth.
+	private final String description;
+	private final AtomicInteger activeWorkers = new AtomicInteger();
+	private final AtomicLong completedTasks = new AtomicLong();
+	private final AtomicLong rejectedTasks = new AtomicLong();
+	
+	private ConnectionEngine(ExecutorService executor, ThreadPoolExecutor pool, String description) {
+		this.executor = executor;
+		this.pool = pool;
+		this.description = description;
+	}
+	
+	/**
+	 * create method that builds the engine selected by the settings in ServerConfig.
+	 * If virtual threads were asked for but are not available, we tell the user and fall back to the thread pool.
+	 * */
+	static ConnectionEngine create(String type, int threads, int queueSize) {
+		if("virtual".equalsIgnoreCase(type)) {
+			ExecutorService virtualExecutor = newVirtualThreadExecutor();
+			if(virtualExecutor != null) {
+				return new ConnectionEngine(virtualExecutor, null, "virtual threads (one per connection)");
+			}
+			System.out.println("Virtual threads are not supported by this JVM.  Falling back to a thread pool.");
+		}
+		
+		ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new WorkerThreadFactory());
+		return new ConnectionEngine(threadPool, threadPool, "thread pool (" + threads + " workers, queue of " + queueSize + ")");
+	}
+	
+	/**
+	 * Virtual threads only exist on newer JVMs so we look the factory method up by reflection
+	 * to keep the server compiling and running on older versions of Java.
+	 * */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (UnsupportedOperationException e) {
+			//Thrown when virtual threads are a preview feature that was not enabled.
+			return null;
+		}
+	}
+	
+	/**
+	 * submit method that hands a task to the engine.
+	 * Returns false if the engine is saturated (the queue is full) so that the caller can turn the connection away
+	 * instead of letting the number of waiting connections grow without bounds.
+	 * */
+	boolean submit(final Runnable task) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					activeWorkers.incrementAndGet();
+					try {
+						task.run();
+					} finally {
+						activeWorkers.decrementAndGet();
+						completedTasks.incrementAndGet();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException ree) {
+			rejectedTasks.incrementAndGet();
+			return false;
+		}
+	}
+	
+	/**
+	 * Number of accepted connections waiting for a worker.  Virtual threads never queue so this is always 0 for them.
+	 * */
+	int getQueueDepth() {
+		return pool == null ? 0 : pool.getQueue().size();
+	}
+	
+	/**
+	 * Number of workers currently handling a connection.
+	 * */
+	int getActiveWorkers() {
+		return activeWorkers.get();
+	}
+	
+	long getCompletedTasks() {
+		return completedTasks.get();
+	}
+	
+	long getRejectedTasks() {
+		return rejectedTasks.get();
+	}
+	
+	String getDescription() {
+		return description;
+	}
+	
+	/**
+	 * startStatsReporter method that prints a line of engine statistics to the console every intervalSeconds seconds.
+	 * */
+	void startStatsReporter(final int intervalSeconds) {
+		if(intervalSeconds <= 0) {
+			return;
+		}
+		Thread reporter = new Thread(new Runnable() {
+			public void run() {
+				while(true) {
+					try {
+						Thread.sleep(intervalSeconds * 1000L);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.println(ConnectionEngine.this);
+				}
+			}
+		}, "engine-stats");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+	
+	public String toString() {
+		return "Engine stats: active=" + getActiveWorkers() + " queued=" + getQueueDepth()
+				+ " completed=" + getCompletedTasks() + " rejected=" + getRejectedTasks();
+	}
+	
+	/**
+	 * Thread factory that gives the pool threads readable names for thread dumps.
+	 * */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private static final AtomicInteger threadCount = new AtomicInteger(); //Shared so that the workers of all the engines get different names.
+		
+		public Thread newThread(Runnable r) {
+			Thread worker = new Thread(r, "web-worker-" + threadCount.incrementAndGet());
+			worker.setDaemon(false);
+			return worker;
+		}
+	}
+}
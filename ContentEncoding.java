@@ -0,0 +1,298 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ContentEncoding class that picks a compressed representation of a response body from the client's Accept-Encoding header.
+ * 
+ * 1. A precompressed sibling on disk (cat.html.br or cat.html.gz) is sent as it is when the client accepts that coding
+ *    and the sibling is at least as new as the file itself.  Brotli is only ever served this way because the JDK cannot encode it.
+ *    Siblings are looked up through PathResolver like any URL, so whether they exist is cached (or indexed) and checked again
+ *    on the same schedule as the file, instead of asking the file system on every request.
+ * 2. Otherwise files are gzipped on the fly.  The compressed bytes are kept in the StaticContentCache next to the plain ones,
+ *    so a file is compressed once and then again only when it changes on disk.
+ * 3. Files that are already compressed (images, archives, video, ...) and bodies smaller than -Dserver.compression.minBytes
+ *    are always sent as they are because compressing them saves nothing.
+ * 
+ * Responses that could have been compressed say "Vary: Accept-Encoding" so that shared caches keep the variants apart.
+ * */
+class ContentEncoding {
+	static final String gzip = "gzip";
+	static final String brotli = "br";
+	
+	//Extensions of formats that are compressed already.
+	private static final HashSet<String> compressedExtensions = new HashSet<String>(Arrays.asList(
+			".gz", ".br", ".zip", ".jar", ".7z", ".bz2", ".xz", ".rar",
+			".png", ".jpg", ".jpeg", ".gif", ".webp", ".avif", ".ico",
+			".mp3", ".mp4", ".m4a", ".ogg", ".webm", ".mov", ".woff", ".woff2"));
+	
+	/**
+	 * isCompressible tells whether a file is worth compressing, judging by its extension.
+	 * */
+	static boolean isCompressible(String fileName) {
+		if(!ServerConfig.compressionEnabled) {
+			return false;
+		}
+		int dot = fileName.lastIndexOf('.');
+		int slash = fileName.lastIndexOf('/');
+		return dot <= slash || !compressedExtensions.contains(fileName.substring(dot).toLowerCase(Locale.US));
+	}
+	
+	/**
+	 * accepts method that tells whether an Accept-Encoding header such as "gzip, deflate;q=0.5, br;q=0" allows a coding.
+	 * A coding listed with q=0 is refused and "*" stands for every coding that is not listed.
+	 * */
+	static boolean accepts(String acceptEncoding, String coding) {
+		if(acceptEncoding == null) {
+			return false;
+		}
+		Boolean wildcard = null;
+		for(String entry : acceptEncoding.split(",")) {
+			String name = entry;
+			boolean refused = false;
+			int semicolon = entry.indexOf(';');
+			if(semicolon >= 0) {
+				name = entry.substring(0, semicolon);
+				refused = isZeroQuality(entry.substring(semicolon + 1));
+			}
+			name = name.trim();
+			if(name.equalsIgnoreCase(coding)) {
+				return !refused;
+			}
+			if(name.equals("*")) {
+				wildcard = !refused;
+			}
+		}
+		return wildcard != null && wildcard;
+	}
+	
+	/**
+	 * isZeroQuality checks the parameters of an Accept-Encoding entry for "q=0" (also written "q=0.0" or "q=0.000").
+	 * */
+	private static boolean isZeroQuality(String parameters) {
+		for(String parameter : parameters.split(";")) {
+			parameter = parameter.trim();
+			if(parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+				try {
+					return Double.parseDouble(parameter.substring(2).trim()) <= 0;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * choose method that picks the representation of a file for a client.
+	 * Returns null when the file should be sent as it is, either because the client did not ask for compression
+	 * or because the file is too small or too large to be compressed on the fly.
+	 * */
+	static Variant choose(String acceptEncoding, String requestUrl, long length, long lastModified) {
+		if(acceptEncoding == null) {
+			return null;
+		}
+		boolean acceptsGzip = accepts(acceptEncoding, gzip);
+		if(accepts(acceptEncoding, brotli)) {
+			File precompressed = findPrecompressed(requestUrl, ".br", lastModified);
+			if(precompressed != null) {
+				return new Variant(brotli, precompressed);
+			}
+		}
+		if(!acceptsGzip) {
+			return null;
+		}
+		File precompressed = findPrecompressed(requestUrl, ".gz", lastModified);
+		if(precompressed != null) {
+			return new Variant(gzip, precompressed);
+		}
+		if(length < ServerConfig.compressionMinBytes || length > ServerConfig.compressionMaxSourceBytes) {
+			return null;
+		}
+		return new Variant(gzip, null);
+	}
+	
+	/**
+	 * findPrecompressed looks for a compressed sibling of the file that the URL names (e.g. /cat.html.gz for /cat.html).
+	 * A sibling that is older than the file was made from an older version and is ignored.
+	 * Like the file itself, the sibling has to be inside the document root.
+	 * */
+	private static File findPrecompressed(String requestUrl, String suffix, long lastModified) {
+		PathResolver.Resolution precompressed = PathResolver.resolve(requestUrl + suffix);
+		if(precompressed.kind == PathResolver.file && precompressed.lastModified >= lastModified) {
+			return precompressed.realPath.toFile();
+		}
+		return null;
+	}
+	
+	/**
+	 * shouldCompress tells whether generated content (folder listings, CGI output) is worth compressing at all,
+	 * in which case the response varies with Accept-Encoding even when this client does not accept gzip.
+	 * */
+	static boolean shouldCompress(byte[] content) {
+		return ServerConfig.compressionEnabled && content.length >= ServerConfig.compressionMinBytes;
+	}
+	
+	/**
+	 * gzip method that compresses bytes with the configured compression level.
+	 * */
+	static byte[] gzip(byte[] content, int offset, int length) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 4));
+		try {
+			GZIPOutputStream gzipStream = new GZIPOutputStream(compressed, 8192) {
+				{
+					def.setLevel(ServerConfig.compressionLevel);
+				}
+			};
+			gzipStream.write(content, offset, length);
+			gzipStream.close();
+		} catch (IOException e) {
+			//Cannot happen when writing to memory.
+			throw new IllegalStateException(e);
+		}
+		return compressed.toByteArray();
+	}
+	
+	static byte[] gzip(byte[] content) {
+		return gzip(content, 0, content.length);
+	}
+	
+	/**
+	 * GzipBody class that gzips a streamed body (see StreamingBody) while it is sent.
+	 * Whenever the source has nothing ready, the bytes compressed so far are flushed out (SYNC_FLUSH) so that a slowly
+	 * written page reaches the client piece by piece instead of waiting in the compressor until the end.
+	 * */
+	static class GzipBody implements StreamingBody {
+		private static final byte[] gzipHeader = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0}; //Deflate, no flags, no time.
+		
+		private final StreamingBody source;
+		private final Deflater deflater = new Deflater(ServerConfig.compressionLevel, true);
+		private final CRC32 crc = new CRC32();
+		private final ByteBuffer input;
+		private final ByteBuffer output; //Compressed bytes that are not copied out yet.
+		private long size = 0; //Bytes of the source so far, for the gzip trailer.
+		private boolean started = false; //Set once the gzip header went into the output.
+		private boolean unflushed = false; //Set when the deflater holds input that was not flushed yet.
+		private boolean flushing = false;
+		private boolean finishing = false;
+		private boolean ended = false; //Set once the trailer went into the output.
+		
+		GzipBody(StreamingBody source) {
+			this.source = source;
+			int bufferSize = Math.max(64, ServerConfig.streamBufferBytes);
+			input = ByteBuffer.allocate(bufferSize);
+			output = ByteBuffer.allocate(bufferSize);
+			output.limit(0);
+		}
+		
+		public int read(ByteBuffer dst) throws IOException {
+			int start = dst.position();
+			while(dst.hasRemaining()) {
+				if(output.hasRemaining()) {
+					int copied = Math.min(dst.remaining(), output.remaining());
+					dst.put(output.array(), output.position(), copied);
+					output.position(output.position() + copied);
+					continue;
+				}
+				if(!fill()) {
+					break;
+				}
+			}
+			int copied = dst.position() - start;
+			return copied == 0 && ended ? -1 : copied;
+		}
+		
+		/**
+		 * fill compresses what the source has ready into the output buffer.  Returns false if that was nothing.
+		 * */
+		private boolean fill() throws IOException {
+			byte[] out = output.array();
+			int length = 0;
+			if(!started) {
+				System.arraycopy(gzipHeader, 0, out, 0, gzipHeader.length);
+				length = gzipHeader.length;
+				started = true;
+			}
+			while(length < out.length && !ended) {
+				if(deflater.finished()) {
+					if(out.length - length < 8) {
+						break; //The trailer goes into the next buffer.
+					}
+					writeIntLE(out, length, (int) crc.getValue());
+					writeIntLE(out, length + 4, (int) size);
+					length += 8;
+					ended = true;
+				} else if(finishing) {
+					length += deflater.deflate(out, length, out.length - length);
+				} else if(flushing) {
+					length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+					if(length < out.length) {
+						flushing = false; //Everything is out, so the client has the page so far.
+						break;
+					}
+				} else if(!deflater.needsInput()) {
+					length += deflater.deflate(out, length, out.length - length);
+				} else {
+					input.clear();
+					int read = source.read(input);
+					if(read < 0) {
+						deflater.finish();
+						finishing = true;
+					} else if(read == 0) {
+						if(!unflushed) {
+							break;
+						}
+						unflushed = false;
+						flushing = true;
+					} else {
+						crc.update(input.array(), 0, read);
+						size += read;
+						deflater.setInput(input.array(), 0, read);
+						unflushed = true;
+					}
+				}
+			}
+			output.clear();
+			output.limit(length);
+			return length > 0;
+		}
+		
+		private static void writeIntLE(byte[] bytes, int offset, int value) {
+			bytes[offset] = (byte) value;
+			bytes[offset + 1] = (byte) (value >>> 8);
+			bytes[offset + 2] = (byte) (value >>> 16);
+			bytes[offset + 3] = (byte) (value >>> 24);
+		}
+		
+		public void whenReadable(Runnable callback) {
+			//read only ever returns 0 when the source had nothing and everything before was flushed out.
+			source.whenReadable(callback);
+		}
+		
+		public void discard() {
+			deflater.end();
+			source.discard();
+		}
+	}
+	
+	/**
+	 * Variant class that names the chosen content coding and, for precompressed siblings, the file that holds the bytes.
+	 * precompressedFile is null when the content is compressed on the fly.
+	 * */
+	static class Variant {
+		final String encoding;
+		final File precompressedFile;
+		
+		Variant(String encoding, File precompressedFile) {
+			this.encoding = encoding;
+			this.precompressedFile = precompressedFile;
+		}
+	}
+}
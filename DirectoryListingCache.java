@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DirectoryListingCache class that keeps rendered folder listings as ready-to-send bytes so that a popular index page
+ * does not read the directory or build the HTML again for every request.
+ * 
+ * 1. A directory is registered with a WatchService the first time it is listed, before it is read.
+ * 2. A background thread waits for create, delete and overflow events and drops the cached listings of the directory
+ *    that changed.  A directory that goes away (or whose watch is cancelled) is forgotten.
+ * 3. Every invalidation bumps the directory's generation.  A listing that was read before the last invalidation
+ *    is never left in the cache, so a listing cannot miss a change that happened while it was being built.
+ * 
+ * The number of watched directories is bounded.  Directories beyond the limit are streamed for every request (see FolderListingBody).
+ * */
+class DirectoryListingCache {
+	private static final int maxListingsPerDirectory = 8; //Different spellings of the same folder URL, e.g. "/sub/" and "/sub//".
+	
+	private final int maxDirectories;
+	private final WatchService watchService;
+	private final ConcurrentHashMap<Path, WatchedDirectory> directories = new ConcurrentHashMap<Path, WatchedDirectory>();
+	
+	/**
+	 * Creates the cache and starts its watcher thread.  Throws an IOException if the platform has no WatchService,
+	 * in which case the caller goes without the cache.
+	 * */
+	DirectoryListingCache(int maxDirectories) throws IOException {
+		this.maxDirectories = maxDirectories;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		Thread watcher = new Thread(new Runnable() {
+			public void run() {
+				watchForChanges();
+			}
+		}, "directory-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+	
+	/**
+	 * get method that returns the rendered listing of a directory for a request URL, rendering and caching it on a miss.
+	 * Returns null for a directory that cannot be watched (or beyond the limit), whose listing would not be kept anyway.
+	 * */
+	Listing get(Path directory, String requestUrl) {
+		directory = directory.toAbsolutePath().normalize();
+		WatchedDirectory watched = directories.get(directory);
+		if(watched != null) {
+			Listing listing = watched.listings.get(requestUrl);
+			if(listing != null) {
+				return listing;
+			}
+		}
+		else {
+			watched = watch(directory);
+			if(watched == null) {
+				return null;
+			}
+		}
+		
+		long generation = watched.generation;
+		ArrayList<String> folderList = FileSystemReader.listFolder(directory);
+		Listing listing = new Listing(HTTPConstructor.getSimpleFolderList(folderList, requestUrl).getBytes(StandardCharsets.UTF_8));
+		if(watched.listings.size() < maxListingsPerDirectory) {
+			watched.listings.put(requestUrl, listing);
+			if(watched.generation != generation) {
+				//The directory changed while we were reading it.
+				watched.listings.remove(requestUrl, listing);
+			}
+		}
+		return listing;
+	}
+	
+	/**
+	 * watch method that registers a directory with the WatchService.
+	 * Returns null if the directory cannot be watched or too many directories are watched already.
+	 * */
+	private WatchedDirectory watch(Path directory) {
+		if(directories.size() >= maxDirectories) {
+			return null;
+		}
+		try {
+			directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+			WatchedDirectory watched = new WatchedDirectory();
+			WatchedDirectory alreadyWatched = directories.putIfAbsent(directory, watched);
+			//Registering the same directory twice returns the same key, so a thread that lost the race uses the other entry.
+			return alreadyWatched == null ? watched : alreadyWatched;
+		} catch (IOException e) {
+			return null;
+		} catch (ClosedWatchServiceException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * watchForChanges is the loop of the watcher thread.  Any event on a directory drops all of its listings.
+	 * */
+	private void watchForChanges() {
+		while(true) {
+			WatchKey watchKey;
+			try {
+				watchKey = watchService.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			watchKey.pollEvents(); //We do not care which entries changed, only that the listing is out of date.
+			Path directory = (Path) watchKey.watchable();
+			WatchedDirectory watched = directories.get(directory);
+			if(watched != null) {
+				watched.invalidate();
+			}
+			if(!watchKey.reset()) {
+				//The directory was deleted or can no longer be watched.
+				directories.remove(directory);
+				if(watched != null) {
+					watched.invalidate();
+				}
+			}
+			if(ServerLog.debugEnabled) {
+				ServerLog.debug("Folder listing cache invalidated for: " + directory + "\n");
+			}
+		}
+	}
+	
+	int getDirectoryCount() {
+		return directories.size();
+	}
+	
+	/**
+	 * WatchedDirectory class that holds the cached listings of one directory, keyed by request URL
+	 * (the URL is part of the page, e.g. "Index of /sub/").
+	 * */
+	private static class WatchedDirectory {
+		final ConcurrentHashMap<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+		volatile long generation = 0;
+		
+		//Only called by the watcher thread so the increment does not need to be atomic.
+		void invalidate() {
+			generation++;
+			listings.clear();
+		}
+	}
+	
+	/**
+	 * Listing class that holds the UTF-8 bytes of a rendered listing and, once a client asked for it, the gzipped bytes.
+	 * */
+	static class Listing {
+		final byte[] html;
+		private volatile byte[] gzipped;
+		
+		Listing(byte[] html) {
+			this.html = html;
+		}
+		
+		//Two threads may compress the listing at the same time, which is harmless because they produce the same bytes.
+		byte[] getGzipped() {
+			byte[] compressed = gzipped;
+			if(compressed == null) {
+				compressed = ContentEncoding.gzip(html);
+				gzipped = compressed;
+			}
+			return compressed;
+		}
+	}
+}
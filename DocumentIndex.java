@@ -0,0 +1,557 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DocumentIndex class that knows every file and folder under the document root, so that PathResolver can resolve a URL
+ * with a hash lookup instead of asking the file system (turned on with -Dserver.index=true).
+ * 
+ * 1. At startup the tree is scanned in parallel on a ForkJoinPool, one task per folder, and the entries (kind, size and
+ *    modification time per relative path) go into a Snapshot: an open addressing table in plain arrays that is never changed.
+ * 2. Every folder is registered with a WatchService before it is read.  A watcher thread applies the events to a small map
+ *    of changes that is looked at before the snapshot.  Once there are enough changes a new snapshot is built with them.
+ * 3. With -Dserver.index.file the snapshot is saved after it was built and when the server stops.  The next start loads it
+ *    and serves right away while the tree is scanned again in the background, so a restart does not wait for a full scan.
+ *    Until that scan is done, changes made while the server was down may not be seen yet.
+ * 4. Symbolic links, and folders that cannot be read or watched (e.g. beyond the inotify limit), are not indexed.
+ *    URLs at or below them are left to PathResolver, which resolves them on disk as before.
+ * 
+ * A URL that is not in the index is missing, so requests for missing files do not cost any system calls either.
+ * The index trusts the watcher: a change on disk is only seen once the watcher thread has got its event, which is usually
+ * a few milliseconds.
+ * */
+class DocumentIndex {
+	private static final byte delegated = 3; //Kind of a symbolic link or an unwatched folder.  The other kinds are PathResolver's.
+	private static final byte removed = (byte) PathResolver.missing; //Kind of a change that removes an entry from the snapshot.
+	private static final int fileMagic = 0x44494458; //"DIDX"
+	private static final int fileVersion = 1;
+	
+	private final Path root; //Real path of the document root.
+	private final File indexFile; //Null when the index is not saved.
+	private final WatchService watchService;
+	private final ForkJoinPool scanPool = new ForkJoinPool(Math.max(1, ServerConfig.indexThreads));
+	private final ConcurrentHashMap<WatchKey, String> watchedFolders = new ConcurrentHashMap<WatchKey, String>();
+	private final ConcurrentHashMap<String, Entry> changes = new ConcurrentHashMap<String, Entry>(); //Newer than the snapshot.
+	private final AtomicInteger unwatchedFolders = new AtomicInteger();
+	private volatile Snapshot snapshot;
+	
+	private DocumentIndex(Path root, File indexFile) throws IOException {
+		this.root = root;
+		this.indexFile = indexFile;
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+	
+	/**
+	 * open method that builds the index of the document root, or loads it from the index file if there is one for the same root.
+	 * Returns null if the platform cannot watch folders, in which case PathResolver goes on without an index.
+	 * */
+	static DocumentIndex open(Path root) {
+		DocumentIndex index;
+		try {
+			index = new DocumentIndex(root, ServerConfig.indexFile == null ? null : new File(ServerConfig.indexFile));
+		} catch (IOException e) {
+			System.out.println("The document root cannot be indexed because folders cannot be watched here: " + e);
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		Snapshot loaded = index.load();
+		if(loaded != null) {
+			index.snapshot = loaded;
+			System.out.println("Loaded the index of " + loaded.count + " files and folders from " + index.indexFile
+					+ " in " + (System.currentTimeMillis() - start) + " ms.  Checking it against the disk in the background.");
+			index.startWatching();
+			Thread rescan = new Thread(new Runnable() {
+				public void run() {
+					long start = System.currentTimeMillis();
+					if(index.rescanAll()) {
+						System.out.println("Checked the index of " + index.snapshot.count + " files and folders in "
+								+ (System.currentTimeMillis() - start) + " ms" + index.describeUnwatched());
+						index.compactAndSave();
+					}
+				}
+			}, "document-index-scan");
+			rescan.setDaemon(true);
+			rescan.start();
+		}
+		else {
+			if(!index.rescanAll()) {
+				return null;
+			}
+			System.out.println("Indexed " + index.snapshot.count + " files and folders under " + root
+					+ " in " + (System.currentTimeMillis() - start) + " ms" + index.describeUnwatched());
+			index.startWatching();
+			index.compactAndSave();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				index.compactAndSave();
+			}
+		}, "document-index-save"));
+		return index;
+	}
+	
+	/**
+	 * lookup method that resolves a path relative to the root (as PathResolver.normalize makes it, e.g. "sub/cat.html").
+	 * Returns null if the path is not indexed because it is at or below a symbolic link or an unwatched folder.
+	 * */
+	PathResolver.Resolution lookup(String relativePath) {
+		Entry changed = changes.isEmpty() ? null : changes.get(relativePath);
+		if(changed != null) {
+			return toResolution(relativePath, changed.kind, changed.size, changed.lastModified);
+		}
+		Snapshot current = snapshot;
+		int slot = current.find(relativePath);
+		if(slot >= 0) {
+			return toResolution(relativePath, current.kinds[slot], current.sizes[slot], current.modified[slot]);
+		}
+		return toResolution(relativePath, removed, 0, 0);
+	}
+	
+	private PathResolver.Resolution toResolution(String relativePath, byte kind, long size, long lastModified) {
+		if(kind == delegated) {
+			return null;
+		}
+		if(kind == removed) {
+			//Missing, unless it is below a path that is not indexed.  Only misses walk up the path.
+			for(int slash = relativePath.lastIndexOf('/'); slash > 0; slash = relativePath.lastIndexOf('/', slash - 1)) {
+				byte parentKind = kindOf(relativePath.substring(0, slash));
+				if(parentKind == delegated) {
+					return null;
+				}
+				if(parentKind != removed) {
+					break;
+				}
+			}
+			return PathResolver.notFound;
+		}
+		Path realPath = relativePath.isEmpty() ? root : root.resolve(relativePath);
+		return new PathResolver.Resolution(kind, realPath, size, lastModified, System.currentTimeMillis());
+	}
+	
+	private byte kindOf(String relativePath) {
+		Entry changed = changes.get(relativePath);
+		if(changed != null) {
+			return changed.kind;
+		}
+		Snapshot current = snapshot;
+		int slot = current.find(relativePath);
+		return slot >= 0 ? current.kinds[slot] : removed;
+	}
+	
+	/**
+	 * rescanAll scans the whole tree and swaps in a snapshot of it.  Changes that the watcher records in the meantime
+	 * stay in front of the new snapshot, because the watcher looks at the disk after the event and so is never older than the scan.
+	 * */
+	private boolean rescanAll() {
+		unwatchedFolders.set(0);
+		BasicFileAttributes rootAttributes;
+		try {
+			rootAttributes = Files.readAttributes(root, BasicFileAttributes.class);
+		} catch (IOException e) {
+			System.out.println("The document root " + root + " cannot be indexed: " + e);
+			return false;
+		}
+		List<Entry> entries = scanPool.invoke(new ScanTask("", rootAttributes));
+		Snapshot scanned = new Snapshot(entries.size());
+		for(Entry entry : entries) {
+			scanned.add(entry.path, entry.kind, entry.size, entry.lastModified);
+		}
+		snapshot = scanned;
+		return true;
+	}
+	
+	private String describeUnwatched() {
+		int unwatched = unwatchedFolders.get();
+		return unwatched == 0 ? "." : ".  " + unwatched + " folders could not be read or watched and are resolved on disk.";
+	}
+	
+	/**
+	 * ScanTask class that indexes one folder and forks a task for each of its subfolders.
+	 * The folder is registered with the WatchService before it is read, so no change after the read can be missed.
+	 * */
+	private class ScanTask extends RecursiveTask<List<Entry>> {
+		private static final long serialVersionUID = 1L;
+		
+		private final String path;
+		private final BasicFileAttributes attributes;
+		
+		ScanTask(String path, BasicFileAttributes attributes) {
+			this.path = path;
+			this.attributes = attributes;
+		}
+		
+		protected List<Entry> compute() {
+			ArrayList<Entry> found = new ArrayList<Entry>();
+			ArrayList<ScanTask> subfolders = new ArrayList<ScanTask>();
+			Path folder = resolve(path);
+			try {
+				WatchKey watchKey = folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				watchedFolders.put(watchKey, path);
+				DirectoryStream<Path> children = Files.newDirectoryStream(folder);
+				try {
+					for(Path child : children) {
+						String childPath = path.isEmpty() ? child.getFileName().toString() : path + "/" + child.getFileName();
+						BasicFileAttributes childAttributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if(childAttributes.isDirectory()) {
+							subfolders.add(new ScanTask(childPath, childAttributes));
+						}
+						else {
+							found.add(Entry.of(childPath, childAttributes));
+						}
+					}
+				} finally {
+					children.close();
+				}
+			} catch (IOException e) {
+				//Cannot be read or watched (e.g. the inotify limit).  PathResolver resolves it on disk instead.
+				unwatchedFolders.incrementAndGet();
+				found.clear();
+				found.add(new Entry(path, delegated, 0, 0));
+				return found;
+			} catch (ClosedWatchServiceException e) {
+				found.clear();
+				found.add(new Entry(path, delegated, 0, 0));
+				return found;
+			}
+			found.add(Entry.of(path, attributes));
+			invokeAll(subfolders);
+			for(ScanTask subfolder : subfolders) {
+				found.addAll(subfolder.join());
+			}
+			return found;
+		}
+	}
+	
+	private Path resolve(String relativePath) {
+		return relativePath.isEmpty() ? root : root.resolve(relativePath);
+	}
+	
+	private void startWatching() {
+		Thread watcher = new Thread(new Runnable() {
+			public void run() {
+				watchForChanges();
+			}
+		}, "document-index-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+	
+	/**
+	 * watchForChanges is the loop of the watcher thread.  Every event makes us look at the entry that changed again.
+	 * When events were lost (OVERFLOW) the whole folder is scanned again.
+	 * */
+	private void watchForChanges() {
+		while(true) {
+			WatchKey watchKey;
+			try {
+				watchKey = watchService.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			String folder = watchedFolders.get(watchKey);
+			for(WatchEvent<?> event : watchKey.pollEvents()) {
+				if(folder == null) {
+					continue;
+				}
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					rescan(folder);
+				}
+				else {
+					String name = event.context().toString();
+					refresh(folder.isEmpty() ? name : folder + "/" + name);
+				}
+			}
+			if(!watchKey.reset()) {
+				watchedFolders.remove(watchKey); //The folder was deleted.  Its parent's event removes its entries.
+			}
+			if(changes.size() >= Math.max(ServerConfig.indexCompactAfter, snapshot.count / 8)) {
+				compactAndSave();
+			}
+		}
+	}
+	
+	/**
+	 * refresh method that reads the attributes of one path again after an event and updates the index with them.
+	 * */
+	private void refresh(String path) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(resolve(path), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			forgetBelow(path);
+			changes.put(path, new Entry(path, removed, 0, 0));
+			return;
+		}
+		byte kind = kindOf(path);
+		if(attributes.isDirectory()) {
+			if(kind == PathResolver.folder) {
+				changes.put(path, Entry.of(path, attributes)); //Only its modification time changed.
+			}
+			else {
+				rescan(path); //A new folder, or one that was something else before.
+			}
+			return;
+		}
+		if(kind == PathResolver.folder) {
+			forgetBelow(path);
+		}
+		changes.put(path, Entry.of(path, attributes));
+	}
+	
+	/**
+	 * rescan method that scans a folder again and replaces everything the index knew below it.
+	 * */
+	private void rescan(String path) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(resolve(path), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			refresh(path); //Gone again already.
+			return;
+		}
+		if(!attributes.isDirectory()) {
+			refresh(path);
+			return;
+		}
+		List<Entry> found = scanPool.invoke(new ScanTask(path, attributes));
+		HashSet<String> foundPaths = new HashSet<String>();
+		for(Entry entry : found) {
+			foundPaths.add(entry.path);
+		}
+		for(String below : pathsBelow(path)) {
+			if(!foundPaths.contains(below)) {
+				changes.put(below, new Entry(below, removed, 0, 0));
+			}
+		}
+		for(Entry entry : found) {
+			changes.put(entry.path, entry);
+		}
+	}
+	
+	/**
+	 * forgetBelow removes everything below a folder that went away or became a file or a link.
+	 * This looks at every entry, which is fine because folders are rarely deleted while the server runs.
+	 * */
+	private void forgetBelow(String path) {
+		for(String below : pathsBelow(path)) {
+			changes.put(below, new Entry(below, removed, 0, 0));
+		}
+	}
+	
+	private ArrayList<String> pathsBelow(String path) {
+		String prefix = path.isEmpty() ? "" : path + "/";
+		ArrayList<String> below = new ArrayList<String>();
+		Snapshot current = snapshot;
+		for(String indexed : current.paths) {
+			if(indexed != null && indexed.startsWith(prefix) && !indexed.equals(path) && !changes.containsKey(indexed)) {
+				below.add(indexed);
+			}
+		}
+		for(Entry changed : changes.values()) {
+			if(changed.kind != removed && changed.path.startsWith(prefix) && !changed.path.equals(path)) {
+				below.add(changed.path);
+			}
+		}
+		return below;
+	}
+	
+	/**
+	 * compactAndSave builds a new snapshot with the changes so far and saves it to the index file.
+	 * A change is only dropped from the map if it was not replaced while the snapshot was built.
+	 * */
+	private synchronized void compactAndSave() {
+		Snapshot current = snapshot;
+		if(!changes.isEmpty()) {
+			HashMap<String, Entry> applied = new HashMap<String, Entry>(changes);
+			Snapshot compacted = new Snapshot(current.count + applied.size());
+			for(int slot = 0; slot < current.paths.length; slot++) {
+				if(current.paths[slot] != null && !applied.containsKey(current.paths[slot])) {
+					compacted.add(current.paths[slot], current.kinds[slot], current.sizes[slot], current.modified[slot]);
+				}
+			}
+			for(Entry entry : applied.values()) {
+				if(entry.kind != removed) {
+					compacted.add(entry.path, entry.kind, entry.size, entry.lastModified);
+				}
+			}
+			snapshot = compacted;
+			for(Map.Entry<String, Entry> change : applied.entrySet()) {
+				changes.remove(change.getKey(), change.getValue());
+			}
+			current = compacted;
+		}
+		save(current);
+	}
+	
+	/**
+	 * save method that writes the snapshot to a temporary file and then moves it over the index file,
+	 * so a server that is killed while saving leaves the old file intact.
+	 * */
+	private void save(Snapshot current) {
+		if(indexFile == null) {
+			return;
+		}
+		File temporary = new File(indexFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+			try {
+				out.writeInt(fileMagic);
+				out.writeInt(fileVersion);
+				out.writeUTF(root.toString());
+				out.writeInt(current.count);
+				for(int slot = 0; slot < current.paths.length; slot++) {
+					if(current.paths[slot] != null) {
+						out.writeUTF(current.paths[slot]);
+						out.writeByte(current.kinds[slot]);
+						out.writeLong(current.sizes[slot]);
+						out.writeLong(current.modified[slot]);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Could not save the document index to " + indexFile + ": " + e);
+		}
+	}
+	
+	/**
+	 * load method that reads the index file.  Returns null if there is none, or it is damaged or made for another document root.
+	 * */
+	private Snapshot load() {
+		if(indexFile == null || !indexFile.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+			try {
+				if(in.readInt() != fileMagic || in.readInt() != fileVersion || !in.readUTF().equals(root.toString())) {
+					System.out.println("The document index in " + indexFile + " is for another document root or version.  Scanning the tree instead.");
+					return null;
+				}
+				int count = in.readInt();
+				Snapshot loaded = new Snapshot(count);
+				for(int i = 0; i < count; i++) {
+					loaded.add(in.readUTF(), in.readByte(), in.readLong(), in.readLong());
+				}
+				return loaded;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not load the document index from " + indexFile + ": " + e + ".  Scanning the tree instead.");
+			return null;
+		}
+	}
+	
+	int getEntryCount() {
+		return snapshot.count + changes.size();
+	}
+	
+	/**
+	 * Snapshot class that holds the entries in an open addressing table (linear probing, at most half full) of plain arrays.
+	 * That takes far less memory per entry than a HashMap, which matters for trees with millions of files.
+	 * A snapshot is filled once and then only read.
+	 * */
+	private static class Snapshot {
+		final String[] paths;
+		final byte[] kinds;
+		final long[] sizes;
+		final long[] modified;
+		final int mask;
+		int count = 0;
+		
+		Snapshot(int expectedEntries) {
+			int capacity = 16;
+			while(capacity < 2L * expectedEntries) {
+				capacity <<= 1;
+			}
+			paths = new String[capacity];
+			kinds = new byte[capacity];
+			sizes = new long[capacity];
+			modified = new long[capacity];
+			mask = capacity - 1;
+		}
+		
+		void add(String path, byte kind, long size, long lastModified) {
+			int slot = slotOf(path);
+			if(paths[slot] == null) {
+				paths[slot] = path;
+				count++;
+			}
+			kinds[slot] = kind;
+			sizes[slot] = size;
+			modified[slot] = lastModified;
+		}
+		
+		int find(String path) {
+			int slot = slotOf(path);
+			return paths[slot] == null ? -1 : slot;
+		}
+		
+		//Slot that holds the path, or the empty slot where it would go.
+		private int slotOf(String path) {
+			int hash = path.hashCode();
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while(paths[slot] != null && !paths[slot].equals(path)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+	
+	/**
+	 * Entry class for one path while it is scanned, and for the changes the watcher makes on top of the snapshot.
+	 * */
+	private static class Entry {
+		final String path;
+		final byte kind;
+		final long size;
+		final long lastModified;
+		
+		Entry(String path, byte kind, long size, long lastModified) {
+			this.path = path;
+			this.kind = kind;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+		
+		static Entry of(String path, BasicFileAttributes attributes) {
+			if(attributes.isSymbolicLink() || attributes.isOther()) {
+				return new Entry(path, delegated, 0, 0);
+			}
+			byte kind = (byte) (attributes.isDirectory() ? PathResolver.folder : PathResolver.file);
+			return new Entry(path, kind, attributes.size(), attributes.lastModifiedTime().toMillis());
+		}
+	}
+}
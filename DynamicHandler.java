@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * DynamicHandler interface for pages that are generated by code instead of read from a file, like the addnums CGI.
+ * A handler is registered for a path with DynamicHandlers.register, for example:
+ * 
+ * DynamicHandlers.register("/cgi/addnums.fake-cgi", false, new AddNumsHandler(), true, 0);
+ * 
+ * or named on the command line with -Dserver.handlers=/hello=HelloHandler (see ServerConfig).
+ * Handlers run on the handler pool of DynamicHandlers, never on the threads that serve files,
+ * so they may be slow, but they must be thread safe because several requests can run it at the same time.
+ * A handler that runs past its timeout is interrupted and the client gets 503 Service Unavailable.
+ * 
+ * A handler with a large or slow page can stream it instead of returning it in one piece:
+ * 
+ * OutputStream page = request.startStream(RequestHandler.httpOK, RequestHandler.generatedHtmlType);
+ * page.write(...); //The client gets every part as soon as it can take it.
+ * return null;
+ * 
+ * The page ends when handle returns (or the handler closes the stream).  If the handler throws or runs past its timeout
+ * after it started streaming, the page breaks off, because the status line has gone out already.
+ * */
+interface DynamicHandler {
+	/**
+	 * handle method that builds the page for one request.  An exception is answered with 500 Internal Server Error.
+	 * A handler that streamed its page (Request.startStream) returns null, or anything else, which is ignored.
+	 * */
+	Result handle(Request request) throws Exception;
+	
+	/**
+	 * Request class with what a handler gets to see of a request.  It does not hold on to the connection,
+	 * so it stays valid while the connection goes on with other work.
+	 * */
+	static class Request {
+		final String path; //Percent-decoded path, e.g. /cgi/addnums.fake-cgi
+		final String query; //Query as it was sent (not decoded), or "" if there is none.
+		final Map<String, String> parameters; //Decoded query arguments sorted by name, e.g. {num1=4, num2=5, person=Ann}
+		final InetAddress clientAddress; //Null when it is not known.
+		private final CompletableFuture<Result> result; //Completed by DynamicHandlers, or by startStream.
+		private ResponseStream stream;
+		
+		Request(String path, String query, Map<String, String> parameters, InetAddress clientAddress, CompletableFuture<Result> result) {
+			this.path = path;
+			this.query = query;
+			this.parameters = parameters;
+			this.clientAddress = clientAddress;
+			this.result = result;
+		}
+		
+		/**
+		 * startStream method that sends the status line and header right away and returns the stream the page is written into.
+		 * Writes wait while the client is behind (see ResponseStream), and throw an IOException once the client has gone away
+		 * or the handler ran past its timeout.  Can only be called once.
+		 * */
+		synchronized ResponseStream startStream(int httpCode, String contentType) throws IOException {
+			if(stream != null) {
+				throw new IllegalStateException("The page is streamed already");
+			}
+			ResponseStream newStream = new ResponseStream(ServerConfig.streamBufferBytes);
+			if(!result.complete(Result.streamed(httpCode, contentType, newStream))) {
+				throw new IOException("The request was answered already"); //The handler ran past its timeout.
+			}
+			stream = newStream;
+			return newStream;
+		}
+		
+		/**
+		 * getStream returns the stream of a handler that called startStream, or null.
+		 * */
+		synchronized ResponseStream getStream() {
+			return stream;
+		}
+	}
+	
+	/**
+	 * Result class that holds the page a handler built.  Results of pure handlers are cached and shared
+	 * between requests, so the body must not be changed after it is handed over.
+	 * The page of a handler that streams it is in stream instead of body, and is never cached.
+	 * */
+	static class Result {
+		final int httpCode;
+		final String contentType;
+		final byte[] body;
+		final ResponseStream stream;
+		
+		Result(int httpCode, String contentType, byte[] body) {
+			this(httpCode, contentType, body, null);
+		}
+		
+		private Result(int httpCode, String contentType, byte[] body, ResponseStream stream) {
+			this.httpCode = httpCode;
+			this.contentType = contentType;
+			this.body = body;
+			this.stream = stream;
+		}
+		
+		static Result streamed(int httpCode, String contentType, ResponseStream stream) {
+			return new Result(httpCode, contentType, null, stream);
+		}
+		
+		/**
+		 * html method for the usual case of a 200 OK page of HTML.
+		 * */
+		static Result html(String html) {
+			return new Result(RequestHandler.httpOK, RequestHandler.generatedHtmlType, html.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,313 @@
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DynamicHandlers class that keeps the registered DynamicHandlers and runs them.
+ * 
+ * 1. Routes are looked up in a RouteTrie, so the cost of finding the handler does not grow with the number of routes.
+ * 2. Handlers run on their own bounded thread pool (ServerConfig.handlerThreads threads with a queue of ServerConfig.handlerQueueSize).
+ *    However slow the handlers get, the threads that serve files and folders are never taken by them:
+ *    when the pool and its queue are full, further dynamic requests get 503 Service Unavailable right away.
+ * 3. Every handler has a timeout.  A handler that runs over it is interrupted and its client gets 503,
+ *    or, if the handler already streams its page, the page breaks off.
+ * 4. Handlers registered as pure (their page only depends on the query arguments, like addnums) have their pages cached,
+ *    keyed by the path and the decoded arguments in sorted order, so "?b=2&a=1" and "?a=1&b=2" share an entry.
+ *    Cached pages are answered without going to the pool at all.
+ * 
+ * Calls complete a CompletableFuture so that a blocking worker can wait for the page
+ * and a NIO event loop can go on with other connections until it is ready.
+ * */
+class DynamicHandlers {
+	private static volatile RouteTrie routes = new RouteTrie();
+	private static final ArrayList<Route> registeredRoutes = new ArrayList<Route>();
+	private static final ConcurrentHashMap<String, DynamicHandler.Result> pureResults = new ConcurrentHashMap<String, DynamicHandler.Result>();
+	
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(ServerConfig.handlerThreads, ServerConfig.handlerThreads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(Math.max(1, ServerConfig.handlerQueueSize)), new HandlerThreadFactory("dynamic-handler-"));
+	private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, new HandlerThreadFactory("handler-timeouts-"));
+	static {
+		timeouts.setRemoveOnCancelPolicy(true); //Most timeouts are cancelled because the handler finished in time.
+	}
+	
+	//The error pages never change so they are built once.
+	private static final DynamicHandler.Result failed = errorResult(500);
+	private static final DynamicHandler.Result unavailable = errorResult(503);
+	
+	static {
+		register("/cgi/addnums.fake-cgi", false, new AddNumsHandler(), true, 0);
+		registerConfiguredHandlers();
+	}
+	
+	/**
+	 * Route class that holds a handler with the options it was registered with.
+	 * */
+	static class Route {
+		final String path;
+		final boolean prefix;
+		final DynamicHandler handler;
+		final boolean pure;
+		final long timeoutMillis;
+		
+		Route(String path, boolean prefix, DynamicHandler handler, boolean pure, long timeoutMillis) {
+			this.path = path;
+			this.prefix = prefix;
+			this.handler = handler;
+			this.pure = pure;
+			this.timeoutMillis = timeoutMillis;
+		}
+	}
+	
+	/**
+	 * register method that adds a handler for a path.
+	 * prefix: the handler also gets every path below this one (register "/api/" to get "/api/users" and so on).
+	 * pure: the page only depends on the path and the query arguments, so it can be cached.
+	 * timeoutMillis: how long the handler may run, or 0 for ServerConfig.handlerTimeoutMillis.
+	 * Handlers are registered when the server starts.  The trie is rebuilt and swapped in so that lookups never need a lock.
+	 * */
+	static synchronized void register(String path, boolean prefix, DynamicHandler handler, boolean pure, long timeoutMillis) {
+		registeredRoutes.add(new Route(path, prefix, handler, pure, timeoutMillis > 0 ? timeoutMillis : ServerConfig.handlerTimeoutMillis));
+		RouteTrie trie = new RouteTrie();
+		for(Route route : registeredRoutes) {
+			trie.add(route.path, route.prefix, route);
+		}
+		routes = trie;
+	}
+	
+	/**
+	 * registerConfiguredHandlers adds the handlers named in -Dserver.handlers, e.g. "/hello=HelloHandler,/api/*=ApiHandler".
+	 * A path that ends with "*" is a prefix route.  The classes need a constructor without arguments.
+	 * */
+	private static void registerConfiguredHandlers() {
+		String configured = ServerConfig.dynamicHandlers;
+		if(configured == null || configured.trim().isEmpty()) {
+			return;
+		}
+		for(String entry : configured.split(",")) {
+			int equals = entry.indexOf('=');
+			if(equals < 0) {
+				System.out.println("Ignoring -Dserver.handlers entry \"" + entry + "\": use path=ClassName");
+				continue;
+			}
+			String path = entry.substring(0, equals).trim();
+			String className = entry.substring(equals + 1).trim();
+			try {
+				DynamicHandler handler = (DynamicHandler) Class.forName(className).getDeclaredConstructor().newInstance();
+				boolean prefix = path.endsWith("*");
+				register(prefix ? path.substring(0, path.length() - 1) : path, prefix, handler, false, 0);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Could not load the handler " + className + " for " + path + ": " + e);
+			} catch (ClassCastException e) {
+				System.out.println(className + " is not a DynamicHandler so it is not registered for " + path);
+			}
+		}
+	}
+	
+	/**
+	 * find method that returns the route for a request URL (path and query), or null if it is not a dynamic page.
+	 * */
+	static Route find(String requestUrl) {
+		return routes.find(requestUrl);
+	}
+	
+	/**
+	 * call method that runs the handler of a route for a request URL and returns the page as a future.
+	 * Cached pages of pure handlers and refusals (pool full) come back as futures that are already complete.
+	 * */
+	static CompletableFuture<DynamicHandler.Result> call(final Route route, String requestUrl, InetAddress clientAddress) {
+		int question = requestUrl.indexOf('?');
+		String path = question < 0 ? requestUrl : requestUrl.substring(0, question);
+		String query = question < 0 ? "" : requestUrl.substring(question + 1);
+		final TreeMap<String, String> parameters = parseQuery(query);
+		
+		final String cacheKey = route.pure ? cacheKey(path, parameters) : null;
+		if(cacheKey != null) {
+			DynamicHandler.Result cached = pureResults.get(cacheKey);
+			if(cached != null) {
+				return CompletableFuture.completedFuture(cached);
+			}
+		}
+		
+		CompletableFuture<DynamicHandler.Result> result = new CompletableFuture<DynamicHandler.Result>();
+		DynamicHandler.Request request = new DynamicHandler.Request(path, query, parameters, clientAddress, result);
+		final Call call = new Call(route, request, result, cacheKey);
+		try {
+			call.task = pool.submit(call);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.completedFuture(unavailable); //Every handler thread is busy and the queue is full.
+		}
+		call.timeout = timeouts.schedule(new Runnable() {
+			public void run() {
+				call.onTimeout();
+			}
+		}, route.timeoutMillis, TimeUnit.MILLISECONDS);
+		if(call.task.isDone()) {
+			call.timeout.cancel(false); //The handler was done before its timeout was set.
+		}
+		return result;
+	}
+	
+	/**
+	 * Call class that runs a handler on the pool and completes the result with its page.
+	 * The timeout stays set until the handler returns, also when it streams its page and the result is complete long before.
+	 * */
+	private static class Call implements Runnable {
+		private final Route route;
+		private final DynamicHandler.Request request;
+		private final CompletableFuture<DynamicHandler.Result> result;
+		private final String cacheKey; //Null unless the handler is pure.
+		volatile Future<?> task;
+		volatile ScheduledFuture<?> timeout;
+		
+		Call(Route route, DynamicHandler.Request request, CompletableFuture<DynamicHandler.Result> result, String cacheKey) {
+			this.route = route;
+			this.request = request;
+			this.result = result;
+			this.cacheKey = cacheKey;
+		}
+		
+		public void run() {
+			DynamicHandler.Result page;
+			boolean returned = false;
+			try {
+				page = route.handler.handle(request);
+				returned = true;
+			} catch (InterruptedException e) {
+				//Usually the timeout, which has answered the request already and then the 503 below changes nothing.
+				//But a handler may also be interrupted for its own reasons, and the request still needs its answer.
+				page = unavailable;
+			} catch (Exception e) {
+				System.out.println("The handler for " + route.path + " failed: " + e);
+				page = failed;
+			} finally {
+				ScheduledFuture<?> pendingTimeout = timeout;
+				if(pendingTimeout != null) {
+					pendingTimeout.cancel(false);
+				}
+				ResponseStream stream = request.getStream();
+				if(stream != null) {
+					if(returned) {
+						stream.close();
+					}
+					else {
+						stream.fail("The handler for " + route.path + " did not finish its page");
+					}
+				}
+			}
+			if(request.getStream() != null) {
+				return; //The page went out while the handler wrote it.
+			}
+			if(page == null) {
+				page = failed;
+			}
+			if(cacheKey != null && page.httpCode == RequestHandler.httpOK) {
+				remember(cacheKey, page);
+			}
+			result.complete(page);
+		}
+		
+		/**
+		 * onTimeout answers the request with 503 if the handler has not answered it yet, or breaks off the page it is streaming,
+		 * and interrupts the handler.
+		 * */
+		void onTimeout() {
+			if(!result.complete(unavailable)) {
+				ResponseStream stream = request.getStream();
+				if(stream == null) {
+					return; //The handler finished in time.
+				}
+				stream.fail("The handler for " + route.path + " ran past its timeout");
+			}
+			task.cancel(true);
+		}
+	}
+	
+	private static void remember(String cacheKey, DynamicHandler.Result page) {
+		if(pureResults.size() >= ServerConfig.handlerCacheEntries) {
+			//Make room by dropping some entry, like PathResolver does.
+			Iterator<String> keys = pureResults.keySet().iterator();
+			if(keys.hasNext()) {
+				keys.next();
+				keys.remove();
+			}
+		}
+		pureResults.put(cacheKey, page);
+	}
+	
+	/**
+	 * cacheKey builds the key of a pure handler's page from the path and the sorted arguments.
+	 * Every part is written with its length in front so that no two different argument lists give the same key.
+	 * */
+	private static String cacheKey(String path, TreeMap<String, String> parameters) {
+		StringBuilder key = new StringBuilder(path.length() + 32);
+		key.append(path);
+		for(Map.Entry<String, String> parameter : parameters.entrySet()) {
+			key.append('\n').append(parameter.getKey().length()).append(':').append(parameter.getKey())
+					.append(parameter.getValue().length()).append(':').append(parameter.getValue());
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * parseQuery method that splits a query into its arguments, e.g. "num1=20&num2=8&person=Melissa".
+	 * The query is not decoded by the parser because an encoded "&" or "=" must not split arguments, so we decode each part here.
+	 * Arguments that are not of the form key=value or do not decode are left out; validating them is up to the handler.
+	 * */
+	static TreeMap<String, String> parseQuery(String query) {
+		TreeMap<String, String> argumentMap = new TreeMap<String, String>();
+		//CGI parameters are separated by "&" and each one is of the form: "key=value" e.g. "person=Lucy"
+		for(String argument : query.split("&")) {
+			String[] keyValuePair = argument.split("=");
+			if(keyValuePair.length == 2) {
+				String key = RequestParser.percentDecode(keyValuePair[0], true);
+				String value = RequestParser.percentDecode(keyValuePair[1], true);
+				if(key != null && value != null) {
+					argumentMap.put(key, value);
+				}
+			}
+		}
+		
+		if(ServerLog.debugEnabled) {
+			ServerLog.debug("The map of arguments to the CGI functionality are:\n" + argumentMap + "\n"); //Add some padding to the output
+		}
+		
+		return argumentMap;
+	}
+	
+	private static DynamicHandler.Result errorResult(int httpCode) {
+		return new DynamicHandler.Result(httpCode, RequestHandler.generatedHtmlType,
+				HTTPConstructor.getHttpErrorMessage(httpCode).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Thread factory for daemon threads with readable names for thread dumps.
+	 * */
+	private static class HandlerThreadFactory implements ThreadFactory {
+		private final String namePrefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+		
+		HandlerThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -1,49 +1,62 @@
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 
 /**
  * FileSystemReader class that handles the more complex File System access requirements.
  * */
 class FileSystemReader {
+	//Shared in-memory cache of small files, null when it is turned off in ServerConfig.
+	static final StaticContentCache contentCache = ServerConfig.contentCacheEnabled
+			? new StaticContentCache(ServerConfig.contentCacheMaxBytes, ServerConfig.contentCacheMaxEntryBytes,
+					ServerConfig.compressionMaxSourceBytes, ServerConfig.contentCacheRevalidateMillis, ServerConfig.contentCacheDirect)
+			: null;
+	
+	//Shared cache of rendered folder listings, null when it is turned off in ServerConfig or the platform cannot watch directories.
+	static final DirectoryListingCache listingCache = createListingCache();
 	
 	/**
-	 * listFolder function that lists the files and folders for a given File object.
-	 * We assume that the file object represents a folder.  If it isn't, we throw an error.
-	 * It is therefore up to the user of this method to ensure he is checking that the File Object
+	 * listFolder function that lists the files and folders of a directory.
+	 * We assume that the path represents a folder.  If it isn't, the listing only has the parent folder link.
+	 * It is therefore up to the user of this method to ensure he is checking that the path
 	 * is in fact representing a folder and not a file.
+	 * The entries are read with one directory stream and one attribute read per entry, instead of resolving every entry's canonical path.
 	 * */
-	static ArrayList<String> listFolder(File file){
-		
-		
+	static ArrayList<String> listFolder(Path folder){
 		ArrayList<String> result = new ArrayList<String>();
-		//Assume that the calling function has already checked that file is a folder
+		//Assume that the calling function has already checked that folder is a folder
 		try {
-			System.out.println("Getting the folder listing for: " + file.getCanonicalPath());
-			System.out.println(""); //Add some padding to the console output
+			if(ServerLog.debugEnabled) {
+				ServerLog.debug("Getting the folder listing for: " + folder + "\n"); //Add some padding to the console output
+			}
 			
-		
-			if(!file.getCanonicalPath().equals(MyWebServer.workingDirectory.getCanonicalPath())) {
+			if(!isDocumentRoot(folder)) {
 				result.add("../"); 
 				//If we are retrieving the working directory for the web server (we are accessing a sub folder), then return a parent folder link.
 			}
 			
-			for(String fileFolder: file.list()) {
-				
-					if(new File(file.getCanonicalPath()+"/"+fileFolder).isDirectory()) {
-						result.add(fileFolder+"/"); //Append a "/" to the fileFolder String if it represents a folder.
-					}
-					else {
-						result.add(fileFolder);
-					}
-				
+			DirectoryStream<Path> entries = Files.newDirectoryStream(folder);
+			try {
+				for(Path entry : entries) {
+					result.add(entryName(entry));
+				}
+			} finally {
+				entries.close();
 			}
 		
-			System.out.println("The listing for " + file.getCanonicalPath()+ " is (NOTE that ../ means parent folder):\n" + result);
-			System.out.println("");  //Add some padding to the console output
+			if(ServerLog.debugEnabled) {
+				ServerLog.debug("The listing for " + folder + " is (NOTE that ../ means parent folder):\n" + result + "\n");  //Add some padding to the console output
+			}
 		} catch (IOException e) {
 			
 			e.printStackTrace();
@@ -52,6 +65,117 @@ class FileSystemReader {
 		
 	}
 
+	/**
+	 * isDocumentRoot tells whether a folder is the served folder itself, which is listed without a link to its parent.
+	 * */
+	static boolean isDocumentRoot(Path folder) throws IOException {
+		return folder.toRealPath().equals(PathResolver.getDocumentRoot());
+	}
+	
+	/**
+	 * entryName returns the name of a directory entry as it is listed, with a "/" appended if it is a folder.
+	 * */
+	static String entryName(Path entry) {
+		String fileFolder = entry.getFileName().toString();
+		return isDirectory(entry) ? fileFolder + "/" : fileFolder;
+	}
+	
+	/**
+	 * isDirectory reads the attributes of a directory entry once.  Like File.isDirectory, symbolic links are followed
+	 * and an entry that cannot be read is listed as a file.
+	 * */
+	private static boolean isDirectory(Path entry) {
+		try {
+			return Files.readAttributes(entry, BasicFileAttributes.class).isDirectory();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * getFolderListing method that returns the rendered HTML listing of a folder for the given request URL.
+	 * Listings come from the folder listing cache while the folder does not change.
+	 * Returns null if the listing cannot be cached (the cache is turned off or full), in which case the caller
+	 * should stream it with a FolderListingBody instead of rendering the whole page in memory for every request.
+	 * */
+	static DirectoryListingCache.Listing getFolderListing(Path folder, String requestUrl) {
+		if(listingCache != null) {
+			return listingCache.get(folder, requestUrl);
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * createListingCache sets up the folder listing cache if it is turned on.
+	 * */
+	private static DirectoryListingCache createListingCache() {
+		if(!ServerConfig.listingCacheEnabled) {
+			return null;
+		}
+		try {
+			return new DirectoryListingCache(ServerConfig.listingCacheMaxDirectories);
+		} catch (IOException e) {
+			System.out.println("Folder listings are not cached because directories cannot be watched: " + e);
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * getCachedContent method that returns the content of a file from the content cache (loading it on a miss).
+	 * Returns null if the cache is turned off or the file is too large to be cached, in which case the caller should use openFile.
+	 * */
+	static ByteBuffer getCachedContent(File file) {
+		if(contentCache == null) {
+			return null;
+		}
+		return contentCache.get(file);
+	}
+	
+	
+	/**
+	 * getCompressedContent method that returns the file compressed with the given coding (only gzip can be made on the fly).
+	 * The compressed bytes come from the content cache.  If the cache is turned off the file is compressed for every request.
+	 * Returns null if the file cannot be read, in which case the caller sends the file as it is.
+	 * */
+	static ByteBuffer getCompressedContent(File file, String encoding) {
+		if(contentCache != null) {
+			return contentCache.get(file, encoding);
+		}
+		if(!ContentEncoding.gzip.equals(encoding) || file.length() > ServerConfig.compressionMaxSourceBytes) {
+			return null;
+		}
+		try {
+			return ByteBuffer.wrap(ContentEncoding.gzip(Files.readAllBytes(file.toPath())));
+		} catch (IOException e) {
+			//The file went away or cannot be read.
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * openFile method that opens a File Object for reading and returns its channel so that the content can be sent
+	 * to the client without reading it into memory first.  Returns null if the file cannot be opened.
+	 * The caller is responsible for closing the channel.
+	 * */
+	static FileChannel openFile(File file) {
+		try {
+			if(ServerLog.debugEnabled) {
+				ServerLog.debug("Opening file for: " + file.getCanonicalPath() + "\n"); //Add some padding to the console output
+			}
+			
+			return new FileInputStream(file).getChannel();
+		} catch (FileNotFoundException e) {
+			//Can happen if the file was removed after we checked that it exists or if we are not allowed to read it.
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
 	
 	/**
 	 * getFileContent method that takes in a File Object and reads in the file content as a String.
@@ -62,8 +186,9 @@ class FileSystemReader {
 		String fullFileContent = "";
 		
 		try {	
-			System.out.println("Getting file content for: " + file.getCanonicalPath());
-			System.out.println(""); //Add some padding to the console output
+			if(ServerLog.debugEnabled) {
+				ServerLog.debug("Getting file content for: " + file.getCanonicalPath() + "\n"); //Add some padding to the console output
+			}
 			
 			FileReader fileReader = new FileReader(file);
 			BufferedReader bufferedFileReader = new BufferedReader(fileReader);
@@ -74,8 +199,9 @@ class FileSystemReader {
 			}
 			
 			//Log file content
-			System.out.println("File content for " + file.getCanonicalPath() + " is:\n"+ fullFileContent);
-			System.out.println(""); //Add some padding to the console output
+			if(ServerLog.debugEnabled) {
+				ServerLog.debug("File content for " + file.getCanonicalPath() + " is:\n"+ fullFileContent + "\n"); //Add some padding to the console output
+			}
 			
 		bufferedFileReader.close();
 		} catch (FileNotFoundException e) {
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * FolderListingBody class that streams the HTML listing of a folder that is not in the folder listing cache.
+ * The directory is read while the page is sent, a few entries at a time, and each entry becomes a link as
+ * HTTPConstructor.getSimpleFolderList would make it.  So a folder with a million files takes no more memory than
+ * one socket buffer of HTML, and the client gets the start of the page before the whole directory has been read.
+ * Reading a directory does not wait for anything but the disk, so the body is always readable.
+ * */
+class FolderListingBody implements StreamingBody {
+	private static final CharBuffer nothing = CharBuffer.allocate(0);
+	
+	private final Path folder;
+	private final String requestUrl;
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private CharBuffer pending = nothing; //Part of the page that is made but not copied out yet.
+	private DirectoryStream<Path> entries; //Opened once the start of the page has been sent.
+	private Iterator<Path> nextEntries;
+	private boolean ended = false; //Set once the end of the page has been made.
+	
+	FolderListingBody(Path folder, String requestUrl) {
+		this.folder = folder;
+		this.requestUrl = requestUrl;
+	}
+	
+	public int read(ByteBuffer dst) {
+		int start = dst.position();
+		while(dst.hasRemaining()) {
+			if(pending.hasRemaining()) {
+				encoder.encode(pending, dst, false);
+				if(pending.hasRemaining() && dst.hasRemaining()) {
+					pending = nothing; //Half a surrogate pair that cannot be encoded.
+				}
+				continue;
+			}
+			String piece = nextPiece();
+			if(piece == null) {
+				break;
+			}
+			pending = CharBuffer.wrap(piece);
+		}
+		int copied = dst.position() - start;
+		return copied == 0 && ended ? -1 : copied;
+	}
+	
+	/**
+	 * nextPiece makes the next piece of the page: the start with the heading and the link to the parent folder,
+	 * then one link per entry and finally the end.  Returns null once the whole page was made.
+	 * */
+	private String nextPiece() {
+		if(ended) {
+			return null;
+		}
+		try {
+			if(nextEntries == null) {
+				String start = HTTPConstructor.getFolderListStart(requestUrl);
+				if(!FileSystemReader.isDocumentRoot(folder)) {
+					start += HTTPConstructor.getLink("../");
+				}
+				entries = Files.newDirectoryStream(folder);
+				nextEntries = entries.iterator();
+				return start;
+			}
+			if(nextEntries.hasNext()) {
+				return HTTPConstructor.getLink(FileSystemReader.entryName(nextEntries.next()));
+			}
+		} catch (IOException e) {
+			//Like FileSystemReader.listFolder, a folder that cannot be read is listed with what we got so far.
+			e.printStackTrace();
+		} catch (DirectoryIteratorException e) {
+			e.printStackTrace();
+		}
+		ended = true;
+		discard();
+		return HTTPConstructor.getEndHtmlTag();
+	}
+	
+	public void whenReadable(Runnable callback) {
+		callback.run();
+	}
+	
+	public void discard() {
+		if(entries != null) {
+			try {
+				entries.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -1,34 +1,50 @@
-import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Locale;
-import java.util.TimeZone;
 
 
 /**
  * HTTPConstructor class that constructs the HTTP response and holds libraries for HTML tags as well.
  * */
 class HTTPConstructor {
-	static final String[] httpCodes = {"200", "404"};  // 200 = OK, 404 = Not Found
-	static final String[] httpMessages = {"OK", "Not Found"}; 
+	//Table of the status codes that the server sends and their reason phrases, e.g. 200 -> "OK", 404 -> "Not Found"
+	static final HashMap<Integer, String> httpStatusMessages = new HashMap<Integer, String>();
+	static {
+		httpStatusMessages.put(200, "OK");
+		httpStatusMessages.put(206, "Partial Content");
+		httpStatusMessages.put(304, "Not Modified");
+		httpStatusMessages.put(400, "Bad Request");
+		httpStatusMessages.put(404, "Not Found");
+		httpStatusMessages.put(414, "URI Too Long");
+		httpStatusMessages.put(416, "Range Not Satisfiable");
+		httpStatusMessages.put(431, "Request Header Fields Too Large");
+		httpStatusMessages.put(500, "Internal Server Error");
+		httpStatusMessages.put(503, "Service Unavailable");
+	}
 	static final String htmlLineBreak = "<br>\n";  //HTML line break tag.  Using \n for better raw HTML readability
 	static final String httpHeaderEndLine = "\r\n"; //Empty line followed by carriage return & line feed to denote the end of the HTTP header
+	//Dates in HTTP headers look like: Sun, 03 May 2020 11:18:50 GMT.  DateTimeFormatter is thread safe unlike SimpleDateFormat.
+	static final DateTimeFormatter httpDateFormat = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 	
 	
 	/**
 	 * getHttpResponseStartLine function that will create the start line for the HTTP response.
-	 * The function takes an httpVersion and an index into httpCodes and httpMessages.
+	 * The function takes an httpVersion and a status code that is looked up in the httpStatusMessages table.
 	 * */
 	static String getHttpResponseStartLine(String httpVersion, int httpCode) {
 		/**httpVersion is the HTTP version from the request
-		 * httpCode is an index into httpCodes and httpMessages array which is not the most elegant implementation
-		 * httpCode = 0 means that we are dealing with a 200 OK status
-		 * httpCode = 1 means that we are dealing with a 404 Not Found status 
-		 * Probably better to initialize a constant hash map instead or simply static constant strings.
+		 * httpCode is the numeric status code, e.g. 200 for OK or 404 for Not Found
 		 */
-		
-		return String.join(" ", httpVersion, httpCodes[httpCode], httpMessages[httpCode])+"\r\n";
+		String httpMessage = httpStatusMessages.get(httpCode);
+		return String.join(" ", httpVersion, httpCode+"", httpMessage == null ? "" : httpMessage)+"\r\n";
 		
 	}
 	
@@ -40,26 +56,47 @@ class HTTPConstructor {
 	}
 	
 	
+	/**
+	 * Connection keep-alive part of the HTTP response which tells the client that it can send more requests on the same connection.
+	 * */
+	static String getConnectionKeepAlive() {
+		return String.join(": ", "Connection", "keep-alive")+"\r\n";
+	}
+	
+	
 	/**
 	 * DateTime string used in the HTTP response
 	 * */
 	static String getHttpDate() {
-		//Get the current date in the form: Sun, 03 May 2020 11:18:50 GMT" using the US locale
-		
-		SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z",Locale.US);
-		
-		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-		
-		Date now = new Date();
-		String formattedDate = dateFormat.format(now);
 		//Date String in HTTP response will be of the form: "Date: Sun, 03 May 2020 11:18:50 GMT" followed by a new line. 
-		return String.join(": ", "Date", formattedDate)+"\r\n";
+		//ResponseHeaderBuilder formats the date at most once per second so we reuse its encoded line.
+		return new String(ResponseHeaderBuilder.getDateLine(), StandardCharsets.US_ASCII);
+	}
+	
+	
+	/**
+	 * formatHttpDate method that formats a time in milliseconds the way HTTP headers expect it, e.g. "Sun, 03 May 2020 11:18:50 GMT".
+	 * */
+	static String formatHttpDate(long millis) {
+		return httpDateFormat.format(Instant.ofEpochMilli(millis));
+	}
+	
+	/**
+	 * parseHttpDate method that reads a date from an HTTP header (e.g. If-Range) and returns it in milliseconds, or -1 if it is not a valid date.
+	 * */
+	static long parseHttpDate(String httpDate) {
+		try {
+			return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
 	}
 	
 	
 	/**
 	 * getLink method that takes in a String path and
-	 * returns a String representing an anchor tag to the path specified
+	 * returns a String representing an anchor tag to the path specified.
+	 * File names can hold any character, so the link is percent-encoded and the text is escaped.
 	 * */
 	static String getLink(String path) {
 		
@@ -67,7 +104,36 @@ class HTTPConstructor {
 		 * Tag will be of the form: "<a href="path">path</a>" followed by an html line break (<br>)
 		 * and a new line for easier readability
 		*/
-		return "<a href=" + "\"" + path +"\"" + ">" + path + "</a>"+htmlLineBreak;
+		return "<a href=" + "\"" + percentEncode(path) +"\"" + ">" + escapeHtml(path) + "</a>"+htmlLineBreak;
+	}
+	
+	/**
+	 * percentEncode method that turns a relative path into a URL path: every byte of its UTF-8 form other than
+	 * letters, digits, "-", ".", "_", "~" and "/" becomes a %XX escape, the way RequestParser.percentDecode reads it back.
+	 * A ":" is escaped as well, so that a name like "javascript:x" is not taken for a URL with a scheme.
+	 * */
+	static String percentEncode(String path) {
+		StringBuilder encoded = null;
+		byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+		for(int i = 0; i < bytes.length; i++) {
+			int b = bytes[i] & 0xff;
+			boolean plain = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+					|| b == '-' || b == '.' || b == '_' || b == '~' || b == '/';
+			if(plain && encoded == null) {
+				continue;
+			}
+			if(encoded == null) {
+				encoded = new StringBuilder(bytes.length + 16);
+				encoded.append(path, 0, i); //Everything before is ASCII, so bytes and chars line up.
+			}
+			if(plain) {
+				encoded.append((char) b);
+			}
+			else {
+				encoded.append('%').append(Character.toUpperCase(Character.forDigit(b >> 4, 16))).append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+			}
+		}
+		return encoded == null ? path : encoded.toString();
 	}
 	
 	/**
@@ -83,22 +149,26 @@ class HTTPConstructor {
 	/**
 	 * constructHttpResponse method that takes:
 	 * 1. An HTTP version
-	 * 2. An index into the httpCode and httpMessage arrays
+	 * 2. A status code from the httpStatusMessages table
 	 * 3. A String content type
 	 * 4. A String representing the request content
 	 * 
 	 * Return value is the HTTP response from the information provided the above specified parameters
+	 * The connection is marked to be closed after the response.
 	 * */
 	static String constructHttpResponse(String httpVersion, int httpCode, String contentType, String requestContent) {
+		return constructHttpResponse(httpVersion, httpCode, contentType, requestContent, false);
+	}
+	
+	/**
+	 * constructHttpResponse method that works like the one above but also takes:
+	 * 5. Whether the connection stays open for more requests (Connection: keep-alive) or not (Connection: close)
+	 * */
+	static String constructHttpResponse(String httpVersion, int httpCode, String contentType, String requestContent, boolean keepAlive) {
 		String httpResponse ="";
 		
-		httpResponse+= getHttpResponseStartLine(httpVersion, httpCode); // HTTP/1.1 200 OK, HTTP/1.1 404 Not Found
-		httpResponse+= getHttpDate(); //Date: <CurrentDate>
-		httpResponse+= getServerDetails(); //Server: Apache
-		httpResponse+= getContentLengthString(requestContent.length());  //Content-Length: <requestContent.length()>
-		httpResponse+= getContentTypeString(contentType);  //Content-Type: <contentType>
-		httpResponse+= getConnectionClose(); //Connection: close
-		httpResponse+= httpHeaderEndLine;  //New line to denote end of header
+		//Content-Length counts bytes, not characters, so measure the content the way it will be encoded on the wire.
+		httpResponse+= constructHttpHeader(httpVersion, httpCode, contentType, requestContent.getBytes(Charset.defaultCharset()).length, keepAlive);
 		
 		//After the header, insert the content.
 		httpResponse+= requestContent;
@@ -107,10 +177,59 @@ class HTTPConstructor {
 	}
 	
 	/**
-	 *getContentLengthString function that takes an integer and returns the content length string for the HTTP response. 
+	 * constructHttpHeader method that builds only the header part of the response (including the blank line that ends it).
+	 * It is used for bodies that are not Strings, like files that are sent straight from disk.
+	 * contentLength is the number of bytes in the body.
+	 * */
+	static String constructHttpHeader(String httpVersion, int httpCode, String contentType, long contentLength, boolean keepAlive) {
+		String httpHeader ="";
+		
+		httpHeader+= getHttpResponseStartLine(httpVersion, httpCode); // HTTP/1.1 200 OK, HTTP/1.1 404 Not Found
+		httpHeader+= getHttpDate(); //Date: <CurrentDate>
+		httpHeader+= getServerDetails(); //Server: Apache
+		httpHeader+= getContentLengthString(contentLength);  //Content-Length: <contentLength>
+		httpHeader+= getContentTypeString(contentType);  //Content-Type: <contentType>
+		httpHeader+= keepAlive ? getConnectionKeepAlive() : getConnectionClose(); //Connection: keep-alive or Connection: close
+		httpHeader+= httpHeaderEndLine;  //New line to denote end of header
+		
+		return httpHeader;
+	}
+	
+	/**
+	 * startHttpHeader method that does the same as constructHttpHeader (without the blank line at the end)
+	 * but encodes the header into the connection's reusable ResponseHeaderBuilder instead of building a String.
+	 * Callers can add more header lines to the builder before calling end() on it.
+	 * */
+	static ResponseHeaderBuilder startHttpHeader(ResponseHeaderBuilder builder, String httpVersion, int httpCode, String contentType, long contentLength, boolean keepAlive) {
+		return builder.startLine(httpVersion, httpCode) // HTTP/1.1 200 OK, HTTP/1.1 404 Not Found
+				.date() //Date: <CurrentDate>
+				.server() //Server: Apache
+				.contentLength(contentLength) //Content-Length: <contentLength>
+				.contentType(contentType) //Content-Type: <contentType>
+				.connection(keepAlive); //Connection: keep-alive or Connection: close
+	}
+	
+	/**
+	 * startStreamingHttpHeader method for a body whose length is not known up front (see HttpResponse.forStream).
+	 * HTTP/1.1 clients get the body in chunks and the connection can stay open, everybody else gets the body until the connection closes.
+	 * */
+	static ResponseHeaderBuilder startStreamingHttpHeader(ResponseHeaderBuilder builder, String httpVersion, int httpCode, String contentType, boolean keepAlive) {
+		boolean chunked = "HTTP/1.1".equals(httpVersion);
+		builder.startLine(httpVersion, httpCode) // HTTP/1.1 200 OK, HTTP/1.1 404 Not Found
+				.date() //Date: <CurrentDate>
+				.server(); //Server: Apache
+		if(chunked) {
+			builder.transferEncodingChunked(); //Transfer-Encoding: chunked
+		}
+		return builder.contentType(contentType) //Content-Type: <contentType>
+				.connection(keepAlive && chunked); //Connection: keep-alive or Connection: close
+	}
+	
+	/**
+	 *getContentLengthString function that takes a length and returns the content length string for the HTTP response. 
 	 **/
-	static String getContentLengthString(int length) {
-		//Since length is an integer, I concatenate it to an empty String to convert it properly for String.join()
+	static String getContentLengthString(long length) {
+		//Since length is a number, I concatenate it to an empty String to convert it properly for String.join()
 		return String.join(": ","Content-Length",length+"")+"\r\n";
 	}
 	
@@ -137,21 +256,29 @@ class HTTPConstructor {
 	 * 1. Makes an HTML header element indicating the parent directory
 	 * 2. Makes a list of links for each folder or file in the ArrayList
 	 * 3. Wraps everything in an HTML tag.
+	 * 
+	 * The page is made of the same pieces that FolderListingBody writes one at a time when it streams a listing.
 	 * */
 	static String getSimpleFolderList(ArrayList<String> fileFolders, String parentDirectory) {
-		String folderListString = "";
-		folderListString+=getStartHtmlTag(); //<html>
-		
-		//Add a slash at the end of the folder name so that the working directory is displayed as "Index of /"
-		folderListString+= getHeaderOne("Index of " + parentDirectory.substring(0, parentDirectory.length()-1)+"/");
+		StringBuilder folderListString = new StringBuilder(64 + fileFolders.size() * 48);
+		folderListString.append(getFolderListStart(parentDirectory)); //<html> and the heading
 		
 		for(String fileFolder: fileFolders) {
 			//For each file or subfolder of the parent directory, delegate to getLink for getting an HTML link.
-			folderListString+=getLink(fileFolder);
+			folderListString.append(getLink(fileFolder));
 		}
-		folderListString+=getEndHtmlTag(); //</html>
+		folderListString.append(getEndHtmlTag()); //</html>
 		
-		return folderListString;
+		return folderListString.toString();
+	}
+	
+	/**
+	 * getFolderListStart returns the start of a folder listing: the starting HTML tag and the heading with the folder name.
+	 * The folder name comes from the decoded URL, so it is escaped to keep it from adding markup to the page.
+	 * */
+	static String getFolderListStart(String parentDirectory) {
+		//Add a slash at the end of the folder name so that the working directory is displayed as "Index of /"
+		return getStartHtmlTag() + getHeaderOne("Index of " + escapeHtml(parentDirectory.substring(0, parentDirectory.length()-1)+"/"));
 	}
 	
 	/**
@@ -178,9 +305,9 @@ class HTTPConstructor {
 	}
 	
 	/**
-	 * getCgiAddNums function that takes a HashMap of parameters and returns a String based on parameters that it gets from the HashMap.
+	 * getCgiAddNums function that takes a Map of parameters and returns a String based on parameters that it gets from the Map.
 	 * */
-	static String getCgiAddNums(HashMap<String, String> cgiParams) {
+	static String getCgiAddNums(Map<String, String> cgiParams) {
 		Integer num1 = 0; 
 		Integer num2 = 0; 
 		String person = "";
@@ -199,7 +326,27 @@ class HTTPConstructor {
 			return "Numbers were not parseable by the CGI method.  Please try again.";
 		}
 		
-		return "Dear " + person + ", the sum of " + num1 + " and " + num2 + " is " + (num1+num2);
+		//The arguments are percent-decoded, so the name is escaped to keep it from adding markup to the page.
+		return "Dear " + escapeHtml(person) + ", the sum of " + num1 + " and " + num2 + " is " + (num1+num2);
+	}
+	
+	/**
+	 * escapeHtml replaces the characters that have a meaning in HTML with character references.
+	 * */
+	static String escapeHtml(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch(c) {
+			case '<': escaped.append("&lt;"); break;
+			case '>': escaped.append("&gt;"); break;
+			case '&': escaped.append("&amp;"); break;
+			case '"': escaped.append("&quot;"); break;
+			case '\'': escaped.append("&#39;"); break;
+			default: escaped.append(c);
+			}
+		}
+		return escaped.toString();
 	}
 	
 	/**
@@ -215,4 +362,15 @@ class HTTPConstructor {
 		
 		
 	}
+	
+	/**
+	 * getHttpErrorMessage returns the HTML to return for a request that we could not read or answer, e.g. "400 Bad Request".
+	 * */
+	static String getHttpErrorMessage(int httpCode) {
+		String errorContent = "";
+		errorContent+=getStartHtmlTag(); // <html>
+		errorContent+=getHeaderOne(httpCode + " " + httpStatusMessages.get(httpCode));
+		errorContent+=getEndHtmlTag(); // </html>
+		return errorContent;
+	}
 }
@@ -0,0 +1,298 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Hpack class with the parts of HPACK (RFC 7541), the header compression of HTTP/2, that the HpackDecoder and HpackEncoder share:
+ * 
+ * 1. The static table of 61 common header fields that every endpoint knows.
+ * 2. The dynamic table of recently sent fields that both ends of a connection keep in step.
+ * 3. The prefixed integers and the (optionally Huffman coded) strings that header blocks are made of.
+ * 
+ * The Huffman code of HPACK is canonical: the codes of each length follow on from each other in symbol order,
+ * so the whole code follows from the code lengths and the table below is just those lengths.
+ * Header names and values are kept as ISO-8859-1 Strings, one char per byte, like RequestParser does.
+ * */
+class Hpack {
+	//Size that the dynamic tables start with (SETTINGS_HEADER_TABLE_SIZE) and the overhead that RFC 7541 adds to every entry.
+	static final int defaultTableSize = 4096;
+	static final int entryOverhead = 32;
+	
+	static final String[][] staticTable = {
+			{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+			{":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+			{":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+			{"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+			{"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+			{"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+			{"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""},
+			{"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+			{"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""},
+			{"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+			{"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+			{"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+			{"www-authenticate", ""}};
+	
+	//Huffman code length of every byte value and of the end of string symbol (256), from Appendix B of RFC 7541.
+	private static final byte[] huffmanLengths = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30};
+	private static final int endOfString = 256;
+	private static final int longestCode = 30;
+	
+	//The canonical code: the code of every symbol, and per code length the first code, the number of codes
+	//and where the symbols of that length start in symbolsByCode.
+	private static final int[] huffmanCodes = new int[huffmanLengths.length];
+	private static final int[] firstCode = new int[longestCode + 1];
+	private static final int[] codeCount = new int[longestCode + 1];
+	private static final int[] firstSymbol = new int[longestCode + 1];
+	private static final int[] symbolsByCode = new int[huffmanLengths.length];
+	static {
+		int code = 0;
+		int symbols = 0;
+		for(int length = 1; length <= longestCode; length++) {
+			firstCode[length] = code;
+			firstSymbol[length] = symbols;
+			for(int symbol = 0; symbol < huffmanLengths.length; symbol++) {
+				if(huffmanLengths[symbol] == length) {
+					huffmanCodes[symbol] = code++;
+					symbolsByCode[symbols++] = symbol;
+				}
+			}
+			codeCount[length] = symbols - firstSymbol[length];
+			code <<= 1;
+		}
+	}
+	
+	/**
+	 * readInteger method that reads an integer with an N-bit prefix (section 5.1), whose first byte is at the buffer's position.
+	 * Returns -1 for an integer that does not fit into an int (or is cut off), which the caller treats as a compression error.
+	 * */
+	static int readInteger(ByteBuffer in, int prefixBits) {
+		if(!in.hasRemaining()) {
+			return -1;
+		}
+		int prefixMax = (1 << prefixBits) - 1;
+		int value = in.get() & prefixMax;
+		if(value < prefixMax) {
+			return value;
+		}
+		for(int shift = 0; shift <= 28; shift += 7) {
+			if(!in.hasRemaining()) {
+				return -1;
+			}
+			int b = in.get() & 0xff;
+			long next = value + ((long) (b & 0x7f) << shift);
+			if(next > Integer.MAX_VALUE) {
+				return -1;
+			}
+			value = (int) next;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * writeInteger method that writes an integer with an N-bit prefix.  The bits above the prefix in the first byte are given as flags.
+	 * */
+	static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int prefixMax = (1 << prefixBits) - 1;
+		if(value < prefixMax) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | prefixMax);
+		value -= prefixMax;
+		while(value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	/**
+	 * readString method that reads a string literal (section 5.2), Huffman coded or not.  Returns null if it is broken.
+	 * */
+	static String readString(ByteBuffer in) {
+		if(!in.hasRemaining()) {
+			return null;
+		}
+		boolean huffman = (in.get(in.position()) & 0x80) != 0;
+		int length = readInteger(in, 7);
+		if(length < 0 || length > in.remaining()) {
+			return null;
+		}
+		int start = in.position();
+		in.position(start + length);
+		if(huffman) {
+			return huffmanDecode(in, start, length);
+		}
+		char[] chars = new char[length];
+		for(int i = 0; i < length; i++) {
+			chars[i] = (char) (in.get(start + i) & 0xff);
+		}
+		return new String(chars);
+	}
+	
+	/**
+	 * writeString method that writes a string literal, Huffman coded when that makes it shorter.
+	 * */
+	static void writeString(ByteArrayOutputStream out, String text) {
+		long huffmanBits = 0;
+		for(int i = 0; i < text.length(); i++) {
+			huffmanBits += huffmanLengths[text.charAt(i) & 0xff];
+		}
+		int huffmanLength = (int) ((huffmanBits + 7) / 8);
+		if(huffmanLength >= text.length()) {
+			writeInteger(out, 0, 7, text.length());
+			for(int i = 0; i < text.length(); i++) {
+				out.write(text.charAt(i));
+			}
+			return;
+		}
+		writeInteger(out, 0x80, 7, huffmanLength);
+		long bits = 0; //Pending bits, right aligned.
+		int bitCount = 0;
+		for(int i = 0; i < text.length(); i++) {
+			int symbol = text.charAt(i) & 0xff;
+			bits = (bits << huffmanLengths[symbol]) | huffmanCodes[symbol];
+			bitCount += huffmanLengths[symbol];
+			while(bitCount >= 8) {
+				bitCount -= 8;
+				out.write((int) (bits >>> bitCount));
+			}
+		}
+		if(bitCount > 0) {
+			//Pad the last byte with the most significant bits of the end of string code, which are all ones.
+			out.write((int) ((bits << (8 - bitCount)) | (0xff >>> bitCount)));
+		}
+	}
+	
+	/**
+	 * huffmanDecode method that decodes a Huffman coded string one bit at a time with the canonical code tables.
+	 * The padding must be fewer than 8 bits, all ones, and the end of string symbol must not appear (section 5.2).
+	 * */
+	private static String huffmanDecode(ByteBuffer in, int start, int length) {
+		StringBuilder text = new StringBuilder(length + length / 2);
+		int code = 0;
+		int codeLength = 0;
+		for(int i = 0; i < length; i++) {
+			int b = in.get(start + i) & 0xff;
+			for(int bit = 7; bit >= 0; bit--) {
+				code = (code << 1) | ((b >>> bit) & 1);
+				codeLength++;
+				int index = code - firstCode[codeLength];
+				if(index < codeCount[codeLength]) {
+					int symbol = symbolsByCode[firstSymbol[codeLength] + index];
+					if(symbol == endOfString) {
+						return null;
+					}
+					text.append((char) symbol);
+					code = 0;
+					codeLength = 0;
+				}
+				else if(codeLength == longestCode) {
+					return null;
+				}
+			}
+		}
+		if(codeLength >= 8 || code != (1 << codeLength) - 1) {
+			return null;
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * DynamicTable class that holds the header fields added by a header block, newest first (section 2.3.2).
+	 * The fields are kept in a ring of parallel arrays.  Adding a field evicts the oldest fields until the table fits in its size.
+	 * */
+	static class DynamicTable {
+		private String[] names = new String[16];
+		private String[] values = new String[16];
+		private int newest = 0; //Slot of the newest field.
+		private int count = 0;
+		private int size = 0; //Sum of the entry sizes.
+		private int maxSize;
+		
+		DynamicTable(int maxSize) {
+			this.maxSize = maxSize;
+		}
+		
+		int length() {
+			return count;
+		}
+		
+		int getMaxSize() {
+			return maxSize;
+		}
+		
+		/**
+		 * name and value methods for the field at a dynamic index, where 0 is the newest field.
+		 * */
+		String name(int index) {
+			return names[slot(index)];
+		}
+		
+		String value(int index) {
+			return values[slot(index)];
+		}
+		
+		void add(String name, String value) {
+			int entrySize = name.length() + value.length() + entryOverhead;
+			if(entrySize > maxSize) {
+				//A field larger than the table empties it and is not added.
+				while(count > 0) {
+					evictOldest();
+				}
+				return;
+			}
+			while(size + entrySize > maxSize) {
+				evictOldest();
+			}
+			if(count == names.length) {
+				String[] largerNames = new String[count * 2];
+				String[] largerValues = new String[count * 2];
+				for(int i = 0; i < count; i++) {
+					largerNames[count - 1 - i] = names[slot(i)];
+					largerValues[count - 1 - i] = values[slot(i)];
+				}
+				names = largerNames;
+				values = largerValues;
+				newest = count - 1;
+			}
+			newest = (newest + 1) % names.length;
+			names[newest] = name;
+			values[newest] = value;
+			count++;
+			size += entrySize;
+		}
+		
+		void setMaxSize(int newMaxSize) {
+			maxSize = newMaxSize;
+			while(size > maxSize) {
+				evictOldest();
+			}
+		}
+		
+		private void evictOldest() {
+			int oldest = slot(count - 1);
+			size -= names[oldest].length() + values[oldest].length() + entryOverhead;
+			names[oldest] = null;
+			values[oldest] = null;
+			count--;
+		}
+		
+		private int slot(int index) {
+			int slot = newest - index;
+			return slot < 0 ? slot + names.length : slot;
+		}
+	}
+}
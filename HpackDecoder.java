@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * HpackDecoder class that turns the header blocks of the requests on an HTTP/2 connection back into header fields (RFC 7541).
+ * A connection has one decoder for all its requests, because every block may add fields to the dynamic table
+ * that later blocks refer to.  So every block must be decoded in the order it arrived, even that of a request we refuse.
+ * */
+class HpackDecoder {
+	private final Hpack.DynamicTable dynamicTable;
+	private final int maxTableSize; //Largest table the client may ask for, which is what we announced in SETTINGS_HEADER_TABLE_SIZE.
+	
+	HpackDecoder(int maxTableSize) {
+		this.maxTableSize = maxTableSize;
+		this.dynamicTable = new Hpack.DynamicTable(maxTableSize);
+	}
+	
+	/**
+	 * decode method that decodes a whole header block and adds its fields to the list as name, value, name, value...
+	 * Throws a COMPRESSION_ERROR, which is a connection error, if the block is broken.
+	 * */
+	void decode(ByteBuffer block, List<String> fields) throws Http2Frame.ProtocolException {
+		boolean fieldSeen = false;
+		while(block.hasRemaining()) {
+			int b = block.get(block.position()) & 0xff;
+			if((b & 0x80) != 0) {
+				//Indexed field.
+				int index = Hpack.readInteger(block, 7);
+				fields.add(name(index));
+				fields.add(value(index));
+				fieldSeen = true;
+			}
+			else if((b & 0xc0) == 0x40) {
+				//Literal field that is added to the dynamic table.
+				String[] field = readLiteral(block, 6);
+				dynamicTable.add(field[0], field[1]);
+				fields.add(field[0]);
+				fields.add(field[1]);
+				fieldSeen = true;
+			}
+			else if((b & 0xe0) == 0x20) {
+				//Dynamic table size update, only allowed before the first field of a block.
+				int newSize = Hpack.readInteger(block, 5);
+				if(fieldSeen || newSize < 0 || newSize > maxTableSize) {
+					throw compressionError();
+				}
+				dynamicTable.setMaxSize(newSize);
+			}
+			else {
+				//Literal field without indexing (0000) or never indexed (0001).  We do not pass either on.
+				String[] field = readLiteral(block, 4);
+				fields.add(field[0]);
+				fields.add(field[1]);
+				fieldSeen = true;
+			}
+		}
+	}
+	
+	private String[] readLiteral(ByteBuffer block, int prefixBits) throws Http2Frame.ProtocolException {
+		int nameIndex = Hpack.readInteger(block, prefixBits);
+		if(nameIndex < 0) {
+			throw compressionError();
+		}
+		String name = nameIndex == 0 ? Hpack.readString(block) : name(nameIndex);
+		String value = Hpack.readString(block);
+		if(name == null || value == null) {
+			throw compressionError();
+		}
+		return new String[] {name, value};
+	}
+	
+	private String name(int index) throws Http2Frame.ProtocolException {
+		if(index >= 1 && index <= Hpack.staticTable.length) {
+			return Hpack.staticTable[index - 1][0];
+		}
+		int dynamicIndex = index - Hpack.staticTable.length - 1;
+		if(index < 1 || dynamicIndex >= dynamicTable.length()) {
+			throw compressionError();
+		}
+		return dynamicTable.name(dynamicIndex);
+	}
+	
+	private String value(int index) throws Http2Frame.ProtocolException {
+		if(index <= Hpack.staticTable.length) {
+			return Hpack.staticTable[index - 1][1];
+		}
+		return dynamicTable.value(index - Hpack.staticTable.length - 1);
+	}
+	
+	private static Http2Frame.ProtocolException compressionError() {
+		return new Http2Frame.ProtocolException(Http2Frame.compressionError, "Broken header block");
+	}
+}
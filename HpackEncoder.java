@@ -0,0 +1,102 @@
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * HpackEncoder class that compresses the response headers on an HTTP/2 connection (RFC 7541).
+ * Fields that repeat from response to response (server, content-type, vary, the date of the current second...)
+ * are added to the dynamic table the first time and afterwards take one or two bytes instead of a whole header line.
+ * Fields that differ for every response (content-length, etag...) are sent as literals without filling up the table with them.
+ * Strings are Huffman coded when that is shorter.
+ * A connection has one encoder and header blocks must be sent in the order they were encoded.
+ * */
+class HpackEncoder {
+	private static final HashMap<String, Integer> staticNames = new HashMap<String, Integer>();
+	private static final HashMap<String, Integer> staticFields = new HashMap<String, Integer>();
+	static {
+		for(int i = Hpack.staticTable.length - 1; i >= 0; i--) {
+			staticNames.put(Hpack.staticTable[i][0], i + 1); //Going backwards leaves the lowest index of a name.
+			if(!Hpack.staticTable[i][1].isEmpty()) {
+				staticFields.put(Hpack.staticTable[i][0] + '\n' + Hpack.staticTable[i][1], i + 1);
+			}
+		}
+	}
+	
+	private final Hpack.DynamicTable dynamicTable = new Hpack.DynamicTable(Hpack.defaultTableSize);
+	private int smallestSizeUpdate = -1; //Smallest table size since the last block, or -1 if the size did not change.
+	
+	/**
+	 * setMaxTableSize method for the client's SETTINGS_HEADER_TABLE_SIZE.  We never use more than the default size,
+	 * but a client with less room gets a smaller table, which the next header block announces.
+	 * */
+	void setMaxTableSize(int clientTableSize) {
+		int newSize = Math.min(clientTableSize, Hpack.defaultTableSize);
+		if(newSize == dynamicTable.getMaxSize()) {
+			return;
+		}
+		smallestSizeUpdate = smallestSizeUpdate < 0 ? newSize : Math.min(smallestSizeUpdate, newSize);
+		dynamicTable.setMaxSize(newSize);
+	}
+	
+	/**
+	 * encode method that encodes the status and the header fields (name, value, name, value... with lower case names).
+	 * */
+	byte[] encode(int httpCode, List<String> fields) {
+		ByteArrayOutputStream block = new ByteArrayOutputStream(64 + fields.size() * 8);
+		if(smallestSizeUpdate >= 0) {
+			//If the table shrank and grew again since the last block, the client must see the smallest size first.
+			if(smallestSizeUpdate != dynamicTable.getMaxSize()) {
+				Hpack.writeInteger(block, 0x20, 5, smallestSizeUpdate);
+			}
+			Hpack.writeInteger(block, 0x20, 5, dynamicTable.getMaxSize());
+			smallestSizeUpdate = -1;
+		}
+		encodeField(block, ":status", Integer.toString(httpCode), false);
+		for(int i = 0; i + 1 < fields.size(); i += 2) {
+			String name = fields.get(i);
+			encodeField(block, name, fields.get(i + 1), shouldIndex(name));
+		}
+		return block.toByteArray();
+	}
+	
+	private void encodeField(ByteArrayOutputStream block, String name, String value, boolean index) {
+		Integer staticIndex = staticFields.get(name + '\n' + value);
+		if(staticIndex != null) {
+			Hpack.writeInteger(block, 0x80, 7, staticIndex);
+			return;
+		}
+		int nameIndex = 0;
+		Integer staticName = staticNames.get(name);
+		if(staticName != null) {
+			nameIndex = staticName;
+		}
+		for(int i = 0; i < dynamicTable.length(); i++) {
+			if(dynamicTable.name(i).equals(name)) {
+				if(dynamicTable.value(i).equals(value)) {
+					Hpack.writeInteger(block, 0x80, 7, Hpack.staticTable.length + 1 + i);
+					return;
+				}
+				if(nameIndex == 0) {
+					nameIndex = Hpack.staticTable.length + 1 + i;
+				}
+			}
+		}
+		if(index) {
+			Hpack.writeInteger(block, 0x40, 6, nameIndex);
+		}
+		else {
+			Hpack.writeInteger(block, 0x00, 4, nameIndex);
+		}
+		if(nameIndex == 0) {
+			Hpack.writeString(block, name);
+		}
+		Hpack.writeString(block, value);
+		if(index) {
+			dynamicTable.add(name, value);
+		}
+	}
+	
+	private static boolean shouldIndex(String name) {
+		return !(name.equals("content-length") || name.equals("etag") || name.equals("last-modified") || name.equals("content-range"));
+	}
+}
@@ -0,0 +1,1027 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Http2Connection class that serves a cleartext HTTP/2 (h2c) connection in blocking mode (RFC 9113).
+ * WebPageWorker hands the connection over when the client starts with the HTTP/2 preface (prior knowledge)
+ * or when it asks to switch with "Upgrade: h2c", in which case that request becomes stream 1.
+ * 
+ * 1. The worker thread reads the frames and answers every request (stream) as soon as its header block is complete,
+ *    with the same RequestHandler as HTTP/1.1, so files, folders, dynamic pages and 404s behave the same.
+ *    Dynamic pages are built on the handler pool while the other streams go on.
+ * 2. A writer thread sends the responses.  It takes turns between the streams one DATA frame at a time,
+ *    so a large download does not hold up the small files asked for after it,
+ *    and it never sends more than the client's flow control windows allow.
+ * 3. RequestHandler builds an HTTP/1.1 header, which is turned into header fields here, minus the fields that only
+ *    mean something to an HTTP/1.1 connection, and compressed with HPACK (see HpackEncoder).
+ * 4. None of the handlers use a request body, so DATA frames from the client are dropped and their window is handed straight back.
+ * 
+ * A broken rule that concerns one stream resets that stream.  One that breaks the connection ends it with GOAWAY.
+ * */
+class Http2Connection {
+	private static final byte[] switchingProtocols = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+			.getBytes(StandardCharsets.ISO_8859_1);
+	private static final int defaultWindowSize = 65535;
+	private static final long maxWindowSize = Integer.MAX_VALUE;
+	private static final AtomicInteger writerCount = new AtomicInteger(); //For the names of the writer threads.
+	
+	private final Socket sock;
+	private final OutputStream out; //Every frame is written while holding writeLock, so that frames never interleave.
+	private final Object writeLock = new Object();
+	private final Http2Frame.Reader frames;
+	private final HpackDecoder decoder = new HpackDecoder(Hpack.defaultTableSize); //Only used by the reading thread.
+	private final HpackEncoder encoder = new HpackEncoder(); //Only used by the writer thread.
+	private final String remoteAddress; //For the access log.
+	private int lastStreamId = 0; //Highest stream the client has opened.  Only used by the reading thread.
+	
+	//Streams and flow control windows, guarded by this.
+	private final HashMap<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	private final ArrayDeque<Stream> readyStreams = new ArrayDeque<Stream>(); //Streams with a response to send, in turn.
+	private long connectionWindow = defaultWindowSize;
+	private int initialStreamWindow = defaultWindowSize;
+	private int clientTableSize = -1; //SETTINGS_HEADER_TABLE_SIZE for the encoder, until the writer picks it up.
+	private long framesSent = 0;
+	private boolean closed = false;
+	
+	/**
+	 * Creates the connection.  readBuffer holds the bytes that the HTTP/1.1 parser read beyond the preface or the upgrade request.
+	 * */
+	Http2Connection(Socket sock, InputStream in, ByteBuffer readBuffer) throws IOException {
+		this.sock = sock;
+		this.out = new BufferedOutputStream(sock.getOutputStream(), Http2Frame.headerLength + Http2Frame.maxFrameSize);
+		this.frames = new Http2Frame.Reader(in, readBuffer);
+		this.remoteAddress = sock.getInetAddress().getHostAddress();
+	}
+	
+	/**
+	 * isUpgradeRequest tells whether an HTTP/1.1 request asks to switch to h2c and can be answered as stream 1 of HTTP/2.
+	 * We only switch for requests without a body and with valid HTTP2-Settings, and otherwise answer as HTTP/1.1 as usual.
+	 * */
+	static boolean isUpgradeRequest(RequestParser parser) {
+		RequestHeaders headers = parser.getHeaders();
+		String upgrade = headers.get("upgrade");
+		String contentLength = headers.get("content-length");
+		return ServerConfig.http2Enabled && upgrade != null && "HTTP/1.1".equals(parser.getHttpVersion())
+				&& hasToken(upgrade, "h2c") && decodeSettingsHeader(headers.get("http2-settings")) != null
+				&& headers.get("transfer-encoding") == null && (contentLength == null || contentLength.equals("0"));
+	}
+	
+	/**
+	 * serve method for a client that started with the HTTP/2 preface.  Returns when the connection is done.
+	 * */
+	void serve() {
+		run(false, null, 0);
+	}
+	
+	/**
+	 * serveUpgrade method for a client that asked to switch with "Upgrade: h2c".  We answer 101 Switching Protocols
+	 * and the request, which the handler has taken in already, becomes stream 1.  Returns when the connection is done.
+	 * */
+	void serveUpgrade(RequestHandler upgradeRequest, long startTime) {
+		run(true, upgradeRequest, startTime);
+	}
+	
+	private void run(boolean upgraded, RequestHandler upgradeRequest, long startTime) {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				writeResponses();
+			}
+		}, "http2-writer-" + writerCount.incrementAndGet());
+		writer.setDaemon(true);
+		try {
+			if(upgraded) {
+				synchronized(writeLock) {
+					out.write(switchingProtocols);
+				}
+				applySettings(ByteBuffer.wrap(decodeSettingsHeader(upgradeRequest.requestHeaders.get("http2-settings"))));
+			}
+			sendSettings();
+			writer.start();
+			if(upgraded) {
+				//The upgrade request was complete, so stream 1 is half closed already.
+				lastStreamId = 1;
+				upgradeRequest.clientAddress = sock.getInetAddress();
+				upgradeRequest.asynchronous = true;
+				String startLine = upgradeRequest.requestParams.get("httpRequestType") + " " + upgradeRequest.requestParams.get("requestUrl") + " HTTP/2.0";
+				Stream stream = new Stream(1, upgradeRequest, startLine, startTime);
+				stream.remoteClosed = true;
+				startStream(stream, 0);
+				if(!frames.readPreface()) {
+					throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "No client preface after the upgrade");
+				}
+			}
+			readFrames();
+			//The client went away or said GOAWAY, or the connection was idle.  Finish what is being sent and say goodbye.
+			drain();
+			sendGoAway(Http2Frame.noError);
+		} catch (Http2Frame.ProtocolException e) {
+			if(ServerLog.debugEnabled) {
+				ServerLog.debug("HTTP/2 connection error " + e.errorCode + ": " + e.getMessage() + "\n");
+			}
+			try {
+				sendGoAway(e.errorCode);
+			} catch (IOException goAwayException) {}
+		} catch (IOException e) {
+			//The connection broke.
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			shutdown();
+		}
+	}
+	
+	/**
+	 * readFrames method that reads and handles frames until the client closes the connection or sends GOAWAY,
+	 * or the connection has been idle (no open streams) for the keep-alive idle timeout.
+	 * */
+	private void readFrames() throws IOException {
+		boolean firstFrame = true;
+		while(true) {
+			try {
+				if(!frames.next()) {
+					return;
+				}
+			} catch (SocketTimeoutException e) {
+				synchronized(this) {
+					if(streams.isEmpty()) {
+						return;
+					}
+				}
+				continue; //Responses are still being sent, so the client may well be quiet.
+			}
+			if(firstFrame && frames.type != Http2Frame.settings) {
+				throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "The client preface must end with SETTINGS");
+			}
+			firstFrame = false;
+			switch(frames.type) {
+			case Http2Frame.data: onData(); break;
+			case Http2Frame.headers: onHeaders(); break;
+			case Http2Frame.priority: onPriority(); break;
+			case Http2Frame.rstStream: onRstStream(); break;
+			case Http2Frame.settings: onSettings(); break;
+			case Http2Frame.ping: onPing(); break;
+			case Http2Frame.goAway:
+				requireConnectionStream();
+				return;
+			case Http2Frame.windowUpdate: onWindowUpdate(); break;
+			case Http2Frame.pushPromise:
+			case Http2Frame.continuation:
+				throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "Unexpected frame type " + frames.type);
+			default:
+				break; //Frames of unknown types are ignored.
+			}
+		}
+	}
+	
+	/**
+	 * onHeaders method that reads the header block of a new request, with its CONTINUATION frames, and answers the request.
+	 * A header block on a stream that is still open is a trailer, which we decode (the HPACK state needs it) and drop.
+	 * */
+	private void onHeaders() throws IOException {
+		long startTime = System.nanoTime();
+		int streamId = frames.streamId;
+		int flags = frames.flags;
+		if(streamId == 0 || (streamId & 1) == 0) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "Client stream ids are odd");
+		}
+		ByteBuffer payload = withoutPadding(frames.payload, flags);
+		int dependency = 0;
+		if((flags & Http2Frame.priorityFlag) != 0) {
+			if(payload.remaining() < 5) {
+				throw new Http2Frame.ProtocolException(Http2Frame.frameSizeError, "HEADERS too short for its priority");
+			}
+			dependency = payload.getInt() & 0x7fffffff;
+			payload.get(); //Weight.  We do not prioritize.
+		}
+		ByteBuffer block = readHeaderBlock(streamId, flags, payload);
+		ArrayList<String> fields = new ArrayList<String>();
+		decoder.decode(block, fields);
+		boolean endOfStream = (flags & Http2Frame.endStream) != 0;
+		
+		if(streamId <= lastStreamId) {
+			Stream stream;
+			synchronized(this) {
+				stream = streams.get(streamId);
+			}
+			if(stream == null || stream.remoteClosed || !endOfStream) {
+				throw new Http2Frame.ProtocolException(Http2Frame.streamClosed, "HEADERS on stream " + streamId + " which is not open");
+			}
+			stream.remoteClosed = true; //Trailers after a request body.
+			return;
+		}
+		lastStreamId = streamId;
+		if(dependency == streamId) {
+			sendRstStream(streamId, Http2Frame.protocolError); //A stream cannot depend on itself.
+			return;
+		}
+		synchronized(this) {
+			if(streams.size() >= ServerConfig.http2MaxConcurrentStreams) {
+				streamId = -streamId;
+			}
+		}
+		if(streamId < 0) {
+			sendRstStream(-streamId, Http2Frame.refusedStream); //Too many streams at once.  The client may try again later.
+			return;
+		}
+		startStream(streamId, fields, endOfStream, startTime);
+	}
+	
+	/**
+	 * readHeaderBlock returns the header block fragment of a HEADERS frame, followed by the fragments of its CONTINUATION frames.
+	 * Nothing else may come between them.
+	 * */
+	private ByteBuffer readHeaderBlock(int streamId, int flags, ByteBuffer fragment) throws IOException {
+		if((flags & Http2Frame.endHeaders) != 0) {
+			return fragment;
+		}
+		ByteArrayOutputStream block = new ByteArrayOutputStream(fragment.remaining() * 2);
+		append(block, fragment);
+		do {
+			if(!frames.next()) {
+				throw new IOException("Connection closed in a header block");
+			}
+			if(frames.type != Http2Frame.continuation || frames.streamId != streamId) {
+				throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "Header block without its CONTINUATION");
+			}
+			append(block, frames.payload);
+			if(block.size() > 4 * ServerConfig.maxRequestHeaderBytes) {
+				throw new Http2Frame.ProtocolException(Http2Frame.enhanceYourCalm, "Header block too large");
+			}
+		} while((frames.flags & Http2Frame.endHeaders) == 0);
+		return ByteBuffer.wrap(block.toByteArray());
+	}
+	
+	/**
+	 * startStream method that checks the header fields of a new request and hands it to a RequestHandler.
+	 * A malformed request (RFC 9113 section 8.1.1) resets its stream.  One that is too large or whose path is broken gets 431 or 400.
+	 * */
+	private void startStream(int streamId, List<String> fields, boolean endOfStream, long startTime) throws IOException {
+		String method = null;
+		String scheme = null;
+		String path = null;
+		String authority = null;
+		StringBuilder cookies = null;
+		RequestHeaders headers = new RequestHeaders();
+		boolean malformed = false;
+		boolean regularFieldSeen = false;
+		long headerListSize = 0;
+		for(int i = 0; i + 1 < fields.size() && !malformed; i += 2) {
+			String name = fields.get(i);
+			String value = fields.get(i + 1);
+			headerListSize += name.length() + value.length() + Hpack.entryOverhead;
+			if(name.startsWith(":")) {
+				//Pseudo-header fields come first and each of them only once.
+				malformed = regularFieldSeen;
+				if(name.equals(":method") && method == null) {
+					method = value;
+				}
+				else if(name.equals(":scheme") && scheme == null) {
+					scheme = value;
+				}
+				else if(name.equals(":path") && path == null) {
+					path = value;
+				}
+				else if(name.equals(":authority") && authority == null) {
+					authority = value;
+				}
+				else {
+					malformed = true;
+				}
+				continue;
+			}
+			regularFieldSeen = true;
+			if(!name.equals(name.toLowerCase(Locale.US)) || isConnectionField(name) || (name.equals("te") && !value.equals("trailers"))) {
+				malformed = true;
+			}
+			else if(name.equals("cookie")) {
+				//Cookies may come as separate fields, which are joined with "; " instead of ", ".
+				cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+			}
+			else {
+				headers.add(name, value);
+			}
+		}
+		if(malformed || method == null || scheme == null || path == null || path.isEmpty()) {
+			sendRstStream(streamId, Http2Frame.protocolError);
+			return;
+		}
+		if(authority != null && !headers.containsKey("host")) {
+			headers.add("host", authority);
+		}
+		if(cookies != null) {
+			headers.add("cookie", cookies.toString());
+		}
+		
+		RequestHandler handler = new RequestHandler(); //With a header builder of its own because streams are answered side by side.
+		handler.clientAddress = sock.getInetAddress();
+		handler.asynchronous = true;
+		handler.keepAlive = true;
+		Stream stream = new Stream(streamId, handler, method + " " + path + " HTTP/2.0", startTime);
+		stream.remoteClosed = endOfStream;
+		int question = path.indexOf('?');
+		String decodedPath = path.startsWith("/") ? RequestParser.percentDecode(question < 0 ? path : path.substring(0, question), false) : null;
+		int badRequest = 0;
+		if(headerListSize > ServerConfig.maxRequestHeaderBytes) {
+			badRequest = RequestParser.headerTooLarge;
+		}
+		else if(decodedPath == null) {
+			badRequest = RequestParser.badRequest;
+		}
+		else {
+			handler.useRequest(method, question < 0 ? decodedPath : decodedPath + path.substring(question), stream.startLine, headers);
+		}
+		startStream(stream, badRequest);
+	}
+	
+	/**
+	 * startStream method that registers the stream and builds its response, or sets it going if a dynamic handler builds it.
+	 * */
+	private void startStream(final Stream stream, int badRequest) {
+		synchronized(this) {
+			stream.window = initialStreamWindow;
+			streams.put(stream.id, stream);
+		}
+		stream.parsedTime = System.nanoTime();
+		RequestHandler handler = stream.handler;
+		HttpResponse response;
+		if(badRequest != 0) {
+			response = handler.handleBadRequest(badRequest);
+		}
+		else if(!AdmissionControl.admit(handler.clientAddress)) {
+			response = AdmissionControl.rejection();
+			handler.route = ServerMetrics.routeRejected;
+		}
+		else {
+			stream.admitted = true;
+			response = handler.respond();
+		}
+		if(response == null) {
+			//A dynamic handler builds the page on the handler pool.  We go on with the other streams in the meantime.
+			handler.dynamicCall.whenComplete(new BiConsumer<DynamicHandler.Result, Throwable>() {
+				public void accept(DynamicHandler.Result page, Throwable error) {
+					responseReady(stream, stream.handler.finishDynamic());
+				}
+			});
+			return;
+		}
+		responseReady(stream, response);
+	}
+	
+	/**
+	 * responseReady method that converts the header of a response and queues the stream for the writer thread.
+	 * */
+	private void responseReady(Stream stream, HttpResponse response) {
+		stream.respondedTime = System.nanoTime();
+		stream.headerFields = headerFields(response.getHeader(), stream);
+		boolean noBody = "HEAD".equals(stream.handler.requestParams.get("httpRequestType"));
+		if(noBody) {
+			stream.bodyRemaining = 0;
+		}
+		else {
+			//A streamed body is sent until it ends, in DATA frames of whatever it has ready.
+			stream.bodyRemaining = response.isStreamed() ? Long.MAX_VALUE : stream.bodyStart.remaining() + response.getBodyLength();
+		}
+		synchronized(this) {
+			if(!closed && !stream.ended) {
+				stream.response = response;
+				readyStreams.add(stream);
+				notifyAll();
+				return;
+			}
+		}
+		response.close(); //The stream was reset or the connection closed while the page was built.
+	}
+	
+	/**
+	 * headerFields turns the HTTP/1.1 header that RequestHandler built into header fields (name, value, name, value...).
+	 * The status line is left out because the status is sent as :status, and so are the fields that belong to HTTP/1.1 connections.
+	 * A pre-encoded response (like the 503 of AdmissionControl) has its body in the same buffer, which goes into stream.bodyStart.
+	 * */
+	private static List<String> headerFields(ByteBuffer header, Stream stream) {
+		ArrayList<String> fields = new ArrayList<String>();
+		int position = header.position();
+		int limit = header.limit();
+		boolean statusLine = true;
+		while(position < limit) {
+			int lineStart = position;
+			while(position < limit && header.get(position) != '\n') {
+				position++;
+			}
+			int lineEnd = position > lineStart && header.get(position - 1) == '\r' ? position - 1 : position;
+			position++;
+			if(statusLine) {
+				statusLine = false;
+				continue;
+			}
+			if(lineEnd == lineStart) {
+				break; //The blank line that ends the header.
+			}
+			int colon = lineStart;
+			while(colon < lineEnd && header.get(colon) != ':') {
+				colon++;
+			}
+			String name = ascii(header, lineStart, colon).toLowerCase(Locale.US);
+			if(isConnectionField(name)) {
+				continue;
+			}
+			int valueStart = Math.min(colon + 1, lineEnd);
+			while(valueStart < lineEnd && header.get(valueStart) == ' ') {
+				valueStart++;
+			}
+			fields.add(name);
+			fields.add(ascii(header, valueStart, lineEnd));
+		}
+		stream.bodyStart = header.duplicate();
+		stream.bodyStart.position(Math.min(position, limit));
+		return fields;
+	}
+	
+	/**
+	 * writeResponses method that the writer thread runs.  It takes the streams that have something to send in turn:
+	 * the header block of a new response, or the next DATA frame of a body as far as the flow control windows allow.
+	 * */
+	private void writeResponses() {
+		byte[] chunk = new byte[Http2Frame.maxFrameSize];
+		try {
+			while(true) {
+				Stream stream;
+				int length = 0;
+				int tableSize;
+				synchronized(this) {
+					stream = nextSendableStream();
+					while(!closed && stream == null) {
+						wait();
+						stream = nextSendableStream();
+					}
+					if(closed) {
+						return;
+					}
+					if(stream.headersSent) {
+						length = (int) Math.min(Math.min(chunk.length, stream.bodyRemaining), Math.min(stream.window, connectionWindow));
+						stream.window -= length;
+						connectionWindow -= length;
+					}
+					tableSize = clientTableSize;
+					clientTableSize = -1;
+				}
+				if(tableSize >= 0) {
+					encoder.setMaxTableSize(tableSize);
+				}
+				if(!stream.headersSent) {
+					writeHeaders(stream);
+				}
+				else {
+					writeData(stream, chunk, length);
+				}
+				boolean parked = stream.waitingForBody;
+				synchronized(this) {
+					framesSent++;
+					if(stream.bodyRemaining > 0 && !stream.ended && !parked) {
+						readyStreams.add(stream); //Back in line behind the other streams.
+					}
+				}
+				if(parked) {
+					waitForBody(stream);
+				}
+				if(stream.bodyRemaining == 0) {
+					endStream(stream, true);
+				}
+			}
+		} catch (IOException e) {
+			//The client is gone.  Closing the socket also wakes up the reading thread.
+			synchronized(this) {
+				closed = true;
+				notifyAll();
+			}
+			try {
+				sock.close();
+			} catch (IOException closeException) {}
+		} catch (InterruptedException e) {}
+	}
+	
+	/**
+	 * nextSendableStream takes the first stream in line that has a header block to send or room in the flow control windows.
+	 * */
+	private Stream nextSendableStream() {
+		Iterator<Stream> ready = readyStreams.iterator();
+		while(ready.hasNext()) {
+			Stream stream = ready.next();
+			if(!stream.headersSent || (stream.window > 0 && connectionWindow > 0)) {
+				ready.remove();
+				return stream;
+			}
+		}
+		return null;
+	}
+	
+	private void writeHeaders(Stream stream) throws IOException {
+		byte[] block = encoder.encode(stream.response.getHttpCode(), stream.headerFields);
+		stream.headerBytes = block.length;
+		stream.headersSent = true;
+		//The block is sent even if the stream was reset in the meantime, because the client's HPACK decoder needs it.
+		synchronized(writeLock) {
+			int flags = stream.bodyRemaining == 0 ? Http2Frame.endStream : 0;
+			int type = Http2Frame.headers;
+			int offset = 0;
+			do {
+				int length = Math.min(block.length - offset, Http2Frame.maxFrameSize);
+				Http2Frame.write(out, type, offset + length == block.length ? flags | Http2Frame.endHeaders : flags, stream.id, block, offset, length);
+				offset += length;
+				type = Http2Frame.continuation;
+				flags = 0;
+			} while(offset < block.length);
+			out.flush();
+		}
+	}
+	
+	private void writeData(Stream stream, byte[] chunk, int length) throws IOException {
+		if(stream.response.isStreamed()) {
+			writeStreamedData(stream, chunk, length);
+			return;
+		}
+		ByteBuffer frame = ByteBuffer.wrap(chunk, 0, length);
+		try {
+			if(stream.bodyStart.hasRemaining()) {
+				int fromHeader = Math.min(frame.remaining(), stream.bodyStart.remaining());
+				ByteBuffer part = stream.bodyStart.duplicate();
+				part.limit(part.position() + fromHeader);
+				frame.put(part);
+				stream.bodyStart.position(stream.bodyStart.position() + fromHeader);
+			}
+			while(frame.hasRemaining()) {
+				if(stream.response.readBody(frame) < 0) {
+					throw new IOException("The body is shorter than its length");
+				}
+			}
+		} catch (IOException e) {
+			//The file went wrong, or the stream was reset and its file closed.  Either way only this stream is affected.
+			synchronized(this) {
+				connectionWindow += length;
+			}
+			if(!stream.ended) {
+				sendRstStream(stream.id, Http2Frame.internalError);
+				endStream(stream, false);
+			}
+			stream.bodyRemaining = 0;
+			return;
+		}
+		stream.bodyRemaining -= length;
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.data, stream.bodyRemaining == 0 ? Http2Frame.endStream : 0, stream.id, chunk, 0, length);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * writeStreamedData sends what a streamed body has ready, up to length bytes.  The part of the windows that was not used is given back.
+	 * When the body has nothing ready the stream is parked (waitingForBody) instead, and when it has ended an empty DATA frame ends the stream.
+	 * */
+	private void writeStreamedData(Stream stream, byte[] chunk, int length) throws IOException {
+		int read;
+		try {
+			read = stream.response.readBody(ByteBuffer.wrap(chunk, 0, length));
+		} catch (IOException e) {
+			//The handler failed or ran out of time while it streamed the page.  Only this stream is affected.
+			read = -2;
+		}
+		synchronized(this) {
+			int unused = length - Math.max(read, 0);
+			stream.window += unused;
+			connectionWindow += unused;
+		}
+		if(read == -2) {
+			if(!stream.ended) {
+				sendRstStream(stream.id, Http2Frame.internalError);
+				endStream(stream, false);
+			}
+			stream.bodyRemaining = 0;
+			return;
+		}
+		if(read == 0) {
+			stream.waitingForBody = true;
+			return;
+		}
+		if(read < 0) {
+			stream.bodyRemaining = 0;
+		}
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.data, read < 0 ? Http2Frame.endStream : 0, stream.id, chunk, 0, Math.max(read, 0));
+			out.flush();
+		}
+	}
+	
+	/**
+	 * waitForBody puts a parked stream back in line once its streamed body has bytes ready.
+	 * The other streams are served in the meantime.
+	 * */
+	private void waitForBody(final Stream stream) {
+		stream.waitingForBody = false;
+		stream.response.whenBodyReadable(new Runnable() {
+			public void run() {
+				synchronized(Http2Connection.this) {
+					if(!closed && !stream.ended) {
+						readyStreams.add(stream);
+						Http2Connection.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * endStream method that forgets a stream once its response has been sent (completed) or it was reset,
+	 * and writes the access log and metrics for the completed ones.  Only the first call for a stream counts.
+	 * */
+	private void endStream(Stream stream, boolean completed) {
+		synchronized(this) {
+			if(stream.ended) {
+				return;
+			}
+			stream.ended = true;
+			streams.remove(stream.id);
+			readyStreams.remove(stream);
+			notifyAll();
+		}
+		if(stream.admitted) {
+			AdmissionControl.release();
+		}
+		HttpResponse response = stream.response;
+		if(response == null) {
+			return; //Reset before the response was ready.  responseReady closes it.
+		}
+		response.close();
+		if(completed) {
+			long writtenTime = System.nanoTime();
+			ServerLog.access(remoteAddress, stream.startLine, response.getHttpCode(), response.getBodyLength(), writtenTime - stream.startTime);
+			ServerMetrics.requestCompleted(stream.handler.route, response.getHttpCode(), stream.headerBytes + response.getBodyLength(),
+					stream.parsedTime - stream.startTime, stream.respondedTime - stream.parsedTime, writtenTime - stream.respondedTime);
+			RequestTrace.requestCompleted(stream.handler, response.getHttpCode(), stream.headerBytes + response.getBodyLength(),
+					stream.startTime, stream.parsedTime, stream.respondedTime, writtenTime);
+		}
+	}
+	
+	/**
+	 * onData method for a piece of a request body.  We do not use bodies, so the bytes are dropped
+	 * and the flow control windows are opened up again by the same amount right away.
+	 * */
+	private void onData() throws IOException {
+		int streamId = frames.streamId;
+		if(streamId == 0) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "DATA on stream 0");
+		}
+		int length = frames.payload.remaining(); //Padding counts towards flow control too.
+		withoutPadding(frames.payload, frames.flags);
+		Stream stream;
+		synchronized(this) {
+			stream = streams.get(streamId);
+		}
+		if(stream == null && streamId > lastStreamId) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "DATA on idle stream " + streamId);
+		}
+		if(stream != null && stream.remoteClosed) {
+			sendWindowUpdates(0, length);
+			sendRstStream(streamId, Http2Frame.streamClosed);
+			endStream(stream, false);
+			return;
+		}
+		boolean endOfStream = (frames.flags & Http2Frame.endStream) != 0;
+		if(stream != null) {
+			stream.remoteClosed = endOfStream;
+		}
+		//A stream that has already been answered and forgotten, or that has ended, needs no more window.
+		sendWindowUpdates(stream == null || endOfStream ? 0 : streamId, length);
+	}
+	
+	private void onPriority() throws IOException {
+		if(frames.streamId == 0) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "PRIORITY on stream 0");
+		}
+		if(frames.payload.remaining() != 5) {
+			sendRstStream(frames.streamId, Http2Frame.frameSizeError);
+		}
+		//We do not prioritize: the writer takes turns between all streams.
+	}
+	
+	private void onRstStream() throws IOException {
+		if(frames.payload.remaining() != 4) {
+			throw new Http2Frame.ProtocolException(Http2Frame.frameSizeError, "RST_STREAM of the wrong size");
+		}
+		int streamId = frames.streamId;
+		if(streamId == 0 || streamId > lastStreamId) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "RST_STREAM on an idle stream");
+		}
+		Stream stream;
+		synchronized(this) {
+			stream = streams.get(streamId);
+		}
+		if(stream != null) {
+			endStream(stream, false); //The client does not want the response any more.
+		}
+	}
+	
+	private void onSettings() throws IOException {
+		requireConnectionStream();
+		if((frames.flags & Http2Frame.ack) != 0) {
+			if(frames.payload.remaining() != 0) {
+				throw new Http2Frame.ProtocolException(Http2Frame.frameSizeError, "SETTINGS acknowledgement with a payload");
+			}
+			return;
+		}
+		if(frames.payload.remaining() % 6 != 0) {
+			throw new Http2Frame.ProtocolException(Http2Frame.frameSizeError, "SETTINGS of the wrong size");
+		}
+		applySettings(frames.payload);
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.settings, Http2Frame.ack, 0, null, 0, 0);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * applySettings method for the client's settings, from a SETTINGS frame or the HTTP2-Settings header of an upgrade.
+	 * */
+	private void applySettings(ByteBuffer payload) throws Http2Frame.ProtocolException {
+		while(payload.remaining() >= 6) {
+			int setting = payload.getShort() & 0xffff;
+			long value = payload.getInt() & 0xffffffffL;
+			switch(setting) {
+			case Http2Frame.settingsHeaderTableSize:
+				synchronized(this) {
+					clientTableSize = (int) Math.min(value, Integer.MAX_VALUE);
+				}
+				break;
+			case Http2Frame.settingsEnablePush:
+				if(value > 1) {
+					throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "SETTINGS_ENABLE_PUSH of " + value);
+				}
+				break; //We never push.
+			case Http2Frame.settingsInitialWindowSize:
+				if(value > maxWindowSize) {
+					throw new Http2Frame.ProtocolException(Http2Frame.flowControlError, "SETTINGS_INITIAL_WINDOW_SIZE of " + value);
+				}
+				synchronized(this) {
+					//The change applies to the windows of all open streams too.
+					long change = value - initialStreamWindow;
+					for(Stream stream : streams.values()) {
+						stream.window += change;
+						if(stream.window > maxWindowSize) {
+							throw new Http2Frame.ProtocolException(Http2Frame.flowControlError, "Stream window overflow");
+						}
+					}
+					initialStreamWindow = (int) value;
+					notifyAll();
+				}
+				break;
+			case Http2Frame.settingsMaxFrameSize:
+				if(value < Http2Frame.maxFrameSize || value > 0xffffff) {
+					throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "SETTINGS_MAX_FRAME_SIZE of " + value);
+				}
+				break; //Our frames are never larger than the smallest allowed maximum anyway.
+			default:
+				break; //SETTINGS_MAX_CONCURRENT_STREAMS only limits pushed streams, and we ignore unknown settings.
+			}
+		}
+	}
+	
+	private void onPing() throws IOException {
+		requireConnectionStream();
+		if(frames.payload.remaining() != 8) {
+			throw new Http2Frame.ProtocolException(Http2Frame.frameSizeError, "PING of the wrong size");
+		}
+		if((frames.flags & Http2Frame.ack) != 0) {
+			return;
+		}
+		byte[] opaqueData = new byte[8];
+		frames.payload.get(opaqueData);
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.ping, Http2Frame.ack, 0, opaqueData, 0, 8);
+			out.flush();
+		}
+	}
+	
+	private void onWindowUpdate() throws IOException {
+		if(frames.payload.remaining() != 4) {
+			throw new Http2Frame.ProtocolException(Http2Frame.frameSizeError, "WINDOW_UPDATE of the wrong size");
+		}
+		int streamId = frames.streamId;
+		int increment = frames.payload.getInt() & 0x7fffffff;
+		if(streamId == 0) {
+			if(increment == 0) {
+				throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "WINDOW_UPDATE of 0");
+			}
+			synchronized(this) {
+				connectionWindow += increment;
+				if(connectionWindow > maxWindowSize) {
+					throw new Http2Frame.ProtocolException(Http2Frame.flowControlError, "Connection window overflow");
+				}
+				notifyAll();
+			}
+			return;
+		}
+		if(streamId > lastStreamId) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "WINDOW_UPDATE on an idle stream");
+		}
+		Stream stream;
+		boolean overflow = false;
+		synchronized(this) {
+			stream = streams.get(streamId);
+			if(stream != null) {
+				stream.window += increment;
+				overflow = stream.window > maxWindowSize;
+				notifyAll();
+			}
+		}
+		if(stream != null && (increment == 0 || overflow)) {
+			sendRstStream(streamId, increment == 0 ? Http2Frame.protocolError : Http2Frame.flowControlError);
+			endStream(stream, false);
+		}
+	}
+	
+	private void requireConnectionStream() throws Http2Frame.ProtocolException {
+		if(frames.streamId != 0) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "Frame type " + frames.type + " on stream " + frames.streamId);
+		}
+	}
+	
+	/**
+	 * withoutPadding strips the padding from the payload of a DATA or HEADERS frame that has the PADDED flag.
+	 * */
+	private static ByteBuffer withoutPadding(ByteBuffer payload, int flags) throws Http2Frame.ProtocolException {
+		if((flags & Http2Frame.padded) == 0) {
+			return payload;
+		}
+		if(!payload.hasRemaining()) {
+			throw new Http2Frame.ProtocolException(Http2Frame.frameSizeError, "Padded frame without a pad length");
+		}
+		int padLength = payload.get() & 0xff;
+		if(padLength > payload.remaining()) {
+			throw new Http2Frame.ProtocolException(Http2Frame.protocolError, "Padding longer than the frame");
+		}
+		payload.limit(payload.limit() - padLength);
+		return payload;
+	}
+	
+	/**
+	 * sendSettings method that sends our settings, which must be the first frame we send.
+	 * */
+	private void sendSettings() throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(12);
+		payload.putShort((short) Http2Frame.settingsMaxConcurrentStreams).putInt(ServerConfig.http2MaxConcurrentStreams);
+		payload.putShort((short) Http2Frame.settingsMaxHeaderListSize).putInt(ServerConfig.maxRequestHeaderBytes);
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.settings, 0, 0, payload.array(), 0, payload.position());
+			out.flush();
+		}
+	}
+	
+	/**
+	 * sendWindowUpdates gives back the window that a DATA frame used up, to the connection and to the stream (unless streamId is 0).
+	 * */
+	private void sendWindowUpdates(int streamId, int increment) throws IOException {
+		if(increment == 0) {
+			return;
+		}
+		byte[] payload = ByteBuffer.allocate(4).putInt(increment).array();
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.windowUpdate, 0, 0, payload, 0, 4);
+			if(streamId != 0) {
+				Http2Frame.write(out, Http2Frame.windowUpdate, 0, streamId, payload, 0, 4);
+			}
+			out.flush();
+		}
+	}
+	
+	private void sendRstStream(int streamId, int errorCode) throws IOException {
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.rstStream, 0, streamId, ByteBuffer.allocate(4).putInt(errorCode).array(), 0, 4);
+			out.flush();
+		}
+	}
+	
+	private void sendGoAway(int errorCode) throws IOException {
+		byte[] payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(errorCode).array();
+		synchronized(writeLock) {
+			Http2Frame.write(out, Http2Frame.goAway, 0, 0, payload, 0, 8);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * drain method that waits until the responses that are being sent are done, as long as the writer keeps making progress.
+	 * */
+	private synchronized void drain() throws InterruptedException {
+		long lastFramesSent = -1;
+		while(!closed && !streams.isEmpty() && framesSent != lastFramesSent) {
+			lastFramesSent = framesSent;
+			wait(ServerConfig.keepAliveIdleTimeout);
+		}
+	}
+	
+	/**
+	 * shutdown method that stops the writer thread and lets go of the streams that were not finished.
+	 * */
+	private void shutdown() {
+		ArrayList<Stream> unfinished;
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+			unfinished = new ArrayList<Stream>(streams.values());
+		}
+		for(Stream stream : unfinished) {
+			endStream(stream, false);
+		}
+	}
+	
+	private static boolean isConnectionField(String name) {
+		return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+				|| name.equals("transfer-encoding") || name.equals("upgrade");
+	}
+	
+	private static boolean hasToken(String list, String token) {
+		for(String item : list.split(",")) {
+			if(item.trim().equalsIgnoreCase(token)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * decodeSettingsHeader decodes the HTTP2-Settings header of an upgrade request, a SETTINGS payload in base64url.
+	 * Returns null if it is missing or broken.
+	 * */
+	private static byte[] decodeSettingsHeader(String settingsHeader) {
+		if(settingsHeader == null) {
+			return null;
+		}
+		try {
+			byte[] payload = Base64.getUrlDecoder().decode(settingsHeader.trim());
+			return payload.length % 6 == 0 ? payload : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	private static String ascii(ByteBuffer buffer, int start, int end) {
+		char[] chars = new char[end - start];
+		for(int i = start; i < end; i++) {
+			chars[i - start] = (char) (buffer.get(i) & 0xff);
+		}
+		return new String(chars);
+	}
+	
+	private static void append(ByteArrayOutputStream block, ByteBuffer fragment) {
+		while(fragment.hasRemaining()) {
+			block.write(fragment.get());
+		}
+	}
+	
+	/**
+	 * Stream class with the state of one request and its response.
+	 * */
+	private static class Stream {
+		final int id;
+		final RequestHandler handler;
+		final String startLine; //E.g. "GET /cat.html HTTP/2.0", for the access log.
+		final long startTime;
+		long parsedTime; //When the request was read and when its response was ready, for the metrics.
+		long respondedTime;
+		boolean admitted; //Counts against the AdmissionControl limit until it ends.
+		volatile boolean remoteClosed; //The client has sent END_STREAM.
+		
+		//Set by responseReady, then only used by the writer thread.
+		volatile HttpResponse response;
+		List<String> headerFields;
+		ByteBuffer bodyStart;
+		long bodyRemaining;
+		boolean headersSent;
+		int headerBytes;
+		boolean waitingForBody; //The streamed body had nothing ready, so the stream waits outside the line.
+		
+		long window; //Flow control window, guarded by the connection.
+		boolean ended; //Guarded by the connection.
+		
+		Stream(int id, RequestHandler handler, String startLine, long startTime) {
+			this.id = id;
+			this.handler = handler;
+			this.startLine = startLine;
+			this.startTime = startTime;
+		}
+	}
+}
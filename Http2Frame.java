@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Http2Frame class with the frame layer of HTTP/2 (RFC 9113 section 4): the constants of the protocol,
+ * a Reader that cuts the bytes of a connection into frames and a method that writes a frame.
+ * 
+ * Every frame starts with a 9 byte header: 24 bit payload length, 8 bit type, 8 bit flags and a 31 bit stream id.
+ * We never announce a SETTINGS_MAX_FRAME_SIZE above the default, so no frame in either direction is larger than 16384 bytes.
+ * */
+class Http2Frame {
+	static final int headerLength = 9;
+	static final int maxFrameSize = 16384;
+	static final byte[] clientPreface = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	
+	//Frame types.
+	static final int data = 0x0;
+	static final int headers = 0x1;
+	static final int priority = 0x2;
+	static final int rstStream = 0x3;
+	static final int settings = 0x4;
+	static final int pushPromise = 0x5;
+	static final int ping = 0x6;
+	static final int goAway = 0x7;
+	static final int windowUpdate = 0x8;
+	static final int continuation = 0x9;
+	
+	//Flags.
+	static final int endStream = 0x1;
+	static final int ack = 0x1;
+	static final int endHeaders = 0x4;
+	static final int padded = 0x8;
+	static final int priorityFlag = 0x20;
+	
+	//Error codes for RST_STREAM and GOAWAY.
+	static final int noError = 0x0;
+	static final int protocolError = 0x1;
+	static final int internalError = 0x2;
+	static final int flowControlError = 0x3;
+	static final int streamClosed = 0x5;
+	static final int frameSizeError = 0x6;
+	static final int refusedStream = 0x7;
+	static final int compressionError = 0x9;
+	static final int enhanceYourCalm = 0xb;
+	
+	//Settings.
+	static final int settingsHeaderTableSize = 0x1;
+	static final int settingsEnablePush = 0x2;
+	static final int settingsMaxConcurrentStreams = 0x3;
+	static final int settingsInitialWindowSize = 0x4;
+	static final int settingsMaxFrameSize = 0x5;
+	static final int settingsMaxHeaderListSize = 0x6;
+	
+	/**
+	 * write method that writes one frame.  The caller makes sure that frames of different threads do not interleave.
+	 * */
+	static void write(OutputStream out, int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+		byte[] header = {(byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type, (byte) flags,
+				(byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId};
+		out.write(header);
+		if(length > 0) {
+			out.write(payload, offset, length);
+		}
+	}
+	
+	/**
+	 * ProtocolException class for a broken rule of HTTP/2.  The error code goes into the GOAWAY frame that ends the connection.
+	 * */
+	static class ProtocolException extends IOException {
+		private static final long serialVersionUID = 1L;
+		final int errorCode;
+		
+		ProtocolException(int errorCode, String message) {
+			super(message);
+			this.errorCode = errorCode;
+		}
+	}
+	
+	/**
+	 * Reader class that reads frames from the connection.  The fields describe the frame that next returned last,
+	 * and the payload is a view of the reader's buffer that is only valid until next is called again.
+	 * Bytes stay in the buffer until a whole frame has arrived, so a read that times out can simply be tried again.
+	 * */
+	static class Reader {
+		private final InputStream in;
+		private final ByteBuffer buffer = ByteBuffer.allocate(headerLength + maxFrameSize); //Kept in read mode.
+		int type;
+		int flags;
+		int streamId;
+		ByteBuffer payload;
+		
+		/**
+		 * Creates a reader that starts with the bytes the HTTP/1.1 parser had read beyond the request (or the preface).
+		 * */
+		Reader(InputStream in, ByteBuffer alreadyRead) {
+			this.in = in;
+			buffer.put(alreadyRead);
+			buffer.flip();
+		}
+		
+		/**
+		 * next method that reads the next frame.  Returns false if the client closed the connection.
+		 * A frame larger than our maximum frame size is a FRAME_SIZE_ERROR.
+		 * */
+		boolean next() throws IOException {
+			if(!fill(headerLength)) {
+				return false;
+			}
+			int start = buffer.position();
+			int length = ((buffer.get(start) & 0xff) << 16) | ((buffer.get(start + 1) & 0xff) << 8) | (buffer.get(start + 2) & 0xff);
+			if(length > maxFrameSize) {
+				throw new ProtocolException(frameSizeError, "Frame of " + length + " bytes");
+			}
+			if(!fill(headerLength + length)) {
+				return false;
+			}
+			type = buffer.get(start + 3) & 0xff;
+			flags = buffer.get(start + 4) & 0xff;
+			streamId = buffer.getInt(start + 5) & 0x7fffffff;
+			payload = buffer.duplicate();
+			payload.position(start + headerLength);
+			payload.limit(start + headerLength + length);
+			buffer.position(start + headerLength + length);
+			return true;
+		}
+		
+		/**
+		 * readPreface method that reads the client preface that follows a switch to HTTP/2 with "Upgrade: h2c".
+		 * Returns false if the client sent something else.
+		 * */
+		boolean readPreface() throws IOException {
+			if(!fill(clientPreface.length)) {
+				return false;
+			}
+			for(int i = 0; i < clientPreface.length; i++) {
+				if(buffer.get() != clientPreface[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private boolean fill(int needed) throws IOException {
+			while(buffer.remaining() < needed) {
+				buffer.compact();
+				int bytesRead;
+				try {
+					bytesRead = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				} finally {
+					buffer.flip(); //Back to read mode even if the read timed out.
+				}
+				if(bytesRead < 0) {
+					return false;
+				}
+				buffer.limit(buffer.limit() + bytesRead);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,511 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * HttpResponse class that holds a response that is ready to be written to the client: the header bytes and the body.
+ * The body is a list of segments.  Each segment is either bytes in memory (for example from the StaticContentCache)
+ * or a region of a file.  Most responses have a single segment; multipart range responses interleave the two.
+ * File regions are sent straight from the file with positional FileChannel.transferTo calls (sendfile on most systems)
+ * so only the requested bytes are ever touched and they are exactly the bytes on disk.
+ * 
+ * A response can be written in several steps to a non-blocking channel:
+ * writeTo remembers how far it got and carries on from there the next time it is called.
+ * 
+ * A streamed response has no segments but a StreamingBody that is produced while it is sent and whose length is not known.
+ * For HTTP/1.1 it goes out in chunks ("Transfer-Encoding: chunked"), each one as soon as the body has bytes ready,
+ * and for HTTP/1.0 as it is, with the end of the connection marking the end of the body.
+ * */
+class HttpResponse {
+	private static final int copyBufferSize = 64 * 1024; //Buffer used when we cannot transfer straight from the file.
+	private static final Segment[] noSegments = new Segment[0];
+	private static final int chunkSizeLength = 10; //Room in front of a chunk for its size: up to 8 hex digits and CRLF.
+	private static final byte[] lastChunk = {'0', '\r', '\n', '\r', '\n'};
+	
+	private final int httpCode; //Status code, kept for the access log.
+	private final ByteBuffer header;
+	private final Segment[] segments;
+	private final FileChannel file; //File that the file segments are sent from, or null if there are none.
+	private final long bodyLength;
+	private final int headerLength;
+	private int currentSegment = 0;
+	private final StreamingBody stream; //Body of a streamed response, null for the others.
+	private final boolean chunked; //Whether the streamed body is sent in chunks or until the connection closes.
+	private ByteBuffer chunk; //Chunk of the streamed body that is being written, with its size line in front.
+	private long streamedLength = 0; //Bytes of the streamed body so far, not counting the chunk sizes.
+	private boolean streamEnded = false;
+	private boolean waitingForBody = false; //Set when writeTo stopped because the streamed body had nothing ready.
+	private boolean closeDelimited = false; //Set by withoutBody when the body that was left out would have ended with the connection.
+	
+	private HttpResponse(int httpCode, ByteBuffer header, Segment[] segments, FileChannel file, StreamingBody stream, boolean chunked) {
+		this.httpCode = httpCode;
+		this.header = header;
+		this.segments = segments;
+		this.file = file;
+		this.stream = stream;
+		this.chunked = chunked;
+		this.headerLength = header.remaining();
+		long length = 0;
+		for(Segment segment : segments) {
+			length += segment.length();
+		}
+		this.bodyLength = length;
+	}
+	
+	/**
+	 * forBody method that creates a response from an encoded header and a body that is already in memory (for example a cached file).
+	 * The response consumes the body buffer so callers should pass a buffer of its own (e.g. a duplicate()).
+	 * */
+	static HttpResponse forBody(int httpCode, ByteBuffer header, ByteBuffer body) {
+		return new HttpResponse(httpCode, header, new Segment[] {Segment.ofBuffer(body)}, null, null, false);
+	}
+	
+	/**
+	 * forHeaderOnly method that creates a response without a body (e.g. 416 Range Not Satisfiable).
+	 * */
+	static HttpResponse forHeaderOnly(int httpCode, ByteBuffer header) {
+		return new HttpResponse(httpCode, header, noSegments, null, null, false);
+	}
+	
+	/**
+	 * withoutBody method that turns the response into its header alone, for HEAD requests.
+	 * The header still describes the body that a GET would get (Content-Length or Transfer-Encoding), and the file or
+	 * streamed body behind the response is released right away.
+	 * */
+	HttpResponse withoutBody() {
+		close();
+		HttpResponse response = forHeaderOnly(httpCode, header);
+		response.closeDelimited = isCloseDelimited();
+		return response;
+	}
+	
+	/**
+	 * forFile method that creates a response whose body is fileLength bytes of the file starting at filePosition.
+	 * The response takes over the file channel and closes it once the body has been written (or in close()).
+	 * */
+	static HttpResponse forFile(int httpCode, ByteBuffer header, FileChannel file, long filePosition, long fileLength) {
+		return new HttpResponse(httpCode, header, new Segment[] {Segment.ofFile(filePosition, fileLength)}, file, null, false);
+	}
+	
+	/**
+	 * forSegments method that creates a response from a list of segments.  file may be null if none of the segments are file regions.
+	 * The response takes over the file channel like forFile does.
+	 * */
+	static HttpResponse forSegments(int httpCode, ByteBuffer header, List<Segment> segments, FileChannel file) {
+		return new HttpResponse(httpCode, header, segments.toArray(new Segment[segments.size()]), file, null, false);
+	}
+	
+	/**
+	 * forStream method that creates a response whose body is produced while it is sent.  The header must say how the body ends:
+	 * "Transfer-Encoding: chunked" when chunked is true, and "Connection: close" otherwise (see HTTPConstructor.startStreamingHttpHeader).
+	 * */
+	static HttpResponse forStream(int httpCode, ByteBuffer header, StreamingBody body, boolean chunked) {
+		return new HttpResponse(httpCode, header, noSegments, null, body, chunked);
+	}
+	
+	/**
+	 * writeTo method that writes as much of the response as the channel takes.
+	 * Returns true when the whole response has been written and false when a non-blocking channel is full
+	 * in which case writeTo should be called again once the channel is writable.
+	 * For a streamed response it also returns false when the body has nothing ready yet (isWaitingForBody),
+	 * in which case writeTo should be called again once whenBodyReadable says so.
+	 * */
+	boolean writeTo(WritableByteChannel channel) throws IOException {
+		if(stream != null) {
+			return writeStreamTo(channel);
+		}
+		if(header.hasRemaining() && segments.length > 0 && segments[0].buffer != null && channel instanceof GatheringByteChannel) {
+			//Send the header and an in memory body with one system call.
+			ByteBuffer body = segments[0].buffer;
+			ByteBuffer[] headerAndBody = {header, body};
+			while(header.hasRemaining() || body.hasRemaining()) {
+				if(((GatheringByteChannel) channel).write(headerAndBody) == 0) {
+					return false;
+				}
+			}
+		}
+		if(!writeBuffer(header, channel)) {
+			return false;
+		}
+		
+		while(currentSegment < segments.length) {
+			Segment segment = segments[currentSegment];
+			if(segment.buffer != null) {
+				if(!writeBuffer(segment.buffer, channel)) {
+					return false;
+				}
+			}
+			else {
+				while(segment.fileRemaining > 0) {
+					long sent = file.transferTo(segment.filePosition, segment.fileRemaining, channel);
+					if(sent <= 0) {
+						if(segment.filePosition >= file.size()) {
+							//The file got shorter while we were sending it so we cannot send the length we promised.
+							throw new IOException("File was truncated while it was being sent");
+						}
+						return false;
+					}
+					segment.filePosition += sent;
+					segment.fileRemaining -= sent;
+				}
+			}
+			currentSegment++;
+		}
+		close();
+		return true;
+	}
+	
+	/**
+	 * writeStreamTo writes the header and then the streamed body a chunk at a time, for as long as the body has bytes ready.
+	 * */
+	private boolean writeStreamTo(WritableByteChannel channel) throws IOException {
+		if(header.hasRemaining() && chunk == null && nextChunk() && channel instanceof GatheringByteChannel) {
+			//Send the header with the first chunk (for a small folder that is the whole body) in one system call,
+			//so the client does not wait for a delayed ACK between them.
+			ByteBuffer[] headerAndChunk = {header, chunk};
+			while(header.hasRemaining() || chunk.hasRemaining()) {
+				if(((GatheringByteChannel) channel).write(headerAndChunk) == 0) {
+					return false;
+				}
+			}
+		}
+		if(!writeBuffer(header, channel)) {
+			return false;
+		}
+		while(true) {
+			if(chunk != null && !writeBuffer(chunk, channel)) {
+				return false;
+			}
+			if(streamEnded) {
+				close();
+				return true;
+			}
+			if(!nextChunk()) {
+				waitingForBody = true;
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * nextChunk reads what the streamed body has ready into the chunk buffer and puts the chunk size in front of it.
+	 * When the body ends, the last chunk goes into the same buffer.  Returns false if the body has nothing ready.
+	 * */
+	private boolean nextChunk() throws IOException {
+		if(chunk == null) {
+			chunk = ByteBuffer.allocate(chunkSizeLength + ServerConfig.streamBufferBytes + 2 + lastChunk.length);
+		}
+		int dataStart = chunked ? chunkSizeLength : 0;
+		chunk.clear();
+		chunk.position(dataStart);
+		chunk.limit(chunk.capacity() - 2 - lastChunk.length); //Room for the CRLF after the data and the last chunk.
+		boolean ended = false;
+		while(chunk.hasRemaining()) {
+			int read = stream.read(chunk);
+			if(read < 0) {
+				ended = true;
+				break;
+			}
+			if(read == 0) {
+				break;
+			}
+		}
+		int length = chunk.position() - dataStart;
+		if(length == 0 && !ended) {
+			chunk.limit(0);
+			return false;
+		}
+		streamedLength += length;
+		streamEnded = ended;
+		int start = dataStart;
+		chunk.limit(chunk.capacity());
+		if(chunked) {
+			if(length > 0) {
+				String size = Integer.toHexString(length);
+				start -= size.length() + 2;
+				for(int i = 0; i < size.length(); i++) {
+					chunk.put(start + i, (byte) size.charAt(i));
+				}
+				chunk.put(dataStart - 2, (byte) '\r');
+				chunk.put(dataStart - 1, (byte) '\n');
+				chunk.put((byte) '\r');
+				chunk.put((byte) '\n');
+			}
+			if(ended) {
+				chunk.put(lastChunk);
+			}
+		}
+		chunk.limit(chunk.position());
+		chunk.position(start);
+		return true;
+	}
+	
+	/**
+	 * isWaitingForBody tells whether the last writeTo stopped because the streamed body had nothing ready, rather than because the channel was full.
+	 * */
+	boolean isWaitingForBody() {
+		return waitingForBody;
+	}
+	
+	/**
+	 * whenBodyReadable runs the callback once the streamed body has bytes ready (or has ended) after writeTo stopped for it.
+	 * The callback may run right away or on the thread that produces the body.
+	 * */
+	void whenBodyReadable(Runnable callback) {
+		waitingForBody = false;
+		stream.whenReadable(callback);
+	}
+	
+	/**
+	 * awaitBody method for blocking writers that waits until the streamed body has bytes ready, if writeTo stopped for it.
+	 * */
+	void awaitBody() throws IOException {
+		if(!waitingForBody) {
+			return;
+		}
+		final CountDownLatch ready = new CountDownLatch(1);
+		whenBodyReadable(new Runnable() {
+			public void run() {
+				ready.countDown();
+			}
+		});
+		try {
+			ready.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the body");
+		}
+	}
+	
+	/**
+	 * isCloseDelimited tells whether the end of the body is marked by closing the connection (a streamed body for HTTP/1.0),
+	 * so the connection must not be kept alive after this response.  The header of a HEAD request for such a body says so too.
+	 * */
+	boolean isCloseDelimited() {
+		return closeDelimited || (stream != null && !chunked);
+	}
+	
+	/**
+	 * writeTo method for sockets without a channel.  This blocks until the whole response is written
+	 * and copies file regions through a fixed size buffer so the heap use does not depend on the file size.
+	 * A streamed body is flushed to the client every time it has nothing more ready.
+	 * */
+	void writeTo(OutputStream out) throws IOException {
+		writeBuffer(header, out);
+		if(stream != null) {
+			while(true) {
+				if(chunk != null) {
+					writeBuffer(chunk, out);
+				}
+				if(streamEnded) {
+					break;
+				}
+				if(!nextChunk()) {
+					out.flush();
+					waitingForBody = true;
+					awaitBody();
+				}
+			}
+		}
+		ByteBuffer copyBuffer = null;
+		for(; currentSegment < segments.length; currentSegment++) {
+			Segment segment = segments[currentSegment];
+			if(segment.buffer != null) {
+				writeBuffer(segment.buffer, out);
+				continue;
+			}
+			if(copyBuffer == null && segment.fileRemaining > 0) {
+				copyBuffer = ByteBuffer.allocate((int) Math.min(copyBufferSize, bodyLength));
+			}
+			while(segment.fileRemaining > 0) {
+				copyBuffer.clear();
+				if(copyBuffer.remaining() > segment.fileRemaining) {
+					copyBuffer.limit((int) segment.fileRemaining);
+				}
+				int read = file.read(copyBuffer, segment.filePosition);
+				if(read < 0) {
+					throw new IOException("File was truncated while it was being sent");
+				}
+				out.write(copyBuffer.array(), 0, read);
+				segment.filePosition += read;
+				segment.fileRemaining -= read;
+			}
+		}
+		out.flush();
+		close();
+	}
+	
+	/**
+	 * Write a buffer to a stream.  Direct and read only buffers have no array that we can hand to the stream
+	 * so they are copied through a small chunk at a time.
+	 * */
+	private static void writeBuffer(ByteBuffer buffer, OutputStream out) throws IOException {
+		if(buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		byte[] chunk = new byte[Math.min(8192, buffer.remaining())];
+		while(buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+	
+	private static boolean writeBuffer(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.write(buffer) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * readBody method that copies the next bytes of the body into dst, for HTTP/2 which sends the body in DATA frames
+	 * instead of as it is.  Returns the number of bytes copied, or -1 once the whole body has been read.
+	 * */
+	int readBody(ByteBuffer dst) throws IOException {
+		if(stream != null) {
+			//0 when the streamed body has nothing ready, see isStreamed.
+			int read = streamEnded ? -1 : stream.read(dst);
+			if(read < 0) {
+				streamEnded = true;
+				return -1;
+			}
+			streamedLength += read;
+			return read;
+		}
+		int copied = 0;
+		while(dst.hasRemaining() && currentSegment < segments.length) {
+			Segment segment = segments[currentSegment];
+			if(segment.buffer != null) {
+				int length = Math.min(dst.remaining(), segment.buffer.remaining());
+				ByteBuffer part = segment.buffer.duplicate();
+				part.limit(part.position() + length);
+				dst.put(part);
+				segment.buffer.position(segment.buffer.position() + length);
+				copied += length;
+				if(!segment.buffer.hasRemaining()) {
+					currentSegment++;
+				}
+				continue;
+			}
+			if(segment.fileRemaining == 0) {
+				currentSegment++;
+				continue;
+			}
+			int limit = dst.limit();
+			if(dst.remaining() > segment.fileRemaining) {
+				dst.limit(dst.position() + (int) segment.fileRemaining);
+			}
+			int read = file.read(dst, segment.filePosition);
+			dst.limit(limit);
+			if(read < 0) {
+				throw new IOException("File was truncated while it was being sent");
+			}
+			segment.filePosition += read;
+			segment.fileRemaining -= read;
+			copied += read;
+		}
+		return copied == 0 && currentSegment == segments.length ? -1 : copied;
+	}
+	
+	/**
+	 * getHeader returns the encoded HTTP/1.1 header, for HTTP/2 which sends it as header fields instead.
+	 * */
+	ByteBuffer getHeader() {
+		return header.duplicate();
+	}
+	
+	int getHttpCode() {
+		return httpCode;
+	}
+	
+	/**
+	 * isStreamed tells whether the body is a StreamingBody, whose length is only known once it has been sent.
+	 * readBody then returns 0 while the body has nothing ready, and whenBodyReadable says when to try again.
+	 * */
+	boolean isStreamed() {
+		return stream != null;
+	}
+	
+	/**
+	 * getBodyLength returns the number of body bytes in the response (what the access log reports as bytes sent).
+	 * For a streamed body that is the number of bytes sent so far.
+	 * */
+	long getBodyLength() {
+		return bodyLength + streamedLength;
+	}
+	
+	/**
+	 * getTotalLength returns the number of bytes in the whole response, header included (what the metrics count as bytes sent).
+	 * */
+	long getTotalLength() {
+		return headerLength + getBodyLength();
+	}
+	
+	/**
+	 * close method that releases the file behind the response.  Safe to call more than once.
+	 * */
+	void close() {
+		if(stream != null) {
+			stream.discard();
+		}
+		if(file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * The response as text for the console log.  The body only shows its size.
+	 * */
+	public String toString() {
+		String text = new String(header.array(), header.arrayOffset(), header.limit(), StandardCharsets.ISO_8859_1);
+		if(bodyLength > 0) {
+			text += "<" + bodyLength + " body bytes" + (file != null ? " sent from file>" : " sent from memory>");
+		}
+		if(stream != null) {
+			text += chunked ? "<streamed body sent in chunks>" : "<streamed body sent until the connection closes>";
+		}
+		return text;
+	}
+	
+	/**
+	 * Segment class that is one piece of a response body: either a buffer in memory or a region of the response's file.
+	 * */
+	static class Segment {
+		final ByteBuffer buffer;
+		long filePosition;
+		long fileRemaining;
+		private final long length;
+		
+		private Segment(ByteBuffer buffer, long filePosition, long fileLength) {
+			this.buffer = buffer;
+			this.filePosition = filePosition;
+			this.fileRemaining = fileLength;
+			this.length = buffer != null ? buffer.remaining() : fileLength;
+		}
+		
+		static Segment ofBuffer(ByteBuffer buffer) {
+			return new Segment(buffer, 0, 0);
+		}
+		
+		static Segment ofFile(long filePosition, long fileLength) {
+			return new Segment(null, filePosition, fileLength);
+		}
+		
+		long length() {
+			return length;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MetricsHistogram class that counts latencies into fixed buckets, the way Prometheus histograms are exposed:
+ * the count of every bucket is the number of latencies up to its upper bound, plus the total count and the sum.
+ * 
+ * Every bucket is a LongAdder, so threads that record at the same time update separate cells instead of
+ * fighting over one counter, and recording never takes a lock.  Reading adds the cells up, which is only done
+ * when somebody looks at /server-status or JMX.  A reader can see a latency in the count but not yet in the sum,
+ * which is fine for monitoring.
+ * */
+class MetricsHistogram {
+	//Upper bounds of the buckets in seconds, from 100 microseconds to 10 seconds.  Slower requests only go into the +Inf bucket.
+	static final double[] bucketBoundsSeconds = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+	private static final long[] bucketBoundsNanos = new long[bucketBoundsSeconds.length];
+	static {
+		for(int i = 0; i < bucketBoundsSeconds.length; i++) {
+			bucketBoundsNanos[i] = Math.round(bucketBoundsSeconds[i] * 1e9);
+		}
+	}
+	
+	private final LongAdder[] buckets = new LongAdder[bucketBoundsNanos.length + 1]; //The last one is +Inf.
+	private final LongAdder sumNanos = new LongAdder();
+	
+	MetricsHistogram() {
+		for(int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+	
+	/**
+	 * record method that counts one latency.  Only the bucket it falls into is updated;
+	 * the cumulative counts that Prometheus wants are added up when the histogram is read.
+	 * */
+	void record(long nanos) {
+		int bucket = 0;
+		while(bucket < bucketBoundsNanos.length && nanos > bucketBoundsNanos[bucket]) {
+			bucket++;
+		}
+		buckets[bucket].increment();
+		sumNanos.add(nanos);
+	}
+	
+	/**
+	 * getCumulativeCounts returns for every bucket (and +Inf last) the number of latencies up to its upper bound.
+	 * */
+	long[] getCumulativeCounts() {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for(int i = 0; i < buckets.length; i++) {
+			total += buckets[i].sum();
+			counts[i] = total;
+		}
+		return counts;
+	}
+	
+	double getSumSeconds() {
+		return sumNanos.sum() / 1e9;
+	}
+	
+	/**
+	 * getPercentileMillis estimates a percentile (e.g. 99) from the buckets, by assuming the latencies are spread evenly inside a bucket.
+	 * Latencies in the +Inf bucket are reported as the largest bound.
+	 * */
+	double getPercentileMillis(double percentile) {
+		long[] counts = getCumulativeCounts();
+		long total = counts[counts.length - 1];
+		if(total == 0) {
+			return 0;
+		}
+		double rank = percentile / 100.0 * total;
+		for(int i = 0; i < bucketBoundsSeconds.length; i++) {
+			if(counts[i] >= rank) {
+				double lower = i == 0 ? 0 : bucketBoundsSeconds[i - 1];
+				long below = i == 0 ? 0 : counts[i - 1];
+				long inBucket = counts[i] - below;
+				double fraction = inBucket == 0 ? 1 : (rank - below) / inBucket;
+				return (lower + (bucketBoundsSeconds[i] - lower) * fraction) * 1000;
+			}
+		}
+		return bucketBoundsSeconds[bucketBoundsSeconds.length - 1] * 1000;
+	}
+	
+	/**
+	 * appendPrometheus writes the histogram in the Prometheus text format, e.g.
+	 * name_bucket{route="file",le="0.001"} 12
+	 * ...
+	 * name_sum{route="file"} 0.0123
+	 * name_count{route="file"} 15
+	 * labels are the labels without braces (e.g. route="file") or an empty String.
+	 * */
+	void appendPrometheus(StringBuilder out, String name, String labels) {
+		long[] counts = getCumulativeCounts();
+		String separator = labels.isEmpty() ? "" : ",";
+		for(int i = 0; i < counts.length; i++) {
+			String bound = i < bucketBoundsSeconds.length ? formatBound(bucketBoundsSeconds[i]) : "+Inf";
+			out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(bound).append("\"} ").append(counts[i]).append('\n');
+		}
+		String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(name).append("_sum").append(braces).append(' ').append(String.format(Locale.US, "%.6f", getSumSeconds())).append('\n');
+		out.append(name).append("_count").append(braces).append(' ').append(counts[counts.length - 1]).append('\n');
+	}
+	
+	/**
+	 * appendJson writes the histogram as a JSON object with the count, the sum and estimated percentiles in milliseconds.
+	 * */
+	void appendJson(StringBuilder out) {
+		long[] counts = getCumulativeCounts();
+		out.append(String.format(Locale.US, "{\"count\":%d,\"sumSeconds\":%.6f,\"p50Millis\":%.3f,\"p99Millis\":%.3f,\"p999Millis\":%.3f}",
+				counts[counts.length - 1], getSumSeconds(), getPercentileMillis(50), getPercentileMillis(99), getPercentileMillis(99.9)));
+	}
+	
+	private static String formatBound(double bound) {
+		return BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString(); //e.g. 0.0001 and 10 instead of 1.0E-4 and 10.0
+	}
+}
@@ -31,6 +31,26 @@ For example, if you are running the browser on the same computer as the server a
 http://localhost:2540/cat.html will send you the contents of cat.html 
 (Assume that "./" denotes the current folder and in this example, it is the home directory where the server was started.)
 
+The server can be tuned with -D system properties which are all listed in ServerConfig.java, for example:
+
+> java -Dserver.executor=virtual MyWebServer    (one virtual thread per connection on JVMs that support it)
+> java -Dserver.workers=64 -Dserver.queue=2048 MyWebServer    (bounded thread pool, which is the default)
+> java -Dserver.mode=nio -Dserver.eventLoops=4 MyWebServer    (non-blocking Selector event loops instead of a thread per connection)
+> java -Dserver.root=/var/www MyWebServer    (serve another folder than the one the server was started in)
+> java -Dserver.handlers=/hello=HelloHandler MyWebServer    (serve /hello from a DynamicHandler class, like the addnums cgi)
+> java -Dserver.admission.maxInFlight=256 -Dserver.admission.perClientRate=50 MyWebServer    (answer 503 with Retry-After when overloaded)
+> java -Dserver.mode=nio -Dserver.listeners=8 MyWebServer    (8 event loops, each accepting on its own SO_REUSEPORT socket)
+> java -Dserver.http2.maxStreams=64 MyWebServer    (HTTP/2 without TLS for curl --http2-prior-knowledge or --http2, see Http2Connection.java)
+> java -Dserver.stream.bufferBytes=65536 MyWebServer    (larger chunks for streamed folder listings and dynamic pages, see ResponseStream.java)
+> java -Dserver.index=true -Dserver.index.file=/var/cache/www.idx MyWebServer    (resolve URLs from an index of the served folder, see DocumentIndex.java)
+> java SiteBundlePacker www site.bundle && java -Dserver.bundle=site.bundle MyWebServer    (serve a packed, memory mapped copy of www, see SiteBundle.java)
+> javac -cp . -d . jfr/*.java && jcmd <pid> JFR.start duration=5m filename=slow.jfr && java RequestTraceAnalyzer slow.jfr    (record slow requests by phase, see RequestTrace.java)
+> keytool -genkeypair -alias server -keyalg EC -dname CN=localhost -storetype PKCS12 -keystore server.p12 -storepass secret
+  java -Dserver.tls.port=2543 -Dserver.tls.keyStore=server.p12 -Dserver.tls.keyStorePassword=secret MyWebServer    (HTTPS on port 2543 as well, see TlsChannel.java)
+
+While the server runs, http://localhost:2540/server-status shows its request counts, connections and latency histograms
+in the Prometheus text format (add ?format=json for JSON).  The same numbers are in JMX under MyWebServer:type=ServerMetrics.
+
 If you are running the browser on a different machine than the server, replace localhost with the public IP of the server.
 For example, if the public IP of the server is: 130.9.8.7, then http://localhost:2540/cat.html would become http://130.9.8.7:2540/cat.html
 
@@ -47,17 +67,23 @@ Note that we can use "." to mean the current folder and ".." to mean the parent
 	
 	This will append all output to STDOUT to serverlog.txt 
 	
+	By default only one access log line per request is printed.  The old verbose dumps of every request, response and file
+	can be turned back on with -Dserver.log.debug=true and the access log can go to a rotating file with
+	-Dserver.log.accessFile=access.log (see ServerLog.java).
+	
 
 5. List of files needed for running the program.
 
-	a. MyWebServer.java
+	a. MyWebServer.java (javac picks up the other .java files in the folder that it needs)
 	b. checklist-mywebserver.html
 
 6. Notes:
 
 This is not a secure implementation as it does not use a secure channel.
 I pretend to be an Apache Web Server by using that as the hard-coded Server part of the response.
-I use "Connection: close" and I also may not have the correct date format for non-US users but I assume users are in the US.
+HTTP/1.1 clients get persistent connections ("Connection: keep-alive") unless they ask for "Connection: close".
+HTTP/1.0 clients get "Connection: close" unless they ask for keep-alive.  Idle connections are closed after a timeout.
+I also may not have the correct date format for non-US users but I assume users are in the US.
 The server can only handle GET requests but can be extended to handle POST requests
 If the user does not terminate the HTTP request with a blank line, the server may hang or exhibit unexpected behavior so it is recommended
 to format your HTTP request headers properly with a terminating \r\n\r\n to denote the end of the HTTP request header.
@@ -74,12 +100,15 @@ Not sure why that happens but it happened.
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 
 /**
  * MyWebServer main class that starts listening on port 2540 and then delegates to the WebPageWorker class.
+ * WebPageWorker tasks run on the ConnectionEngine which is either a bounded thread pool or virtual threads.
+ * In nio mode the connections are handed to the NioServer event loops instead.
  * */
 public class MyWebServer {
 	//Working Directory for the WebServer that can be referenced by the other classes for security checks among other things.
@@ -87,24 +116,109 @@ public class MyWebServer {
 	
 	
 	public static void main(String[] args) throws IOException {
-		int port_number = 2540;
+		int port_number = ServerConfig.portNumber;
 		
-		//Get the current directory on start up so that we know that we will not serve files outside of this directory
-		workingDirectory = new File(".");  
+		//Get the served directory (the current directory unless -Dserver.root is given) on start up so that we know that we will not serve files outside of this directory
+		workingDirectory = new File(ServerConfig.documentRoot);  
+		if(ServerConfig.bundleFile != null) {
+			//Serve the site from the bundle.  A bundle that cannot be read stops the server instead of serving the working directory.
+			SiteBundle.start(new File(ServerConfig.bundleFile));
+		}
+		else if(ServerConfig.indexEnabled) {
+			//Index the served directory before the first request so that URLs are resolved from memory.
+			PathResolver.useIndex(DocumentIndex.open(PathResolver.getDocumentRoot()));
+		}
+		if(ServerConfig.tlsPort > 0) {
+			startHttps(ServerConfig.tlsPort);
+		}
 		
-		ServerSocket webServ = new ServerSocket(port_number);
-		System.out.println("Starting up the Web Server on port " + port_number);
+		if("nio".equalsIgnoreCase(ServerConfig.serverMode)) {
+			//Non-blocking mode: a few event loop threads handle every connection.
+			NioServer nioServer = new NioServer(port_number, ServerConfig.eventLoops, ServerConfig.listeners);
+			System.out.println("Starting up the Web Server on port " + port_number + " using " + nioServer.getEventLoopCount() + " NIO event loops"
+					+ (nioServer.getListenerCount() > 1 ? " with a listener each" : ""));
+			System.out.println("");
+			System.out.println("");
+			ServerMetrics.start(); //Metrics at /server-status and through JMX.
+			nioServer.run();
+			return;
+		}
+		
+		//Accept through a ServerSocketChannel (in blocking mode) so that every socket has a channel that files can be transferred to.
+		//With several listeners (SO_REUSEPORT) each one gets its own accept thread and its own share of the workers.
+		ServerSocketChannel[] listeners = ServerListeners.open(port_number, ServerConfig.listeners);
+		int listenerCount = listeners.length;
+		
+		//Workers run on a bounded execution engine instead of one new thread per connection.
+		ConnectionEngine[] engines = new ConnectionEngine[listenerCount];
+		for(int i = 0; i < listenerCount; i++) {
+			engines[i] = ConnectionEngine.create(ServerConfig.executorType, (ServerConfig.workerThreads + listenerCount - 1) / listenerCount,
+					(ServerConfig.workerQueueSize + listenerCount - 1) / listenerCount);
+			engines[i].startStatsReporter(ServerConfig.engineStatsInterval);
+		}
+		ServerMetrics.start(engines); //Metrics at /server-status and through JMX.
+		
+		System.out.println("Starting up the Web Server on port " + port_number + " using " + engines[0].getDescription()
+				+ (listenerCount > 1 ? " for each of " + listenerCount + " listeners" : ""));
 		//Add a couple lines of padding to the console output
 		System.out.println("");
 		System.out.println("");
 		//End of console output padding.
 		
+		for(int i = 1; i < listenerCount; i++) {
+			final ServerSocketChannel listener = listeners[i];
+			final ConnectionEngine engine = engines[i];
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						acceptConnections(listener, engine);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}, "acceptor-" + (i + 1)).start();
+		}
+		acceptConnections(listeners[0], engines[0]);
+	}
+	
+	/**
+	 * startHttps method that starts the HTTPS listener on its own thread.  It is always served by NIO event loops (see TlsChannel),
+	 * whatever the mode of the plain HTTP listener.  A key store that cannot be used stops the server.
+	 * */
+	private static void startHttps(int port) throws IOException {
+		TlsContext tls;
+		try {
+			tls = TlsContext.create();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot set up HTTPS with " + ServerConfig.tlsKeyStore + ": " + e.getMessage(), e);
+		}
+		final NioServer tlsServer = new NioServer(port, ServerConfig.tlsEventLoops, 1, tls);
+		System.out.println("Serving HTTPS on port " + port + " using " + tlsServer.getEventLoopCount() + " NIO event loops");
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					tlsServer.run();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "tls-acceptor").start();
+	}
+	
+	/**
+	 * acceptConnections method that accepts connections from one listener forever and hands them to its engine.
+	 * */
+	private static void acceptConnections(ServerSocketChannel webServ, ConnectionEngine engine) throws IOException {
 		while(true) {
-			Socket newConnection = webServ.accept();
-			new WebPageWorker(newConnection).start(); //Delegate connection to the WebPageWorker
+			SocketChannel newConnection = webServ.accept();
+			if(!engine.submit(new WebPageWorker(newConnection.socket()))) {
+				//Delegate connection to the WebPageWorker.  If the engine is saturated, turn the connection away with a 503
+				//so that the client knows to come back later instead of seeing a reset.
+				AdmissionControl.rejectConnection(newConnection);
+				newConnection.close();
+			}
 		}
 	}
-
 	
 
 	
@@ -0,0 +1,293 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.function.BiConsumer;
+
+/**
+ * NioConnection class that holds the state of one non-blocking connection:
+ * the request parser with the part of the request read so far, and the response that is still being written.
+ * Connections are persistent (keep-alive) when the client asks for it.  Pipelined requests are answered one at a time
+ * in the order they arrived: the next request in the buffer is only parsed once the previous response has been written.
+ * On the HTTPS listener the bytes go through a TlsChannel, which reads and writes like the socket does.
+ * All methods are called from the connection's event loop thread only.
+ * */
+class NioConnection {
+	private static final int readBufferSize = 4096; //Bytes read from the socket at a time.  Longer headers are read in pieces.
+	
+	private final SocketChannel channel;
+	private final TlsChannel tls; //Null for plain HTTP.
+	private final ByteChannel io; //What requests are read from and responses written to: the TlsChannel, or else the socket.
+	private final SelectionKey key;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(readBufferSize); //Kept in read mode between reads.
+	private final RequestParser parser = new RequestParser(); //Holds the part of the current request that has been read so far.
+	private final ResponseHeaderBuilder headerBuilder = new ResponseHeaderBuilder(); //Reused for every response on this connection.
+	private HttpResponse pendingResponse; //Response being written, null while we wait for the next request.
+	private int requestCount = 0;
+	private boolean keepAlive = true;
+	private long lastActivity = System.currentTimeMillis();
+	private final String remoteAddress; //For the access log.
+	private String startLine; //Start line and start time of the request being answered, for the access log.
+	private long startTime;
+	private long parsedTime; //When the request was parsed and when its response was ready, for the metrics.
+	private long respondedTime;
+	private RequestHandler handler; //Handler that answered the request, for the metrics and RequestTrace.
+	private RequestHandler waitingHandler; //Set while a dynamic handler builds the page for the current request.
+	private boolean admitted; //True while the current request counts against the AdmissionControl limit.
+	private boolean waitingForBody; //Set while a streamed response waits for its body to have more bytes ready.
+	private final NioEventLoop eventLoop;
+	
+	NioConnection(SocketChannel channel, SelectionKey key, NioEventLoop eventLoop, TlsContext tlsContext) {
+		this.channel = channel;
+		this.tls = tlsContext == null ? null : new TlsChannel(channel, tlsContext);
+		this.io = tls == null ? channel : tls;
+		this.key = key;
+		this.eventLoop = eventLoop;
+		this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+		readBuffer.flip(); //Nothing has been read yet.
+		ServerMetrics.connectionOpened();
+	}
+	
+	/**
+	 * onReadable method that reads whatever the client has sent so far and answers every complete request in the buffer.
+	 * */
+	void onReadable() throws IOException {
+		readBuffer.compact();
+		int bytesRead = io.read(readBuffer);
+		readBuffer.flip();
+		if(bytesRead < 0) {
+			close();
+			return;
+		}
+		lastActivity = System.currentTimeMillis();
+		processRequests();
+	}
+	
+	/**
+	 * onWritable method that writes as much of the response as the socket takes without blocking.
+	 * Once the response is written we either close the connection or go on with the next pipelined request.
+	 * */
+	void onWritable() throws IOException {
+		if(pendingResponse == null) {
+			//Only TLS asks for OP_WRITE without a response: its handshake messages did not fit into the socket.
+			if(tls.flush()) {
+				onReadable();
+			}
+			return;
+		}
+		boolean finished = writeResponse();
+		lastActivity = System.currentTimeMillis();
+		if(!finished) {
+			waitToWrite();
+			return;
+		}
+		logAccess();
+		pendingResponse = null;
+		if(!keepAlive) {
+			close();
+			return;
+		}
+		processRequests();
+	}
+	
+	/**
+	 * processRequests method that answers the complete requests in the read buffer one after the other.
+	 * It stops when a response cannot be written right away (we then wait for OP_WRITE)
+	 * or when the buffer does not hold a complete request any more (we then wait for OP_READ).
+	 * */
+	private void processRequests() throws IOException {
+		while(pendingResponse == null && waitingHandler == null) {
+			if(!parser.hasPartialRequest()) {
+				startTime = System.nanoTime();
+			}
+			int parseResult = parser.parse(readBuffer);
+			while(parseResult == RequestParser.needMoreInput && tls != null && tls.hasBufferedInput()) {
+				//Decrypted bytes that did not fit into the read buffer.  The socket will not tell us about them again.
+				readBuffer.compact();
+				tls.read(readBuffer);
+				readBuffer.flip();
+				parseResult = parser.parse(readBuffer);
+			}
+			if(parseResult == RequestParser.needMoreInput) {
+				//Wait for more of the next request to arrive, and for room in the socket if TLS has handshake messages waiting.
+				key.interestOps(tls != null && tls.hasPendingOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				return;
+			}
+			requestCount++;
+			startLine = parser.getStartLine();
+			parsedTime = System.nanoTime();
+			
+			handler = new RequestHandler(headerBuilder);
+			handler.clientAddress = channel.socket().getInetAddress();
+			handler.asynchronous = true;
+			if(parseResult != RequestParser.complete) {
+				//Malformed or oversized request.  Answer it and close the connection because we cannot tell where the next request starts.
+				keepAlive = false;
+				pendingResponse = handler.handleBadRequest(parseResult);
+			}
+			else if(!AdmissionControl.admit(handler.clientAddress)) {
+				//Too busy or this client sends too fast: answer with the ready-made 503 and close without reading a body.
+				keepAlive = false;
+				pendingResponse = AdmissionControl.rejection();
+				handler.route = ServerMetrics.routeRejected;
+			}
+			else {
+				admitted = true;
+				handler.useRequest(parser);
+				//Keep the connection open only if the client wants it and it has not used up its share of requests.
+				keepAlive = handler.wantsKeepAlive() && !handler.hasRequestBody() && requestCount < ServerConfig.keepAliveMaxRequests;
+				handler.keepAlive = keepAlive;
+				pendingResponse = handler.respond();
+			}
+			parser.reset();
+			if(pendingResponse == null) {
+				waitForDynamicHandler(handler);
+				return;
+			}
+			if(!startWriting()) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * startWriting method that writes as much of the new pendingResponse as the socket takes.
+	 * Returns true if the response was written completely and the connection is ready for the next request.
+	 * */
+	private boolean startWriting() throws IOException {
+		respondedTime = System.nanoTime();
+		if(pendingResponse.isCloseDelimited()) {
+			keepAlive = false; //A streamed body for an HTTP/1.0 client ends when the connection closes.
+		}
+		//Most responses fit into the socket buffer so try writing right away.
+		if(!writeResponse()) {
+			waitToWrite();
+			return false;
+		}
+		logAccess();
+		pendingResponse = null;
+		if(!keepAlive) {
+			close();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * writeResponse writes as much of pendingResponse as the socket takes.  Returns true once all of it has reached the socket,
+	 * which over TLS also means that the last encrypted records have left the TlsChannel.
+	 * */
+	private boolean writeResponse() throws IOException {
+		return pendingResponse.writeTo(io) && (tls == null || tls.flush());
+	}
+	
+	/**
+	 * waitToWrite method for a response that could not be written completely.  Usually the socket is full and we wait for OP_WRITE,
+	 * but a streamed body may have nothing ready yet, and then the connection is parked until the body calls us back on the event loop.
+	 * */
+	private void waitToWrite() {
+		if(!pendingResponse.isWaitingForBody() || (tls != null && tls.hasPendingOutput())) {
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		waitingForBody = true;
+		key.interestOps(0);
+		pendingResponse.whenBodyReadable(new Runnable() {
+			public void run() {
+				eventLoop.execute(new Runnable() {
+					public void run() {
+						onBodyReadable();
+					}
+				});
+			}
+		});
+	}
+	
+	private void onBodyReadable() {
+		waitingForBody = false;
+		if(!channel.isOpen()) {
+			return; //The connection was closed in the meantime.
+		}
+		try {
+			onWritable();
+		} catch (IOException e) {
+			close();
+		}
+	}
+	
+	/**
+	 * waitForDynamicHandler parks the connection while a dynamic handler builds its page on the handler pool.
+	 * The event loop goes on with the other connections and we are called back on the event loop thread once the page is ready.
+	 * Further pipelined requests stay in the read buffer until then.
+	 * */
+	private void waitForDynamicHandler(RequestHandler handler) {
+		waitingHandler = handler;
+		key.interestOps(0);
+		handler.dynamicCall.whenComplete(new BiConsumer<DynamicHandler.Result, Throwable>() {
+			public void accept(DynamicHandler.Result page, Throwable error) {
+				eventLoop.execute(new Runnable() {
+					public void run() {
+						onDynamicHandlerDone();
+					}
+				});
+			}
+		});
+	}
+	
+	private void onDynamicHandlerDone() {
+		if(!channel.isOpen()) {
+			return; //The connection was closed while the handler ran.
+		}
+		pendingResponse = waitingHandler.finishDynamic();
+		waitingHandler = null;
+		lastActivity = System.currentTimeMillis();
+		try {
+			if(startWriting()) {
+				processRequests();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+	
+	private void logAccess() {
+		long writtenTime = System.nanoTime();
+		ServerLog.access(remoteAddress, startLine == null ? "-" : startLine, pendingResponse.getHttpCode(), pendingResponse.getBodyLength(), writtenTime - startTime);
+		ServerMetrics.requestCompleted(handler.route, pendingResponse.getHttpCode(), pendingResponse.getTotalLength(),
+				parsedTime - startTime, respondedTime - parsedTime, writtenTime - respondedTime);
+		RequestTrace.requestCompleted(handler, pendingResponse.getHttpCode(), pendingResponse.getTotalLength(), startTime, parsedTime, respondedTime, writtenTime);
+		releaseAdmission();
+	}
+	
+	private void releaseAdmission() {
+		if(admitted) {
+			admitted = false;
+			AdmissionControl.release();
+		}
+	}
+	
+	/**
+	 * isIdle tells the event loop whether the connection has been quiet for longer than the keep-alive idle timeout.
+	 * */
+	boolean isIdle(long now) {
+		//A connection that waits for a dynamic handler, or for the streamed page of one, is not idle.
+		//The handler's timeout makes sure that the wait ends.
+		return waitingHandler == null && !waitingForBody && now - lastActivity > ServerConfig.keepAliveIdleTimeout;
+	}
+	
+	void close() {
+		if(!channel.isOpen()) {
+			return; //Already closed.
+		}
+		ServerMetrics.connectionClosed();
+		releaseAdmission(); //The request was cut short.
+		if(pendingResponse != null) {
+			pendingResponse.close(); //Release the file of a response that was cut short.
+		}
+		key.cancel();
+		try {
+			io.close();
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NioEventLoop class that owns one Selector and services all the connections registered with it.
+ * New connections are handed over from the acceptor thread through a queue and the selector is woken up
+ * so that the channel is registered on the event loop's own thread.
+ * An event loop can also own a listener of its own (see ServerListeners) and accept its connections itself,
+ * so that a connection is served from start to end on the thread that accepted it.
+ * */
+class NioEventLoop implements Runnable {
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	private long lastIdleCheck = System.currentTimeMillis();
+	private final ServerSocketChannel listener; //Null when the connections come from the acceptor thread of NioServer.
+	private final TlsContext tls; //Set when the connections of this loop speak HTTPS.
+	
+	NioEventLoop(TlsContext tls) throws IOException {
+		this(null, tls);
+	}
+	
+	NioEventLoop(ServerSocketChannel listener, TlsContext tls) throws IOException {
+		selector = Selector.open();
+		this.listener = listener;
+		this.tls = tls;
+	}
+	
+	/**
+	 * register method that is called from the acceptor thread to hand a new connection to this event loop.
+	 * */
+	void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+	
+	/**
+	 * execute method that runs a task on the event loop thread, e.g. when a dynamic handler has finished a page.
+	 * Called from other threads; the connections are only ever touched by their event loop.
+	 * */
+	void execute(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+	
+	public void run() {
+		if(listener != null) {
+			try {
+				listener.configureBlocking(false);
+				listener.register(selector, SelectionKey.OP_ACCEPT); //No attachment, which is how we tell its key apart.
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		while(true) {
+			try {
+				//Wake up at least once a second so that idle keep-alive connections get closed.
+				selector.select(1000);
+				registerPendingChannels();
+				runPendingTasks();
+				
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while(selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					if(key.attachment() == null) {
+						if(key.isValid() && key.isAcceptable()) {
+							acceptConnections();
+						}
+						continue;
+					}
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if(key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+						if(key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					} catch (IOException e) {
+						//The client went away or the socket broke.  Either way we are done with this connection.
+						connection.close();
+					}
+				}
+				closeIdleConnections();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * closeIdleConnections method that closes connections that have been waiting for their next request for too long.
+	 * We only look at all the connections once a second so the cost does not show up on every trip around the loop.
+	 * */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		if(now - lastIdleCheck < 1000) {
+			return;
+		}
+		lastIdleCheck = now;
+		for(SelectionKey key : selector.keys()) {
+			NioConnection connection = (NioConnection) key.attachment();
+			if(connection != null && key.isValid() && connection.isIdle(now)) {
+				connection.close();
+			}
+		}
+	}
+	
+	/**
+	 * acceptConnections method that accepts everything that is waiting on our own listener.
+	 * A failed accept (e.g. out of file descriptors) is printed and tried again the next time the listener is ready.
+	 * */
+	private void acceptConnections() {
+		while(true) {
+			SocketChannel channel;
+			try {
+				channel = listener.accept();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if(channel == null) {
+				return;
+			}
+			registerChannel(channel);
+		}
+	}
+	
+	private void runPendingTasks() {
+		Runnable task;
+		while((task = pendingTasks.poll()) != null) {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Register the channels that the acceptor handed over since the last time around the loop.
+	 * */
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while((channel = pendingChannels.poll()) != null) {
+			registerChannel(channel);
+		}
+	}
+	
+	private void registerChannel(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new NioConnection(channel, key, this, tls));
+		} catch (ClosedChannelException e) {
+			//Client hung up before we got around to it.
+		} catch (IOException e) {
+			e.printStackTrace();
+			try {
+				channel.close();
+			} catch (IOException closeException) {}
+		}
+	}
+}
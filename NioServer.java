@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * NioServer class that serves requests without dedicating a thread to each connection.
+ * One acceptor thread accepts connections and hands them out round robin to a small number of NioEventLoop threads.
+ * Each event loop uses a Selector to read requests and write responses without blocking,
+ * so a few threads can hold a very large number of mostly idle clients.
+ * The requests themselves are answered by the same RequestHandler that the blocking WebPageWorker uses.
+ * 
+ * With -Dserver.listeners=N (N > 1) and SO_REUSEPORT there is no acceptor thread: each of the N event loops
+ * has its own listener on the port and accepts its own connections, so nothing is shared between the loops
+ * on the way from accept() to the response.  Without SO_REUSEPORT the single acceptor feeds N event loops instead.
+ * 
+ * The HTTPS listener is a NioServer of its own on -Dserver.tls.port, whose connections go through a TlsChannel.
+ * */
+class NioServer {
+	private final ServerSocketChannel[] listeners;
+	private final NioEventLoop[] eventLoops;
+	private final String threadName;
+	
+	NioServer(int port, int eventLoopCount, int listenerCount) throws IOException {
+		this(port, eventLoopCount, listenerCount, null);
+	}
+	
+	/**
+	 * Constructor for a listener whose connections speak HTTPS with the given TlsContext, or plain HTTP if it is null.
+	 * */
+	NioServer(int port, int eventLoopCount, int listenerCount, TlsContext tls) throws IOException {
+		threadName = tls == null ? "nio-event-loop-" : "tls-event-loop-";
+		listeners = ServerListeners.open(port, listenerCount);
+		if(listeners.length > 1) {
+			//One event loop per listener, each accepting on its own socket.
+			eventLoops = new NioEventLoop[listeners.length];
+			for(int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new NioEventLoop(listeners[i], tls);
+			}
+		}
+		else {
+			eventLoops = new NioEventLoop[Math.max(1, listenerCount > 1 ? listenerCount : eventLoopCount)];
+			for(int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new NioEventLoop(tls);
+			}
+		}
+	}
+	
+	int getEventLoopCount() {
+		return eventLoops.length;
+	}
+	
+	int getListenerCount() {
+		return listeners.length;
+	}
+	
+	/**
+	 * run method that starts the event loop threads and then, if the loops do not accept for themselves,
+	 * accepts connections forever on the calling thread.
+	 * */
+	void run() throws IOException {
+		for(int i = 0; i < eventLoops.length; i++) {
+			Thread loopThread = new Thread(eventLoops[i], threadName + (i + 1));
+			loopThread.start();
+		}
+		if(listeners.length > 1) {
+			return; //The event loop threads keep the server running.
+		}
+		
+		ServerSocketChannel serverChannel = listeners[0];
+		int nextLoop = 0;
+		while(true) {
+			//The acceptor blocks in accept() and the event loops never do.
+			SocketChannel newConnection = serverChannel.accept();
+			eventLoops[nextLoop].register(newConnection);
+			nextLoop = (nextLoop + 1) % eventLoops.length;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PathResolver class that maps a request URL to a file or folder under the working directory (the document root).
+ * 
+ * 1. The URL path is normalized lexically: empty and "." segments are dropped and ".." removes the segment before it.
+ *    A ".." that would climb above the root makes the URL resolve to nothing, without asking the file system.
+ * 2. The real path of the document root is computed once.
+ * 3. Resolutions (folder, file or missing, together with size, modification time and real path) are cached per URL
+ *    and trusted for -Dserver.resolver.ttlMillis, so a popular URL does not cost any system calls in between.
+ * 4. No file outside the root is ever served.  Every resolution checks that the real path of the target is inside the root
+ *    (so a symbolic link that points outside is refused).  With -Dserver.symlinks=deny a path that goes through
+ *    any symbolic link at all is refused, even if it stays inside the root.
+ * 5. With -Dserver.index=true the DocumentIndex answers instead, from memory, and only URLs that it does not index
+ *    (at or below symbolic links) are resolved on disk and cached as above.
+ * */
+class PathResolver {
+	//Kinds of resolutions.
+	static final int missing = 0;
+	static final int file = 1;
+	static final int folder = 2;
+	
+	private static final ConcurrentHashMap<String, Resolution> resolutions = new ConcurrentHashMap<String, Resolution>();
+	static final Resolution notFound = new Resolution(missing, null, 0, 0, 0);
+	
+	private static volatile Path documentRoot; //Real path of the working directory, see getDocumentRoot.
+	private static volatile DocumentIndex index; //Null unless the document root is indexed, see useIndex.
+	
+	/**
+	 * resolve method that returns the resolution of a request URL such as "/sub/cat.html".
+	 * Missing files get a resolution too (of kind missing) so that repeated requests for them are cheap as well.
+	 * */
+	static Resolution resolve(String requestUrl) {
+		DocumentIndex currentIndex = index;
+		if(currentIndex != null) {
+			String relativePath = normalize(requestUrl);
+			if(relativePath == null) {
+				return notFound;
+			}
+			Resolution indexed = currentIndex.lookup(relativePath);
+			if(indexed != null) {
+				return indexed; //The index is kept up to date by its watcher, so this is never cached here.
+			}
+		}
+		long now = System.currentTimeMillis();
+		Resolution resolution = resolutions.get(requestUrl);
+		if(resolution != null && now - resolution.resolvedAt < ServerConfig.resolverTtlMillis) {
+			return resolution;
+		}
+		
+		String relativePath = normalize(requestUrl);
+		if(relativePath == null) {
+			return notFound; //Climbs above the root.  This never changes so it is not worth caching.
+		}
+		resolution = resolveOnDisk(relativePath, now);
+		if(resolutions.size() >= ServerConfig.resolverMaxEntries) {
+			//Make room by dropping some entry.  The map has no order so this is close to random eviction, which is good enough here.
+			Iterator<String> keys = resolutions.keySet().iterator();
+			if(keys.hasNext()) {
+				keys.next();
+				keys.remove();
+			}
+		}
+		resolutions.put(requestUrl, resolution);
+		return resolution;
+	}
+	
+	/**
+	 * normalize method that turns a URL path into a path relative to the root, e.g. "/a/./b/../c.html" into "a/c.html".
+	 * Returns null if the path climbs above the root.
+	 * */
+	static String normalize(String requestUrl) {
+		String[] segments = requestUrl.split("/");
+		String[] kept = new String[segments.length];
+		int depth = 0;
+		for(String segment : segments) {
+			if(segment.isEmpty() || segment.equals(".")) {
+				continue;
+			}
+			if(segment.equals("..")) {
+				if(depth == 0) {
+					return null;
+				}
+				depth--;
+				continue;
+			}
+			kept[depth++] = segment;
+		}
+		StringBuilder relativePath = new StringBuilder(requestUrl.length());
+		for(int i = 0; i < depth; i++) {
+			if(i > 0) {
+				relativePath.append('/');
+			}
+			relativePath.append(kept[i]);
+		}
+		return relativePath.toString();
+	}
+	
+	/**
+	 * resolveOnDisk reads the attributes and the real path of a path under the root and checks that it stays inside the root.
+	 * */
+	private static Resolution resolveOnDisk(String relativePath, long now) {
+		try {
+			Path root = getDocumentRoot();
+			Path path = relativePath.isEmpty() ? root : root.resolve(relativePath);
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			Path realPath = path.toRealPath();
+			if(!realPath.startsWith(root) || (ServerConfig.denySymlinks && !realPath.equals(path))) {
+				//Leads outside the root, or goes through a symbolic link that we were told not to follow.
+				if(ServerLog.debugEnabled) {
+					ServerLog.debug("Refusing to serve " + path + " which resolves to " + realPath + "\n");
+				}
+				return new Resolution(missing, null, 0, 0, now);
+			}
+			int kind = attributes.isDirectory() ? folder : file;
+			return new Resolution(kind, realPath, attributes.size(), attributes.lastModifiedTime().toMillis(), now);
+		} catch (IOException e) {
+			//Does not exist or cannot be read.
+			return new Resolution(missing, null, 0, 0, now);
+		} catch (InvalidPathException e) {
+			//For example a URL with a NUL character in it.
+			return new Resolution(missing, null, 0, 0, now);
+		}
+	}
+	
+	/**
+	 * getDocumentRoot returns the real path of the working directory, resolved on first use.
+	 * */
+	static Path getDocumentRoot() throws IOException {
+		Path root = documentRoot;
+		if(root == null) {
+			root = MyWebServer.workingDirectory.toPath().toRealPath();
+			documentRoot = root;
+		}
+		return root;
+	}
+	
+	/**
+	 * useIndex method that makes resolve answer from the index of the document root (see MyWebServer).
+	 * */
+	static void useIndex(DocumentIndex documentIndex) {
+		index = documentIndex;
+	}
+	
+	static int getEntryCount() {
+		return resolutions.size();
+	}
+	
+	/**
+	 * Resolution class that holds what a URL resolved to.  realPath is the file or folder with all symbolic links resolved
+	 * (null when missing).  Files are opened through it, so a link that is changed after the check cannot lead outside the root.
+	 * */
+	static class Resolution {
+		final int kind;
+		final Path realPath;
+		final long size;
+		final long lastModified;
+		final long resolvedAt;
+		
+		Resolution(int kind, Path realPath, long size, long lastModified, long resolvedAt) {
+			this.kind = kind;
+			this.realPath = realPath;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.resolvedAt = resolvedAt;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * RangeRequest class that handles the "Range" and "If-Range" request headers for files so that clients can resume downloads
+ * or fetch parts of a large file in parallel.
+ * 
+ * 1. One range is answered with 206 Partial Content and a Content-Range header.
+ * 2. Several ranges are answered with 206 and a multipart/byteranges body.
+ * 3. Ranges that do not overlap the file at all are answered with 416 Range Not Satisfiable.
+ * 4. A Range header we do not understand is ignored and the whole file is sent, as HTTP allows.
+ * 5. If-Range with an entity tag or a date only honours the Range header if the file did not change.
+ * 
+ * The parts are slices of the cached content or positional regions of the file,
+ * so a range never makes us read (or send) any other part of the file.
+ * */
+class RangeRequest {
+	static final int partialContent = 206;
+	static final int rangeNotSatisfiable = 416;
+	
+	//More ranges than this in one request are ignored (we send the whole file) so that a client cannot make us build huge responses.
+	static final int maxRanges = 16;
+	
+	//Boundary between the parts of a multipart/byteranges body.  Random so that it is very unlikely to show up inside a file.
+	private static final String multipartBoundary = "MyWebServer" + Long.toHexString(new SecureRandom().nextLong());
+	private static final String multipartContentType = "multipart/byteranges; boundary=" + multipartBoundary;
+	
+	/**
+	 * parse method that turns a header such as "bytes=0-499, 1000-, -200" into a sorted list of {first, last} byte positions
+	 * (both inclusive) within a file of fileLength bytes.  Overlapping and touching ranges are merged.
+	 * 
+	 * Returns null if the header is not a byte range header we understand (the caller then ignores it)
+	 * and an empty list if none of the ranges overlap the file (the caller then answers 416).
+	 * */
+	static List<long[]> parse(String rangeHeader, long fileLength) {
+		String header = rangeHeader.trim();
+		if(!header.toLowerCase(Locale.US).startsWith("bytes=")) {
+			return null;
+		}
+		String[] rangeSpecs = header.substring("bytes=".length()).split(",");
+		if(rangeSpecs.length > maxRanges) {
+			return null;
+		}
+		
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		for(String rangeSpec : rangeSpecs) {
+			rangeSpec = rangeSpec.trim();
+			int dash = rangeSpec.indexOf('-');
+			if(dash < 0) {
+				return null;
+			}
+			try {
+				long first;
+				long last;
+				if(dash == 0) {
+					//"-200" means the last 200 bytes of the file.
+					long suffixLength = Long.parseLong(rangeSpec.substring(1));
+					if(suffixLength <= 0) {
+						continue; //Asks for no bytes at all so it is not satisfiable.
+					}
+					first = Math.max(0, fileLength - suffixLength);
+					last = fileLength - 1;
+				}
+				else {
+					first = Long.parseLong(rangeSpec.substring(0, dash));
+					String lastText = rangeSpec.substring(dash + 1);
+					last = lastText.isEmpty() ? fileLength - 1 : Math.min(Long.parseLong(lastText), fileLength - 1);
+					if(!lastText.isEmpty() && Long.parseLong(lastText) < first) {
+						return null; //"500-100" is not a valid range so the whole header is ignored.
+					}
+				}
+				if(first < 0) {
+					return null;
+				}
+				if(first < fileLength && first <= last) {
+					ranges.add(new long[] {first, last});
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return mergeRanges(ranges);
+	}
+	
+	/**
+	 * Sort the ranges and merge the ones that overlap or touch so that no byte is sent twice.
+	 * */
+	private static List<long[]> mergeRanges(ArrayList<long[]> ranges) {
+		Collections.sort(ranges, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		ArrayList<long[]> merged = new ArrayList<long[]>();
+		for(long[] range : ranges) {
+			long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if(previous != null && range[0] <= previous[1] + 1) {
+				previous[1] = Math.max(previous[1], range[1]);
+			}
+			else {
+				merged.add(range);
+			}
+		}
+		return merged;
+	}
+	
+	/**
+	 * ifRangeMatches method that checks the If-Range header, which makes the Range header conditional:
+	 * the client only wants the parts if the file has not changed since it got the first part.
+	 * The header holds either the entity tag or the Last-Modified date it was given.
+	 * Returns true if the Range header should be honoured.
+	 * */
+	static boolean ifRangeMatches(String ifRange, ConditionalRequest.Validators validators) {
+		if(ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if(ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			//If-Range needs the strong comparison, so a weak tag never matches.
+			return ifRange.equals(validators.etag);
+		}
+		long ifRangeDate = HTTPConstructor.parseHttpDate(ifRange);
+		//HTTP dates only have whole seconds.
+		return ifRangeDate >= 0 && ifRangeDate == (validators.lastModified / 1000) * 1000;
+	}
+	
+	/**
+	 * respond method that builds the 206 (or 416) response for the ranges returned by parse.
+	 * The body comes from cachedContent if the file is cached and from the file channel otherwise.
+	 * The response takes over the file channel (it is closed right away for 416).
+	 * */
+	static HttpResponse respond(ResponseHeaderBuilder headerBuilder, String httpVersion, boolean keepAlive, String contentType,
+			List<long[]> ranges, long fileLength, ByteBuffer cachedContent, FileChannel file, ConditionalRequest.Validators validators) {
+		if(ranges.isEmpty()) {
+			if(file != null) {
+				try {
+					file.close();
+				} catch (java.io.IOException e) {}
+			}
+			ByteBuffer header = HTTPConstructor.startHttpHeader(headerBuilder, httpVersion, rangeNotSatisfiable, contentType, 0, keepAlive)
+					.header("Content-Range", "bytes */" + fileLength).end();
+			return HttpResponse.forHeaderOnly(rangeNotSatisfiable, header);
+		}
+		
+		if(ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			long rangeLength = range[1] - range[0] + 1;
+			HTTPConstructor.startHttpHeader(headerBuilder, httpVersion, partialContent, contentType, rangeLength, keepAlive).acceptRanges();
+			ByteBuffer header = validators.addTo(headerBuilder)
+					.header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + fileLength).end();
+			ArrayList<HttpResponse.Segment> segments = new ArrayList<HttpResponse.Segment>(1);
+			segments.add(getPart(range, cachedContent));
+			return HttpResponse.forSegments(partialContent, header, segments, file);
+		}
+		
+		//Several ranges: every part gets its own little header and the parts are separated by the boundary.
+		ArrayList<HttpResponse.Segment> segments = new ArrayList<HttpResponse.Segment>(ranges.size() * 2 + 1);
+		long contentLength = 0;
+		for(long[] range : ranges) {
+			String partHeader = "\r\n--" + multipartBoundary + "\r\n"
+					+ "Content-Type: " + contentType + "\r\n"
+					+ "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + fileLength + "\r\n\r\n";
+			HttpResponse.Segment partHeaderSegment = HttpResponse.Segment.ofBuffer(ByteBuffer.wrap(partHeader.getBytes(StandardCharsets.US_ASCII)));
+			HttpResponse.Segment part = getPart(range, cachedContent);
+			segments.add(partHeaderSegment);
+			segments.add(part);
+			contentLength += partHeaderSegment.length() + part.length();
+		}
+		HttpResponse.Segment closingBoundary = HttpResponse.Segment.ofBuffer(
+				ByteBuffer.wrap(("\r\n--" + multipartBoundary + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+		segments.add(closingBoundary);
+		contentLength += closingBoundary.length();
+		
+		HTTPConstructor.startHttpHeader(headerBuilder, httpVersion, partialContent, multipartContentType, contentLength, keepAlive).acceptRanges();
+		ByteBuffer header = validators.addTo(headerBuilder).end();
+		return HttpResponse.forSegments(partialContent, header, segments, file);
+	}
+	
+	/**
+	 * getPart returns the bytes of one range: a slice of the cached content or a region of the file.
+	 * */
+	private static HttpResponse.Segment getPart(long[] range, ByteBuffer cachedContent) {
+		if(cachedContent != null) {
+			ByteBuffer slice = cachedContent.duplicate();
+			slice.limit((int) range[1] + 1);
+			slice.position((int) range[0]);
+			return HttpResponse.Segment.ofBuffer(slice);
+		}
+		return HttpResponse.Segment.ofFile(range[0], range[1] - range[0] + 1);
+	}
+}
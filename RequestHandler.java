@@ -0,0 +1,546 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * RequestHandler class that turns a request into an HTTP response.
+ * The handlers used to live in WebPageWorker.  They were moved here so that the blocking WebPageWorker
+ * and the non-blocking NioServer event loops can both run the same file, folder, CGI and 404 handlers.
+ * */
+class RequestHandler {
+	//Http status codes.  The reason phrases are kept in the httpStatusMessages table in HTTPConstructor class
+	static final int httpOK = 200;  
+	static final int fileNotFound = 404;
+	//Generated pages are encoded as UTF-8 and say so, instead of depending on the platform charset.
+	static final String generatedHtmlType = "text/html; charset=UTF-8";
+	//The 404 page never changes so it is encoded once.
+	private static final byte[] notFoundContent = HTTPConstructor.getHTTPNotFoundMessage().getBytes(StandardCharsets.UTF_8);
+	HashMap<String, String> requestParams; //Request parameter hashmap initialized after parsing the start line of the request
+	RequestHeaders requestHeaders; //Request headers with lower case header names, e.g. "connection" -> "keep-alive"
+	boolean keepAlive = false; //Set by the caller when the connection stays open after this response.
+	ResponseHeaderBuilder headerBuilder; //Reusable header encoder that belongs to the connection.
+	PathResolver.Resolution resolution; //What the request URL resolved to, set by respond before a file or folder handler runs.
+	InetAddress clientAddress; //Set by the caller.  Needed to decide whether the client may see the status page and passed to dynamic handlers.
+	boolean asynchronous = false; //Set by callers that can go on with other work while a dynamic handler runs (the NIO event loops).
+	CompletableFuture<DynamicHandler.Result> dynamicCall; //The page of a dynamic handler, set while handleDynamic waits for it.
+	int route = ServerMetrics.routeNotFound; //Which handler answered the request, for the metrics.
+	long resolveNanos; //Time spent finding the file or folder (PathResolver or the site bundle), for RequestTrace.
+	long readNanos; //Time spent getting the body from the content cache, the listing cache or the disk, for RequestTrace.
+	
+	/**
+	 * Set up the hash map of request parameters and the request headers for use between the helper methods.
+	 * The headerBuilder is the connection's reusable header encoder.
+	 * */
+	RequestHandler(ResponseHeaderBuilder headerBuilder){
+		requestParams = new HashMap<String, String>();
+		requestHeaders = new RequestHeaders();
+		this.headerBuilder = headerBuilder;
+	}
+	
+	/**
+	 * Set up a handler with a header encoder of its own, for callers that do not have a connection.
+	 * */
+	RequestHandler(){
+		this(new ResponseHeaderBuilder());
+	}
+	
+	/**
+	 * useRequest method that takes the request that a RequestParser has read completely.
+	 * The start line goes into the request parameters (e.g. "GET /cat.html HTTP/1.1") and the parser's headers become ours.
+	 * The headers belong to the parser and are only valid until it reads the next request on the connection.
+	 * */
+	void useRequest(RequestParser parser) {
+		requestParams.put("httpRequestType", parser.getMethod());  //Store request type (GET?  POST?) for minor extensibility in the future
+		requestParams.put("requestUrl", parser.getRequestUrl()); //The path is percent-decoded so that files with spaces or other characters in their name are found.
+		requestParams.put("httpVersion", parser.getHttpVersion()); //Store the HTTP version being used by the client.
+		requestParams.put("startLine", parser.getStartLine()); //Kept as it was sent for the debug log.
+		requestHeaders = parser.getHeaders();
+	}
+	
+	/**
+	 * useRequest method for requests that did not come through a RequestParser: the streams of an HTTP/2 connection.
+	 * The path must already be percent-decoded.  The response is built as for HTTP/1.1 and Http2Connection
+	 * turns its header into HTTP/2 header fields.
+	 * */
+	void useRequest(String method, String requestUrl, String startLine, RequestHeaders headers) {
+		requestParams.put("httpRequestType", method);
+		requestParams.put("requestUrl", requestUrl);
+		requestParams.put("httpVersion", "HTTP/1.1");
+		requestParams.put("startLine", startLine);
+		requestHeaders = headers;
+	}
+	
+	/**
+	 * wantsKeepAlive method that tells whether the client asked to keep the connection open after this request.
+	 * HTTP/1.1 connections stay open unless the client sends "Connection: close".
+	 * HTTP/1.0 connections are closed unless the client sends "Connection: keep-alive".
+	 * */
+	boolean wantsKeepAlive() {
+		String connection = requestHeaders.get("connection");
+		if(connection != null) {
+			connection = connection.toLowerCase(Locale.US);
+			if(connection.contains("close")) {
+				return false;
+			}
+			if(connection.contains("keep-alive")) {
+				return true;
+			}
+		}
+		return "HTTP/1.1".equals(requestParams.get("httpVersion"));
+	}
+	
+	/**
+	 * hasRequestBody method that tells whether the client sent a body after the header.
+	 * We only serve GET requests and do not read bodies so such connections are closed after the response
+	 * instead of mistaking the body for the next request.
+	 * */
+	boolean hasRequestBody() {
+		String contentLength = requestHeaders.get("content-length");
+		return requestHeaders.containsKey("transfer-encoding") || (contentLength != null && !contentLength.equals("0"));
+	}
+	
+	/**
+	 * respond method that routes the request to the right handler.
+	 * useRequest must have been called first.  The caller writes the returned response to the client.
+	 * */
+	HttpResponse respond() {
+		HttpResponse response = handleRequest();
+		return response == null ? null : forRequestMethod(response);
+	}
+	
+	/**
+	 * forRequestMethod method that leaves the body out of the response to a HEAD request.
+	 * The handlers build the same header as for GET, so the client learns the length (or that the body comes in chunks)
+	 * and a kept alive connection goes on with the next request right after the header.
+	 * */
+	private HttpResponse forRequestMethod(HttpResponse response) {
+		if("HEAD".equals(requestParams.get("httpRequestType"))) {
+			return response.withoutBody();
+		}
+		return response;
+	}
+	
+	/**
+	 * handleRequest method that picks the handler for the request URL and returns its response (null for a dynamic page
+	 * that is not ready yet, see handleDynamic).
+	 * */
+	private HttpResponse handleRequest() {
+		HttpResponse response;
+		if(isStatusRequest(requestParams.get("requestUrl"))) {
+			return handleServerStatus();
+		}
+		if(requestParams.get("requestUrl").endsWith("/favicon.ico")) {
+			/**
+			 * If a favicon is requested, return the 404 page without printing the request or response in the debug log
+			 * This is intended to keep the debug log cleaner
+			 * as it would be cluttered with data from favicon requests otherwise
+			 * In this case, you only see the header for the favicon.ico request and nothing else.
+			 * */
+			response = handleFileNotFound();
+			route = ServerMetrics.routeFavicon;
+			return response;
+		}
+		if(ServerLog.debugEnabled) {
+			ServerLog.debug(requestParams.get("startLine") + "\r\n" + requestHeaders);  //Print the request to the console.
+		}
+		
+		
+		DynamicHandlers.Route dynamicRoute = DynamicHandlers.find(requestParams.get("requestUrl"));
+		SiteBundle bundle = SiteBundle.get(); //The request is answered from this bundle even if a new one is swapped in meanwhile.
+		if(dynamicRoute != null) {
+			//If a dynamic page (like the addnums cgi) is requested, its handler builds it on the handler pool.
+			response = handleDynamic(dynamicRoute);
+			if(response == null) {
+				return null; //The caller is asynchronous and finishes the response with finishDynamic once the page is ready.
+			}
+		}
+		else if(bundle != null) {
+			//In bundle mode the whole site comes from the bundle file and the document root is not looked at.
+			response = handleBundle(bundle);
+		}
+		else {
+			//Prepend "." to the URL to start at working directory for the server and use URL as relative path.
+			String relativeFileFolderName ="."+ requestParams.get("requestUrl");
+			long resolveStart = System.nanoTime();
+			resolution = PathResolver.resolve(requestParams.get("requestUrl"));
+			resolveNanos = System.nanoTime() - resolveStart;
+			if(resolution.kind != PathResolver.missing) {
+				/**Check that the requested resource exists and that it is underneath the working directory
+				 * ".." goes up the directory tree.  Therefore, just because the URL is a relative path from the working directory,
+				 * that does not necessarily mean that the requested resource will be underneath the working directory.
+				 * PathResolver does both checks (and remembers the answer for a moment so that popular URLs are cheap).
+				 * Assuming that everything checks out, store the requested resource as a relative path from the working directory
+				 */
+				requestParams.put("requestedFileFolder", relativeFileFolderName);
+
+				if(resolution.kind == PathResolver.folder) {
+					/**
+					 * In the case that we are dealing with a folder, 
+					 * call the folder helper function*/
+					response = handleFolder();  	
+				}
+				else {
+					/**In the case that we are dealing with a file,
+					 * call the file helper function*/
+					response = handleFile();  
+					
+				}
+			}
+			else {
+				/**
+				 * If none of the above cases apply, call the 404 file not found helper.
+				 * */
+				response = handleFileNotFound();
+			}
+			
+			
+		}
+		if(ServerLog.debugEnabled) {
+			//Print the response to the console prior to printing the response to requester.
+			//Add three extra new lines to format console output a bit more elegantly.
+			ServerLog.debug(response + "\n\n\n");
+		}
+		
+		return response;
+	}
+	
+	
+	/**
+	 * handleFile method that returns the contents of a file.  If the extension is .htm or .html, we make a response with content-type text/html.
+	 * Otherwise, we make response with content type text/plain.
+	 * Small files come from the content cache.  Larger files are not read here: the response holds the open file
+	 * and sends its bytes straight to the socket.  Range requests are handed to RangeRequest.
+	 * Every file response carries an ETag and Last-Modified date, and conditional requests for unchanged files get 304 Not Modified.
+	 * Clients that accept gzip (or brotli) get a compressed variant of text files, see ContentEncoding.
+	 * */
+	private HttpResponse handleFile() {
+		route = ServerMetrics.routeFile;
+		String requestedFile = requestParams.get("requestedFileFolder");
+		String contentType = contentTypeFor(requestedFile);
+		
+		//The size and modification time come from the PathResolver and we answer 304 Not Modified if the client's copy is current,
+		//before the file is opened or read at all.
+		File file = resolution.realPath.toFile();
+		long fileSize = resolution.size;
+		ConditionalRequest.Validators validators = ConditionalRequest.Validators.forFile(requestedFile, fileSize, resolution.lastModified);
+		
+		//Pick the content coding before the conditional check because every variant has an entity tag of its own.
+		//Range requests always get the file as it is, so that the ranges refer to the bytes of the file.
+		String rangeHeader = requestHeaders.get("range");
+		ContentEncoding.Variant variant = null;
+		ConditionalRequest.Validators identityValidators = validators;
+		if(ContentEncoding.isCompressible(requestedFile)) {
+			if(rangeHeader == null) {
+				variant = ContentEncoding.choose(requestHeaders.get("accept-encoding"), requestParams.get("requestUrl"), fileSize, validators.lastModified);
+			}
+			identityValidators = validators.forEncoding(null);
+			validators = variant == null ? identityValidators : validators.forEncoding(variant.encoding);
+		}
+		if(ConditionalRequest.isNotModified(requestHeaders, validators.etag, validators.lastModified)) {
+			return ConditionalRequest.respondNotModified(headerBuilder, requestParams.get("httpVersion"), keepAlive, validators);
+		}
+		
+		long readStart = System.nanoTime();
+		ByteBuffer cachedContent = null;
+		FileChannel fileChannel = null;
+		if(variant != null) {
+			if(variant.precompressedFile != null) {
+				//A precompressed sibling is sent like any other file.
+				cachedContent = FileSystemReader.getCachedContent(variant.precompressedFile);
+				if(cachedContent == null) {
+					fileChannel = FileSystemReader.openFile(variant.precompressedFile);
+				}
+			}
+			else {
+				cachedContent = FileSystemReader.getCompressedContent(file, variant.encoding);
+			}
+			if(cachedContent == null && fileChannel == null) {
+				//The precompressed file went away or the file could not be compressed.  Send the file as it is instead.
+				variant = null;
+				validators = identityValidators;
+			}
+		}
+		
+		//Small files are served from the in-memory content cache.  Otherwise we open the file and send it from disk.
+		if(variant == null) {
+			cachedContent = FileSystemReader.getCachedContent(file);
+			if(cachedContent == null) {
+				fileChannel = FileSystemReader.openFile(file);
+				if(fileChannel == null) {
+					//The file went away or cannot be read.
+					return handleFileNotFound();
+				}
+			}
+		}
+		readNanos = System.nanoTime() - readStart;
+		long fileLength;
+		if(cachedContent != null) {
+			fileLength = cachedContent.remaining();
+		}
+		else {
+			try {
+				fileLength = fileChannel.size();
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					fileChannel.close();
+				} catch (IOException closeException) {}
+				return handleFileNotFound();
+			}
+		}
+		
+		return respondWithFileBody(contentType, validators, cachedContent, fileChannel, fileLength);
+	}
+	
+	/**
+	 * contentTypeFor method that tells the content type of a file by its name.  If the extension is .htm or .html, it is text/html.
+	 * Otherwise it is text/plain.
+	 * */
+	static String contentTypeFor(String fileName) {
+		if(fileName.endsWith(".htm") || fileName.endsWith(".html")) {
+			//If we have a .htm or .html file extension, we will tell the browser that we are sending html.
+			return "text/html";
+		}
+		return "text/plain"; //Default to sending plain text.
+	}
+	
+	/**
+	 * respondWithFileBody method that sends the body of a file (or of a bundle entry) that passed the conditional checks,
+	 * either from memory (cachedContent) or from the open fileChannel.  Range requests only get the ranges they asked for.
+	 * */
+	private HttpResponse respondWithFileBody(String contentType, ConditionalRequest.Validators validators, ByteBuffer cachedContent, FileChannel fileChannel, long fileLength) {
+		//Range requests (resumed or parallel downloads) only get the parts of the file that they asked for.
+		String rangeHeader = requestHeaders.get("range");
+		String method = requestParams.get("httpRequestType");
+		if(rangeHeader != null && ("GET".equals(method) || "HEAD".equals(method))
+				&& RangeRequest.ifRangeMatches(requestHeaders.get("if-range"), validators)) {
+			List<long[]> ranges = RangeRequest.parse(rangeHeader, fileLength);
+			if(ranges != null) {
+				return RangeRequest.respond(headerBuilder, requestParams.get("httpVersion"), keepAlive, contentType, ranges, fileLength, cachedContent, fileChannel, validators);
+			}
+		}
+		
+		//Create the response header from the file size in bytes.
+		HTTPConstructor.startHttpHeader(headerBuilder, requestParams.get("httpVersion"), httpOK, contentType, fileLength, keepAlive).acceptRanges();
+		if(validators.contentEncoding != null) {
+			headerBuilder.header("Content-Encoding", validators.contentEncoding);
+		}
+		ByteBuffer header = validators.addTo(headerBuilder).end();
+		if(cachedContent != null) {
+			return HttpResponse.forBody(httpOK, header, cachedContent);
+		}
+		return HttpResponse.forFile(httpOK, header, fileChannel, 0, fileLength);
+	}
+	
+	/**
+	 * handleBundle method that answers a request for a file or folder from the site bundle (see SiteBundle).
+	 * Everything is looked up in the bundle: the entry, its content type, its ETag and its gzipped copy.
+	 * The body is a slice of the bundle's mapping, so no file is opened, read or closed for it.
+	 * Folders come from the bundle too, with the listing page the packer rendered for them.
+	 * */
+	private HttpResponse handleBundle(SiteBundle bundle) {
+		long resolveStart = System.nanoTime();
+		String relativePath = PathResolver.normalize(requestParams.get("requestUrl"));
+		SiteBundle.Entry entry = relativePath == null ? null : bundle.find(relativePath);
+		resolveNanos = System.nanoTime() - resolveStart;
+		if(entry == null) {
+			return handleFileNotFound();
+		}
+		route = entry.kind == PathResolver.folder ? ServerMetrics.routeFolder : ServerMetrics.routeFile;
+		ConditionalRequest.Validators validators = new ConditionalRequest.Validators(entry.etag, entry.lastModified,
+				ConditionalRequest.getCacheControl(relativePath), null, false);
+		
+		//Like handleFile, range requests always get the body as it is and every variant has an entity tag of its own.
+		ByteBuffer body = null;
+		ByteBuffer gzipped = entry.gzipped();
+		if(gzipped != null) {
+			if(requestHeaders.get("range") == null && ContentEncoding.accepts(requestHeaders.get("accept-encoding"), ContentEncoding.gzip)) {
+				body = gzipped;
+				validators = validators.forEncoding(ContentEncoding.gzip);
+			}
+			else {
+				validators = validators.forEncoding(null);
+			}
+		}
+		if(ConditionalRequest.isNotModified(requestHeaders, validators.etag, validators.lastModified)) {
+			return ConditionalRequest.respondNotModified(headerBuilder, requestParams.get("httpVersion"), keepAlive, validators);
+		}
+		if(body == null) {
+			body = entry.body();
+		}
+		return respondWithFileBody(entry.contentType, validators, body, null, body.remaining());
+	}
+
+	
+	/**
+	 * handleFolder method that gets an HTML folder listing from HTTPConstructor and then asks HTTPConstructor to help build the response.
+	 * The rendered listing comes from the folder listing cache in FileSystemReader.
+	 * Folders that are not cached are streamed while they are read (see FolderListingBody).
+	 * */
+	private HttpResponse handleFolder() {
+		/**The folder is read through the real path that PathResolver found for the requestUrl.
+		 * We assume the requestUrl starts with at least a "/" so for a request to localhost:2540, requestUrl is "/"
+		 * and the folder is the working directory in that case.
+		 */
+		route = ServerMetrics.routeFolder;
+		//The listing is named after the folder that was found rather than the URL as it was sent, e.g. "/a/" for "/a/b/../".
+		//That also keeps the listing cache to one page per folder.
+		String relativePath = PathResolver.normalize(requestParams.get("requestUrl"));
+		String requestUrl = relativePath == null || relativePath.isEmpty() ? "/" : "/" + relativePath + "/";
+		long readStart = System.nanoTime();
+		DirectoryListingCache.Listing listing = FileSystemReader.getFolderListing(resolution.realPath, requestUrl);
+		readNanos = System.nanoTime() - readStart;
+		if(listing == null) {
+			return respondWithStream(httpOK, generatedHtmlType, new FolderListingBody(resolution.realPath, requestUrl));
+		}
+		if(ContentEncoding.shouldCompress(listing.html)) {
+			//The gzipped listing is kept with the cached listing so it is compressed once per change of the folder.
+			boolean compress = ContentEncoding.accepts(requestHeaders.get("accept-encoding"), ContentEncoding.gzip);
+			return respondWithContent(httpOK, generatedHtmlType, compress ? listing.getGzipped() : listing.html, compress ? ContentEncoding.gzip : null);
+		}
+		return respondWithContent(httpOK, generatedHtmlType, listing.html);
+	}
+
+	
+	/**
+	 * isStatusRequest tells whether the URL is the status page, with or without a query (e.g. /server-status?format=json).
+	 * */
+	private static boolean isStatusRequest(String requestUrl) {
+		String statusPath = ServerConfig.statusPath;
+		if(!ServerMetrics.enabled || statusPath.isEmpty() || !requestUrl.startsWith(statusPath)) {
+			return false;
+		}
+		return requestUrl.length() == statusPath.length() || requestUrl.charAt(statusPath.length()) == '?';
+	}
+	
+	/**
+	 * handleServerStatus method that answers the status page with the metrics from ServerMetrics,
+	 * in the Prometheus text format or as JSON for ?format=json.
+	 * Unless the page is opened up in ServerConfig, clients on other machines get a 404 as if it was not there.
+	 * */
+	private HttpResponse handleServerStatus() {
+		if(ServerConfig.statusLocalOnly && (clientAddress == null || !clientAddress.isLoopbackAddress())) {
+			return handleFileNotFound();
+		}
+		route = ServerMetrics.routeStatus;
+		if(requestParams.get("requestUrl").contains("format=json")) {
+			return respondWithContent(httpOK, "application/json", ServerMetrics.toJson().getBytes(StandardCharsets.UTF_8));
+		}
+		return respondWithContent(httpOK, "text/plain; version=0.0.4; charset=utf-8", ServerMetrics.toPrometheus().getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * handleFileFound method that constructs the HTTP response for 404 file not found.
+	 * */
+	private HttpResponse handleFileNotFound() {
+		route = ServerMetrics.routeNotFound;
+		//Use the pre-encoded Not Found message and then construct the response with httpCode = fileNotFound
+		return respondWithContent(fileNotFound, generatedHtmlType, notFoundContent);
+	}
+	
+	/**
+	 * handleBadRequest method that answers a request that the RequestParser could not read, with 400, 414 or 431.
+	 * We cannot trust anything the client sent, so the answer is HTTP/1.1 and the connection is closed afterwards.
+	 * */
+	HttpResponse handleBadRequest(int httpCode) {
+		route = ServerMetrics.routeBadRequest;
+		requestParams.put("httpVersion", "HTTP/1.1");
+		keepAlive = false;
+		return respondWithContent(httpCode, generatedHtmlType, HTTPConstructor.getHttpErrorMessage(httpCode).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * respondWithContent method that builds a response around content that was generated in memory
+	 * (folder listings, CGI output and the 404 page).  The header is encoded into the connection's headerBuilder.
+	 * Content that is large enough is gzipped for clients that accept it.
+	 * */
+	private HttpResponse respondWithContent(int httpCode, String contentType, byte[] content) {
+		if(ContentEncoding.shouldCompress(content)) {
+			//Generated content changes with every request so it is compressed here without caching.
+			if(ContentEncoding.accepts(requestHeaders.get("accept-encoding"), ContentEncoding.gzip)) {
+				return respondWithContent(httpCode, contentType, ContentEncoding.gzip(content), ContentEncoding.gzip);
+			}
+			return respondWithContent(httpCode, contentType, content, null);
+		}
+		ByteBuffer header = HTTPConstructor.startHttpHeader(headerBuilder, requestParams.get("httpVersion"), httpCode, contentType, content.length, keepAlive).end();
+		return HttpResponse.forBody(httpCode, header, ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * respondWithContent method for content that may be compressed (contentEncoding is null if it is not).
+	 * The response says that it varies with Accept-Encoding.
+	 * */
+	private HttpResponse respondWithContent(int httpCode, String contentType, byte[] content, String contentEncoding) {
+		HTTPConstructor.startHttpHeader(headerBuilder, requestParams.get("httpVersion"), httpCode, contentType, content.length, keepAlive);
+		if(contentEncoding != null) {
+			headerBuilder.header("Content-Encoding", contentEncoding);
+		}
+		ByteBuffer header = headerBuilder.varyAcceptEncoding().end();
+		return HttpResponse.forBody(httpCode, header, ByteBuffer.wrap(content));
+	}
+	
+	/**
+	 * respondWithStream method that builds a response around a body that is produced while it is sent.
+	 * HTTP/1.1 clients get it in chunks, HTTP/1.0 clients until the connection closes, so such a connection is not kept alive.
+	 * Streamed bodies are always worth compressing for clients that accept gzip, because we cannot know that they will be small.
+	 * */
+	private HttpResponse respondWithStream(int httpCode, String contentType, StreamingBody body) {
+		String httpVersion = requestParams.get("httpVersion");
+		boolean chunked = "HTTP/1.1".equals(httpVersion);
+		if(!chunked) {
+			keepAlive = false;
+		}
+		HTTPConstructor.startStreamingHttpHeader(headerBuilder, httpVersion, httpCode, contentType, keepAlive);
+		if(ServerConfig.compressionEnabled) {
+			if(ContentEncoding.accepts(requestHeaders.get("accept-encoding"), ContentEncoding.gzip)) {
+				headerBuilder.header("Content-Encoding", ContentEncoding.gzip);
+				body = new ContentEncoding.GzipBody(body);
+			}
+			headerBuilder.varyAcceptEncoding();
+		}
+		return HttpResponse.forStream(httpCode, headerBuilder.end(), body, chunked);
+	}
+	
+	/**
+	 * handleDynamic method that has DynamicHandlers run the handler of a dynamic page.
+	 * A blocking caller waits here until the page is ready (or the handler timed out).
+	 * An asynchronous caller gets null back if the page is not ready yet, and calls finishDynamic once dynamicCall is complete.
+	 * The headers belong to the parser, which goes on to the next request in the meantime, so they are copied first.
+	 * */
+	private HttpResponse handleDynamic(DynamicHandlers.Route dynamicRoute) {
+		route = ServerMetrics.routeCgi;
+		dynamicCall = DynamicHandlers.call(dynamicRoute, requestParams.get("requestUrl"), clientAddress);
+		if(asynchronous && !dynamicCall.isDone()) {
+			requestHeaders = requestHeaders.copy();
+			return null;
+		}
+		return dynamicPage();
+	}
+	
+	/**
+	 * finishDynamic method that turns the page of a dynamic handler into the response, once dynamicCall is complete.
+	 * */
+	HttpResponse finishDynamic() {
+		return forRequestMethod(dynamicPage());
+	}
+	
+	/**
+	 * dynamicPage method that builds the response around the page of a dynamic handler.
+	 * A handler that started to stream its page has only written the beginning so far, and the rest follows while it is sent.
+	 * */
+	private HttpResponse dynamicPage() {
+		DynamicHandler.Result page = dynamicCall.join();
+		dynamicCall = null;
+		if(page.stream != null) {
+			return respondWithStream(page.httpCode, page.contentType, page.stream);
+		}
+		return respondWithContent(page.httpCode, page.contentType, page.body);
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * RequestHeaders class that holds the header fields of one request in two small parallel arrays.
+ * Requests rarely have more than a couple of dozen headers, so a linear search is faster than hashing
+ * and the arrays are reused for every request on a connection.
+ * 
+ * Names are stored in lower case because header names are case insensitive.  A header that is sent more than once
+ * is kept as one field with the values joined by ", ", which is how HTTP defines repeated list headers.
+ * The repeated values are collected in a StringBuilder and joined when the field is first read, so that a client
+ * sending the same header thousands of times does not make us copy the growing value for every line.
+ * */
+class RequestHeaders {
+	private String[] names = new String[16];
+	private String[] values = new String[16];
+	private StringBuilder[] repeated = new StringBuilder[16]; //Values of a header sent more than once, not joined into values yet.
+	private int count = 0;
+	private int lines = 0; //Header lines added, counting the repeated ones.
+	
+	/**
+	 * get method that returns the value of a header (the name must be in lower case) or null if the client did not send it.
+	 * */
+	String get(String name) {
+		for(int i = 0; i < count; i++) {
+			if(names[i].equals(name)) {
+				return value(i);
+			}
+		}
+		return null;
+	}
+	
+	private String value(int i) {
+		if(repeated[i] != null) {
+			values[i] = repeated[i].toString();
+			repeated[i] = null;
+		}
+		return values[i];
+	}
+	
+	boolean containsKey(String name) {
+		return get(name) != null;
+	}
+	
+	/**
+	 * add method for a header line.  The name must already be in lower case.
+	 * */
+	void add(String name, String value) {
+		lines++;
+		for(int i = 0; i < count; i++) {
+			if(names[i].equals(name)) {
+				if(repeated[i] == null) {
+					repeated[i] = new StringBuilder(values[i]);
+				}
+				repeated[i].append(", ").append(value);
+				return;
+			}
+		}
+		if(count == names.length) {
+			String[] largerNames = new String[count * 2];
+			String[] largerValues = new String[count * 2];
+			StringBuilder[] largerRepeated = new StringBuilder[count * 2];
+			System.arraycopy(names, 0, largerNames, 0, count);
+			System.arraycopy(values, 0, largerValues, 0, count);
+			System.arraycopy(repeated, 0, largerRepeated, 0, count);
+			names = largerNames;
+			values = largerValues;
+			repeated = largerRepeated;
+		}
+		names[count] = name;
+		values[count] = value;
+		count++;
+	}
+	
+	int size() {
+		return count;
+	}
+	
+	/**
+	 * lineCount returns the number of header lines added, which is more than size() when a header was sent more than once.
+	 * */
+	int lineCount() {
+		return lines;
+	}
+	
+	/**
+	 * copy method for headers that are needed after the parser has moved on to the next request.
+	 * */
+	RequestHeaders copy() {
+		RequestHeaders copy = new RequestHeaders();
+		for(int i = 0; i < count; i++) {
+			copy.add(names[i], value(i));
+		}
+		return copy;
+	}
+	
+	void clear() {
+		for(int i = 0; i < count; i++) {
+			names[i] = null;
+			values[i] = null;
+			repeated[i] = null;
+		}
+		count = 0;
+		lines = 0;
+	}
+	
+	/**
+	 * toString method that writes the headers back out as header lines, for the debug log.
+	 * */
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			text.append(names[i]).append(": ").append(value(i)).append("\r\n");
+		}
+		return text.toString();
+	}
+}
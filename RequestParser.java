@@ -0,0 +1,420 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RequestParser class that reads the start line and header of an HTTP request straight from bytes.
+ * It is a small state machine, so the bytes can arrive in any number of pieces: the blocking WebPageWorker
+ * and the non-blocking NioConnection both hand it whatever they have read and call it again when more arrives.
+ * 
+ * 1. parse consumes bytes from the buffer up to and including the blank line that ends the header.
+ *    Anything after that (the next pipelined request) is left in the buffer.
+ * 2. The request target is split into its path and query.  The path is fully percent-decoded as UTF-8,
+ *    the query is kept as it was sent and decoded per argument by whoever uses it.
+ * 3. Broken requests are answered instead of hanging or throwing: 400 Bad Request for a malformed start line or header,
+ *    414 URI Too Long for an overlong start line and 431 Request Header Fields Too Large for an overlong header.
+ * 
+ * A parser belongs to one connection and is reset for every request.  Its line buffer and header arrays are reused,
+ * so a request mostly only allocates the Strings that the handlers actually look at.
+ * */
+class RequestParser {
+	//Results of parse.  The error results are the HTTP status codes to answer with.
+	static final int needMoreInput = 0;
+	static final int complete = 1;
+	static final int http2Preface = 2; //The client starts with the HTTP/2 preface.  Only returned if http2PrefaceAllowed is set.
+	static final int badRequest = 400;
+	static final int uriTooLong = 414;
+	static final int headerTooLarge = 431;
+	
+	//Parser states.
+	private static final int readingStartLine = 0;
+	private static final int readingHeaders = 1;
+	private static final int done = 2;
+	private static final int readingPreface = 3;
+	
+	//Common header names, so that their lower case names are not allocated again for every request.
+	private static final String[] knownHeaderNames = {
+			"host", "connection", "user-agent", "accept", "accept-encoding", "accept-language", "range", "if-range",
+			"if-none-match", "if-modified-since", "content-length", "transfer-encoding", "cache-control", "pragma",
+			"referer", "cookie", "upgrade", "origin", "dnt", "te", "sec-fetch-mode", "sec-fetch-site", "sec-fetch-dest",
+			"upgrade-insecure-requests"};
+	private static final byte[][] knownHeaderBytes = asciiBytes(knownHeaderNames);
+	
+	//Token characters allowed in methods and header names.
+	private static final boolean[] tokenCharacters = tokenCharacterTable();
+	
+	private final int maxRequestLineBytes;
+	private final int maxHeaderBytes;
+	private final int maxHeaderCount;
+	
+	private byte[] line = new byte[256]; //The line being read.
+	private int lineLength = 0;
+	private int state = readingStartLine;
+	private int headerBytes = 0; //Bytes of this request read so far, including stray empty lines before it.
+	
+	private String method;
+	private String requestUrl;
+	private String httpVersion;
+	private String startLine;
+	private final RequestHeaders headers = new RequestHeaders();
+	private int prefaceLines = 0;
+	
+	//Set by callers that can switch the connection to HTTP/2 (see Http2Connection) before the first request is parsed.
+	boolean http2PrefaceAllowed = false;
+	
+	RequestParser(int maxRequestLineBytes, int maxHeaderBytes, int maxHeaderCount) {
+		this.maxRequestLineBytes = maxRequestLineBytes;
+		this.maxHeaderBytes = maxHeaderBytes;
+		this.maxHeaderCount = maxHeaderCount;
+	}
+	
+	/**
+	 * Creates a parser with the limits from ServerConfig.
+	 * */
+	RequestParser() {
+		this(ServerConfig.maxRequestLineBytes, ServerConfig.maxRequestHeaderBytes, ServerConfig.maxRequestHeaderCount);
+	}
+	
+	/**
+	 * parse method that consumes bytes from a heap buffer (in read mode) and returns needMoreInput until the whole header
+	 * has been read, then complete.  On a broken request it returns the status code to answer with (400, 414 or 431)
+	 * and the connection should be closed after the answer, because we cannot tell where the next request would start.
+	 * */
+	int parse(ByteBuffer input) {
+		byte[] bytes = input.array();
+		int offset = input.arrayOffset();
+		int position = offset + input.position();
+		int limit = offset + input.limit();
+		int result = needMoreInput;
+		
+		while(position < limit && state != done) {
+			byte b = bytes[position++];
+			if(++headerBytes > maxHeaderBytes) {
+				result = state == readingStartLine ? uriTooLong : headerTooLarge;
+				break;
+			}
+			if(b == '\n') {
+				//Lines end with CRLF but we also accept a bare LF like BufferedReader did.
+				int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+				lineLength = 0;
+				if(state == readingStartLine) {
+					result = onStartLine(end);
+				}
+				else {
+					result = state == readingPreface ? onPrefaceLine(end) : onHeaderLine(end);
+				}
+				if(result != needMoreInput) {
+					break;
+				}
+				continue;
+			}
+			if(state == readingStartLine && lineLength >= maxRequestLineBytes) {
+				result = uriTooLong;
+				break;
+			}
+			if(lineLength == line.length) {
+				byte[] longerLine = new byte[line.length * 2];
+				System.arraycopy(line, 0, longerLine, 0, lineLength);
+				line = longerLine;
+			}
+			line[lineLength++] = b;
+		}
+		input.position(position - offset);
+		return result;
+	}
+	
+	/**
+	 * onStartLine parses a start line such as "GET /cat%20pictures/cat.html?size=big HTTP/1.1".
+	 * Empty lines before the start line are skipped, as HTTP allows.
+	 * */
+	private int onStartLine(int end) {
+		if(end == 0) {
+			return needMoreInput;
+		}
+		startLine = new String(line, 0, end, StandardCharsets.ISO_8859_1);
+		if(http2PrefaceAllowed && startLine.equals("PRI * HTTP/2.0")) {
+			state = readingPreface;
+			prefaceLines = 0;
+			return needMoreInput;
+		}
+		int firstSpace = indexOf(line, ' ', 0, end);
+		int secondSpace = firstSpace < 0 ? -1 : indexOf(line, ' ', firstSpace + 1, end);
+		if(firstSpace <= 0 || secondSpace < 0 || indexOf(line, ' ', secondSpace + 1, end) >= 0) {
+			return badRequest; //Not exactly three parts.
+		}
+		for(int i = 0; i < firstSpace; i++) {
+			if(!isTokenCharacter(line[i])) {
+				return badRequest;
+			}
+		}
+		httpVersion = parseVersion(secondSpace + 1, end);
+		if(httpVersion == null) {
+			return badRequest;
+		}
+		method = parseMethod(firstSpace);
+		
+		String target = new String(line, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+		if(!target.startsWith("/")) {
+			//Absolute form "http://host/path" as sent to proxies.  We only need the path.
+			int scheme = target.indexOf("://");
+			if(scheme < 0) {
+				return badRequest;
+			}
+			int pathStart = target.indexOf('/', scheme + 3);
+			target = pathStart < 0 ? "/" : target.substring(pathStart);
+		}
+		int question = target.indexOf('?');
+		String path = percentDecode(question < 0 ? target : target.substring(0, question), false);
+		if(path == null) {
+			return badRequest;
+		}
+		requestUrl = question < 0 ? path : path + target.substring(question);
+		state = readingHeaders;
+		return needMoreInput;
+	}
+	
+	/**
+	 * onPrefaceLine checks the rest of the HTTP/2 preface "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n": an empty line, "SM" and another empty line.
+	 * */
+	private int onPrefaceLine(int end) {
+		boolean expected = prefaceLines == 1 ? end == 2 && line[0] == 'S' && line[1] == 'M' : end == 0;
+		if(!expected) {
+			return badRequest;
+		}
+		if(++prefaceLines == 3) {
+			state = done;
+			return http2Preface;
+		}
+		return needMoreInput;
+	}
+	
+	/**
+	 * onHeaderLine parses a header line such as "Accept-Encoding: gzip, br".  The blank line completes the request.
+	 * */
+	private int onHeaderLine(int end) {
+		if(end == 0) {
+			state = done;
+			return complete;
+		}
+		if(line[0] == ' ' || line[0] == '\t') {
+			return badRequest; //Folded header lines are obsolete and HTTP lets us refuse them.
+		}
+		int colon = indexOf(line, ':', 0, end);
+		if(colon <= 0) {
+			return badRequest;
+		}
+		for(int i = 0; i < colon; i++) {
+			if(!isTokenCharacter(line[i])) {
+				return badRequest; //Also catches whitespace between the name and the colon, which HTTP forbids.
+			}
+		}
+		if(headers.lineCount() >= maxHeaderCount) { //Every line counts, also a header that was sent before.
+			return headerTooLarge;
+		}
+		int valueStart = colon + 1;
+		int valueEnd = end;
+		while(valueStart < valueEnd && (line[valueStart] == ' ' || line[valueStart] == '\t')) {
+			valueStart++;
+		}
+		while(valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t')) {
+			valueEnd--;
+		}
+		headers.add(headerName(colon), new String(line, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1));
+		return needMoreInput;
+	}
+	
+	/**
+	 * headerName returns the lower case name of the header in the line, using the shared String for common headers.
+	 * */
+	private String headerName(int length) {
+		for(int i = 0; i < knownHeaderBytes.length; i++) {
+			byte[] known = knownHeaderBytes[i];
+			if(known.length == length && equalsIgnoreCase(known, length)) {
+				return knownHeaderNames[i];
+			}
+		}
+		char[] name = new char[length];
+		for(int i = 0; i < length; i++) {
+			name[i] = (char) toLowerCase(line[i]);
+		}
+		return new String(name);
+	}
+	
+	private boolean equalsIgnoreCase(byte[] lowerCaseName, int length) {
+		for(int i = 0; i < length; i++) {
+			if(toLowerCase(line[i]) != lowerCaseName[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * parseMethod returns the request method, without allocating for the usual ones.
+	 * */
+	private String parseMethod(int length) {
+		if(length == 3 && line[0] == 'G' && line[1] == 'E' && line[2] == 'T') {
+			return "GET";
+		}
+		if(length == 4 && line[0] == 'H' && line[1] == 'E' && line[2] == 'A' && line[3] == 'D') {
+			return "HEAD";
+		}
+		if(length == 4 && line[0] == 'P' && line[1] == 'O' && line[2] == 'S' && line[3] == 'T') {
+			return "POST";
+		}
+		return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * parseVersion checks that the version looks like "HTTP/1.1" and returns it, or null if it does not.
+	 * */
+	private String parseVersion(int start, int end) {
+		if(end - start != 8 || line[start] != 'H' || line[start + 1] != 'T' || line[start + 2] != 'T' || line[start + 3] != 'P'
+				|| line[start + 4] != '/' || !isDigit(line[start + 5]) || line[start + 6] != '.' || !isDigit(line[start + 7])) {
+			return null;
+		}
+		if(line[start + 5] == '1' && line[start + 7] == '1') {
+			return "HTTP/1.1";
+		}
+		if(line[start + 5] == '1' && line[start + 7] == '0') {
+			return "HTTP/1.0";
+		}
+		return new String(line, start, 8, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * percentDecode method that decodes %XX escapes (and "+" as a space if plusAsSpace is set, as in query arguments).
+	 * The decoded bytes are read as UTF-8.  Returns null for a broken escape, invalid UTF-8 or an escaped NUL character.
+	 * */
+	static String percentDecode(String text, boolean plusAsSpace) {
+		boolean plain = true;
+		for(int i = 0; i < text.length() && plain; i++) {
+			char c = text.charAt(i);
+			plain = c != '%' && c < 0x80 && !(plusAsSpace && c == '+');
+		}
+		if(plain) {
+			return text;
+		}
+		byte[] decoded = new byte[text.length()];
+		int length = 0;
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == '%') {
+				if(i + 2 >= text.length()) {
+					return null;
+				}
+				int high = Character.digit(text.charAt(i + 1), 16);
+				int low = Character.digit(text.charAt(i + 2), 16);
+				if(high < 0 || low < 0 || (high == 0 && low == 0)) {
+					return null;
+				}
+				decoded[length++] = (byte) (high * 16 + low);
+				i += 2;
+			}
+			else if(plusAsSpace && c == '+') {
+				decoded[length++] = ' ';
+			}
+			else {
+				decoded[length++] = (byte) c; //The target was read as ISO-8859-1 so this gives back the byte that was sent.
+			}
+		}
+		try {
+			CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(decoded, 0, length));
+			return chars.toString();
+		} catch (CharacterCodingException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * reset method that gets the parser ready for the next request on the connection.
+	 * */
+	void reset() {
+		state = readingStartLine;
+		lineLength = 0;
+		headerBytes = 0;
+		method = null;
+		requestUrl = null;
+		httpVersion = null;
+		startLine = null;
+		headers.clear();
+	}
+	
+	/**
+	 * hasPartialRequest tells whether some bytes of a request have been read, e.g. when the client closes the connection.
+	 * */
+	boolean hasPartialRequest() {
+		return state != readingStartLine || lineLength > 0;
+	}
+	
+	String getMethod() {
+		return method;
+	}
+	
+	//The percent-decoded path followed by the query as it was sent, e.g. "/cat pictures/cat.html?size=big".
+	String getRequestUrl() {
+		return requestUrl;
+	}
+	
+	String getHttpVersion() {
+		return httpVersion;
+	}
+	
+	//The start line as it was sent, for the access log.  null if it has not been read (or was too long).
+	String getStartLine() {
+		return startLine;
+	}
+	
+	RequestHeaders getHeaders() {
+		return headers;
+	}
+	
+	private static int indexOf(byte[] bytes, char c, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(bytes[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+	
+	private static int toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+	
+	private static boolean isTokenCharacter(byte b) {
+		return b >= 0 && tokenCharacters[b];
+	}
+	
+	private static boolean[] tokenCharacterTable() {
+		boolean[] table = new boolean[128];
+		for(char c = '0'; c <= '9'; c++) {
+			table[c] = true;
+		}
+		for(char c = 'a'; c <= 'z'; c++) {
+			table[c] = true;
+			table[c - 'a' + 'A'] = true;
+		}
+		for(char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+			table[c] = true;
+		}
+		return table;
+	}
+	
+	private static byte[][] asciiBytes(String[] names) {
+		byte[][] bytes = new byte[names.length][];
+		for(int i = 0; i < names.length; i++) {
+			bytes[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+		}
+		return bytes;
+	}
+}
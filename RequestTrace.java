@@ -0,0 +1,61 @@
+/**
+ * RequestTrace class that records slow requests as Java Flight Recorder events, so that a p99 spike can be taken apart
+ * in production without a restart: start a recording with "jcmd <pid> JFR.start duration=5m filename=slow.jfr"
+ * and run "java RequestTraceAnalyzer slow.jfr" on the file.
+ * 
+ * Every request that took at least ServerConfig.traceSlowerThanMillis becomes a webserver.Request event with its path,
+ * the handler that answered it, its status, the bytes sent, the thread that finished it and the time of each phase:
+ * 1. parse = from the first byte of the request to the end of its header (RequestParser).
+ * 2. resolve = finding the file or folder that the URL names (PathResolver, or the site bundle).
+ * 3. read = getting the body from the content cache, the listing cache or the disk (FileSystemReader).
+ *    Large files are not read here but sent from disk while writing.
+ * 4. build = the rest of building the response, i.e. the headers (HTTPConstructor) and dynamic pages.
+ * 5. write = sending the response to the client.
+ * Every single phase that took at least that long also becomes a webserver.Phase event of its own.
+ * 
+ * The events need the jdk.jfr API of Java 11, while the server compiles and runs on Java 8.  So they live in the jfr folder,
+ * which is compiled on its own with a JDK 11 or later (javac -cp . -d . jfr/*.java), and are loaded here by reflection.
+ * Without those classes, without JFR or with -Dserver.trace=false nothing is recorded.  While no recording runs,
+ * finishing a request costs one check of a flag.
+ * */
+class RequestTrace {
+	/**
+	 * Recorder interface that the JFR events implement (see JfrRequestRecorder in the jfr folder).  All times are in nanoseconds.
+	 * */
+	interface Recorder {
+		boolean isRecording();
+		
+		void requestCompleted(String path, String handler, int httpCode, long bytes,
+				long parseNanos, long resolveNanos, long readNanos, long buildNanos, long writeNanos);
+	}
+	
+	private static final Recorder recorder = loadRecorder();
+	
+	private static Recorder loadRecorder() {
+		if(!ServerConfig.traceEnabled) {
+			return null;
+		}
+		try {
+			return (Recorder) Class.forName("JfrRequestRecorder").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			return null; //The jfr folder was not compiled.
+		} catch (LinkageError e) {
+			return null; //The JVM has no jdk.jfr module.
+		}
+	}
+	
+	/**
+	 * requestCompleted method that is called by the connection once a response has been written completely, with the same
+	 * times it gives ServerMetrics.  The handler adds how long resolving the URL and reading the body took.
+	 * */
+	static void requestCompleted(RequestHandler handler, int httpCode, long bytes, long startTime, long parsedTime, long respondedTime, long writtenTime) {
+		Recorder recorder = RequestTrace.recorder;
+		if(recorder == null || !recorder.isRecording()) {
+			return;
+		}
+		String path = handler.requestParams.get("requestUrl");
+		long buildNanos = Math.max(0, respondedTime - parsedTime - handler.resolveNanos - handler.readNanos);
+		recorder.requestCompleted(path == null ? "-" : path, ServerMetrics.routeName(handler.route), httpCode, bytes,
+				parsedTime - startTime, handler.resolveNanos, handler.readNanos, buildNanos, writtenTime - respondedTime);
+	}
+}
@@ -0,0 +1,240 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ResponseHeaderBuilder class that encodes the header of an HTTP response straight into a byte array that is reused
+ * for every response on a connection, so building a header does not create Strings or other garbage.
+ * 
+ * 1. Status lines for HTTP/1.0 and HTTP/1.1 are encoded once from the status table in HTTPConstructor.
+ * 2. Header lines that never change (Server, Connection) are encoded once.
+ * 3. Content-Type lines are encoded the first time a content type is seen and then reused.
+ * 4. The Date line is encoded at most once per second and shared by all threads.
+ * 
+ * A builder belongs to one connection and the header it returns is only valid until the next response is started,
+ * which is fine because a connection finishes writing one response before it starts the next.
+ * */
+class ResponseHeaderBuilder {
+	private static final byte[] headerEndLine = ascii("\r\n");
+	private static final byte[] serverLine = ascii("Server: Apache\r\n");
+	private static final byte[] connectionCloseLine = ascii("Connection: close\r\n");
+	private static final byte[] connectionKeepAliveLine = ascii("Connection: keep-alive\r\n");
+	private static final byte[] acceptRangesLine = ascii("Accept-Ranges: bytes\r\n");
+	private static final byte[] varyAcceptEncodingLine = ascii("Vary: Accept-Encoding\r\n");
+	private static final byte[] transferEncodingChunkedLine = ascii("Transfer-Encoding: chunked\r\n");
+	private static final byte[] contentLengthName = ascii("Content-Length: ");
+	private static final byte[] headerSeparator = ascii(": ");
+	
+	private static final Map<Integer, byte[]> http11StatusLines = encodeStatusLines("HTTP/1.1");
+	private static final Map<Integer, byte[]> http10StatusLines = encodeStatusLines("HTTP/1.0");
+	private static final ConcurrentHashMap<String, byte[]> contentTypeLines = new ConcurrentHashMap<String, byte[]>();
+	
+	private static volatile CachedDateLine cachedDateLine = new CachedDateLine(-1, null);
+	
+	private byte[] buffer = new byte[256];
+	private ByteBuffer view = ByteBuffer.wrap(buffer);
+	private int length = 0;
+	
+	/**
+	 * startLine method that starts a new header with the status line, e.g. "HTTP/1.1 200 OK".
+	 * */
+	ResponseHeaderBuilder startLine(String httpVersion, int httpCode) {
+		length = 0;
+		byte[] statusLine = null;
+		if("HTTP/1.1".equals(httpVersion)) {
+			statusLine = http11StatusLines.get(httpCode);
+		}
+		else if("HTTP/1.0".equals(httpVersion)) {
+			statusLine = http10StatusLines.get(httpCode);
+		}
+		if(statusLine != null) {
+			append(statusLine);
+		}
+		else {
+			//Unusual version or status code so we encode the line the slow way.
+			appendAscii(HTTPConstructor.getHttpResponseStartLine(httpVersion, httpCode));
+		}
+		return this;
+	}
+	
+	ResponseHeaderBuilder date() {
+		append(getDateLine());
+		return this;
+	}
+	
+	ResponseHeaderBuilder server() {
+		append(serverLine);
+		return this;
+	}
+	
+	ResponseHeaderBuilder connection(boolean keepAlive) {
+		append(keepAlive ? connectionKeepAliveLine : connectionCloseLine);
+		return this;
+	}
+	
+	/**
+	 * acceptRanges method that tells the client it may ask for byte ranges of this resource.
+	 * */
+	ResponseHeaderBuilder acceptRanges() {
+		append(acceptRangesLine);
+		return this;
+	}
+	
+	/**
+	 * varyAcceptEncoding method that tells caches that the body depends on the client's Accept-Encoding header.
+	 * */
+	ResponseHeaderBuilder varyAcceptEncoding() {
+		append(varyAcceptEncodingLine);
+		return this;
+	}
+	
+	/**
+	 * transferEncodingChunked method that tells the client the body comes in chunks, each with its size in front (see HttpResponse.forStream).
+	 * */
+	ResponseHeaderBuilder transferEncodingChunked() {
+		append(transferEncodingChunkedLine);
+		return this;
+	}
+	
+	/**
+	 * contentLength method that writes the digits of the length straight into the buffer.
+	 * */
+	ResponseHeaderBuilder contentLength(long contentLength) {
+		append(contentLengthName);
+		appendNumber(contentLength);
+		append(headerEndLine);
+		return this;
+	}
+	
+	ResponseHeaderBuilder contentType(String contentType) {
+		byte[] contentTypeLine = contentTypeLines.get(contentType);
+		if(contentTypeLine == null) {
+			//There are only a handful of content types so this map stays small.
+			contentTypeLine = ascii("Content-Type: " + contentType + "\r\n");
+			contentTypeLines.put(contentType, contentTypeLine);
+		}
+		append(contentTypeLine);
+		return this;
+	}
+	
+	/**
+	 * header method for any other header line.  The name and value must be plain ASCII.
+	 * */
+	ResponseHeaderBuilder header(String name, String value) {
+		appendAscii(name);
+		append(headerSeparator);
+		appendAscii(value);
+		append(headerEndLine);
+		return this;
+	}
+	
+	/**
+	 * header method for a number valued header line such as "Age: 30".
+	 * */
+	ResponseHeaderBuilder header(String name, long value) {
+		appendAscii(name);
+		append(headerSeparator);
+		appendNumber(value);
+		append(headerEndLine);
+		return this;
+	}
+	
+	/**
+	 * end method that adds the blank line that ends the header and returns the header bytes.
+	 * The returned buffer is reused by the next call to startLine.
+	 * */
+	ByteBuffer end() {
+		append(headerEndLine);
+		view.clear();
+		view.limit(length);
+		return view;
+	}
+	
+	/**
+	 * getDateLine returns the encoded "Date: ..." line for the current second.
+	 * Whichever thread first notices that the second changed encodes the new line.  Two threads may do it at the same time
+	 * which is harmless because they produce the same bytes.
+	 * */
+	static byte[] getDateLine() {
+		long currentSecond = System.currentTimeMillis() / 1000;
+		CachedDateLine dateLine = cachedDateLine;
+		if(dateLine.second != currentSecond) {
+			String formattedDate = HTTPConstructor.formatHttpDate(currentSecond * 1000);
+			dateLine = new CachedDateLine(currentSecond, ascii("Date: " + formattedDate + "\r\n"));
+			cachedDateLine = dateLine;
+		}
+		return dateLine.line;
+	}
+	
+	private void append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+	
+	private void appendAscii(String text) {
+		ensureCapacity(text.length());
+		for(int i = 0; i < text.length(); i++) {
+			buffer[length++] = (byte) text.charAt(i);
+		}
+	}
+	
+	private void appendNumber(long number) {
+		ensureCapacity(20);
+		if(number == 0) {
+			buffer[length++] = '0';
+			return;
+		}
+		if(number < 0) {
+			buffer[length++] = '-';
+			number = -number;
+		}
+		int start = length;
+		while(number > 0) {
+			buffer[length++] = (byte) ('0' + (number % 10));
+			number /= 10;
+		}
+		//The digits came out backwards so reverse them in place.
+		for(int i = start, j = length - 1; i < j; i++, j--) {
+			byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+	}
+	
+	private void ensureCapacity(int extraBytes) {
+		if(length + extraBytes > buffer.length) {
+			byte[] largerBuffer = new byte[Math.max(buffer.length * 2, length + extraBytes)];
+			System.arraycopy(buffer, 0, largerBuffer, 0, length);
+			buffer = largerBuffer;
+			view = ByteBuffer.wrap(buffer);
+		}
+	}
+	
+	private static Map<Integer, byte[]> encodeStatusLines(String httpVersion) {
+		HashMap<Integer, byte[]> statusLines = new HashMap<Integer, byte[]>();
+		for(Integer httpCode : HTTPConstructor.httpStatusMessages.keySet()) {
+			statusLines.put(httpCode, ascii(HTTPConstructor.getHttpResponseStartLine(httpVersion, httpCode)));
+		}
+		return statusLines;
+	}
+	
+	private static byte[] ascii(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * The encoded Date line together with the second it was made for.
+	 * */
+	private static class CachedDateLine {
+		final long second;
+		final byte[] line;
+		
+		CachedDateLine(long second, byte[] line) {
+			this.second = second;
+			this.line = line;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ResponseStream class that a dynamic handler writes its page into while the connection sends it (see DynamicHandler.Request.startStream).
+ * It is a pipe with a fixed size buffer (ServerConfig.streamBufferBytes) between the handler thread and the connection:
+ * every write is ready to be sent right away, and a handler that writes faster than the client reads waits in write
+ * until there is room again, so a page of any size only ever takes one buffer of memory.
+ * 
+ * The handler closes the stream when the page is done (DynamicHandlers does it when the handler returns).
+ * If the client goes away, the next write throws an IOException so that the handler stops.
+ * */
+class ResponseStream extends OutputStream implements StreamingBody {
+	private final byte[] ring;
+	private int start = 0; //Position of the first byte that was not read yet.
+	private int count = 0; //Bytes written and not read yet.
+	private boolean finished = false; //Set when the handler closed the stream or failed.
+	private IOException failure; //Why the page broke off, or null if it was finished properly.
+	private boolean discarded = false; //Set when the connection does not want any more bytes.
+	private Runnable readableCallback;
+	
+	ResponseStream(int bufferSize) {
+		ring = new byte[Math.max(1, bufferSize)];
+	}
+	
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+	
+	/**
+	 * write method that adds bytes to the page.  Waits while the buffer is full.
+	 * */
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while(length > 0) {
+			Runnable callback;
+			synchronized(this) {
+				while(count == ring.length && !discarded && !finished) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Interrupted while waiting for the client to read");
+					}
+				}
+				if(discarded) {
+					throw new IOException("The client is gone");
+				}
+				if(finished) {
+					throw new IOException("The stream is closed");
+				}
+				int end = (start + count) % ring.length;
+				int copied = Math.min(length, ring.length - count);
+				int firstPart = Math.min(copied, ring.length - end);
+				System.arraycopy(bytes, offset, ring, end, firstPart);
+				System.arraycopy(bytes, offset + firstPart, ring, 0, copied - firstPart);
+				count += copied;
+				offset += copied;
+				length -= copied;
+				callback = takeCallback();
+			}
+			if(callback != null) {
+				callback.run();
+			}
+		}
+	}
+	
+	/**
+	 * close method that ends the page.  The bytes that are still in the buffer are sent first.
+	 * */
+	public void close() {
+		finish(null);
+	}
+	
+	/**
+	 * fail method that breaks off the page, e.g. when the handler threw an exception or ran out of time.
+	 * The client sees a response that stops short (an unfinished chunked body or a reset HTTP/2 stream) instead of a complete page.
+	 * */
+	void fail(String reason) {
+		finish(new IOException(reason));
+	}
+	
+	private void finish(IOException cause) {
+		Runnable callback;
+		synchronized(this) {
+			if(finished) {
+				return;
+			}
+			finished = true;
+			failure = cause;
+			notifyAll();
+			callback = takeCallback();
+		}
+		if(callback != null) {
+			callback.run();
+		}
+	}
+	
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized(this) {
+			if(count == 0) {
+				if(failure != null) {
+					throw failure;
+				}
+				return finished ? -1 : 0;
+			}
+			int copied = Math.min(dst.remaining(), count);
+			int firstPart = Math.min(copied, ring.length - start);
+			dst.put(ring, start, firstPart);
+			dst.put(ring, 0, copied - firstPart);
+			start = (start + copied) % ring.length;
+			count -= copied;
+			notifyAll(); //There is room for the handler again.
+			return copied;
+		}
+	}
+	
+	public void whenReadable(Runnable callback) {
+		synchronized(this) {
+			if(count == 0 && !finished) {
+				readableCallback = callback;
+				return;
+			}
+		}
+		callback.run();
+	}
+	
+	public synchronized void discard() {
+		discarded = true;
+		readableCallback = null;
+		notifyAll();
+	}
+	
+	/**
+	 * takeCallback hands out the waiting callback once, to be run after the lock is let go.
+	 * */
+	private Runnable takeCallback() {
+		Runnable callback = readableCallback;
+		readableCallback = null;
+		return callback;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * RouteTrie class that finds the dynamic handler route for a request URL in one pass over the path.
+ * 
+ * The registered paths are stored in a tree with one character per level, so finding a route takes one step per character
+ * of the URL however many routes there are, instead of trying every route with startsWith.  Every node can hold
+ * an exact route (the path must end here) and a prefix route (any path that continues from here).
+ * The longest matching route wins, and an exact route wins over a prefix route for the same path.
+ * The query (everything from "?") is not part of the match.
+ * 
+ * The trie is built once from the registered routes and not changed afterwards, so lookups need no locking.
+ * */
+class RouteTrie {
+	private final Node root = new Node();
+	
+	/**
+	 * add method used while the trie is built.  A prefix route for "/api/" matches "/api/" and everything below it.
+	 * */
+	void add(String path, boolean prefix, DynamicHandlers.Route route) {
+		Node node = root;
+		for(int i = 0; i < path.length(); i++) {
+			node = node.childFor(path.charAt(i));
+		}
+		if(prefix) {
+			node.prefixRoute = route;
+		}
+		else {
+			node.exactRoute = route;
+		}
+	}
+	
+	/**
+	 * find method that returns the route for a request URL (path and query) or null if no handler is registered for it.
+	 * */
+	DynamicHandlers.Route find(String requestUrl) {
+		Node node = root;
+		DynamicHandlers.Route longestPrefix = root.prefixRoute;
+		for(int i = 0; i < requestUrl.length(); i++) {
+			char c = requestUrl.charAt(i);
+			if(c == '?') {
+				break;
+			}
+			node = node.child(c);
+			if(node == null) {
+				return longestPrefix;
+			}
+			if(node.prefixRoute != null) {
+				longestPrefix = node.prefixRoute;
+			}
+		}
+		return node.exactRoute != null ? node.exactRoute : longestPrefix;
+	}
+	
+	/**
+	 * Node class for one character of the registered paths.  The children are kept in two small parallel arrays
+	 * because URLs branch very little and a short linear search beats hashing a boxed character.
+	 * */
+	private static class Node {
+		private char[] labels = new char[0];
+		private Node[] children = new Node[0];
+		DynamicHandlers.Route exactRoute;
+		DynamicHandlers.Route prefixRoute;
+		
+		Node child(char c) {
+			for(int i = 0; i < labels.length; i++) {
+				if(labels[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+		
+		Node childFor(char c) {
+			Node child = child(c);
+			if(child == null) {
+				char[] largerLabels = new char[labels.length + 1];
+				Node[] largerChildren = new Node[children.length + 1];
+				System.arraycopy(labels, 0, largerLabels, 0, labels.length);
+				System.arraycopy(children, 0, largerChildren, 0, children.length);
+				child = new Node();
+				largerLabels[labels.length] = c;
+				largerChildren[children.length] = child;
+				labels = largerLabels;
+				children = largerChildren;
+			}
+			return child;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * ServerConfig class that holds the tunable settings of the web server in one place.
+ * Every setting has a default that matches the original behaviour of the server and can be overridden
+ * on the command line with a -D system property, for example:
+ * 
+ * > java -Dserver.executor=virtual -Dserver.workers=64 MyWebServer
+ * */
+class ServerConfig {
+	//Port that the server listens on.
+	static final int portNumber = Integer.getInteger("server.port", 2540);
+	
+	//Folder that is served.  Defaults to the folder the server was started in.
+	static final String documentRoot = System.getProperty("server.root", ".");
+	
+	/**Server mode:
+	 * "blocking" = each connection is handled by a WebPageWorker task on the execution engine below.
+	 * "nio" = non-blocking Selector event loops handle all connections on a few threads (see NioServer).
+	 * */
+	static final String serverMode = System.getProperty("server.mode", "blocking");
+	
+	//Number of event loop threads in nio mode.
+	static final int eventLoops = Integer.getInteger("server.eventLoops", Runtime.getRuntime().availableProcessors());
+	
+	//Maximum number of connections the operating system queues for us before we accept them.
+	static final int acceptBacklog = Integer.getInteger("server.backlog", 50);
+	
+	/**Number of sockets that listen on the port, each with its own accept thread (see ServerListeners).
+	 * With more than one, every socket is opened with SO_REUSEPORT and the kernel spreads new connections over them,
+	 * so the connections of one listener stay with its own event loop (nio mode) or its own worker pool (blocking mode).
+	 * Where SO_REUSEPORT is not available we fall back to one listener that hands connections out to that many event loops.
+	 * */
+	static final int listeners = Math.max(1, Integer.getInteger("server.listeners", 1));
+	
+	//Largest request header (start line plus header lines) that we accept.  Larger headers are answered with 431.
+	static final int maxRequestHeaderBytes = Integer.getInteger("server.maxHeaderBytes", 65536);
+	
+	//Longest request start line that we accept.  Longer ones are answered with 414 URI Too Long.
+	static final int maxRequestLineBytes = Integer.getInteger("server.maxRequestLineBytes", 8192);
+	
+	//Largest number of header lines in one request.  More are answered with 431.
+	static final int maxRequestHeaderCount = Integer.getInteger("server.maxHeaderCount", 100);
+	
+	//Maximum number of requests answered on one persistent (keep-alive) connection before the server closes it.
+	static final int keepAliveMaxRequests = Integer.getInteger("server.keepAlive.maxRequests", 100);
+	
+	//Milliseconds a connection may sit idle waiting for the next request before the server closes it.
+	static final int keepAliveIdleTimeout = Integer.getInteger("server.keepAlive.idleTimeout", 5000);
+	
+	//Whether small files are kept in memory by the StaticContentCache.
+	static final boolean contentCacheEnabled = !"false".equalsIgnoreCase(System.getProperty("server.cache.enabled"));
+	
+	//Total number of file bytes the content cache may hold.
+	static final long contentCacheMaxBytes = Long.getLong("server.cache.maxBytes", 64L * 1024 * 1024);
+	
+	//Files larger than this are never cached and are always sent straight from disk.
+	static final long contentCacheMaxEntryBytes = Long.getLong("server.cache.maxEntryBytes", 1024 * 1024);
+	
+	//Milliseconds between checks of a cached file's modification time.  0 checks on every request.
+	static final long contentCacheRevalidateMillis = Long.getLong("server.cache.revalidateMillis", 1000);
+	
+	//Whether cached files are held off heap in direct buffers (true) or in heap buffers (false).
+	static final boolean contentCacheDirect = !"false".equalsIgnoreCase(System.getProperty("server.cache.direct"));
+	
+	//How long (in milliseconds) a resolved URL (folder, file or missing, with its size and modification time) is trusted
+	//before the file system is asked again, and how many resolved URLs are kept (see PathResolver).
+	static final long resolverTtlMillis = Long.getLong("server.resolver.ttlMillis", 1000);
+	static final int resolverMaxEntries = Integer.getInteger("server.resolver.maxEntries", 10000);
+	
+	/**Symbolic links under the working directory:
+	 * "follow" = links are followed as long as the file they lead to is inside the working directory.
+	 * "deny" = any path that goes through a symbolic link is answered with 404.
+	 * */
+	static final boolean denySymlinks = "deny".equalsIgnoreCase(System.getProperty("server.symlinks", "follow"));
+	
+	//Whether every file and folder under the document root is indexed at startup and kept up to date by a WatchService,
+	//so that resolving a URL is a lookup in memory (see DocumentIndex).
+	static final boolean indexEnabled = Boolean.getBoolean("server.index");
+	
+	//File the index is saved to, and loaded from on the next start so that the tree is not scanned before serving.  Not saved when unset.
+	//Keep it outside the document root, or it is served like any other file.
+	static final String indexFile = System.getProperty("server.index.file");
+	
+	//Threads that scan the document root, and how many changes are collected before the index is rebuilt (and saved) with them.
+	static final int indexThreads = Integer.getInteger("server.index.threads", Runtime.getRuntime().availableProcessors());
+	static final int indexCompactAfter = Integer.getInteger("server.index.compactAfter", 10000);
+	
+	//Bundle file made by SiteBundlePacker that is served instead of the document root (see SiteBundle).  Renaming a new bundle
+	//over it while the server runs swaps the whole site at once.  Not used when unset.
+	static final String bundleFile = System.getProperty("server.bundle");
+	
+	//Whether rendered folder listings are cached until the folder changes (see DirectoryListingCache).
+	static final boolean listingCacheEnabled = !"false".equalsIgnoreCase(System.getProperty("server.listingCache.enabled"));
+	
+	//Maximum number of folders whose listings are cached and watched for changes.
+	static final int listingCacheMaxDirectories = Integer.getInteger("server.listingCache.maxDirectories", 1024);
+	
+	//Cache-Control header per file extension, e.g. ".html:no-cache;.css:max-age=86400;*:max-age=60" (see ConditionalRequest).
+	static final String cacheControl = System.getProperty("server.cacheControl");
+	
+	//Whether responses are compressed for clients that send Accept-Encoding (see ContentEncoding).
+	static final boolean compressionEnabled = !"false".equalsIgnoreCase(System.getProperty("server.compression"));
+	
+	//Bodies smaller than this are never compressed because the gzip framing would eat most of the savings.
+	static final int compressionMinBytes = Integer.getInteger("server.compression.minBytes", 256);
+	
+	//Files larger than this are not compressed on the fly (precompressed .gz/.br siblings are still used).
+	static final long compressionMaxSourceBytes = Long.getLong("server.compression.maxSourceBytes", 8L * 1024 * 1024);
+	
+	//gzip compression level from 1 (fastest) to 9 (smallest).  The result is cached so a high level is usually affordable.
+	static final int compressionLevel = Integer.getInteger("server.compression.level", 6);
+	
+	//Whether every answered request is written to the access log.
+	static final boolean accessLogEnabled = !"false".equalsIgnoreCase(System.getProperty("server.log.access"));
+	
+	//File the access log is written to.  When it is not set, access log lines go to the console.
+	static final String accessLogFile = System.getProperty("server.log.accessFile");
+	
+	//Size in bytes at which the access log file is rolled over, and how many old files are kept.
+	static final long accessLogMaxBytes = Long.getLong("server.log.accessMaxBytes", 10L * 1024 * 1024);
+	static final int accessLogFiles = Integer.getInteger("server.log.accessFiles", 5);
+	
+	//Verbose dumps of requests, responses and file contents.  Off by default because they are expensive.
+	static final boolean debugLogging = Boolean.getBoolean("server.log.debug");
+	
+	//Number of log records that can wait for the background writer before new records are dropped.
+	static final int logRingSize = Integer.getInteger("server.log.ringSize", 8192);
+	
+	//Whether slow requests are recorded as Java Flight Recorder events while a recording runs (see RequestTrace).
+	//Needs Java 11 or later and the classes in the jfr folder on the class path.
+	static final boolean traceEnabled = !"false".equalsIgnoreCase(System.getProperty("server.trace"));
+	
+	//Requests (and single phases of a request) that take less than this many milliseconds are not recorded,
+	//unless the recording's settings give another "slowerThan" for the webserver.Request and webserver.Phase events.
+	static final long traceSlowerThanMillis = Long.getLong("server.trace.slowerThanMillis", 20);
+	
+	//Whether request counts, bytes sent, connections and latency histograms are collected (see ServerMetrics).
+	static final boolean metricsEnabled = !"false".equalsIgnoreCase(System.getProperty("server.metrics"));
+	
+	//URL that serves the metrics, in the Prometheus text format or as JSON with ?format=json.  An empty value turns the page off.
+	static final String statusPath = System.getProperty("server.status.path", "/server-status");
+	
+	//Whether the status page is only shown to clients on this machine.  Everybody else gets a 404 as if it did not exist.
+	static final boolean statusLocalOnly = !"false".equalsIgnoreCase(System.getProperty("server.status.localOnly"));
+	
+	/**Execution engine that runs the WebPageWorker tasks:
+	 * "pool" = bounded pool of platform threads with a bounded queue in front of it.
+	 * "virtual" = one virtual thread per connection (needs a JVM that supports virtual threads, otherwise we fall back to "pool").
+	 * */
+	static final String executorType = System.getProperty("server.executor", "pool");
+	
+	//Number of platform threads in the worker pool.  Ignored for virtual threads.
+	static final int workerThreads = Integer.getInteger("server.workers", Runtime.getRuntime().availableProcessors() * 8);
+	
+	//Number of accepted connections that can wait for a free worker before new connections are turned away.
+	static final int workerQueueSize = Integer.getInteger("server.queue", 1024);
+	
+	//How often (in seconds) the engine statistics are printed to the console.  0 turns the report off.
+	static final int engineStatsInterval = Integer.getInteger("server.engine.statsInterval", 0);
+	
+	//Extra dynamic handlers as path=ClassName pairs, e.g. "/hello=HelloHandler,/api/*=ApiHandler" (see DynamicHandlers).
+	static final String dynamicHandlers = System.getProperty("server.handlers");
+	
+	//Threads that run the dynamic handlers, apart from the threads that serve files, and how many calls can wait for one.
+	//Calls beyond that are answered with 503 Service Unavailable.
+	static final int handlerThreads = Integer.getInteger("server.handlers.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+	static final int handlerQueueSize = Integer.getInteger("server.handlers.queue", 64);
+	
+	//How long (in milliseconds) a dynamic handler may run before it is interrupted and the client gets 503.
+	//A handler that streams its page is stopped at the same time and its page breaks off.
+	static final long handlerTimeoutMillis = Long.getLong("server.handlers.timeoutMillis", 5000);
+	
+	//Number of pages of pure dynamic handlers (like addnums) that are kept to answer the same arguments again.
+	static final int handlerCacheEntries = Integer.getInteger("server.handlers.cacheEntries", 1024);
+	
+	//Bytes of a streamed page (see ResponseStream) that can wait for the client.  A handler that gets this far ahead waits for it,
+	//and streamed bodies are sent in chunks of at most this size.
+	static final int streamBufferBytes = Integer.getInteger("server.stream.bufferBytes", 16384);
+	
+	//Cleartext HTTP/2 (h2c) in blocking mode, for clients that start with the HTTP/2 preface or ask for "Upgrade: h2c" (see Http2Connection).
+	static final boolean http2Enabled = !"false".equalsIgnoreCase(System.getProperty("server.http2"));
+	
+	//Streams that one HTTP/2 connection may have open at the same time.  Further streams are refused and the client retries them later.
+	static final int http2MaxConcurrentStreams = Integer.getInteger("server.http2.maxStreams", 100);
+	
+	//Largest number of requests that are handled at the same time, in both modes.  Requests over it get 503 with Retry-After
+	//straight away (see AdmissionControl).  0 turns the limit off.
+	static final int admissionMaxInFlight = Integer.getInteger("server.admission.maxInFlight", 0);
+	
+	//Requests per second that one client IP address may send on average, and how many it may send at once after a quiet spell.
+	//0 turns the per-client limit off.  The burst defaults to twice the rate.
+	static final int perClientRate = Integer.getInteger("server.admission.perClientRate", 0);
+	static final int perClientBurst = Integer.getInteger("server.admission.perClientBurst", 2 * perClientRate);
+	
+	//Number of client addresses whose request rate is tracked.  When there are more, idle clients are forgotten first.
+	static final int admissionMaxClients = Integer.getInteger("server.admission.maxClients", 65536);
+	
+	//Seconds a turned away client is asked to wait before it tries again (the Retry-After header of the 503).
+	static final int retryAfterSeconds = Integer.getInteger("server.admission.retryAfter", 1);
+	
+	//Port of the HTTPS listener (see TlsChannel), served by NIO event loops in either server mode.  0 means no HTTPS.
+	static final int tlsPort = Integer.getInteger("server.tls.port", 0);
+	
+	//Key store with the server's certificate and private key, its password and its type.
+	static final String tlsKeyStore = System.getProperty("server.tls.keyStore");
+	static final String tlsKeyStorePassword = System.getProperty("server.tls.keyStorePassword", "");
+	static final String tlsKeyStoreType = System.getProperty("server.tls.keyStoreType", "PKCS12");
+	
+	//TLS versions that are accepted, comma separated, e.g. "TLSv1.3,TLSv1.2".  Defaults to the JVM's.
+	static final String tlsProtocols = System.getProperty("server.tls.protocols");
+	
+	//Sessions that are kept for resumption, and for how many seconds.  Resumed handshakes skip the certificate and the signature.
+	static final int tlsSessionCacheSize = Integer.getInteger("server.tls.sessionCacheSize", 20480);
+	static final int tlsSessionTimeout = Integer.getInteger("server.tls.sessionTimeout", 86400);
+	
+	//Whether TLS 1.3 clients get stateless session tickets, which resume even when the session has left the cache.
+	static final boolean tlsSessionTickets = !"false".equalsIgnoreCase(System.getProperty("server.tls.sessionTickets"));
+	
+	//Application protocols offered with ALPN, in order of preference.  Only HTTP/1.x is served over TLS so far.
+	//A client that offers none of them is turned away in the handshake, as ALPN asks.
+	static final String tlsApplicationProtocols = System.getProperty("server.tls.alpn", "http/1.1,http/1.0");
+	
+	//Number of event loop threads of the HTTPS listener.
+	static final int tlsEventLoops = Integer.getInteger("server.tls.eventLoops", eventLoops);
+	
+	//Free record buffers kept for reuse by the HTTPS connections, per kind (inbound and outbound).
+	static final int tlsBufferPoolSize = Integer.getInteger("server.tls.bufferPoolSize", 1024);
+}
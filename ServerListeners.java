@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * ServerListeners class that opens the listening sockets of the server.
+ * 
+ * With one listener every connection goes through a single accept() call, which on a machine with many cores
+ * turns into a point where all the cores wait on each other at high connection rates.
+ * With SO_REUSEPORT (Linux 3.9 and later, the BSDs) several sockets can be bound to the same port and the kernel
+ * spreads the new connections over them by a hash of the client address, so each listener can be accepted from
+ * its own thread and the connection never has to be handed to another thread afterwards.
+ * 
+ * SO_REUSEPORT only exists in Java 9 and later, so we look the option up by reflection to keep the server
+ * compiling and running on Java 8, where we fall back to a single listener.
+ * */
+class ServerListeners {
+	private static final SocketOption<Boolean> reusePortOption = findReusePortOption();
+	
+	/**
+	 * open method that binds count listeners to the port.  Returns fewer (a single one) if the platform cannot share a port,
+	 * so the caller must look at the length of the result to know how the connections get spread.
+	 * */
+	static ServerSocketChannel[] open(int port, int count) throws IOException {
+		if(count > 1 && !isReusePortSupported()) {
+			System.out.println("SO_REUSEPORT is not supported by this JVM or operating system.  Using one listener for " + count + " accept threads.");
+			count = 1;
+		}
+		ServerSocketChannel[] channels = new ServerSocketChannel[count];
+		try {
+			for(int i = 0; i < count; i++) {
+				channels[i] = ServerSocketChannel.open();
+				channels[i].socket().setReuseAddress(true);
+				if(count > 1) {
+					channels[i].setOption(reusePortOption, Boolean.TRUE); //Must be set on every socket before it is bound.
+				}
+				channels[i].bind(new InetSocketAddress(port), ServerConfig.acceptBacklog);
+			}
+		} catch (IOException e) {
+			for(ServerSocketChannel channel : channels) {
+				if(channel != null) {
+					channel.close();
+				}
+			}
+			throw e;
+		}
+		return channels;
+	}
+	
+	/**
+	 * isReusePortSupported checks whether the JVM knows SO_REUSEPORT and the operating system supports it for listening sockets.
+	 * */
+	static boolean isReusePortSupported() {
+		if(reusePortOption == null) {
+			return false;
+		}
+		try {
+			ServerSocketChannel probe = ServerSocketChannel.open();
+			try {
+				return probe.supportedOptions().contains(reusePortOption);
+			} finally {
+				probe.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> findReusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ServerLog class that takes logging off the request threads.
+ * 
+ * Request threads only claim a slot in a fixed size ring buffer (with a compare and set, no locks) and fill it in.
+ * A single background thread drains the ring in batches, formats the records and writes them out.
+ * If the ring is full the record is dropped and counted instead of making the request thread wait,
+ * so a slow console or disk can never hold up serving requests.
+ * 
+ * There are two kinds of records:
+ * 1. Access log lines in the common log format, e.g.
+ *    127.0.0.1 - - [03/May/2020:11:18:50 +0000] "GET /cat.html HTTP/1.1" 200 16 412
+ *    (the last number is the time taken in microseconds).  They go to the console or to a rotating file.
+ * 2. Debug messages (the old verbose dumps of requests, responses and file contents).  They are off unless
+ *    -Dserver.log.debug=true is given, and callers check debugEnabled before building the message.
+ * 
+ * The settings (ring size, access log file, rotation) are in ServerConfig.
+ * */
+class ServerLog {
+	static final boolean debugEnabled = ServerConfig.debugLogging;
+	
+	private static final int accessRecord = 1;
+	private static final int debugRecord = 2;
+	private static final int maxBatch = 256; //Records written between two flushes.
+	
+	private static final ServerLog instance = new ServerLog(ServerConfig.logRingSize);
+	
+	private final LogSlot[] ring;
+	private final int mask;
+	private final AtomicLong claimSequence = new AtomicLong(); //Next slot for producers to claim.
+	private volatile long consumedSequence = 0; //Next slot for the writer to read.
+	private final LongAdder droppedRecords = new LongAdder();
+	private long reportedDrops = 0; //Only used by the writer thread.
+	
+	private final SimpleDateFormat accessDateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US); //Only used by the writer thread.
+	private final StringBuilder line = new StringBuilder(256); //Only used by the writer thread.
+	private final RotatingOutput accessOutput;
+	private volatile Thread writerThread;
+	
+	private ServerLog(int ringSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1; //Round up to a power of two.
+		ring = new LogSlot[capacity];
+		for(int i = 0; i < capacity; i++) {
+			ring[i] = new LogSlot();
+			ring[i].published = i - capacity; //Not published yet for sequence i.
+		}
+		mask = capacity - 1;
+		accessOutput = new RotatingOutput(ServerConfig.accessLogFile, ServerConfig.accessLogMaxBytes, ServerConfig.accessLogFiles);
+	}
+	
+	/**
+	 * access method that records one answered request.  Never blocks: the record is dropped if the ring is full.
+	 * */
+	static void access(String remoteAddress, String requestLine, int httpCode, long bytesSent, long durationNanos) {
+		if(!ServerConfig.accessLogEnabled) {
+			return;
+		}
+		ServerLog log = instance;
+		long sequence = log.claim();
+		if(sequence < 0) {
+			return;
+		}
+		LogSlot slot = log.ring[(int) (sequence & log.mask)];
+		slot.type = accessRecord;
+		slot.timeMillis = System.currentTimeMillis();
+		slot.remoteAddress = remoteAddress;
+		slot.text = requestLine;
+		slot.httpCode = httpCode;
+		slot.bytesSent = bytesSent;
+		slot.durationNanos = durationNanos;
+		log.publish(slot, sequence);
+	}
+	
+	/**
+	 * debug method that records a verbose message for the console.  Callers should check debugEnabled first
+	 * so that the message is not even built when debugging is off.
+	 * */
+	static void debug(String message) {
+		if(!debugEnabled) {
+			return;
+		}
+		ServerLog log = instance;
+		long sequence = log.claim();
+		if(sequence < 0) {
+			return;
+		}
+		LogSlot slot = log.ring[(int) (sequence & log.mask)];
+		slot.type = debugRecord;
+		slot.text = message;
+		log.publish(slot, sequence);
+	}
+	
+	static long getDroppedRecords() {
+		return instance.droppedRecords.sum();
+	}
+	
+	/**
+	 * claim method that reserves the next slot of the ring for the calling thread.
+	 * Returns -1 (and counts a drop) if the writer has fallen a whole ring behind.
+	 * */
+	private long claim() {
+		while(true) {
+			long sequence = claimSequence.get();
+			if(sequence - consumedSequence >= ring.length) {
+				droppedRecords.increment();
+				return -1;
+			}
+			if(claimSequence.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+	
+	/**
+	 * publish method that hands the filled in slot to the writer and wakes the writer up if it is sleeping.
+	 * */
+	private void publish(LogSlot slot, long sequence) {
+		slot.published = sequence; //Volatile write so the writer sees the fields written above.
+		Thread writer = writerThread;
+		if(writer == null) {
+			startWriter();
+		}
+		else if(sequence == consumedSequence) {
+			//The writer had caught up and may be parked.
+			LockSupport.unpark(writer);
+		}
+	}
+	
+	private synchronized void startWriter() {
+		if(writerThread != null) {
+			return;
+		}
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				drainForever();
+			}
+		}, "server-log-writer");
+		writer.setDaemon(true);
+		writerThread = writer;
+		writer.start();
+	}
+	
+	/**
+	 * drainForever method that the writer thread runs.  It writes up to maxBatch records and then flushes,
+	 * and parks for a short while when there is nothing to write.
+	 * */
+	private void drainForever() {
+		while(true) {
+			long sequence = consumedSequence;
+			int written = 0;
+			while(written < maxBatch) {
+				LogSlot slot = ring[(int) (sequence & mask)];
+				if(slot.published != sequence) {
+					break; //Not published yet.
+				}
+				write(slot);
+				slot.remoteAddress = null;
+				slot.text = null;
+				sequence++;
+				written++;
+				consumedSequence = sequence; //Frees the slot for producers.
+			}
+			if(written > 0) {
+				reportDrops();
+				accessOutput.flush();
+				System.out.flush();
+			}
+			else {
+				LockSupport.parkNanos(10000000L); //10 ms.  Producers unpark us when the ring was empty.
+			}
+		}
+	}
+	
+	private void write(LogSlot slot) {
+		if(slot.type == debugRecord) {
+			System.out.println(slot.text);
+			return;
+		}
+		line.setLength(0);
+		line.append(slot.remoteAddress).append(" - - [").append(accessDateFormat.format(new Date(slot.timeMillis))).append("] \"")
+			.append(slot.text).append("\" ").append(slot.httpCode).append(' ').append(slot.bytesSent)
+			.append(' ').append(slot.durationNanos / 1000).append('\n');
+		accessOutput.write(line);
+	}
+	
+	/**
+	 * Tell the reader of the log that records were dropped since the last time we looked.
+	 * */
+	private void reportDrops() {
+		long drops = droppedRecords.sum();
+		if(drops != reportedDrops) {
+			line.setLength(0);
+			line.append("[server log dropped ").append(drops - reportedDrops).append(" records because the writer fell behind]\n");
+			accessOutput.write(line);
+			reportedDrops = drops;
+		}
+	}
+	
+	/**
+	 * LogSlot class that is one reusable entry of the ring.  The published sequence is what tells the writer the slot is ready.
+	 * */
+	private static class LogSlot {
+		volatile long published;
+		int type;
+		long timeMillis;
+		String remoteAddress;
+		String text;
+		int httpCode;
+		long bytesSent;
+		long durationNanos;
+	}
+	
+	/**
+	 * RotatingOutput class that writes the access log either to the console (no file name)
+	 * or to a file that is rolled over to name.1, name.2, ... once it grows past maxBytes.
+	 * Only used by the writer thread.
+	 * */
+	private static class RotatingOutput {
+		private final String fileName;
+		private final long maxBytes;
+		private final int keepFiles;
+		private OutputStream out;
+		private long bytesWritten;
+		private byte[] encodeBuffer = new byte[512];
+		
+		RotatingOutput(String fileName, long maxBytes, int keepFiles) {
+			this.fileName = fileName;
+			this.maxBytes = maxBytes;
+			this.keepFiles = Math.max(1, keepFiles);
+		}
+		
+		void write(StringBuilder text) {
+			try {
+				if(out == null) {
+					open();
+				}
+				if(encodeBuffer.length < text.length()) {
+					encodeBuffer = new byte[text.length() * 2];
+				}
+				for(int i = 0; i < text.length(); i++) {
+					char c = text.charAt(i);
+					encodeBuffer[i] = (byte) (c < 0x80 ? c : '?'); //Log lines are ASCII.  Anything else is masked.
+				}
+				out.write(encodeBuffer, 0, text.length());
+				bytesWritten += text.length();
+				if(fileName != null && bytesWritten > maxBytes) {
+					rotate();
+				}
+			} catch (IOException e) {
+				//Nothing sensible to do if the log cannot be written.  We must not take the server down over it.
+				e.printStackTrace();
+			}
+		}
+		
+		void flush() {
+			try {
+				if(out != null) {
+					out.flush();
+				}
+			} catch (IOException e) {}
+		}
+		
+		private void open() throws IOException {
+			if(fileName == null) {
+				out = System.out; //Only the writer thread prints to the console so this does not hold up request threads.
+				return;
+			}
+			File logFile = new File(fileName);
+			out = new BufferedOutputStream(new FileOutputStream(logFile, true), 64 * 1024);
+			bytesWritten = logFile.length();
+		}
+		
+		/**
+		 * Close the current file and shift name -> name.1 -> name.2 ..., dropping the oldest one.
+		 * */
+		private void rotate() throws IOException {
+			out.close();
+			new File(fileName + "." + keepFiles).delete();
+			for(int i = keepFiles - 1; i >= 1; i--) {
+				new File(fileName + "." + i).renameTo(new File(fileName + "." + (i + 1)));
+			}
+			new File(fileName).renameTo(new File(fileName + ".1"));
+			out = null;
+			open();
+		}
+	}
+}
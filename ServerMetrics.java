@@ -0,0 +1,314 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ServerMetrics class that collects what the server is doing while it runs:
+ * 
+ * 1. Requests by the handler (route) that answered them: file, folder, CGI, 404, the favicon short cut, bad requests, the status page
+ *    and requests that AdmissionControl turned away.
+ * 2. Responses by status code and the bytes sent (header and body).
+ * 3. Open and accepted connections, and the busy workers and waiting connections of the ConnectionEngine.
+ * 4. Latency histograms for every route (first byte of the request to last byte of the response)
+ *    and for every phase of a request: parse (reading the header), handle (building the response) and write.
+ * 
+ * The numbers can be read at ServerConfig.statusPath (/server-status) in the Prometheus text format, as JSON
+ * with ?format=json, and through JMX (see ServerMetricsMBean).
+ * 
+ * Everything is counted in LongAdders, which spread concurrent updates over separate cells,
+ * so recording a request is a handful of uncontended additions and never takes a lock.
+ * The cells are only added up when somebody reads the metrics.
+ * */
+class ServerMetrics implements ServerMetricsMBean {
+	static final boolean enabled = ServerConfig.metricsEnabled;
+	
+	//Routes, i.e. which handler answered a request.  RequestHandler sets one for every response.
+	static final int routeFile = 0;
+	static final int routeFolder = 1;
+	static final int routeCgi = 2;
+	static final int routeNotFound = 3;
+	static final int routeFavicon = 4;
+	static final int routeBadRequest = 5;
+	static final int routeStatus = 6;
+	static final int routeRejected = 7;
+	private static final String[] routeNames = {"file", "folder", "cgi", "not_found", "favicon", "bad_request", "status", "rejected"};
+	
+	private static final int phaseParse = 0;
+	private static final int phaseHandle = 1;
+	private static final int phaseWrite = 2;
+	private static final String[] phaseNames = {"parse", "handle", "write"};
+	
+	private static final ServerMetrics instance = new ServerMetrics();
+	
+	private final LongAdder[] routeRequests = new LongAdder[routeNames.length];
+	private final MetricsHistogram[] routeLatency = new MetricsHistogram[routeNames.length];
+	private final MetricsHistogram[] phaseLatency = new MetricsHistogram[phaseNames.length];
+	private final MetricsHistogram requestLatency = new MetricsHistogram();
+	private final LongAdder[] statusCodes = new LongAdder[600]; //Indexed by the status code.
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder openConnections = new LongAdder();
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final long startMillis = System.currentTimeMillis();
+	private volatile ConnectionEngine[] engines = new ConnectionEngine[0]; //One per listener, none in nio mode which has no workers or queue.
+	
+	private ServerMetrics() {
+		for(int i = 0; i < routeNames.length; i++) {
+			routeRequests[i] = new LongAdder();
+			routeLatency[i] = new MetricsHistogram();
+		}
+		for(int i = 0; i < phaseNames.length; i++) {
+			phaseLatency[i] = new MetricsHistogram();
+		}
+		for(int i = 0; i < statusCodes.length; i++) {
+			statusCodes[i] = new LongAdder();
+		}
+	}
+	
+	/**
+	 * start method that is called once when the server starts.  It remembers the engines (none in nio mode)
+	 * and makes the metrics visible through JMX.
+	 * */
+	static void start(ConnectionEngine... engines) {
+		if(!enabled) {
+			return;
+		}
+		instance.engines = engines.clone();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("MyWebServer:type=ServerMetrics"));
+		} catch (JMException e) {
+			//The metrics are still on the status page.
+			System.out.println("Could not register the metrics with JMX: " + e);
+		}
+	}
+	
+	static void connectionOpened() {
+		if(enabled) {
+			instance.openConnections.increment();
+			instance.acceptedConnections.increment();
+		}
+	}
+	
+	static void connectionClosed() {
+		if(enabled) {
+			instance.openConnections.decrement();
+		}
+	}
+	
+	/**
+	 * routeName returns the name of a route as it appears in the metrics, e.g. "file".
+	 * */
+	static String routeName(int route) {
+		return routeNames[route];
+	}
+	
+	/**
+	 * requestCompleted method that is called by the connection once a response has been written completely.
+	 * The phases are in nanoseconds: parse is from the first byte of the request to the end of its header,
+	 * handle is building the response and write is sending it.
+	 * */
+	static void requestCompleted(int route, int httpCode, long bytes, long parseNanos, long handleNanos, long writeNanos) {
+		if(!enabled) {
+			return;
+		}
+		ServerMetrics metrics = instance;
+		metrics.routeRequests[route].increment();
+		if(httpCode >= 0 && httpCode < metrics.statusCodes.length) {
+			metrics.statusCodes[httpCode].increment();
+		}
+		metrics.bytesSent.add(bytes);
+		metrics.phaseLatency[phaseParse].record(parseNanos);
+		metrics.phaseLatency[phaseHandle].record(handleNanos);
+		metrics.phaseLatency[phaseWrite].record(writeNanos);
+		long totalNanos = parseNanos + handleNanos + writeNanos;
+		metrics.routeLatency[route].record(totalNanos);
+		metrics.requestLatency.record(totalNanos);
+	}
+	
+	/**
+	 * toPrometheus method that writes all the metrics in the Prometheus text exposition format (version 0.0.4).
+	 * */
+	static String toPrometheus() {
+		ServerMetrics metrics = instance;
+		StringBuilder out = new StringBuilder(8192);
+		header(out, "webserver_requests_total", "counter", "Requests answered, by the handler that answered them.");
+		for(int i = 0; i < routeNames.length; i++) {
+			out.append("webserver_requests_total{route=\"").append(routeNames[i]).append("\"} ").append(metrics.routeRequests[i].sum()).append('\n');
+		}
+		header(out, "webserver_responses_total", "counter", "Responses by status code.");
+		for(int code = 0; code < metrics.statusCodes.length; code++) {
+			long count = metrics.statusCodes[code].sum();
+			if(count > 0) {
+				out.append("webserver_responses_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+			}
+		}
+		header(out, "webserver_sent_bytes_total", "counter", "Response bytes written, headers included.");
+		out.append("webserver_sent_bytes_total ").append(metrics.bytesSent.sum()).append('\n');
+		header(out, "webserver_open_connections", "gauge", "Client connections that are open right now.");
+		out.append("webserver_open_connections ").append(metrics.openConnections.sum()).append('\n');
+		header(out, "webserver_accepted_connections_total", "counter", "Client connections accepted since the start.");
+		out.append("webserver_accepted_connections_total ").append(metrics.acceptedConnections.sum()).append('\n');
+		header(out, "webserver_active_workers", "gauge", "Workers busy with a connection.");
+		out.append("webserver_active_workers ").append(metrics.getActiveWorkers()).append('\n');
+		header(out, "webserver_queued_connections", "gauge", "Accepted connections waiting for a worker.");
+		out.append("webserver_queued_connections ").append(metrics.getQueuedConnections()).append('\n');
+		header(out, "webserver_rejected_connections_total", "counter", "Connections turned away because the worker queue was full.");
+		out.append("webserver_rejected_connections_total ").append(metrics.getRejectedConnections()).append('\n');
+		header(out, "webserver_in_flight_requests", "gauge", "Requests that have been admitted and not answered yet.");
+		out.append("webserver_in_flight_requests ").append(metrics.getInFlightRequests()).append('\n');
+		header(out, "webserver_request_duration_seconds", "histogram", "Time from the first byte of a request to the last byte of its response, by handler.");
+		for(int i = 0; i < routeNames.length; i++) {
+			metrics.routeLatency[i].appendPrometheus(out, "webserver_request_duration_seconds", "route=\"" + routeNames[i] + "\"");
+		}
+		header(out, "webserver_request_phase_duration_seconds", "histogram", "Time spent in each phase of a request.");
+		for(int i = 0; i < phaseNames.length; i++) {
+			metrics.phaseLatency[i].appendPrometheus(out, "webserver_request_phase_duration_seconds", "phase=\"" + phaseNames[i] + "\"");
+		}
+		header(out, "webserver_uptime_seconds", "gauge", "Seconds since the server started.");
+		out.append("webserver_uptime_seconds ").append(metrics.getUptimeSeconds()).append('\n');
+		return out.toString();
+	}
+	
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	/**
+	 * toJson method that writes the same metrics as one JSON object.  The histograms are summarized as count, sum and percentiles.
+	 * */
+	static String toJson() {
+		ServerMetrics metrics = instance;
+		StringBuilder out = new StringBuilder(4096);
+		out.append("{\"uptimeSeconds\":").append(metrics.getUptimeSeconds());
+		out.append(",\"requests\":{");
+		for(int i = 0; i < routeNames.length; i++) {
+			out.append(i == 0 ? "" : ",").append('"').append(routeNames[i]).append("\":").append(metrics.routeRequests[i].sum());
+		}
+		out.append("},\"responses\":{");
+		boolean first = true;
+		for(int code = 0; code < metrics.statusCodes.length; code++) {
+			long count = metrics.statusCodes[code].sum();
+			if(count > 0) {
+				out.append(first ? "" : ",").append('"').append(code).append("\":").append(count);
+				first = false;
+			}
+		}
+		out.append("},\"bytesSent\":").append(metrics.bytesSent.sum());
+		out.append(",\"connections\":{\"open\":").append(metrics.openConnections.sum())
+				.append(",\"accepted\":").append(metrics.acceptedConnections.sum())
+				.append(",\"activeWorkers\":").append(metrics.getActiveWorkers())
+				.append(",\"queued\":").append(metrics.getQueuedConnections())
+				.append(",\"rejected\":").append(metrics.getRejectedConnections())
+				.append(",\"inFlightRequests\":").append(metrics.getInFlightRequests()).append('}');
+		out.append(",\"latency\":");
+		metrics.requestLatency.appendJson(out);
+		out.append(",\"routeLatency\":{");
+		for(int i = 0; i < routeNames.length; i++) {
+			out.append(i == 0 ? "" : ",").append('"').append(routeNames[i]).append("\":");
+			metrics.routeLatency[i].appendJson(out);
+		}
+		out.append("},\"phaseLatency\":{");
+		for(int i = 0; i < phaseNames.length; i++) {
+			out.append(i == 0 ? "" : ",").append('"').append(phaseNames[i]).append("\":");
+			metrics.phaseLatency[i].appendJson(out);
+		}
+		out.append("}}\n");
+		return out.toString();
+	}
+	
+	//The getters below are what JMX shows.
+	
+	public long getRequests() {
+		long total = 0;
+		for(LongAdder requests : routeRequests) {
+			total += requests.sum();
+		}
+		return total;
+	}
+	
+	public long getFileRequests() {
+		return routeRequests[routeFile].sum();
+	}
+	
+	public long getFolderRequests() {
+		return routeRequests[routeFolder].sum();
+	}
+	
+	public long getCgiRequests() {
+		return routeRequests[routeCgi].sum();
+	}
+	
+	public long getNotFoundRequests() {
+		return routeRequests[routeNotFound].sum();
+	}
+	
+	public long getFaviconRequests() {
+		return routeRequests[routeFavicon].sum();
+	}
+	
+	public long getBadRequests() {
+		return routeRequests[routeBadRequest].sum();
+	}
+	
+	public long getRejectedRequests() {
+		return routeRequests[routeRejected].sum();
+	}
+	
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+	
+	public long getOpenConnections() {
+		return openConnections.sum();
+	}
+	
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+	
+	public int getActiveWorkers() {
+		int activeWorkers = 0;
+		for(ConnectionEngine engine : engines) {
+			activeWorkers += engine.getActiveWorkers();
+		}
+		return activeWorkers;
+	}
+	
+	public int getQueuedConnections() {
+		int queuedConnections = 0;
+		for(ConnectionEngine engine : engines) {
+			queuedConnections += engine.getQueueDepth();
+		}
+		return queuedConnections;
+	}
+	
+	public long getRejectedConnections() {
+		long rejectedConnections = 0;
+		for(ConnectionEngine engine : engines) {
+			rejectedConnections += engine.getRejectedTasks();
+		}
+		return rejectedConnections;
+	}
+	
+	public int getInFlightRequests() {
+		return AdmissionControl.getInFlight();
+	}
+	
+	public double getLatencyP50Millis() {
+		return requestLatency.getPercentileMillis(50);
+	}
+	
+	public double getLatencyP99Millis() {
+		return requestLatency.getPercentileMillis(99);
+	}
+	
+	public double getLatencyP999Millis() {
+		return requestLatency.getPercentileMillis(99.9);
+	}
+	
+	public long getUptimeSeconds() {
+		return (System.currentTimeMillis() - startMillis) / 1000;
+	}
+}
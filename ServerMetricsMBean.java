@@ -0,0 +1,43 @@
+/**
+ * ServerMetricsMBean interface that lists what ServerMetrics shows through JMX (e.g. in jconsole or VisualVM)
+ * under the name MyWebServer:type=ServerMetrics.  JMX only looks at public interfaces, hence the public here.
+ * */
+public interface ServerMetricsMBean {
+	long getRequests();
+	
+	long getFileRequests();
+	
+	long getFolderRequests();
+	
+	long getCgiRequests();
+	
+	long getNotFoundRequests();
+	
+	long getFaviconRequests();
+	
+	long getBadRequests();
+	
+	long getRejectedRequests();
+	
+	long getBytesSent();
+	
+	long getOpenConnections();
+	
+	long getAcceptedConnections();
+	
+	int getActiveWorkers();
+	
+	int getQueuedConnections();
+	
+	long getRejectedConnections();
+	
+	int getInFlightRequests();
+	
+	double getLatencyP50Millis();
+	
+	double getLatencyP99Millis();
+	
+	double getLatencyP999Millis();
+	
+	long getUptimeSeconds();
+}
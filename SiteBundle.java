@@ -0,0 +1,252 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * SiteBundle class that serves the whole document root from one bundle file made by SiteBundlePacker (-Dserver.bundle=site.bundle).
+ * 
+ * 1. The bundle is memory mapped once.  Every response body is a slice of the mapping, so serving a file costs no open, stat,
+ *    read or close and the bytes go from the page cache to the socket.
+ * 2. Paths are found by a binary search over the sorted path table of the bundle, which is in the mapping too,
+ *    so a bundle with millions of files does not take any heap.
+ * 3. Every file comes with its content type and ETag, and text files with a gzipped copy when that is smaller.
+ *    Folders come with their listing page, so a folder is served like a file.
+ * 4. Deploying a new release is renaming a new bundle over the old one.  A watcher thread sees the rename, maps the new bundle
+ *    and swaps it in.  Requests that started with the old bundle finish with it: the old file stays readable through its mapping
+ *    until the last slice of it is gone.  A bundle must never be written in place while it is served.
+ * 
+ * File layout (all numbers big-endian, offsets from the start of the file):
+ * header:  magic "SBDL", version, file length (long), entry count, offset of the path table
+ * content: the bodies, one after the other
+ * entries: per entry its path (UTF-8, without a leading "/"), kind, modification time, the offsets and lengths of its bodies,
+ *          its ETag and its content type
+ * table:   the offsets of the entries, sorted by the bytes of their paths
+ * */
+class SiteBundle {
+	static final int magic = 0x5342444c; //"SBDL"
+	static final int version = 1;
+	static final int headerLength = 24;
+	
+	private static volatile SiteBundle current; //The bundle that new requests are served from, null when bundles are not used.
+	
+	private final File file;
+	private final ByteBuffer mapping;
+	private final int entryCount;
+	private final int tableOffset;
+	
+	private SiteBundle(File file, ByteBuffer mapping, int entryCount, int tableOffset) {
+		this.file = file;
+		this.mapping = mapping;
+		this.entryCount = entryCount;
+		this.tableOffset = tableOffset;
+	}
+	
+	/**
+	 * get returns the bundle that a new request should be served from, or null if the server serves the file system.
+	 * A request keeps using the bundle it got here, even if a new one is swapped in while it is answered.
+	 * */
+	static SiteBundle get() {
+		return current;
+	}
+	
+	/**
+	 * start method that maps the bundle and starts watching it for new releases.  Throws an IOException if the bundle cannot be used,
+	 * because a server that was told to serve a bundle should not silently serve the folder it was started in instead.
+	 * */
+	static void start(File bundleFile) throws IOException {
+		SiteBundle bundle = open(bundleFile);
+		current = bundle;
+		System.out.println("Serving " + bundle.entryCount + " files and folders from the bundle " + bundleFile);
+		final WatchService watchService = FileSystems.getDefault().newWatchService();
+		final Path bundlePath = bundleFile.getAbsoluteFile().toPath();
+		bundlePath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		Thread watcher = new Thread(new Runnable() {
+			public void run() {
+				watchForReleases(watchService, bundlePath);
+			}
+		}, "site-bundle-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+	
+	/**
+	 * open method that maps a bundle and checks its header.
+	 * */
+	static SiteBundle open(File bundleFile) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(bundleFile, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long size = channel.size();
+			if(size < headerLength || size > Integer.MAX_VALUE) {
+				throw new IOException(bundleFile + " is not a site bundle (" + size + " bytes)");
+			}
+			//The mapping stays valid after the channel is closed.
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if(mapping.getInt(0) != magic || mapping.getInt(4) != version) {
+				throw new IOException(bundleFile + " is not a site bundle of version " + version);
+			}
+			if(mapping.getLong(8) != size) {
+				throw new IOException(bundleFile + " is incomplete: " + size + " of " + mapping.getLong(8) + " bytes");
+			}
+			int entryCount = mapping.getInt(16);
+			int tableOffset = mapping.getInt(20);
+			if(entryCount < 0 || tableOffset < headerLength || (long) tableOffset + 4L * entryCount > size) {
+				throw new IOException(bundleFile + " has a damaged path table");
+			}
+			return new SiteBundle(bundleFile, mapping, entryCount, tableOffset);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+	
+	/**
+	 * watchForReleases is the loop of the watcher thread.  When the bundle file is replaced the new one is mapped and swapped in.
+	 * A bundle that cannot be opened (e.g. it is still being copied) is ignored, and the next event for it tries again.
+	 * */
+	private static void watchForReleases(WatchService watchService, Path bundlePath) {
+		Path bundleName = bundlePath.getFileName();
+		while(true) {
+			WatchKey watchKey;
+			try {
+				watchKey = watchService.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			boolean replaced = false;
+			for(WatchEvent<?> event : watchKey.pollEvents()) {
+				if(bundleName.equals(event.context())) {
+					replaced = true;
+				}
+			}
+			if(replaced) {
+				try {
+					SiteBundle bundle = open(bundlePath.toFile());
+					current = bundle;
+					System.out.println("Switched to the new bundle " + bundlePath + " with " + bundle.entryCount + " files and folders");
+				} catch (IOException e) {
+					System.out.println("Keeping the current bundle: " + e.getMessage());
+				}
+			}
+			if(!watchKey.reset()) {
+				System.out.println("The folder of " + bundlePath + " went away.  New releases are no longer picked up.");
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * find method that returns the entry for a path relative to the root (as PathResolver.normalize makes it, e.g. "sub/cat.html"),
+	 * or null if the bundle does not have it.
+	 * */
+	Entry find(String relativePath) {
+		byte[] path = relativePath.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = entryCount - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			int entryOffset = mapping.getInt(tableOffset + 4 * middle);
+			int comparison = comparePath(entryOffset, path);
+			if(comparison < 0) {
+				low = middle + 1;
+			}
+			else if(comparison > 0) {
+				high = middle - 1;
+			}
+			else {
+				return new Entry(entryOffset);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * comparePath compares the path of an entry with a path as unsigned bytes, which is the order SiteBundlePacker sorts them in.
+	 * */
+	private int comparePath(int entryOffset, byte[] path) {
+		int length = mapping.getInt(entryOffset);
+		int common = Math.min(length, path.length);
+		for(int i = 0; i < common; i++) {
+			int difference = (mapping.get(entryOffset + 4 + i) & 0xff) - (path[i] & 0xff);
+			if(difference != 0) {
+				return difference;
+			}
+		}
+		return length - path.length;
+	}
+	
+	File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Entry class that reads one entry of the bundle: per entry the path, then the kind (PathResolver.file or folder),
+	 * the modification time, the offset and length of the body and of the gzipped body (length -1 if there is none),
+	 * the ETag and the content type, both as a short length and ASCII bytes.
+	 * */
+	class Entry {
+		final int kind;
+		final long lastModified;
+		final String etag;
+		final String contentType;
+		private final int bodyOffset;
+		private final int bodyLength;
+		private final int gzippedOffset;
+		private final int gzippedLength;
+		
+		private Entry(int entryOffset) {
+			int position = entryOffset + 4 + mapping.getInt(entryOffset);
+			kind = mapping.get(position);
+			lastModified = mapping.getLong(position + 1);
+			bodyOffset = mapping.getInt(position + 9);
+			bodyLength = mapping.getInt(position + 13);
+			gzippedOffset = mapping.getInt(position + 17);
+			gzippedLength = mapping.getInt(position + 21);
+			position += 25;
+			etag = readAscii(position);
+			position += 2 + etag.length();
+			contentType = readAscii(position);
+		}
+		
+		private String readAscii(int position) {
+			byte[] bytes = new byte[mapping.getShort(position)];
+			for(int i = 0; i < bytes.length; i++) {
+				bytes[i] = mapping.get(position + 2 + i);
+			}
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+		
+		/**
+		 * body returns the body as a slice of the mapping.  Every call gets a slice of its own, so responses never share a position.
+		 * */
+		ByteBuffer body() {
+			return slice(bodyOffset, bodyLength);
+		}
+		
+		/**
+		 * gzipped returns the gzipped body as a slice of the mapping, or null if the packer did not compress this entry.
+		 * */
+		ByteBuffer gzipped() {
+			return gzippedLength < 0 ? null : slice(gzippedOffset, gzippedLength);
+		}
+		
+		private ByteBuffer slice(int offset, int length) {
+			ByteBuffer slice = mapping.duplicate();
+			slice.position(offset);
+			slice.limit(offset + length);
+			return slice.slice();
+		}
+	}
+}
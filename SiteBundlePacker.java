@@ -0,0 +1,285 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * SiteBundlePacker tool that packs a folder into one bundle file for SiteBundle:
+ * 
+ * > java SiteBundlePacker www site.bundle
+ * 
+ * 1. Every file and folder under the folder becomes an entry with its content type and ETag worked out here,
+ *    the same ones the server would send for the file on disk.
+ * 2. Text files (see ContentEncoding.isCompressible) are gzipped once here at the configured level and the gzipped copy is kept
+ *    when it is smaller, so the server never compresses anything in bundle mode.
+ * 3. Folders get their listing page rendered here, with links to the entries that are in the bundle.
+ * 4. Symbolic links to files inside the folder are packed as copies of the file.  Links to folders and links that lead
+ *    outside the folder are left out, as are other kinds of files.
+ * 
+ * The bundle is written next to its final name and renamed over it when it is complete, so a server that serves the bundle
+ * switches to the new one in one step.  The compression settings are read from the same -D properties as the server's.
+ * */
+class SiteBundlePacker {
+	private final Path root;
+	private final Path bundle; //The bundle and the file it is written to are left out, in case they are inside the folder.
+	private final Path temporary;
+	private final FileChannel out;
+	private long position = 0; //Where the next body goes, which is always the end of the file so far.
+	private final ArrayList<Packed> packed = new ArrayList<Packed>();
+	
+	private SiteBundlePacker(Path root, Path bundle, Path temporary, FileChannel out) {
+		this.root = root;
+		this.bundle = bundle;
+		this.temporary = temporary;
+		this.out = out;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length != 2) {
+			System.err.println("Usage: java SiteBundlePacker <folder> <bundle file>");
+			System.exit(2);
+		}
+		long start = System.currentTimeMillis();
+		int entries = pack(Paths.get(args[0]), Paths.get(args[1]));
+		System.out.println("Packed " + entries + " files and folders into " + args[1] + " (" + Files.size(Paths.get(args[1]))
+				+ " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * pack method that writes the bundle of a folder and returns the number of entries in it.
+	 * */
+	static int pack(Path folder, Path bundle) throws IOException {
+		Path root = folder.toRealPath();
+		Path target = bundle.toAbsolutePath().normalize();
+		Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+		FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		Path realFolder = temporary.getParent().toRealPath();
+		SiteBundlePacker packer = new SiteBundlePacker(root, realFolder.resolve(target.getFileName()), realFolder.resolve(temporary.getFileName()), out);
+		try {
+			packer.write(new byte[SiteBundle.headerLength]); //The header is written last, when the entries are known.
+			packer.packFolder(root, "");
+			packer.writeEntries();
+			out.force(true);
+		} catch (IOException e) {
+			out.close();
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		out.close();
+		Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return packer.packed.size();
+	}
+	
+	/**
+	 * packFolder packs the entries of a folder in name order, then the folder itself with a listing of what was packed.
+	 * relativePath is the path of the folder in the bundle, "" for the root and e.g. "sub" below it.
+	 * */
+	private void packFolder(Path folder, String relativePath) throws IOException {
+		ArrayList<Path> children = new ArrayList<Path>();
+		DirectoryStream<Path> entries = Files.newDirectoryStream(folder);
+		try {
+			for(Path entry : entries) {
+				children.add(entry);
+			}
+		} finally {
+			entries.close();
+		}
+		Collections.sort(children);
+		
+		ArrayList<String> listing = new ArrayList<String>();
+		if(!relativePath.isEmpty()) {
+			listing.add("../");
+		}
+		for(Path child : children) {
+			String name = child.getFileName().toString();
+			String childPath = relativePath.isEmpty() ? name : relativePath + "/" + name;
+			if(child.equals(bundle) || child.equals(temporary)) {
+				continue;
+			}
+			if(Files.isSymbolicLink(child)) {
+				Path target;
+				try {
+					target = child.toRealPath();
+				} catch (IOException e) {
+					System.err.println("Leaving out the broken link " + childPath);
+					continue;
+				}
+				if(!target.startsWith(root) || !Files.isRegularFile(target)) {
+					System.err.println("Leaving out the link " + childPath + " to " + target);
+					continue;
+				}
+				child = target;
+			}
+			if(Files.isDirectory(child)) {
+				packFolder(child, childPath);
+				listing.add(name + "/");
+			}
+			else if(Files.isRegularFile(child)) {
+				packFile(child, childPath);
+				listing.add(name);
+			}
+		}
+		
+		byte[] page = HTTPConstructor.getSimpleFolderList(listing, "/" + relativePath + (relativePath.isEmpty() ? "" : "/")).getBytes(StandardCharsets.UTF_8);
+		Packed entry = new Packed(relativePath, PathResolver.folder, Files.getLastModifiedTime(folder).toMillis(), RequestHandler.generatedHtmlType);
+		entry.etag = ConditionalRequest.makeETag(page.length, entry.lastModified);
+		writeBodies(entry, page, ContentEncoding.shouldCompress(page));
+		packed.add(entry);
+	}
+	
+	/**
+	 * packFile copies a file into the bundle.  Text files are read into memory to be gzipped, everything else is copied
+	 * from file to file by the operating system.
+	 * */
+	private void packFile(Path file, String relativePath) throws IOException {
+		long size = Files.size(file);
+		Packed entry = new Packed(relativePath, PathResolver.file, Files.getLastModifiedTime(file).toMillis(), RequestHandler.contentTypeFor(relativePath));
+		entry.etag = ConditionalRequest.makeETag(size, entry.lastModified);
+		if(ContentEncoding.isCompressible(relativePath) && size >= ServerConfig.compressionMinBytes && size <= ServerConfig.compressionMaxSourceBytes) {
+			writeBodies(entry, Files.readAllBytes(file), true);
+		}
+		else {
+			checkRoom(size);
+			FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				long copied = 0;
+				while(copied < size) {
+					long transferred = out.transferFrom(in, position + copied, size - copied);
+					if(transferred <= 0) {
+						throw new IOException(file + " got shorter while it was packed");
+					}
+					copied += transferred;
+				}
+			} finally {
+				in.close();
+			}
+			entry.bodyOffset = (int) position;
+			entry.bodyLength = (int) size;
+			position += size;
+		}
+		packed.add(entry);
+	}
+	
+	/**
+	 * writeBodies writes a body that is in memory, and its gzipped copy if compress is set and the copy is smaller.
+	 * */
+	private void writeBodies(Packed entry, byte[] body, boolean compress) throws IOException {
+		entry.bodyOffset = (int) position;
+		entry.bodyLength = body.length;
+		write(body);
+		if(compress) {
+			byte[] gzipped = ContentEncoding.gzip(body);
+			if(gzipped.length < body.length) {
+				entry.gzippedOffset = (int) position;
+				entry.gzippedLength = gzipped.length;
+				write(gzipped);
+			}
+		}
+	}
+	
+	private void write(byte[] bytes) throws IOException {
+		checkRoom(bytes.length);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining()) {
+			position += out.write(buffer, position);
+		}
+	}
+	
+	/**
+	 * checkRoom makes sure that every offset in the bundle fits in an int, which is what one mapping of a file can hold.
+	 * */
+	private void checkRoom(long bytes) throws IOException {
+		if(position + bytes > Integer.MAX_VALUE) {
+			throw new IOException("The folder does not fit in one bundle of at most " + Integer.MAX_VALUE + " bytes");
+		}
+	}
+	
+	/**
+	 * writeEntries writes the entries and the path table behind the bodies, and then the header at the start of the file.
+	 * */
+	private void writeEntries() throws IOException {
+		Collections.sort(packed, new Comparator<Packed>() {
+			public int compare(Packed a, Packed b) {
+				int common = Math.min(a.path.length, b.path.length);
+				for(int i = 0; i < common; i++) {
+					int difference = (a.path[i] & 0xff) - (b.path[i] & 0xff);
+					if(difference != 0) {
+						return difference;
+					}
+				}
+				return a.path.length - b.path.length;
+			}
+		});
+		int[] offsets = new int[packed.size()];
+		out.position(position);
+		DataOutputStream entries = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 65536));
+		for(int i = 0; i < offsets.length; i++) {
+			Packed entry = packed.get(i);
+			checkRoom(entries.size());
+			offsets[i] = (int) position + entries.size();
+			entries.writeInt(entry.path.length);
+			entries.write(entry.path);
+			entries.writeByte(entry.kind);
+			entries.writeLong(entry.lastModified);
+			entries.writeInt(entry.bodyOffset);
+			entries.writeInt(entry.bodyLength);
+			entries.writeInt(entry.gzippedOffset);
+			entries.writeInt(entry.gzippedLength);
+			writeAscii(entries, entry.etag);
+			writeAscii(entries, entry.contentType);
+		}
+		long tableOffset = position + entries.size();
+		for(int offset : offsets) {
+			entries.writeInt(offset);
+		}
+		entries.flush();
+		position += entries.size();
+		checkRoom(0);
+		
+		ByteBuffer header = ByteBuffer.allocate(SiteBundle.headerLength);
+		header.putInt(SiteBundle.magic).putInt(SiteBundle.version).putLong(position).putInt(offsets.length).putInt((int) tableOffset);
+		header.flip();
+		while(header.hasRemaining()) {
+			out.write(header, header.position());
+		}
+	}
+	
+	private static void writeAscii(DataOutputStream entries, String text) throws IOException {
+		entries.writeShort(text.length());
+		entries.writeBytes(text);
+	}
+	
+	/**
+	 * Packed class that holds what the entry of one file or folder says until the entries are written.
+	 * */
+	private static class Packed {
+		final byte[] path;
+		final int kind;
+		final long lastModified;
+		final String contentType;
+		String etag;
+		int bodyOffset;
+		int bodyLength;
+		int gzippedOffset = 0;
+		int gzippedLength = -1; //No gzipped copy.
+		
+		Packed(String relativePath, int kind, long lastModified, String contentType) {
+			this.path = relativePath.getBytes(StandardCharsets.UTF_8);
+			this.kind = kind;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+		}
+	}
+}
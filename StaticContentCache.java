@@ -0,0 +1,334 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StaticContentCache class that keeps the bytes of small, popular files in memory so that they do not have to be read from disk again.
+ * 
+ * 1. The cache is bounded by a total size and files larger than the per entry limit are never cached.
+ * 2. When the cache is full the least recently used files are evicted.
+ * 3. An entry is checked against the file's modification time and size (at most once per revalidation interval)
+ *    and reloaded if the file changed on disk.
+ * 4. When several threads miss on the same file at the same time, only one of them reads the file and the others wait for it.
+ * 5. Compressed variants of a file (see ContentEncoding) are cached under their own key and share the same size budget.
+ *    They are checked against the modification time and size of the original file, so a file is only compressed again after it changed.
+ * 
+ * Lookups do not take a lock.  Hits are recorded in a small lossy buffer which is replayed into the LRU order
+ * by whichever thread gets the eviction lock next, so a popular file does not make every thread queue on one lock.
+ * */
+class StaticContentCache {
+	private static final int accessBufferSize = 1024; //Must be a power of two.
+	private static final int drainThreshold = 64; //Replay the access buffer every this many hits.
+	
+	private final long maxTotalBytes;
+	private final long maxEntryBytes;
+	private final long maxCompressSourceBytes;
+	private final long revalidateMillis;
+	private final boolean direct; //Keep the bytes off heap in direct buffers so that socket writes do not need another copy.
+	
+	private final ConcurrentHashMap<String, CachedFile> entries = new ConcurrentHashMap<String, CachedFile>();
+	private final ConcurrentHashMap<String, FutureTask<CachedFile>> loadsInProgress = new ConcurrentHashMap<String, FutureTask<CachedFile>>();
+	
+	//LRU order of the entries.  Only touched while holding evictionLock.
+	private final LinkedHashMap<String, CachedFile> lruOrder = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private long totalBytes = 0; //Guarded by evictionLock.
+	
+	private final AtomicReferenceArray<CachedFile> accessBuffer = new AtomicReferenceArray<CachedFile>(accessBufferSize);
+	private final AtomicLong accessCount = new AtomicLong();
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	StaticContentCache(long maxTotalBytes, long maxEntryBytes, long maxCompressSourceBytes, long revalidateMillis, boolean direct) {
+		this.maxTotalBytes = maxTotalBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxTotalBytes);
+		this.maxCompressSourceBytes = maxCompressSourceBytes;
+		this.revalidateMillis = revalidateMillis;
+		this.direct = direct;
+	}
+	
+	/**
+	 * get method that returns the content of the file as a read only buffer of its own (so callers can consume it freely)
+	 * or null if the file is too large to be cached or cannot be read.  Callers then send the file from disk instead.
+	 * */
+	ByteBuffer get(File file) {
+		return get(file, null);
+	}
+	
+	/**
+	 * get method for a content coding of the file, e.g. "gzip".  The compressed bytes are made from the file on the first request
+	 * and then served from memory.  A null encoding returns the file as it is.
+	 * Compressed variants that end up larger than the per entry limit are returned without being cached.
+	 * */
+	ByteBuffer get(File file, String encoding) {
+		String key = file.getAbsoluteFile().toPath().normalize().toString();
+		if(encoding != null) {
+			key = key + ";" + encoding; //';' cannot end a file name we serve so the variant keys never collide with a real file.
+		}
+		CachedFile cachedFile = entries.get(key);
+		long now = System.currentTimeMillis();
+		
+		if(cachedFile != null && !isStale(cachedFile, file, now)) {
+			hits.increment();
+			recordAccess(cachedFile);
+			return cachedFile.content.duplicate();
+		}
+		
+		if(file.length() > (encoding == null ? maxEntryBytes : maxCompressSourceBytes)) {
+			return null; //Too large to cache so do not bother reading it.
+		}
+		misses.increment();
+		cachedFile = loadOnce(key, file, encoding);
+		return cachedFile == null ? null : cachedFile.content.duplicate();
+	}
+	
+	/**
+	 * isStale checks the modification time and size of the file against the cached copy.
+	 * To save system calls this only happens once every revalidateMillis for each entry.
+	 * */
+	private boolean isStale(CachedFile cachedFile, File file, long now) {
+		if(now - cachedFile.validatedAt < revalidateMillis) {
+			return false;
+		}
+		if(file.lastModified() != cachedFile.lastModified || file.length() != cachedFile.length) {
+			return true;
+		}
+		cachedFile.validatedAt = now;
+		return false;
+	}
+	
+	/**
+	 * loadOnce method that makes sure only one thread reads a given file at a time.
+	 * Threads that miss on a file that is already being loaded wait for that load instead of starting their own.
+	 * */
+	private CachedFile loadOnce(final String key, final File file, final String encoding) {
+		FutureTask<CachedFile> load = new FutureTask<CachedFile>(new Callable<CachedFile>() {
+			public CachedFile call() throws IOException {
+				return encoding == null ? load(key, file) : loadCompressed(key, file, encoding);
+			}
+		});
+		FutureTask<CachedFile> loadInProgress = loadsInProgress.putIfAbsent(key, load);
+		if(loadInProgress == null) {
+			loadInProgress = load;
+			load.run();
+		}
+		try {
+			return loadInProgress.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			//The file went away or cannot be read.  Drop whatever we had cached for it.
+			remove(key);
+			return null;
+		} finally {
+			loadsInProgress.remove(key, loadInProgress);
+		}
+	}
+	
+	/**
+	 * load method that reads the whole file into a buffer and adds it to the cache.
+	 * Returns null without caching anything if the file is larger than the per entry limit.
+	 * */
+	private CachedFile load(String key, File file) throws IOException {
+		long lastModified = file.lastModified();
+		FileChannel fileChannel = new FileInputStream(file).getChannel();
+		try {
+			long length = fileChannel.size();
+			if(length > maxEntryBytes) {
+				remove(key);
+				return null;
+			}
+			ByteBuffer content = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+			while(content.hasRemaining()) {
+				if(fileChannel.read(content) < 0) {
+					break; //The file got shorter while we were reading it.  Cache what is there, it is revalidated later.
+				}
+			}
+			content.flip();
+			CachedFile cachedFile = new CachedFile(key, content.asReadOnlyBuffer(), lastModified, content.limit());
+			put(cachedFile);
+			return cachedFile;
+		} finally {
+			fileChannel.close();
+		}
+	}
+	
+	/**
+	 * loadCompressed method that reads the whole file, compresses it and adds the compressed bytes to the cache.
+	 * The entry remembers the modification time and size of the original file so that it is revalidated against that file.
+	 * */
+	private CachedFile loadCompressed(String key, File file, String encoding) throws IOException {
+		if(!ContentEncoding.gzip.equals(encoding)) {
+			throw new IOException("Cannot encode " + encoding); //Other codings are only served from precompressed files.
+		}
+		long lastModified = file.lastModified();
+		FileChannel fileChannel = new FileInputStream(file).getChannel();
+		byte[] source;
+		int sourceLength = 0;
+		try {
+			long length = fileChannel.size();
+			if(length > maxCompressSourceBytes) {
+				remove(key);
+				return null;
+			}
+			source = new byte[(int) length];
+			ByteBuffer sourceBuffer = ByteBuffer.wrap(source);
+			while(sourceBuffer.hasRemaining() && fileChannel.read(sourceBuffer) >= 0) {
+				//Keep reading.  If the file got shorter we compress what is there, it is revalidated later.
+			}
+			sourceLength = sourceBuffer.position();
+		} finally {
+			fileChannel.close();
+		}
+		byte[] compressed = ContentEncoding.gzip(source, 0, sourceLength);
+		ByteBuffer content = direct ? ByteBuffer.allocateDirect(compressed.length) : ByteBuffer.allocate(compressed.length);
+		content.put(compressed);
+		content.flip();
+		CachedFile cachedFile = new CachedFile(key, content.asReadOnlyBuffer(), lastModified, sourceLength);
+		if(compressed.length <= maxEntryBytes) {
+			put(cachedFile);
+		}
+		else {
+			remove(key);
+		}
+		return cachedFile;
+	}
+	
+	/**
+	 * put method that adds an entry (replacing any older copy) and evicts least recently used entries until the cache fits again.
+	 * */
+	private void put(CachedFile cachedFile) {
+		evictionLock.lock();
+		try {
+			drainAccessBuffer();
+			entries.put(cachedFile.key, cachedFile);
+			CachedFile replaced = lruOrder.put(cachedFile.key, cachedFile);
+			if(replaced != null) {
+				totalBytes -= replaced.size();
+			}
+			totalBytes += cachedFile.size();
+			
+			Iterator<Map.Entry<String, CachedFile>> eldest = lruOrder.entrySet().iterator();
+			while(totalBytes > maxTotalBytes && eldest.hasNext()) {
+				CachedFile evicted = eldest.next().getValue();
+				eldest.remove();
+				entries.remove(evicted.key, evicted);
+				totalBytes -= evicted.size();
+				evictions.increment();
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	private void remove(String key) {
+		evictionLock.lock();
+		try {
+			CachedFile removed = lruOrder.remove(key);
+			if(removed != null) {
+				entries.remove(key, removed);
+				totalBytes -= removed.size();
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	/**
+	 * recordAccess method that notes a hit in the lossy access buffer.  If the buffer wraps around before it is drained
+	 * some hits are lost, which only makes the LRU order a little less exact.
+	 * */
+	private void recordAccess(CachedFile cachedFile) {
+		long count = accessCount.getAndIncrement();
+		accessBuffer.lazySet((int) (count & (accessBufferSize - 1)), cachedFile);
+		if((count & (drainThreshold - 1)) == 0 && evictionLock.tryLock()) {
+			try {
+				drainAccessBuffer();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Replays the recorded hits into the LRU order.  Must be called while holding evictionLock.
+	 * */
+	private void drainAccessBuffer() {
+		for(int i = 0; i < accessBufferSize; i++) {
+			CachedFile accessed = accessBuffer.getAndSet(i, null);
+			if(accessed != null) {
+				lruOrder.get(accessed.key); //In an access ordered LinkedHashMap, get() moves the entry to the back of the LRU order.
+			}
+		}
+	}
+	
+	long getHits() {
+		return hits.sum();
+	}
+	
+	long getMisses() {
+		return misses.sum();
+	}
+	
+	long getEvictions() {
+		return evictions.sum();
+	}
+	
+	int getEntryCount() {
+		return entries.size();
+	}
+	
+	long getTotalBytes() {
+		evictionLock.lock();
+		try {
+			return totalBytes;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	public String toString() {
+		return "Content cache stats: entries=" + getEntryCount() + " bytes=" + getTotalBytes()
+				+ " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+	}
+	
+	/**
+	 * CachedFile class that holds the bytes of one file together with what we need to tell whether it is still current.
+	 * For a compressed variant, lastModified and length belong to the original file.
+	 * */
+	private static class CachedFile {
+		final String key;
+		final ByteBuffer content;
+		final long lastModified;
+		final long length;
+		volatile long validatedAt = System.currentTimeMillis();
+		
+		CachedFile(String key, ByteBuffer content, long lastModified, long length) {
+			this.key = key;
+			this.content = content;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+		
+		//Number of bytes this entry counts against the cache size.
+		int size() {
+			return content.capacity();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * StreamingBody interface for a response body that is produced while it is being sent, so its length is not known up front.
+ * HttpResponse sends it with "Transfer-Encoding: chunked" to HTTP/1.1 clients and until the connection closes to HTTP/1.0 clients,
+ * and Http2Connection sends it as DATA frames as it comes.
+ * 
+ * The connection pulls the bytes with read, which never blocks.  When nothing is ready yet it asks to be told with whenReadable,
+ * so an event loop can serve other connections in the meantime and a blocking worker can simply wait.
+ * Bodies so far: ResponseStream (written by a dynamic handler on another thread), FolderListingBody and ContentEncoding.GzipBody.
+ * */
+interface StreamingBody {
+	/**
+	 * read method that copies the next bytes of the body into dst.  Returns the number of bytes copied,
+	 * 0 if none are ready yet, or -1 once the whole body has been read.
+	 * An IOException means that the body broke off and the response cannot be finished.
+	 * */
+	int read(ByteBuffer dst) throws IOException;
+	
+	/**
+	 * whenReadable method that runs the callback exactly once, as soon as read would return something other than 0.
+	 * That may be right away on the calling thread or later on the thread that produces the body.
+	 * */
+	void whenReadable(Runnable callback);
+	
+	/**
+	 * discard method that is called once the connection no longer needs the body, because it was sent or the connection went away.
+	 * The body releases whatever it holds and a producer that is still writing gets an IOException.
+	 * */
+	void discard();
+}
@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TlsChannel class that puts TLS between a non-blocking socket and a NioConnection.
+ * It is a channel like the socket itself: read returns decrypted bytes and write encrypts, so the RequestParser and
+ * HttpResponse.writeTo work on it unchanged (file bodies are read in pieces and encrypted instead of going out with sendfile).
+ * The handshake is driven by the reads and writes, and like the socket, a call never blocks:
+ * read returns 0 when the next record has not arrived completely, and write returns 0 when the socket takes no more.
+ * 
+ * Three buffers are needed while bytes are in flight: the encrypted bytes read from the socket, the decrypted bytes that the
+ * connection has not taken yet, and the encrypted bytes on their way to the socket.  They come from the pools in TlsContext
+ * and go back as soon as they are empty.
+ * 
+ * The caller must:
+ * 1. call flush once it has written everything and wait for OP_WRITE while it returns false, because write may keep
+ *    encrypted bytes back until the socket has room for them (hasPendingOutput),
+ * 2. read again without waiting for OP_READ while hasBufferedInput says that decrypted bytes did not fit into its buffer.
+ * 
+ * The delegated tasks of the handshake (the key exchange and the signature) run on the calling event loop thread.
+ * A resumed session skips most of that work.
+ * All methods are called from the connection's event loop thread only.
+ * */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+	private static final ByteBuffer[] nothing = {ByteBuffer.allocate(0)};
+	
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final TlsContext context;
+	private ByteBuffer netIn; //Encrypted bytes read from the socket and not decrypted yet, in read mode.  Null while empty.
+	private ByteBuffer appIn; //Decrypted bytes not handed out yet, in read mode.  Null while empty.
+	private ByteBuffer netOut; //Encrypted bytes not written to the socket yet, in read mode.  Null while empty.
+	private boolean needsMoreInput = true; //Set when netIn does not hold a whole record.
+	private boolean inboundClosed = false; //Set when the client sent close_notify or closed the socket.
+	
+	TlsChannel(SocketChannel channel, TlsContext context) {
+		this.channel = channel;
+		this.context = context;
+		this.engine = context.newEngine();
+	}
+	
+	/**
+	 * read method that copies decrypted bytes into dst, as many as there are and as fit.
+	 * Returns 0 if no whole record has arrived yet and -1 once the client has closed its side.
+	 * */
+	public int read(ByteBuffer dst) throws IOException {
+		int copied = 0;
+		while(dst.hasRemaining()) {
+			if(appIn != null) {
+				copied += copy(appIn, dst);
+				if(!appIn.hasRemaining()) {
+					context.inboundBuffers.release(appIn);
+					appIn = null;
+				}
+				continue;
+			}
+			if(inboundClosed || !handshake()) {
+				break; //Nothing more will come, or our part of the handshake waits for room in the socket.
+			}
+			if(!needsMoreInput) {
+				unwrap();
+				continue;
+			}
+			int bytesRead = readFromSocket();
+			if(bytesRead < 0) {
+				inboundClosed = true;
+				break;
+			}
+			if(bytesRead == 0) {
+				break;
+			}
+		}
+		flush(); //Handshake messages made while reading.
+		if(netIn != null && !netIn.hasRemaining()) {
+			context.inboundBuffers.release(netIn);
+			netIn = null;
+		}
+		return copied == 0 && inboundClosed ? -1 : copied;
+	}
+	
+	/**
+	 * hasBufferedInput tells whether decrypted (or decryptable) bytes are waiting that the last read could not hand out.
+	 * The socket does not signal these again, so the caller has to read them without waiting for OP_READ.
+	 * */
+	boolean hasBufferedInput() {
+		return appIn != null || (netIn != null && !needsMoreInput);
+	}
+	
+	private int readFromSocket() throws IOException {
+		if(netIn == null) {
+			netIn = context.inboundBuffers.acquire();
+			netIn.flip();
+		}
+		if(netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+			//A record bigger than the buffer.  Only happens if the client sends larger records than it announced.
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * netIn.capacity(), engine.getSession().getPacketBufferSize()));
+			larger.put(netIn);
+			larger.flip();
+			netIn = larger;
+		}
+		netIn.compact();
+		int bytesRead;
+		try {
+			bytesRead = channel.read(netIn);
+		} finally {
+			netIn.flip();
+		}
+		if(bytesRead > 0) {
+			needsMoreInput = false;
+		}
+		return bytesRead;
+	}
+	
+	/**
+	 * unwrap decrypts the next record of netIn into appIn.  Handshake records leave appIn empty.
+	 * */
+	private void unwrap() throws SSLException {
+		ByteBuffer decrypted = context.inboundBuffers.acquire();
+		SSLEngineResult result = engine.unwrap(netIn, decrypted);
+		if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			//The session allows larger records than the pooled buffers hold.
+			decrypted = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+			result = engine.unwrap(netIn, decrypted);
+		}
+		decrypted.flip();
+		if(decrypted.hasRemaining()) {
+			appIn = decrypted;
+		}
+		else {
+			context.inboundBuffers.release(decrypted);
+		}
+		switch(result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				needsMoreInput = true;
+				break;
+			case CLOSED:
+				inboundClosed = true;
+				break;
+			default:
+				needsMoreInput = !netIn.hasRemaining();
+		}
+	}
+	
+	private static int copy(ByteBuffer from, ByteBuffer to) {
+		int length = Math.min(from.remaining(), to.remaining());
+		ByteBuffer part = from.duplicate();
+		part.limit(part.position() + length);
+		to.put(part);
+		from.position(from.position() + length);
+		return length;
+	}
+	
+	/**
+	 * handshake runs the steps of the handshake that do not need bytes from the client: the delegated tasks and our messages.
+	 * Returns false if our messages wait for room in the socket.
+	 * */
+	private boolean handshake() throws IOException {
+		while(true) {
+			SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+			if(status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+			}
+			else if(status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+				if(wrap(nothing, 0, 1) < 0) {
+					return false;
+				}
+			}
+			else {
+				return true;
+			}
+		}
+	}
+	
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] {src}, 0, 1);
+	}
+	
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+	
+	/**
+	 * write method that encrypts as much of srcs as the output buffer takes, and sends what it can.
+	 * Returns the number of bytes taken from srcs, 0 if the socket is full.
+	 * */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if(!handshake()) {
+			return 0;
+		}
+		long taken = 0;
+		while(hasRemaining(srcs, offset, length)) {
+			int consumed = wrap(srcs, offset, length);
+			if(consumed <= 0) {
+				break; //The socket is full, or the handshake is not finished (the server only answers after it is).
+			}
+			taken += consumed;
+		}
+		flush();
+		return taken;
+	}
+	
+	private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+		for(int i = offset; i < offset + length; i++) {
+			if(buffers[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * wrap encrypts one record from srcs into netOut.  When netOut is full it is flushed first.
+	 * Returns the number of bytes taken from srcs, or -1 if netOut is full and the socket does not take any of it.
+	 * */
+	private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if(netOut == null) {
+			netOut = context.outboundBuffers.acquire();
+			netOut.flip();
+		}
+		while(true) {
+			netOut.compact();
+			SSLEngineResult result;
+			try {
+				result = engine.wrap(srcs, offset, length, netOut);
+			} finally {
+				netOut.flip();
+			}
+			if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new ClosedChannelException();
+			}
+			if(result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				return result.bytesConsumed();
+			}
+			if(netOut.hasRemaining()) {
+				if(!flush()) {
+					return -1;
+				}
+				netOut = context.outboundBuffers.acquire();
+				netOut.flip();
+			}
+			else {
+				//Empty and still too small: the session allows larger records than the pooled buffers hold.
+				netOut = ByteBuffer.allocate(2 * engine.getSession().getPacketBufferSize());
+				netOut.flip();
+			}
+		}
+	}
+	
+	/**
+	 * flush writes the encrypted bytes that are waiting to the socket.  Returns true when none are left.
+	 * */
+	boolean flush() throws IOException {
+		if(netOut == null) {
+			return true;
+		}
+		while(netOut.hasRemaining()) {
+			if(channel.write(netOut) == 0) {
+				return false;
+			}
+		}
+		context.outboundBuffers.release(netOut);
+		netOut = null;
+		return true;
+	}
+	
+	/**
+	 * hasPendingOutput tells whether encrypted bytes wait for room in the socket, so that the caller asks for OP_WRITE.
+	 * */
+	boolean hasPendingOutput() {
+		return netOut != null && netOut.hasRemaining();
+	}
+	
+	/**
+	 * getApplicationProtocol returns the protocol agreed with ALPN, see TlsContext.applicationProtocol.
+	 * */
+	String getApplicationProtocol() {
+		return TlsContext.applicationProtocol(engine);
+	}
+	
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+	
+	/**
+	 * close method that sends close_notify if the socket takes it right away, and closes the socket.
+	 * */
+	public void close() throws IOException {
+		try {
+			engine.closeOutbound();
+			if(!hasPendingOutput()) {
+				wrap(nothing, 0, 1);
+				flush();
+			}
+		} catch (IOException e) {
+			//The client is gone or the session broke.  Nobody waits for our close_notify then.
+		} finally {
+			if(netOut != null) {
+				context.outboundBuffers.release(netOut);
+				netOut = null;
+			}
+			if(netIn != null) {
+				context.inboundBuffers.release(netIn);
+				netIn = null;
+			}
+			if(appIn != null) {
+				context.inboundBuffers.release(appIn);
+				appIn = null;
+			}
+			channel.close();
+		}
+	}
+}
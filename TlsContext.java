@@ -0,0 +1,189 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TlsContext class that holds what all the HTTPS connections share (see TlsChannel):
+ * 
+ * 1. The SSLContext with the server's certificate and key from -Dserver.tls.keyStore.
+ * 2. The session cache of that context, so that a returning client resumes its session with an abbreviated handshake
+ *    instead of a full one (no certificate, no signature).  TLS 1.3 clients get stateless session tickets
+ *    (jdk.tls.server.enableSessionTicketExtension) so that resuming works even after the cache dropped the session.
+ * 3. The application protocols offered with ALPN.  Only protocols the non-blocking path can serve are offered,
+ *    which is "http/1.1" and "http/1.0" for now.  HTTP/2 (Http2Connection) runs on the blocking path and is left out until it runs here too.
+ * 4. Pools of the buffers that records are encrypted into and decrypted from.  A connection takes buffers from the pools
+ *    while it has bytes in flight and gives them back as soon as they are empty, so idle keep-alive connections hold none.
+ * 
+ * ALPN only exists in Java 9 and later (and late Java 8 updates), so it is looked up by reflection like SO_REUSEPORT in ServerListeners.
+ * */
+class TlsContext {
+	private static final Method setApplicationProtocols = findMethod(SSLParameters.class, "setApplicationProtocols", String[].class);
+	private static final Method getApplicationProtocol = findMethod(SSLEngine.class, "getApplicationProtocol");
+	
+	private final SSLContext sslContext;
+	private final String[] protocols; //TLS versions, or null for the JVM's defaults.
+	private final String[] applicationProtocols;
+	final BufferPool inboundBuffers; //For bytes read from the socket and for the decrypted bytes, one TLS record each.
+	final BufferPool outboundBuffers; //For encrypted bytes on their way to the socket, room for a few records.
+	
+	private TlsContext(SSLContext sslContext, String[] protocols, String[] applicationProtocols) {
+		this.sslContext = sslContext;
+		this.protocols = protocols;
+		this.applicationProtocols = applicationProtocols;
+		int packetSize = sslContext.createSSLEngine().getSession().getPacketBufferSize();
+		inboundBuffers = new BufferPool(packetSize, ServerConfig.tlsBufferPoolSize);
+		outboundBuffers = new BufferPool(2 * packetSize, ServerConfig.tlsBufferPoolSize);
+	}
+	
+	/**
+	 * create method that loads the key store and sets up the SSLContext from the -Dserver.tls settings.
+	 * Throws if the key store cannot be used, because a server that was asked for HTTPS should not start without it.
+	 * */
+	static TlsContext create() throws IOException, GeneralSecurityException {
+		if(ServerConfig.tlsKeyStore == null) {
+			throw new IOException("HTTPS needs a key store with the server's certificate, e.g. -Dserver.tls.keyStore=server.p12");
+		}
+		if(System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			//Read by the JDK when TLS is first used, so it has to be set before the SSLContext is made.
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(ServerConfig.tlsSessionTickets));
+		}
+		char[] password = ServerConfig.tlsKeyStorePassword.toCharArray();
+		KeyStore keyStore = KeyStore.getInstance(ServerConfig.tlsKeyStoreType);
+		InputStream in = new FileInputStream(ServerConfig.tlsKeyStore);
+		try {
+			keyStore.load(in, password);
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password);
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagers.getKeyManagers(), null, null);
+		
+		SSLSessionContext sessions = sslContext.getServerSessionContext();
+		sessions.setSessionCacheSize(ServerConfig.tlsSessionCacheSize);
+		sessions.setSessionTimeout(ServerConfig.tlsSessionTimeout);
+		
+		String[] protocols = ServerConfig.tlsProtocols == null ? null : ServerConfig.tlsProtocols.split("\\s*,\\s*");
+		return new TlsContext(sslContext, protocols, servableApplicationProtocols(ServerConfig.tlsApplicationProtocols));
+	}
+	
+	/**
+	 * servableApplicationProtocols picks the ALPN protocols out of the setting that a TLS connection can be served with.
+	 * */
+	private static String[] servableApplicationProtocols(String setting) {
+		ArrayList<String> servable = new ArrayList<String>();
+		for(String protocol : setting.split("\\s*,\\s*")) {
+			if(protocol.equals("http/1.1") || protocol.equals("http/1.0")) {
+				servable.add(protocol);
+			}
+			else if(!protocol.isEmpty()) {
+				System.out.println("Not offering " + protocol + " with ALPN: HTTPS connections are served with HTTP/1.x only.");
+			}
+		}
+		if(servable.isEmpty()) {
+			servable.add("http/1.1");
+		}
+		return servable.toArray(new String[servable.size()]);
+	}
+	
+	/**
+	 * newEngine returns the SSLEngine for a new connection, in server mode and with the configured versions and ALPN protocols.
+	 * The server's preference order of the cipher suites wins over the client's.
+	 * */
+	SSLEngine newEngine() {
+		SSLEngine engine = sslContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		SSLParameters parameters = engine.getSSLParameters();
+		if(protocols != null) {
+			parameters.setProtocols(protocols);
+		}
+		parameters.setUseCipherSuitesOrder(true);
+		if(setApplicationProtocols != null) {
+			try {
+				setApplicationProtocols.invoke(parameters, (Object) applicationProtocols);
+			} catch (ReflectiveOperationException e) {
+				//Without ALPN the client simply assumes HTTP/1.1.
+			}
+		}
+		engine.setSSLParameters(parameters);
+		return engine;
+	}
+	
+	/**
+	 * applicationProtocol returns the protocol that ALPN settled on for a connection, "" if the client did not ask, or null if the
+	 * handshake is not done yet or the JVM has no ALPN.
+	 * */
+	static String applicationProtocol(SSLEngine engine) {
+		if(getApplicationProtocol == null) {
+			return null;
+		}
+		try {
+			return (String) getApplicationProtocol.invoke(engine);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	private static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+		try {
+			return type.getMethod(name, parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * BufferPool class that hands out buffers of one size and takes them back for reuse.  Used by the event loops of all listeners at once.
+	 * At most maxFree buffers are kept.  Buffers of another size (a record bigger than usual made a connection grow one) are not taken back.
+	 * */
+	static class BufferPool {
+		final int bufferSize;
+		private final int maxFree;
+		private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicInteger freeCount = new AtomicInteger();
+		
+		BufferPool(int bufferSize, int maxFree) {
+			this.bufferSize = bufferSize;
+			this.maxFree = maxFree;
+		}
+		
+		/**
+		 * acquire returns an empty buffer in write mode (position 0, limit at the capacity).
+		 * */
+		ByteBuffer acquire() {
+			ByteBuffer buffer = free.poll();
+			if(buffer == null) {
+				//Heap buffers, because the JDK's ciphers work on arrays and would copy direct buffers anyway.
+				return ByteBuffer.allocate(bufferSize);
+			}
+			freeCount.decrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+		
+		void release(ByteBuffer buffer) {
+			if(buffer.capacity() != bufferSize) {
+				return;
+			}
+			if(freeCount.incrementAndGet() > maxFree) {
+				freeCount.decrementAndGet(); //The pool is full, the garbage collector takes this one.
+				return;
+			}
+			free.offer(buffer);
+		}
+	}
+}
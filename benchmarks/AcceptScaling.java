@@ -0,0 +1,246 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * AcceptScaling class that measures how the number of new connections per second grows with the number of cores the server gets.
+ * 
+ * Compile it with the other benchmarks (javac -d out *.java benchmarks/*.java) and run it with, for example:
+ * 
+ * > java -cp out AcceptScaling                                         (1, 2, 4... cores up to half of this machine)
+ * > java -cp out -Dscale.cores=1,2,4,8,16 -Dscale.mode=blocking AcceptScaling
+ * 
+ * For every core count n the server is started in its own JVM, pinned to cores 0 to n-1 with taskset (on Linux, when taskset
+ * is installed), once with n SO_REUSEPORT listeners (-Dserver.listeners=n) and once with the single acceptor thread feeding
+ * n event loops, the way the server worked before.  The clients open a connection, send one request with "Connection: close",
+ * read the response to the end and start over, so every request pays for an accept().
+ * The clients run in this JVM and should get the cores the server does not use, e.g. with taskset -c 8-15 java ... AcceptScaling.
+ * 
+ * Settings (all optional):
+ * -Dscale.cores=1,2,4        core counts to measure, by default powers of two up to half of the available processors
+ * -Dscale.mode=nio           server mode, nio or blocking
+ * -Dscale.clients=32         client threads
+ * -Dscale.duration=10        seconds measured for every run
+ * -Dscale.warmup=3           seconds run before measuring
+ * -Dscale.pin=true           pin the server with taskset when it is available
+ * -Dscale.port=2542          port of the server
+ * -Dscale.path=/small.html   path that is requested
+ * -Dscale.out=scale.jsonl    append one JSON line per run, for comparing machines or commits
+ * */
+class AcceptScaling {
+	private final String path;
+	private volatile long measureStartNanos;
+	private volatile long endNanos;
+	
+	AcceptScaling(String path) {
+		this.path = path;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		String mode = System.getProperty("scale.mode", "nio");
+		int clients = Integer.getInteger("scale.clients", 32);
+		int durationSeconds = Integer.getInteger("scale.duration", 10);
+		int warmupSeconds = Integer.getInteger("scale.warmup", 3);
+		int port = Integer.getInteger("scale.port", 2542);
+		String path = System.getProperty("scale.path", "/" + BenchmarkFixtures.smallFile);
+		boolean pin = !"false".equalsIgnoreCase(System.getProperty("scale.pin")) && new File("/usr/bin/taskset").canExecute();
+		int[] coreCounts = parseCoreCounts(System.getProperty("scale.cores"));
+		if(!"nio".equals(mode) && !"blocking".equals(mode)) {
+			System.err.println("Unknown -Dscale.mode=" + mode + ", use nio or blocking");
+			System.exit(2);
+		}
+		if(!pin) {
+			System.out.println("Not pinning the server to cores (taskset is not available or -Dscale.pin=false), so every run can use all of them.");
+		}
+		
+		BenchmarkFixtures fixtures = BenchmarkFixtures.create(new int[0]);
+		AcceptScaling benchmark = new AcceptScaling(path);
+		ArrayList<String> results = new ArrayList<String>();
+		double[] baseline = new double[2]; //Connections per second on the first core count, for the speedup column.
+		System.out.println(String.format(Locale.US, "%-6s %-12s %14s %9s %8s", "Cores", "Accept", "Connections/s", "Speedup", "Errors"));
+		try {
+			for(int cores : coreCounts) {
+				for(int variant = 0; variant < 2; variant++) {
+					boolean reusePort = variant == 0;
+					Process server = startServer(fixtures, port, mode, cores, reusePort, pin);
+					try {
+						waitForServer(port, server);
+						long[] counts = benchmark.run(port, clients, warmupSeconds, durationSeconds);
+						double perSecond = (double) counts[0] / durationSeconds;
+						if(baseline[variant] == 0) {
+							baseline[variant] = perSecond;
+						}
+						String accept = reusePort ? "reuseport" : "1 acceptor";
+						System.out.println(String.format(Locale.US, "%-6d %-12s %14.1f %8.2fx %8d", cores, accept, perSecond, perSecond / baseline[variant], counts[1]));
+						results.add(String.format(Locale.US, "{\"mode\":\"%s\",\"cores\":%d,\"accept\":\"%s\",\"clients\":%d,\"durationSeconds\":%d,"
+								+ "\"connections\":%d,\"errors\":%d,\"connectionsPerSecond\":%.1f,\"pinned\":%b,\"timestamp\":%d}",
+								mode, cores, reusePort ? "reuseport" : "single", clients, durationSeconds, counts[0], counts[1], perSecond, pin, System.currentTimeMillis()));
+					} finally {
+						server.destroy();
+						server.waitFor();
+					}
+				}
+			}
+		} finally {
+			fixtures.delete();
+		}
+		
+		String outputFile = System.getProperty("scale.out");
+		if(outputFile != null) {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile, true), StandardCharsets.UTF_8));
+			try {
+				for(String result : results) {
+					out.println(result);
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+	/**
+	 * startServer starts MyWebServer in a new JVM with this JVM's class path, serving the fixture tree.
+	 * With reusePort the server gets one listener per core, otherwise one listener and one event loop (or share of the workers) per core.
+	 * */
+	private static Process startServer(BenchmarkFixtures fixtures, int port, String mode, int cores, boolean reusePort, boolean pin) throws IOException {
+		ArrayList<String> command = new ArrayList<String>();
+		if(pin) {
+			command.add("/usr/bin/taskset");
+			command.add("-c");
+			command.add(cores == 1 ? "0" : "0-" + (cores - 1));
+		}
+		command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-XX:ActiveProcessorCount=" + cores); //So that the JIT and GC threads are sized for the cores the server gets.
+		command.add("-Dserver.root=" + fixtures.root);
+		command.add("-Dserver.port=" + port);
+		command.add("-Dserver.mode=" + mode);
+		command.add("-Dserver.log.access=false");
+		command.add("-Dserver.backlog=1024");
+		command.add("-Dserver.listeners=" + (reusePort ? cores : 1));
+		command.add("-Dserver.eventLoops=" + cores);
+		command.add("MyWebServer");
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(System.getProperty("java.io.tmpdir"), "accept-scaling-server.log"));
+		return builder.start();
+	}
+	
+	private static void waitForServer(int port, Process server) throws InterruptedException {
+		for(int attempt = 0; ; attempt++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				if(attempt == 100 || !isAlive(server)) {
+					throw new IllegalStateException("The server did not start on port " + port + ", see accept-scaling-server.log in " + System.getProperty("java.io.tmpdir"), e);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+	
+	private static boolean isAlive(Process process) {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * run method that lets the client threads connect over and over and returns the connections and errors of the measured time.
+	 * */
+	long[] run(final int port, int clients, int warmupSeconds, int durationSeconds) throws InterruptedException {
+		measureStartNanos = System.nanoTime() + warmupSeconds * 1000000000L;
+		endNanos = measureStartNanos + durationSeconds * 1000000000L;
+		final long[][] counts = new long[clients][2];
+		Thread[] threads = new Thread[clients];
+		for(int i = 0; i < clients; i++) {
+			final long[] clientCounts = counts[i];
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					connectLoop(port, clientCounts);
+				}
+			}, "connect-" + i);
+			threads[i].start();
+		}
+		long[] total = new long[2];
+		for(int i = 0; i < clients; i++) {
+			threads[i].join();
+			total[0] += counts[i][0];
+			total[1] += counts[i][1];
+		}
+		return total;
+	}
+	
+	private void connectLoop(int port, long[] counts) {
+		byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		byte[] response = new byte[8192];
+		InetSocketAddress address = new InetSocketAddress("localhost", port);
+		while(true) {
+			long now = System.nanoTime();
+			if(now >= endNanos) {
+				return;
+			}
+			boolean measured = now >= measureStartNanos;
+			boolean ok = false;
+			try {
+				Socket socket = new Socket();
+				try {
+					socket.setSoTimeout(10000);
+					socket.connect(address, 10000);
+					OutputStream out = socket.getOutputStream();
+					out.write(request);
+					out.flush();
+					InputStream in = socket.getInputStream();
+					int total = 0;
+					int bytesRead;
+					while((bytesRead = in.read(response, Math.min(total, 12), response.length - Math.min(total, 12))) > 0) {
+						total += bytesRead; //Only the start of the status line is kept.
+					}
+					ok = total >= 12 && new String(response, 0, 12, StandardCharsets.ISO_8859_1).equals("HTTP/1.1 200");
+				} finally {
+					socket.close();
+				}
+			} catch (IOException e) {
+				ok = false;
+			}
+			if(measured) {
+				counts[ok ? 0 : 1]++;
+			}
+		}
+	}
+	
+	private static int[] parseCoreCounts(String coreList) {
+		if(coreList == null) {
+			ArrayList<Integer> counts = new ArrayList<Integer>();
+			int half = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+			for(int cores = 1; cores <= half; cores *= 2) {
+				counts.add(cores);
+			}
+			int[] result = new int[counts.size()];
+			for(int i = 0; i < result.length; i++) {
+				result[i] = counts.get(i);
+			}
+			return result;
+		}
+		String[] parts = coreList.split(",");
+		int[] result = new int[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			result[i] = Integer.parseInt(parts[i].trim());
+		}
+		return result;
+	}
+}
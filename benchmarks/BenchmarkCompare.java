@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * BenchmarkCompare class that compares two result files of ServerBenchmarks, e.g. from the commit before and after a change:
+ * 
+ * > java -cp out BenchmarkCompare before.jsonl after.jsonl [threshold percent, default 10]
+ * 
+ * It prints the change of the score and of the allocation for every benchmark that is in both files.
+ * A benchmark counts as a regression when its score dropped by more than the threshold and by more than
+ * both error bars together, so that noise alone does not fail the comparison.
+ * The exit code is 1 if there is a regression, so the comparison can gate a build script.
+ * */
+class BenchmarkCompare {
+	private static final Pattern benchmarkField = Pattern.compile("\"benchmark\":\"((?:[^\"\\\\]|\\\\.)*)\"");
+	private static final Pattern paramsField = Pattern.compile("\"params\":\"((?:[^\"\\\\]|\\\\.)*)\"");
+	private static final Pattern scoreField = Pattern.compile("\"score\":([-0-9.eE]+)");
+	private static final Pattern errorField = Pattern.compile("\"scoreError\":([-0-9.eE]+)");
+	private static final Pattern allocationField = Pattern.compile("\"allocBytesPerOp\":([-0-9.eE]+)");
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: java BenchmarkCompare <before.jsonl> <after.jsonl> [threshold percent]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+		LinkedHashMap<String, double[]> before = readResults(args[0]);
+		LinkedHashMap<String, double[]> after = readResults(args[1]);
+		
+		int regressions = 0;
+		System.out.println(String.format(Locale.US, "%-62s %16s %16s %9s %12s", "Benchmark", "Before ops/s", "After ops/s", "Change", "Alloc B/op"));
+		for(String key : after.keySet()) {
+			double[] old = before.get(key);
+			if(old == null) {
+				continue;
+			}
+			double[] now = after.get(key);
+			double change = (now[0] - old[0]) / old[0] * 100;
+			boolean regression = change < -threshold && old[0] - now[0] > old[1] + now[1];
+			if(regression) {
+				regressions++;
+			}
+			System.out.println(String.format(Locale.US, "%-62s %16.1f %16.1f %+8.1f%% %5.0f->%-6.0f%s",
+					key, old[0], now[0], change, old[2], now[2], regression ? "  REGRESSION" : ""));
+		}
+		System.out.println(regressions == 0 ? "No regressions." : regressions + " regression(s) beyond " + threshold + "%.");
+		System.exit(regressions == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * readResults reads a result file into a map from "benchmark params" to {score, score error, allocated bytes per operation}.
+	 * Lines without a benchmark field, like the line that describes the run, are skipped.
+	 * */
+	private static LinkedHashMap<String, double[]> readResults(String fileName) throws IOException {
+		LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+		for(String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+			String benchmark = find(benchmarkField, line);
+			if(benchmark == null) {
+				continue;
+			}
+			String params = find(paramsField, line);
+			String key = params == null || params.isEmpty() ? benchmark : benchmark + " " + params;
+			results.put(key, new double[] {parse(find(scoreField, line)), parse(find(errorField, line)), parse(find(allocationField, line))});
+		}
+		return results;
+	}
+	
+	private static String find(Pattern field, String line) {
+		Matcher matcher = field.matcher(line);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+	
+	private static double parse(String number) {
+		return number == null ? 0 : Double.parseDouble(number);
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * BenchmarkFixtures class that generates the document root the benchmarks run against, in a temporary folder:
+ * 
+ * 1. small.html (about 1 KB) and large.txt (about 256 KB) made of short text lines like a typical page.
+ * 2. One folder per listing size, e.g. dir-1000 with 1000 entries.  Every 100th entry is a folder, the rest are empty files.
+ * 
+ * The tree is deleted again when the benchmarks are done unless -Dbench.keepFixtures=true is given.
+ * */
+class BenchmarkFixtures {
+	static final String smallFile = "small.html";
+	static final String largeFile = "large.txt";
+	
+	final Path root;
+	
+	private BenchmarkFixtures(Path root) {
+		this.root = root;
+	}
+	
+	/**
+	 * create method that builds the fixture tree with a folder for every listing size.
+	 * */
+	static BenchmarkFixtures create(int[] folderSizes) throws IOException {
+		BenchmarkFixtures fixtures = new BenchmarkFixtures(Files.createTempDirectory("webserver-bench").toRealPath());
+		writeTextFile(fixtures.root.resolve(smallFile), 1024);
+		writeTextFile(fixtures.root.resolve(largeFile), 256 * 1024);
+		for(int folderSize : folderSizes) {
+			Path folder = Files.createDirectory(fixtures.getFolder(folderSize));
+			for(int i = 0; i < folderSize; i++) {
+				Path entry = folder.resolve(String.format("entry-%06d%s", i, i % 100 == 99 ? "" : ".txt"));
+				if(i % 100 == 99) {
+					Files.createDirectory(entry);
+				}
+				else {
+					Files.createFile(entry);
+				}
+			}
+		}
+		return fixtures;
+	}
+	
+	Path getFolder(int folderSize) {
+		return root.resolve("dir-" + folderSize);
+	}
+	
+	File getFile(String name) {
+		return root.resolve(name).toFile();
+	}
+	
+	/**
+	 * writeTextFile fills a file with numbered lines of text until it has the given size.
+	 * */
+	private static void writeTextFile(Path file, int size) throws IOException {
+		StringBuilder text = new StringBuilder(size + 100);
+		for(int line = 1; text.length() < size; line++) {
+			text.append("<p>Line ").append(line).append(" of the benchmark fixture, some ordinary text to read.</p>\n");
+		}
+		text.setLength(size);
+		Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * delete method that removes the whole fixture tree.
+	 * */
+	void delete() throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			public FileVisitResult postVisitDirectory(Path folder, IOException e) throws IOException {
+				Files.delete(folder);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
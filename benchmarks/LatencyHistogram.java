@@ -0,0 +1,96 @@
+/**
+ * LatencyHistogram class that counts latencies in log-linear buckets, like HdrHistogram does:
+ * every power of two range of microseconds is split into 64 equal buckets, so a percentile read back from the histogram
+ * is within about 1.5% of the latency that was measured, from a microsecond up to over an hour, in a few KB of counters.
+ * 
+ * Not thread safe.  Each load generator thread records into its own histogram and they are added together at the end.
+ * */
+class LatencyHistogram {
+	private static final int subBucketBits = 6;
+	private static final int subBucketCount = 1 << subBucketBits;
+	private static final int magnitudes = 40; //Enough for 2^(40 + 6) microseconds.
+	
+	private final long[] counts = new long[(magnitudes + 1) * subBucketCount];
+	private long totalCount = 0;
+	private long maxMicros = 0;
+	private double sumMicros = 0;
+	
+	/**
+	 * record method that counts one latency given in nanoseconds.
+	 * */
+	void record(long latencyNanos) {
+		long micros = Math.max(0, latencyNanos / 1000);
+		counts[bucketIndex(micros)]++;
+		totalCount++;
+		sumMicros += micros;
+		if(micros > maxMicros) {
+			maxMicros = micros;
+		}
+	}
+	
+	void add(LatencyHistogram other) {
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		sumMicros += other.sumMicros;
+		maxMicros = Math.max(maxMicros, other.maxMicros);
+	}
+	
+	long getCount() {
+		return totalCount;
+	}
+	
+	double getMeanMillis() {
+		return totalCount == 0 ? 0 : sumMicros / totalCount / 1000.0;
+	}
+	
+	double getMaxMillis() {
+		return maxMicros / 1000.0;
+	}
+	
+	/**
+	 * getPercentileMillis returns the latency below which the given percentage of the recorded latencies are, e.g. 99.9.
+	 * The value is the upper end of the bucket the percentile falls into, so it never understates the latency.
+	 * */
+	double getPercentileMillis(double percentile) {
+		if(totalCount == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+		rank = Math.max(1, Math.min(rank, totalCount));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return Math.min(bucketUpperMicros(i), maxMicros) / 1000.0;
+			}
+		}
+		return getMaxMillis();
+	}
+	
+	/**
+	 * bucketIndex finds the bucket of a latency.  Values below 64 microseconds get one bucket each,
+	 * above that the magnitude (the position of the highest bit) picks a row of 64 buckets and the next 6 bits pick the bucket.
+	 * */
+	private static int bucketIndex(long micros) {
+		if(micros < subBucketCount) {
+			return (int) micros;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros) - subBucketBits + 1;
+		if(magnitude > magnitudes) {
+			return (magnitudes + 1) * subBucketCount - 1;
+		}
+		int subBucket = (int) (micros >>> (magnitude - 1)) - subBucketCount;
+		return magnitude * subBucketCount + subBucket;
+	}
+	
+	private static long bucketUpperMicros(int index) {
+		int magnitude = index / subBucketCount;
+		int subBucket = index % subBucketCount;
+		if(magnitude == 0) {
+			return subBucket;
+		}
+		return ((long) (subBucket + subBucketCount + 1) << (magnitude - 1)) - 1;
+	}
+}
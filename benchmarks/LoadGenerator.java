@@ -0,0 +1,474 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator class that drives the web server end to end over localhost and reports its throughput and latency percentiles.
+ * 
+ * Compile it with the other benchmarks (javac -d out *.java benchmarks/*.java) and run it with, for example:
+ * 
+ * > java -cp out LoadGenerator                                             (closed loop against a server started in this JVM)
+ * > java -cp out -Dload.mode=rate -Dload.rate=5000 LoadGenerator           (5000 requests per second at a constant rate)
+ * > java -cp out -Dload.target=localhost:2540 LoadGenerator               (against a server that is already running)
+ * 
+ * Without -Dload.target the server is started in this JVM on -Dload.port (default 2541) with the fixture tree of
+ * BenchmarkFixtures as its root, and any -Dserver.* settings apply to it.  The load generator then competes with the server
+ * for the CPUs, so for sizing hardware run the server in its own JVM (or on its own cores with taskset) and use -Dload.target.
+ * 
+ * Modes:
+ * "closed" = every connection sends its next request as soon as the previous response is in.  This finds the highest
+ *            throughput, but when the server stalls the clients stall with it and the latencies look better than users see them.
+ * "rate"   = requests are sent on a fixed schedule (-Dload.rate requests per second over all connections).  Latency is measured
+ *            from the time a request was due to be sent, not from when it was actually sent, so time spent waiting behind a slow
+ *            response is counted (the correction for coordinated omission that wrk2 uses).  The uncorrected service time is
+ *            reported next to it.
+ * 
+ * Settings (all optional):
+ * -Dload.connections=16      number of keep-alive connections, each driven by its own thread
+ * -Dload.duration=30         seconds measured
+ * -Dload.warmup=5            seconds run before measuring
+ * -Dload.mix=file:60,large:5,folder:10,cgi:15,missing:10     weights of the request types
+ * -Dload.path.file=/small.html  -Dload.path.large=/large.txt  -Dload.path.folder=/dir-100/  -Dload.path.missing=/missing.html
+ *                            paths requested for each type (the CGI request always goes to /cgi/addnums.fake-cgi)
+ * -Dload.gzip=true           send "Accept-Encoding: gzip"
+ * -Dload.out=load.jsonl      append one JSON line with the results, for comparing runs
+ * */
+class LoadGenerator {
+	private static final String[] requestTypes = {"file", "large", "folder", "cgi", "missing"};
+	
+	private final String host;
+	private final int port;
+	private final boolean constantRate;
+	private final double requestsPerSecond;
+	private final int[] mixWeights;
+	private final String[] paths;
+	private final boolean acceptGzip;
+	
+	private volatile long measureStartNanos;
+	private volatile long endNanos;
+	
+	LoadGenerator(String host, int port, boolean constantRate, double requestsPerSecond, int[] mixWeights, String[] paths, boolean acceptGzip) {
+		this.host = host;
+		this.port = port;
+		this.constantRate = constantRate;
+		this.requestsPerSecond = requestsPerSecond;
+		this.mixWeights = mixWeights;
+		this.paths = paths;
+		this.acceptGzip = acceptGzip;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		String mode = System.getProperty("load.mode", "closed");
+		int connections = Integer.getInteger("load.connections", 16);
+		double rate = Double.parseDouble(System.getProperty("load.rate", "1000"));
+		int durationSeconds = Integer.getInteger("load.duration", 30);
+		int warmupSeconds = Integer.getInteger("load.warmup", 5);
+		if(!"closed".equals(mode) && !"rate".equals(mode)) {
+			System.err.println("Unknown -Dload.mode=" + mode + ", use closed or rate");
+			System.exit(2);
+		}
+		
+		String[] paths = new String[requestTypes.length];
+		paths[0] = System.getProperty("load.path.file", "/" + BenchmarkFixtures.smallFile);
+		paths[1] = System.getProperty("load.path.large", "/" + BenchmarkFixtures.largeFile);
+		paths[2] = System.getProperty("load.path.folder", "/dir-100/");
+		paths[3] = "/cgi/addnums.fake-cgi";
+		paths[4] = System.getProperty("load.path.missing", "/missing.html");
+		
+		String target = System.getProperty("load.target");
+		BenchmarkFixtures fixtures = null;
+		String host = "localhost";
+		int port;
+		if(target != null) {
+			int colon = target.lastIndexOf(':');
+			host = target.substring(0, colon);
+			port = Integer.parseInt(target.substring(colon + 1));
+		}
+		else {
+			port = Integer.getInteger("load.port", 2541);
+			fixtures = BenchmarkFixtures.create(new int[] {100});
+			startServer(fixtures, port);
+		}
+		
+		LoadGenerator generator = new LoadGenerator(host, port, "rate".equals(mode), rate,
+				parseMix(System.getProperty("load.mix", "file:60,large:5,folder:10,cgi:15,missing:10")), paths, Boolean.getBoolean("load.gzip"));
+		waitForServer(host, port);
+		System.out.println(String.format(Locale.US, "Running %s load%s on %d connections against %s:%d for %ds after %ds warmup...",
+				mode, "rate".equals(mode) ? " at " + rate + " requests/s" : "", connections, host, port, durationSeconds, warmupSeconds));
+		Report report = generator.run(connections, warmupSeconds, durationSeconds);
+		report.print(System.out);
+		String outputFile = System.getProperty("load.out");
+		if(outputFile != null) {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile, true), StandardCharsets.UTF_8));
+			try {
+				out.println(report.toJson(mode, connections, rate));
+			} finally {
+				out.close();
+			}
+		}
+		if(fixtures != null) {
+			fixtures.delete();
+		}
+		System.exit(0);
+	}
+	
+	/**
+	 * startServer runs MyWebServer in this JVM on a daemon thread, serving the fixture tree.
+	 * The settings are passed as system properties because that is how the server reads its configuration.
+	 * */
+	private static void startServer(BenchmarkFixtures fixtures, int port) {
+		System.setProperty("server.root", fixtures.root.toString());
+		System.setProperty("server.port", Integer.toString(port));
+		if(System.getProperty("server.log.access") == null) {
+			System.setProperty("server.log.access", "false"); //One console line per request would measure the console.
+		}
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					MyWebServer.main(new String[0]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "in-process-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+	
+	private static void waitForServer(String host, int port) throws InterruptedException {
+		for(int attempt = 0; ; attempt++) {
+			try {
+				new Socket(host, port).close();
+				return;
+			} catch (IOException e) {
+				if(attempt == 100) {
+					throw new IllegalStateException("Nothing is listening on " + host + ":" + port, e);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+	
+	/**
+	 * run method that starts one thread per connection, lets them warm up, measures for the given time and adds up the results.
+	 * */
+	Report run(int connections, int warmupSeconds, int durationSeconds) throws InterruptedException {
+		long now = System.nanoTime();
+		measureStartNanos = now + warmupSeconds * 1000000000L;
+		endNanos = measureStartNanos + durationSeconds * 1000000000L;
+		final Client[] clients = new Client[connections];
+		Thread[] threads = new Thread[connections];
+		for(int i = 0; i < connections; i++) {
+			//In rate mode each connection gets an equal share of the rate, with its schedule offset so that they do not send in bursts.
+			long interval = constantRate ? (long) (1e9 * connections / requestsPerSecond) : 0;
+			clients[i] = new Client(now + interval * i / connections, interval);
+			threads[i] = new Thread(clients[i], "load-" + i);
+			threads[i].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		Report report = new Report(durationSeconds);
+		for(Client client : clients) {
+			report.add(client);
+		}
+		return report;
+	}
+	
+	/**
+	 * Client class for one keep-alive connection.  It reconnects when the server closes the connection
+	 * (e.g. after the keep-alive request limit) or when a request fails.
+	 * */
+	private class Client implements Runnable {
+		private final long intervalNanos;
+		private long nextSendNanos;
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		
+		final LatencyHistogram latency = new LatencyHistogram(); //From when the request was due (corrected in rate mode).
+		final LatencyHistogram serviceTime = new LatencyHistogram(); //From when the request was actually sent.
+		final long[] typeCounts = new long[requestTypes.length];
+		final TreeMap<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+		long errors = 0;
+		long bytesRead = 0;
+		
+		Client(long firstSendNanos, long intervalNanos) {
+			this.nextSendNanos = firstSendNanos;
+			this.intervalNanos = intervalNanos;
+		}
+		
+		public void run() {
+			byte[] buffer = new byte[16384];
+			while(true) {
+				long scheduled = nextSendNanos;
+				if(constantRate) {
+					nextSendNanos += intervalNanos;
+					long wait = scheduled - System.nanoTime();
+					if(wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				long start = System.nanoTime();
+				if(start >= endNanos) {
+					break;
+				}
+				long intendedStart = constantRate ? scheduled : start;
+				int type = pickType();
+				int status;
+				try {
+					status = exchange(type, buffer);
+				} catch (IOException e) {
+					status = -1;
+					closeConnection();
+				}
+				long end = System.nanoTime();
+				if(intendedStart < measureStartNanos || end > endNanos) {
+					continue;
+				}
+				if(status < 0) {
+					errors++;
+					continue;
+				}
+				latency.record(end - intendedStart);
+				serviceTime.record(end - start);
+				typeCounts[type]++;
+				Long count = statusCounts.get(status);
+				statusCounts.put(status, count == null ? 1 : count + 1);
+			}
+			closeConnection();
+		}
+		
+		private int pickType() {
+			int total = 0;
+			for(int weight : mixWeights) {
+				total += weight;
+			}
+			int pick = ThreadLocalRandom.current().nextInt(total);
+			for(int i = 0; i < mixWeights.length; i++) {
+				pick -= mixWeights[i];
+				if(pick < 0) {
+					return i;
+				}
+			}
+			return 0;
+		}
+		
+		/**
+		 * exchange method that sends one request and reads the whole response.  Returns the status code.
+		 * */
+		private int exchange(int type, byte[] buffer) throws IOException {
+			if(socket == null) {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(30000);
+				socket.connect(new InetSocketAddress(host, port));
+				in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+				out = socket.getOutputStream();
+			}
+			StringBuilder request = new StringBuilder(160);
+			request.append("GET ").append(paths[type]);
+			if("cgi".equals(requestTypes[type])) {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				request.append("?person=Load&num1=").append(random.nextInt(1000)).append("&num2=").append(random.nextInt(1000));
+			}
+			request.append(" HTTP/1.1\r\nHost: ").append(host).append(':').append(port).append("\r\n");
+			if(acceptGzip) {
+				request.append("Accept-Encoding: gzip\r\n");
+			}
+			request.append("\r\n");
+			out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			
+			String statusLine = readLine();
+			if(statusLine.length() < 12 || !statusLine.startsWith("HTTP/")) {
+				throw new IOException("Bad status line: " + statusLine);
+			}
+			int status = Integer.parseInt(statusLine.substring(9, 12));
+			long contentLength = -1;
+			boolean chunked = false;
+			boolean close = false;
+			for(String line = readLine(); !line.isEmpty(); line = readLine()) {
+				int colon = line.indexOf(':');
+				if(colon < 0) {
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if(name.equalsIgnoreCase("Content-Length")) {
+					contentLength = Long.parseLong(value);
+				}
+				else if(name.equalsIgnoreCase("Transfer-Encoding") && value.equalsIgnoreCase("chunked")) {
+					chunked = true;
+				}
+				else if(name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+					close = true;
+				}
+			}
+			if(chunked) {
+				//Streamed folder listings and dynamic pages: each chunk has its size in hex in front and a size of 0 ends the body.
+				for(long size = readChunkSize(); size > 0; size = readChunkSize()) {
+					skip(size, buffer);
+					readLine(); //The CRLF after the chunk.
+					bytesRead += size;
+				}
+				for(String trailer = readLine(); !trailer.isEmpty(); trailer = readLine()) {}
+			}
+			else if(contentLength < 0) {
+				//No length: the body ends when the server closes the connection.
+				for(int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+					bytesRead += read;
+				}
+				close = true;
+			}
+			else {
+				skip(contentLength, buffer);
+				bytesRead += contentLength;
+			}
+			if(close) {
+				closeConnection();
+			}
+			return status;
+		}
+		
+		private void skip(long length, byte[] buffer) throws IOException {
+			long remaining = length;
+			while(remaining > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if(read < 0) {
+					throw new EOFException("Response body ended early");
+				}
+				remaining -= read;
+			}
+		}
+		
+		private long readChunkSize() throws IOException {
+			String line = readLine();
+			int extension = line.indexOf(';');
+			try {
+				return Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad chunk size: " + line);
+			}
+		}
+		
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder(64);
+			for(int b = in.read(); b != '\n'; b = in.read()) {
+				if(b < 0) {
+					throw new EOFException("Connection closed by the server");
+				}
+				if(b != '\r') {
+					line.append((char) b);
+				}
+			}
+			return line.toString();
+		}
+		
+		private void closeConnection() {
+			if(socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					//Nothing more to do with it.
+				}
+				socket = null;
+			}
+		}
+	}
+	
+	/**
+	 * Report class that adds up the results of all connections.
+	 * */
+	private static class Report {
+		final int durationSeconds;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram serviceTime = new LatencyHistogram();
+		final long[] typeCounts = new long[requestTypes.length];
+		final TreeMap<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+		long errors = 0;
+		long bytesRead = 0;
+		
+		Report(int durationSeconds) {
+			this.durationSeconds = durationSeconds;
+		}
+		
+		void add(Client client) {
+			latency.add(client.latency);
+			serviceTime.add(client.serviceTime);
+			for(int i = 0; i < typeCounts.length; i++) {
+				typeCounts[i] += client.typeCounts[i];
+			}
+			for(Integer status : client.statusCounts.keySet()) {
+				Long count = statusCounts.get(status);
+				statusCounts.put(status, (count == null ? 0 : count) + client.statusCounts.get(status));
+			}
+			errors += client.errors;
+			bytesRead += client.bytesRead;
+		}
+		
+		double getThroughput() {
+			return (double) latency.getCount() / durationSeconds;
+		}
+		
+		void print(java.io.PrintStream out) {
+			out.println(String.format(Locale.US, "Requests: %d (%.1f/s), errors: %d, read %.1f MB/s",
+					latency.getCount(), getThroughput(), errors, bytesRead / 1048576.0 / durationSeconds));
+			ArrayList<String> types = new ArrayList<String>();
+			for(int i = 0; i < requestTypes.length; i++) {
+				types.add(requestTypes[i] + "=" + typeCounts[i]);
+			}
+			out.println("Request types: " + types);
+			out.println("Status codes: " + statusCounts);
+			out.println(String.format(Locale.US, "%-14s %9s %9s %9s %9s %9s %9s", "Latency (ms)", "mean", "p50", "p90", "p99", "p99.9", "max"));
+			printLatency(out, "latency", latency);
+			printLatency(out, "service time", serviceTime);
+		}
+		
+		private static void printLatency(java.io.PrintStream out, String name, LatencyHistogram histogram) {
+			out.println(String.format(Locale.US, "%-14s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f", name, histogram.getMeanMillis(),
+					histogram.getPercentileMillis(50), histogram.getPercentileMillis(90), histogram.getPercentileMillis(99),
+					histogram.getPercentileMillis(99.9), histogram.getMaxMillis()));
+		}
+		
+		String toJson(String mode, int connections, double rate) {
+			return String.format(Locale.US, "{\"mode\":\"%s\",\"connections\":%d,\"targetRate\":%s,\"durationSeconds\":%d,\"requests\":%d,"
+					+ "\"errors\":%d,\"throughput\":%.1f,\"p50Millis\":%.3f,\"p99Millis\":%.3f,\"p999Millis\":%.3f,\"maxMillis\":%.3f,"
+					+ "\"serviceP99Millis\":%.3f,\"timestamp\":%d}",
+					mode, connections, "rate".equals(mode) ? String.format(Locale.US, "%.1f", rate) : "null", durationSeconds,
+					latency.getCount(), errors, getThroughput(), latency.getPercentileMillis(50), latency.getPercentileMillis(99),
+					latency.getPercentileMillis(99.9), latency.getMaxMillis(), serviceTime.getPercentileMillis(99), System.currentTimeMillis());
+		}
+	}
+	
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[requestTypes.length];
+		for(String part : mix.split(",")) {
+			String[] typeAndWeight = part.trim().split(":");
+			int type = -1;
+			for(int i = 0; i < requestTypes.length; i++) {
+				if(requestTypes[i].equals(typeAndWeight[0])) {
+					type = i;
+				}
+			}
+			if(type < 0 || typeAndWeight.length != 2) {
+				throw new IllegalArgumentException("Bad -Dload.mix entry \"" + part + "\", use type:weight with the types file, large, folder, cgi and missing");
+			}
+			weights[type] = Integer.parseInt(typeAndWeight[1]);
+		}
+		return weights;
+	}
+}
@@ -0,0 +1,160 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * MicroBenchmark class that measures the throughput and the allocation rate of one operation.
+ * 
+ * 1. Warmup iterations run the operation until the JIT has settled.  They are not reported.
+ * 2. Each measurement iteration runs the operation in batches for a fixed time and counts the operations.
+ *    The batch size is picked during warmup so that reading the clock does not show up in the result.
+ * 3. Allocated bytes per operation come from the thread's allocation counter (com.sun.management.ThreadMXBean),
+ *    which is what JMH's "-prof gc" reports as gc.alloc.rate.norm.  It is -1 on JVMs that do not have the counter.
+ * 
+ * Every result of an operation is stored in a field so that it escapes and the JIT cannot drop the work as unused.
+ * */
+class MicroBenchmark {
+	/**
+	 * Operation interface for the code being measured.  Return whatever the code produced so that it is not optimized away.
+	 * */
+	interface Operation {
+		Object run() throws Exception;
+	}
+	
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+	private final com.sun.management.ThreadMXBean allocationCounter = allocationCounter();
+	private Object lastResult; //Every result is stored here so that the JIT has to produce it.
+	
+	MicroBenchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+	}
+	
+	/**
+	 * measure method that runs the warmup and measurement iterations of an operation and returns the result.
+	 * */
+	Result measure(String benchmark, String params, Operation operation) throws Exception {
+		long batchSize = 1;
+		for(int i = 0; i < warmupIterations; i++) {
+			long deadline = System.nanoTime() + iterationNanos;
+			while(System.nanoTime() < deadline) {
+				long batchStart = System.nanoTime();
+				runBatch(operation, batchSize);
+				//Grow the batches until one takes about a millisecond.
+				if(System.nanoTime() - batchStart < 1000000L && batchSize < (1L << 30)) {
+					batchSize *= 2;
+				}
+			}
+		}
+		
+		double[] scores = new double[measurementIterations];
+		long totalOperations = 0;
+		long totalAllocated = 0;
+		long threadId = Thread.currentThread().getId();
+		for(int i = 0; i < measurementIterations; i++) {
+			long operations = 0;
+			long allocatedBefore = allocatedBytes(threadId);
+			long start = System.nanoTime();
+			long deadline = start + iterationNanos;
+			long now = start;
+			while(now < deadline) {
+				runBatch(operation, batchSize);
+				operations += batchSize;
+				now = System.nanoTime();
+			}
+			long allocatedAfter = allocatedBytes(threadId);
+			scores[i] = operations * 1e9 / (now - start);
+			totalOperations += operations;
+			totalAllocated += allocatedAfter - allocatedBefore;
+		}
+		double allocatedPerOperation = allocationCounter == null ? -1 : (double) totalAllocated / totalOperations;
+		return new Result(benchmark, params, scores, allocatedPerOperation);
+	}
+	
+	private void runBatch(Operation operation, long batchSize) throws Exception {
+		for(long i = 0; i < batchSize; i++) {
+			lastResult = operation.run();
+		}
+	}
+	
+	private long allocatedBytes(long threadId) {
+		return allocationCounter == null ? 0 : allocationCounter.getThreadAllocatedBytes(threadId);
+	}
+	
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threadBean;
+			if(counter.isThreadAllocatedMemorySupported()) {
+				counter.setThreadAllocatedMemoryEnabled(true);
+				return counter;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Result class that holds the score of one benchmark (operations per second for each measurement iteration)
+	 * and its allocation per operation.
+	 * */
+	static class Result {
+		final String benchmark;
+		final String params;
+		final double[] scores;
+		final double allocatedBytesPerOperation;
+		
+		Result(String benchmark, String params, double[] scores, double allocatedBytesPerOperation) {
+			this.benchmark = benchmark;
+			this.params = params;
+			this.scores = scores;
+			this.allocatedBytesPerOperation = allocatedBytesPerOperation;
+		}
+		
+		double getScore() {
+			double sum = 0;
+			for(double score : scores) {
+				sum += score;
+			}
+			return sum / scores.length;
+		}
+		
+		/**
+		 * getScoreError returns the half width of the 99.9% confidence interval of the score, like JMH prints it.
+		 * Uses the normal distribution, which is close enough for the handful of iterations we run.
+		 * */
+		double getScoreError() {
+			if(scores.length < 2) {
+				return 0;
+			}
+			double mean = getScore();
+			double squares = 0;
+			for(double score : scores) {
+				squares += (score - mean) * (score - mean);
+			}
+			double standardDeviation = Math.sqrt(squares / (scores.length - 1));
+			return 3.29 * standardDeviation / Math.sqrt(scores.length);
+		}
+		
+		/**
+		 * toJson writes the result as one line of JSON, e.g.
+		 * {"benchmark":"listFolder","params":"entries=1000","mode":"thrpt","unit":"ops/s","score":1234.5,"scoreError":12.3,"allocBytesPerOp":5678.0,"iterations":5}
+		 * */
+		String toJson() {
+			return String.format(Locale.US,
+					"{\"benchmark\":\"%s\",\"params\":\"%s\",\"mode\":\"thrpt\",\"unit\":\"ops/s\",\"score\":%.3f,\"scoreError\":%.3f,\"allocBytesPerOp\":%.1f,\"iterations\":%d}",
+					escape(benchmark), escape(params), getScore(), getScoreError(), allocatedBytesPerOperation, scores.length);
+		}
+		
+		public String toString() {
+			return String.format(Locale.US, "%-40s %-22s %16.1f +- %-12.1f ops/s %14.1f B/op",
+					benchmark, params, getScore(), getScoreError(), allocatedBytesPerOperation);
+		}
+		
+		private static String escape(String text) {
+			return text.replace("\\", "\\\\").replace("\"", "\\\"");
+		}
+	}
+}
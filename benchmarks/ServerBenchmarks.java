@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * ServerBenchmarks class that runs the micro-benchmarks of the web server's building blocks against generated fixture trees
+ * and reports throughput (operations per second) and allocation (bytes per operation) for each of them.
+ * 
+ * The benchmarks live in the default package next to the server classes so that they can call the package private methods.
+ * Compile and run them from the project folder with:
+ * 
+ * > javac -d out *.java benchmarks/*.java
+ * > java -cp out ServerBenchmarks [regex]
+ * 
+ * where the optional regex picks the benchmarks to run by name, e.g. "listFolder|getSimpleFolderList".
+ * Settings (all optional):
+ * 
+ * -Dbench.warmup=3              warmup iterations per benchmark
+ * -Dbench.iterations=5          measurement iterations per benchmark
+ * -Dbench.iterationMillis=1000  length of each iteration
+ * -Dbench.folderSizes=10,1000,100000     entries of the folders for listFolder
+ * -Dbench.renderSizes=10,1000,10000      entries of the listings for getSimpleFolderList
+ *                                        (it concatenates Strings, so its cost grows with the square of the size)
+ * -Dbench.out=results.jsonl     file that gets one JSON line per result, to compare runs with BenchmarkCompare
+ * -Dbench.label=abc123          label of the run in the results file, e.g. the commit being measured
+ * -Dbench.keepFixtures=true     keep the generated document root for a look afterwards
+ * 
+ * Use the same JVM options for runs that are compared with each other.
+ * */
+class ServerBenchmarks {
+	//A request like a browser sends it, and the smallest request a client can send.
+	private static final byte[] browserRequest = ("GET /small.html HTTP/1.1\r\n"
+			+ "Host: localhost:2540\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Accept-Language: en-US,en;q=0.9\r\n"
+			+ "If-None-Match: \"400-18c5a3f1d20\"\r\n"
+			+ "If-Modified-Since: Sat, 06 Jan 2024 10:00:00 GMT\r\n"
+			+ "Sec-Fetch-Mode: navigate\r\n"
+			+ "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] minimalRequest = "GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	
+	public static void main(String[] args) throws Exception {
+		Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+		MicroBenchmark harness = new MicroBenchmark(Integer.getInteger("bench.warmup", 3),
+				Integer.getInteger("bench.iterations", 5), Long.getLong("bench.iterationMillis", 1000));
+		int[] folderSizes = parseSizes(System.getProperty("bench.folderSizes", "10,1000,100000"));
+		int[] renderSizes = parseSizes(System.getProperty("bench.renderSizes", "10,1000,10000"));
+		
+		System.out.println("Generating fixtures...");
+		final BenchmarkFixtures fixtures = BenchmarkFixtures.create(folderSizes);
+		//The server only reads files under its working directory, so make the fixture tree the working directory.
+		MyWebServer.workingDirectory = fixtures.root.toFile();
+		ArrayList<MicroBenchmark.Result> results = new ArrayList<MicroBenchmark.Result>();
+		try {
+			runAll(harness, filter, fixtures, folderSizes, renderSizes, results);
+		} finally {
+			if(!Boolean.getBoolean("bench.keepFixtures")) {
+				fixtures.delete();
+			}
+			else {
+				System.out.println("Fixtures kept in " + fixtures.root);
+			}
+		}
+		writeResults(results);
+	}
+	
+	private static void runAll(MicroBenchmark harness, Pattern filter, final BenchmarkFixtures fixtures, int[] folderSizes,
+			int[] renderSizes, ArrayList<MicroBenchmark.Result> results) throws Exception {
+		final String pageContent = FileSystemReader.getFileContent(fixtures.getFile(BenchmarkFixtures.smallFile));
+		
+		run(harness, filter, results, "HTTPConstructor.constructHttpResponse", "body=1KB", new MicroBenchmark.Operation() {
+			public Object run() {
+				return HTTPConstructor.constructHttpResponse("HTTP/1.1", RequestHandler.httpOK, "text/html", pageContent, true);
+			}
+		});
+		
+		run(harness, filter, results, "HTTPConstructor.getHttpDate", "", new MicroBenchmark.Operation() {
+			public Object run() {
+				return HTTPConstructor.getHttpDate();
+			}
+		});
+		
+		final ResponseHeaderBuilder headerBuilder = new ResponseHeaderBuilder();
+		run(harness, filter, results, "HTTPConstructor.startHttpHeader", "", new MicroBenchmark.Operation() {
+			public Object run() {
+				return HTTPConstructor.startHttpHeader(headerBuilder, "HTTP/1.1", RequestHandler.httpOK, "text/html", 1024, true).end();
+			}
+		});
+		
+		for(int renderSize : renderSizes) {
+			final ArrayList<String> folderList = new ArrayList<String>();
+			for(int i = 0; i < renderSize; i++) {
+				folderList.add(String.format("entry-%06d%s", i, i % 100 == 99 ? "/" : ".txt"));
+			}
+			run(harness, filter, results, "HTTPConstructor.getSimpleFolderList", "entries=" + renderSize, new MicroBenchmark.Operation() {
+				public Object run() {
+					return HTTPConstructor.getSimpleFolderList(folderList, "/dir/");
+				}
+			});
+		}
+		
+		for(final String fileName : new String[] {BenchmarkFixtures.smallFile, BenchmarkFixtures.largeFile}) {
+			final File file = fixtures.getFile(fileName);
+			run(harness, filter, results, "FileSystemReader.getFileContent", "file=" + fileName, new MicroBenchmark.Operation() {
+				public Object run() {
+					return FileSystemReader.getFileContent(file);
+				}
+			});
+		}
+		
+		for(final int folderSize : folderSizes) {
+			run(harness, filter, results, "FileSystemReader.listFolder", "entries=" + folderSize, new MicroBenchmark.Operation() {
+				public Object run() {
+					return FileSystemReader.listFolder(fixtures.getFolder(folderSize));
+				}
+			});
+		}
+		
+		final RequestParser parser = new RequestParser();
+		final ByteBuffer browserBuffer = ByteBuffer.wrap(browserRequest);
+		run(harness, filter, results, "RequestParser.parse", "request=browser", new MicroBenchmark.Operation() {
+			public Object run() {
+				parser.reset();
+				browserBuffer.clear();
+				parser.parse(browserBuffer);
+				return parser.getHeaders();
+			}
+		});
+		final ByteBuffer minimalBuffer = ByteBuffer.wrap(minimalRequest);
+		run(harness, filter, results, "RequestParser.parse", "request=minimal", new MicroBenchmark.Operation() {
+			public Object run() {
+				parser.reset();
+				minimalBuffer.clear();
+				parser.parse(minimalBuffer);
+				return parser.getRequestUrl();
+			}
+		});
+		
+		//A whole request from parsed header to response, for a file that is served from the content cache.
+		run(harness, filter, results, "RequestHandler.respond", "file=" + BenchmarkFixtures.smallFile, new MicroBenchmark.Operation() {
+			public Object run() {
+				parser.reset();
+				browserBuffer.clear();
+				parser.parse(browserBuffer);
+				RequestHandler handler = new RequestHandler(headerBuilder);
+				handler.useRequest(parser);
+				HttpResponse response = handler.respond();
+				response.close();
+				return response;
+			}
+		});
+	}
+	
+	private static void run(MicroBenchmark harness, Pattern filter, ArrayList<MicroBenchmark.Result> results,
+			String benchmark, String params, MicroBenchmark.Operation operation) throws Exception {
+		if(!filter.matcher(benchmark).find()) {
+			return;
+		}
+		MicroBenchmark.Result result = harness.measure(benchmark, params, operation);
+		System.out.println(result);
+		results.add(result);
+	}
+	
+	/**
+	 * writeResults writes the results as JSON lines to -Dbench.out if it is set.  The first line describes the run.
+	 * */
+	private static void writeResults(ArrayList<MicroBenchmark.Result> results) throws IOException {
+		String outputFile = System.getProperty("bench.out");
+		if(outputFile == null) {
+			return;
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8));
+		try {
+			out.println(String.format(Locale.US, "{\"label\":\"%s\",\"java\":\"%s\",\"os\":\"%s\",\"cpus\":%d,\"timestamp\":%d}",
+					System.getProperty("bench.label", ""), System.getProperty("java.version"), System.getProperty("os.name"),
+					Runtime.getRuntime().availableProcessors(), System.currentTimeMillis()));
+			for(MicroBenchmark.Result result : results) {
+				out.println(result.toJson());
+			}
+		} finally {
+			out.close();
+		}
+		System.out.println("Results written to " + outputFile);
+	}
+	
+	private static int[] parseSizes(String sizes) {
+		String[] parts = sizes.split(",");
+		int[] parsed = new int[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			parsed[i] = Integer.parseInt(parts[i].trim());
+		}
+		return parsed;
+	}
+}
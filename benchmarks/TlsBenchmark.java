@@ -0,0 +1,421 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Locale;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TlsBenchmark class that measures what session resumption saves on the HTTPS listener (see TlsChannel in the server).
+ * 
+ * Compile it with the other benchmarks (javac -d out *.java benchmarks/*.java) and run it with, for example:
+ * 
+ * > java -cp out TlsBenchmark
+ * > java -cp out -Dtls.keyAlg=RSA -Dtls.protocol=TLSv1.2 -Dtls.clients=32 TlsBenchmark
+ * 
+ * A self-signed test certificate for localhost is made with keytool, and the server is started in its own JVM with HTTPS
+ * on that key store.  The clients run in this JVM and trust the same certificate.  Every workload runs three ways:
+ * 1. full = a new connection per request with a full handshake.  The client forgets its sessions before every connection.
+ * 2. resumed = a new connection per request that resumes the session of the previous one (session cache or ticket).
+ * 3. keep-alive = one connection per client for all its requests, i.e. no handshakes at all, for comparison.
+ * The workloads are small.html (connections per second, which is about the handshakes) and large.txt (MB per second,
+ * which is about encrypting the body).  The "Resumed" column counts the handshakes that really were abbreviated.
+ * 
+ * Settings (all optional):
+ * -Dtls.clients=16           client threads
+ * -Dtls.duration=10          seconds measured for every run
+ * -Dtls.warmup=3             seconds run before measuring
+ * -Dtls.port=2543            HTTPS port of the server (the plain port is the one below it)
+ * -Dtls.mode=nio             mode of the plain listener, the HTTPS listener always uses event loops
+ * -Dtls.eventLoops=0         event loops of the HTTPS listener, 0 for the server's default
+ * -Dtls.keyAlg=EC            key algorithm of the test certificate, EC or RSA
+ * -Dtls.protocol=TLSv1.3     TLS version the clients ask for
+ * -Dtls.out=tls.jsonl        append one JSON line per run, for comparing machines or commits
+ * */
+class TlsBenchmark {
+	private static final String[] variants = {"full", "resumed", "keep-alive"};
+	private static final String keyStorePassword = "benchmark";
+	
+	private final TrustManager[] trustManagers; //Trust the test certificate and nothing else.
+	private final SSLContext resumingContext; //Keeps its sessions, so the next connection offers one to the server.
+	private final String protocol;
+	private final int port;
+	private volatile long measureStartNanos;
+	private volatile long endNanos;
+	
+	TlsBenchmark(TrustManager[] trustManagers, String protocol, int port) throws Exception {
+		this.trustManagers = trustManagers;
+		this.resumingContext = newContext(trustManagers);
+		this.protocol = protocol;
+		this.port = port;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int clients = Integer.getInteger("tls.clients", 16);
+		int durationSeconds = Integer.getInteger("tls.duration", 10);
+		int warmupSeconds = Integer.getInteger("tls.warmup", 3);
+		int port = Integer.getInteger("tls.port", 2543);
+		String mode = System.getProperty("tls.mode", "nio");
+		int eventLoops = Integer.getInteger("tls.eventLoops", 0);
+		String keyAlgorithm = System.getProperty("tls.keyAlg", "EC");
+		String protocol = System.getProperty("tls.protocol", "TLSv1.3");
+		
+		BenchmarkFixtures fixtures = BenchmarkFixtures.create(new int[0]);
+		ArrayList<String> results = new ArrayList<String>();
+		try {
+			File keyStore = fixtures.getFile("server.p12");
+			createKeyStore(keyStore, keyAlgorithm);
+			Process server = startServer(fixtures, keyStore, port, mode, eventLoops);
+			try {
+				waitForServer(port, server);
+				TlsBenchmark benchmark = new TlsBenchmark(trustManagers(keyStore), protocol, port);
+				System.out.println(String.format(Locale.US, "%s with a %s certificate, %d clients, %d s per run", protocol, keyAlgorithm, clients, durationSeconds));
+				System.out.println(String.format(Locale.US, "%-12s %-11s %12s %10s %10s %8s", "File", "Connection", "Requests/s", "MB/s", "Resumed", "Errors"));
+				for(String path : new String[] {"/" + BenchmarkFixtures.smallFile, "/" + BenchmarkFixtures.largeFile}) {
+					for(String variant : variants) {
+						long[] counts = benchmark.run(path, variant, clients, warmupSeconds, durationSeconds);
+						double requestsPerSecond = (double) counts[0] / durationSeconds;
+						double megabytesPerSecond = counts[1] / 1e6 / durationSeconds;
+						String resumed = variant.equals("keep-alive") ? "-" : String.format(Locale.US, "%.0f%%", counts[0] == 0 ? 0.0 : 100.0 * counts[2] / counts[0]);
+						System.out.println(String.format(Locale.US, "%-12s %-11s %12.1f %10.1f %10s %8d", path.substring(1), variant, requestsPerSecond, megabytesPerSecond, resumed, counts[3]));
+						results.add(String.format(Locale.US, "{\"path\":\"%s\",\"connection\":\"%s\",\"protocol\":\"%s\",\"keyAlg\":\"%s\",\"clients\":%d,"
+								+ "\"durationSeconds\":%d,\"requests\":%d,\"bytes\":%d,\"resumed\":%d,\"errors\":%d,\"requestsPerSecond\":%.1f,"
+								+ "\"megabytesPerSecond\":%.2f,\"timestamp\":%d}", path, variant, protocol, keyAlgorithm, clients, durationSeconds,
+								counts[0], counts[1], counts[2], counts[3], requestsPerSecond, megabytesPerSecond, System.currentTimeMillis()));
+					}
+				}
+			} finally {
+				server.destroy();
+				server.waitFor();
+			}
+		} finally {
+			fixtures.delete();
+		}
+		
+		String outputFile = System.getProperty("tls.out");
+		if(outputFile != null) {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile, true), StandardCharsets.UTF_8));
+			try {
+				for(String result : results) {
+					out.println(result);
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+	/**
+	 * createKeyStore makes a self-signed certificate for localhost and 127.0.0.1 with the keytool of this JVM.
+	 * */
+	private static void createKeyStore(File keyStore, String keyAlgorithm) throws IOException, InterruptedException {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "keytool").getPath());
+		command.add("-genkeypair");
+		command.add("-alias");
+		command.add("server");
+		command.add("-keyalg");
+		command.add(keyAlgorithm);
+		if(keyAlgorithm.equalsIgnoreCase("RSA")) {
+			command.add("-keysize");
+			command.add("2048");
+		}
+		command.add("-dname");
+		command.add("CN=localhost");
+		command.add("-ext");
+		command.add("SAN=dns:localhost,ip:127.0.0.1");
+		command.add("-validity");
+		command.add("2");
+		command.add("-storetype");
+		command.add("PKCS12");
+		command.add("-keystore");
+		command.add(keyStore.getPath());
+		command.add("-storepass");
+		command.add(keyStorePassword);
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(System.getProperty("java.io.tmpdir"), "tls-benchmark-keytool.log"));
+		if(builder.start().waitFor() != 0) {
+			throw new IOException("keytool could not make the test certificate, see tls-benchmark-keytool.log in " + System.getProperty("java.io.tmpdir"));
+		}
+	}
+	
+	/**
+	 * trustManagers returns trust managers that trust the test certificate and nothing else.
+	 * */
+	private static TrustManager[] trustManagers(File keyStoreFile) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keyStoreFile);
+		try {
+			keyStore.load(in, keyStorePassword.toCharArray());
+		} finally {
+			in.close();
+		}
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		return trustManagers.getTrustManagers();
+	}
+	
+	private static SSLContext newContext(TrustManager[] trustManagers) throws Exception {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagers, null);
+		return context;
+	}
+	
+	/**
+	 * startServer starts MyWebServer in a new JVM with this JVM's class path, serving the fixture tree over HTTPS as well.
+	 * */
+	private static Process startServer(BenchmarkFixtures fixtures, File keyStore, int port, String mode, int eventLoops) throws IOException {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dserver.root=" + fixtures.root);
+		command.add("-Dserver.port=" + (port - 1));
+		command.add("-Dserver.mode=" + mode);
+		command.add("-Dserver.log.access=false");
+		command.add("-Dserver.backlog=1024");
+		command.add("-Dserver.tls.port=" + port);
+		command.add("-Dserver.tls.keyStore=" + keyStore.getPath());
+		command.add("-Dserver.tls.keyStorePassword=" + keyStorePassword);
+		if(eventLoops > 0) {
+			command.add("-Dserver.tls.eventLoops=" + eventLoops);
+		}
+		command.add("MyWebServer");
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(System.getProperty("java.io.tmpdir"), "tls-benchmark-server.log"));
+		return builder.start();
+	}
+	
+	private static void waitForServer(int port, Process server) throws InterruptedException {
+		for(int attempt = 0; ; attempt++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				if(attempt == 100 || !isAlive(server)) {
+					throw new IllegalStateException("The server did not start on port " + port + ", see tls-benchmark-server.log in " + System.getProperty("java.io.tmpdir"), e);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+	
+	private static boolean isAlive(Process process) {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * run method that lets the client threads request the path over and over and returns, for the measured time,
+	 * the requests, the body bytes, the resumed handshakes and the errors.
+	 * */
+	long[] run(final String path, final String variant, int clients, int warmupSeconds, int durationSeconds) throws InterruptedException {
+		measureStartNanos = System.nanoTime() + warmupSeconds * 1000000000L;
+		endNanos = measureStartNanos + durationSeconds * 1000000000L;
+		final long[][] counts = new long[clients][4];
+		Thread[] threads = new Thread[clients];
+		for(int i = 0; i < clients; i++) {
+			final long[] clientCounts = counts[i];
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					if(variant.equals("keep-alive")) {
+						keepAliveLoop(path, clientCounts);
+					}
+					else {
+						connectLoop(path, variant.equals("resumed"), clientCounts);
+					}
+				}
+			}, "tls-client-" + i);
+			threads[i].start();
+		}
+		long[] total = new long[4];
+		for(int i = 0; i < clients; i++) {
+			threads[i].join();
+			for(int j = 0; j < total.length; j++) {
+				total[j] += counts[i][j];
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * connectLoop opens a connection for every request.  The JDK's client session cache offers the last session (or the
+	 * last ticket) to the server again, so the full handshakes are forced by emptying the cache first.  For that every client
+	 * thread has a context of its own, or the sessions of the other threads would slip in between.
+	 * A handshake counts as resumed when the session it ended with was made before the connection started.
+	 * */
+	private void connectLoop(String path, boolean resume, long[] counts) {
+		byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		byte[] buffer = new byte[16384];
+		SSLContext context;
+		try {
+			context = resume ? resumingContext : newContext(trustManagers);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		while(true) {
+			long now = System.nanoTime();
+			if(now >= endNanos) {
+				return;
+			}
+			boolean measured = now >= measureStartNanos;
+			long bodyBytes = -1;
+			boolean resumed = false;
+			try {
+				if(!resume) {
+					forgetSessions(context.getClientSessionContext());
+				}
+				long connectedAt = System.currentTimeMillis();
+				SSLSocket socket = connect(context.getSocketFactory());
+				try {
+					socket.startHandshake();
+					SSLSession session = socket.getSession();
+					resumed = session.getCreationTime() < connectedAt;
+					OutputStream out = socket.getOutputStream();
+					out.write(request);
+					out.flush();
+					bodyBytes = readResponse(socket.getInputStream(), buffer, new boolean[1]);
+				} finally {
+					socket.close();
+				}
+			} catch (IOException e) {
+				bodyBytes = -1;
+			}
+			if(measured) {
+				count(counts, bodyBytes, resumed);
+			}
+		}
+	}
+	
+	/**
+	 * keepAliveLoop sends the requests of a client over one connection, and opens a new one when the server closes it
+	 * (after -Dserver.keepAlive.maxRequests) or after an error.
+	 * */
+	private void keepAliveLoop(String path, long[] counts) {
+		byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		byte[] buffer = new byte[16384];
+		boolean[] closing = new boolean[1];
+		SSLSocket socket = null;
+		try {
+			while(System.nanoTime() < endNanos) {
+				long bodyBytes = -1;
+				try {
+					if(socket == null) {
+						socket = connect(resumingContext.getSocketFactory());
+					}
+					OutputStream out = socket.getOutputStream();
+					out.write(request);
+					out.flush();
+					bodyBytes = readResponse(socket.getInputStream(), buffer, closing);
+				} catch (IOException e) {
+					bodyBytes = -1;
+				}
+				if((bodyBytes < 0 || closing[0]) && socket != null) {
+					close(socket);
+					socket = null;
+				}
+				if(System.nanoTime() >= measureStartNanos) {
+					count(counts, bodyBytes, false);
+				}
+			}
+		} finally {
+			if(socket != null) {
+				close(socket);
+			}
+		}
+	}
+	
+	private SSLSocket connect(SSLSocketFactory socketFactory) throws IOException {
+		SSLSocket socket = (SSLSocket) socketFactory.createSocket("localhost", port);
+		socket.setSoTimeout(10000);
+		socket.setEnabledProtocols(new String[] {protocol});
+		return socket;
+	}
+	
+	private static void forgetSessions(SSLSessionContext sessions) {
+		Enumeration<byte[]> ids = sessions.getIds();
+		while(ids.hasMoreElements()) {
+			SSLSession session = sessions.getSession(ids.nextElement());
+			if(session != null) {
+				session.invalidate();
+			}
+		}
+	}
+	
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+	
+	private static void count(long[] counts, long bodyBytes, boolean resumed) {
+		if(bodyBytes < 0) {
+			counts[3]++;
+			return;
+		}
+		counts[0]++;
+		counts[1] += bodyBytes;
+		if(resumed) {
+			counts[2]++;
+		}
+	}
+	
+	/**
+	 * readResponse reads one response with a Content-Length and returns the length of its body, or -1 if it was not a 200.
+	 * closing[0] tells whether the server closes the connection after it.
+	 * */
+	private static long readResponse(InputStream in, byte[] buffer, boolean[] closing) throws IOException {
+		StringBuilder header = new StringBuilder();
+		while(header.length() < 4 || header.lastIndexOf("\r\n\r\n") != header.length() - 4) {
+			int b = in.read();
+			if(b < 0) {
+				throw new IOException("Connection closed in the response header");
+			}
+			header.append((char) b);
+		}
+		if(!header.toString().startsWith("HTTP/1.1 200")) {
+			return -1;
+		}
+		long length = 0;
+		closing[0] = false;
+		for(String line : header.toString().split("\r\n")) {
+			if(line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+				length = Long.parseLong(line.substring(15).trim());
+			}
+			else if(line.equalsIgnoreCase("Connection: close")) {
+				closing[0] = true;
+			}
+		}
+		long remaining = length;
+		while(remaining > 0) {
+			int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if(bytesRead < 0) {
+				throw new IOException("Connection closed in the response body");
+			}
+			remaining -= bytesRead;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,214 @@
+import java.util.Set;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JfrRequestRecorder class that turns finished requests into Java Flight Recorder events (see RequestTrace).
+ * It needs Java 11, so it is compiled on its own with a JDK 11 or later, against the compiled server:
+ * 
+ * > javac -cp . -d . jfr/*.java
+ * 
+ * The time of a request is only known once it is finished, and JFR events can only be started "now".
+ * So the events carry the time of the request and of its phases in fields of their own, and "slowerThan"
+ * takes the place of the usual threshold setting.  The default comes from -Dserver.trace.slowerThanMillis and a recording
+ * can give its own in a .jfc file, e.g. <setting name="slowerThan">5 ms</setting> under <event name="webserver.Request">.
+ * The thread of an event is the thread that finished the request.
+ * */
+class JfrRequestRecorder implements RequestTrace.Recorder {
+	private static final String[] phaseNames = {"parse", "resolve", "read", "build", "write"};
+	private final EventType requestType;
+	private final EventType phaseType;
+	
+	JfrRequestRecorder() {
+		//Register the events up front so that they are listed (and can be configured) before the first request.
+		FlightRecorder.register(RequestEvent.class);
+		FlightRecorder.register(PhaseEvent.class);
+		requestType = EventType.getEventType(RequestEvent.class);
+		phaseType = EventType.getEventType(PhaseEvent.class);
+	}
+	
+	public boolean isRecording() {
+		return requestType.isEnabled() || phaseType.isEnabled();
+	}
+	
+	public void requestCompleted(String path, String handler, int httpCode, long bytes,
+			long parseNanos, long resolveNanos, long readNanos, long buildNanos, long writeNanos) {
+		RequestEvent request = new RequestEvent();
+		request.path = path;
+		request.handler = handler;
+		request.status = httpCode;
+		request.bytes = bytes;
+		request.parse = parseNanos;
+		request.resolve = resolveNanos;
+		request.read = readNanos;
+		request.build = buildNanos;
+		request.write = writeNanos;
+		request.total = parseNanos + resolveNanos + readNanos + buildNanos + writeNanos;
+		if(request.shouldCommit()) {
+			request.commit();
+		}
+		if(phaseType.isEnabled()) {
+			long[] phaseNanos = {parseNanos, resolveNanos, readNanos, buildNanos, writeNanos};
+			for(int i = 0; i < phaseNanos.length; i++) {
+				PhaseEvent phase = new PhaseEvent();
+				phase.phase = phaseNames[i];
+				phase.path = path;
+				phase.handler = handler;
+				phase.bytes = bytes;
+				phase.took = phaseNanos[i];
+				if(phase.shouldCommit()) {
+					phase.commit();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * RequestEvent class for one slow request with the time of each of its phases.
+	 * */
+	@Name("webserver.Request")
+	@Label("Slow HTTP Request")
+	@Category("Web Server")
+	@Description("A request that took at least slowerThan, from the first byte of the request to the last byte of the response")
+	@StackTrace(false)
+	static class RequestEvent extends Event {
+		@Label("Path")
+		String path;
+		
+		@Label("Handler")
+		@Description("Handler that answered the request, as in the metrics, e.g. file or folder")
+		String handler;
+		
+		@Label("Status")
+		int status;
+		
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		
+		@Label("Total")
+		@Timespan
+		long total;
+		
+		@Label("Parse")
+		@Timespan
+		long parse;
+		
+		@Label("Resolve")
+		@Timespan
+		long resolve;
+		
+		@Label("Read")
+		@Timespan
+		long read;
+		
+		@Label("Build")
+		@Timespan
+		long build;
+		
+		@Label("Write")
+		@Timespan
+		long write;
+		
+		@Label("Slower Than")
+		@Description("Only requests that took at least this long are recorded")
+		@SettingDefinition
+		boolean slowerThan(SlowerThan setting) {
+			return total >= setting.nanos;
+		}
+	}
+	
+	/**
+	 * PhaseEvent class for one slow phase of a request: parse, resolve, read, build or write.
+	 * */
+	@Name("webserver.Phase")
+	@Label("Slow HTTP Request Phase")
+	@Category("Web Server")
+	@Description("A phase of a request that took at least slowerThan")
+	@StackTrace(false)
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+		
+		@Label("Path")
+		String path;
+		
+		@Label("Handler")
+		String handler;
+		
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		
+		@Label("Took")
+		@Timespan
+		long took;
+		
+		@Label("Slower Than")
+		@Description("Only phases that took at least this long are recorded")
+		@SettingDefinition
+		boolean slowerThan(SlowerThan setting) {
+			return took >= setting.nanos;
+		}
+	}
+	
+	/**
+	 * SlowerThan class for the slowerThan setting.  Its values are timespans like "20 ms" and, as with the JFR threshold,
+	 * the shortest one wins when several recordings run at the same time.
+	 * */
+	public static class SlowerThan extends SettingControl {
+		private String value = ServerConfig.traceSlowerThanMillis + " ms";
+		volatile long nanos = ServerConfig.traceSlowerThanMillis * 1000000L;
+		
+		public String combine(Set<String> values) {
+			String shortest = null;
+			for(String candidate : values) {
+				if(shortest == null || parseNanos(candidate) < parseNanos(shortest)) {
+					shortest = candidate;
+				}
+			}
+			return shortest == null ? value : shortest;
+		}
+		
+		public void setValue(String value) {
+			this.value = value;
+			nanos = parseNanos(value);
+		}
+		
+		public String getValue() {
+			return value;
+		}
+		
+		/**
+		 * parseNanos reads a timespan such as "0 ns", "500 us", "20 ms" or "1 s".  Anything else means "never".
+		 * */
+		static long parseNanos(String timespan) {
+			String[] parts = timespan.trim().split("\\s+");
+			try {
+				long amount = Long.parseLong(parts[0]);
+				String unit = parts.length > 1 ? parts[1] : "ms";
+				switch(unit) {
+					case "ns": return amount;
+					case "us": return amount * 1000L;
+					case "ms": return amount * 1000000L;
+					case "s": return amount * 1000000000L;
+					case "m": return amount * 60000000000L;
+					default: return Long.MAX_VALUE;
+				}
+			} catch (NumberFormatException e) {
+				return Long.MAX_VALUE;
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * RequestTraceAnalyzer tool that turns a flight recording of the server (see RequestTrace) into a latency breakdown per phase:
+ * 
+ * > java RequestTraceAnalyzer slow.jfr [number of slowest requests to list, 10 by default]
+ * 
+ * 1. For the webserver.Request events: count, share of the total time, mean, p50, p90, p99 and max of every phase.
+ * 2. The mean time of every phase per handler, so that e.g. slow folders can be told apart from slow files.
+ * 3. The slowest requests with their phases, path and thread.
+ * 4. For the webserver.Phase events: how often each phase was slow on its own, and on which threads.
+ * */
+class RequestTraceAnalyzer {
+	private static final String[] phaseNames = {"parse", "resolve", "read", "build", "write"};
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java RequestTraceAnalyzer <recording.jfr> [slowest requests to list]");
+			System.exit(2);
+		}
+		int listed = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		analyze(Paths.get(args[0]), listed);
+	}
+	
+	static void analyze(Path recording, int listed) throws IOException {
+		ArrayList<Request> requests = new ArrayList<Request>();
+		TreeMap<String, ArrayList<Long>> slowPhases = new TreeMap<String, ArrayList<Long>>();
+		TreeMap<String, Integer> slowPhaseThreads = new TreeMap<String, Integer>();
+		RecordingFile file = new RecordingFile(recording);
+		try {
+			while(file.hasMoreEvents()) {
+				RecordedEvent event = file.readEvent();
+				String name = event.getEventType().getName();
+				if(name.equals("webserver.Request")) {
+					requests.add(new Request(event));
+				}
+				else if(name.equals("webserver.Phase")) {
+					String phase = event.getString("phase");
+					if(!slowPhases.containsKey(phase)) {
+						slowPhases.put(phase, new ArrayList<Long>());
+					}
+					slowPhases.get(phase).add(event.getLong("took"));
+					String thread = threadName(event);
+					Integer count = slowPhaseThreads.get(thread);
+					slowPhaseThreads.put(thread, count == null ? 1 : count + 1);
+				}
+			}
+		} finally {
+			file.close();
+		}
+		
+		System.out.println(requests.size() + " slow requests in " + recording);
+		if(!requests.isEmpty()) {
+			printPhases(requests);
+			printHandlers(requests);
+			printSlowest(requests, listed);
+		}
+		if(!slowPhases.isEmpty()) {
+			printSlowPhases(slowPhases, slowPhaseThreads);
+		}
+	}
+	
+	/**
+	 * printPhases prints the distribution of every phase over all the slow requests, and what share of their time it took.
+	 * */
+	private static void printPhases(ArrayList<Request> requests) {
+		System.out.println();
+		System.out.println(String.format(Locale.US, "%-8s %7s %10s %10s %10s %10s %10s", "phase", "share", "mean", "p50", "p90", "p99", "max"));
+		long[] totals = new long[requests.size()];
+		long sumOfTotals = 0;
+		for(int i = 0; i < totals.length; i++) {
+			totals[i] = requests.get(i).total;
+			sumOfTotals += totals[i];
+		}
+		for(int phase = 0; phase < phaseNames.length; phase++) {
+			long[] nanos = new long[requests.size()];
+			for(int i = 0; i < nanos.length; i++) {
+				nanos[i] = requests.get(i).phases[phase];
+			}
+			printDistribution(phaseNames[phase], nanos, sumOfTotals);
+		}
+		printDistribution("total", totals, sumOfTotals);
+	}
+	
+	private static void printDistribution(String label, long[] nanos, long sumOfTotals) {
+		Arrays.sort(nanos);
+		long sum = 0;
+		for(long value : nanos) {
+			sum += value;
+		}
+		System.out.println(String.format(Locale.US, "%-8s %6.1f%% %10s %10s %10s %10s %10s", label,
+				sumOfTotals == 0 ? 0.0 : 100.0 * sum / sumOfTotals, millis(sum / nanos.length),
+				millis(percentile(nanos, 0.50)), millis(percentile(nanos, 0.90)), millis(percentile(nanos, 0.99)), millis(nanos[nanos.length - 1])));
+	}
+	
+	/**
+	 * printHandlers prints the mean time of every phase per handler.
+	 * */
+	private static void printHandlers(ArrayList<Request> requests) {
+		TreeMap<String, long[]> sums = new TreeMap<String, long[]>(); //Per handler the sum of each phase, then the count.
+		for(Request request : requests) {
+			long[] sum = sums.get(request.handler);
+			if(sum == null) {
+				sum = new long[phaseNames.length + 1];
+				sums.put(request.handler, sum);
+			}
+			for(int phase = 0; phase < phaseNames.length; phase++) {
+				sum[phase] += request.phases[phase];
+			}
+			sum[phaseNames.length]++;
+		}
+		System.out.println();
+		StringBuilder heading = new StringBuilder(String.format(Locale.US, "%-12s %7s", "handler", "count"));
+		for(String phase : phaseNames) {
+			heading.append(String.format(Locale.US, " %10s", phase));
+		}
+		System.out.println(heading + "   (mean)");
+		for(String handler : sums.keySet()) {
+			long[] sum = sums.get(handler);
+			long count = sum[phaseNames.length];
+			StringBuilder line = new StringBuilder(String.format(Locale.US, "%-12s %7d", handler, count));
+			for(int phase = 0; phase < phaseNames.length; phase++) {
+				line.append(String.format(Locale.US, " %10s", millis(sum[phase] / count)));
+			}
+			System.out.println(line);
+		}
+	}
+	
+	/**
+	 * printSlowest lists the slowest requests with the time of each phase.
+	 * */
+	private static void printSlowest(ArrayList<Request> requests, int listed) {
+		ArrayList<Request> slowest = new ArrayList<Request>(requests);
+		Collections.sort(slowest, new Comparator<Request>() {
+			public int compare(Request a, Request b) {
+				return Long.compare(b.total, a.total);
+			}
+		});
+		System.out.println();
+		StringBuilder heading = new StringBuilder(String.format(Locale.US, "%10s", "total"));
+		for(String phase : phaseNames) {
+			heading.append(String.format(Locale.US, " %10s", phase));
+		}
+		System.out.println(heading + String.format(Locale.US, " %6s %12s  %-24s %s", "status", "bytes", "thread", "path"));
+		for(Request request : slowest.subList(0, Math.min(listed, slowest.size()))) {
+			StringBuilder line = new StringBuilder(String.format(Locale.US, "%10s", millis(request.total)));
+			for(long nanos : request.phases) {
+				line.append(String.format(Locale.US, " %10s", millis(nanos)));
+			}
+			System.out.println(line + String.format(Locale.US, " %6d %12d  %-24s %s", request.status, request.bytes, request.thread, request.path));
+		}
+	}
+	
+	/**
+	 * printSlowPhases prints the phases that were slow on their own, and the threads that most of them ran on.
+	 * */
+	private static void printSlowPhases(TreeMap<String, ArrayList<Long>> slowPhases, TreeMap<String, Integer> threads) {
+		System.out.println();
+		System.out.println(String.format(Locale.US, "%-8s %7s %10s %10s %10s", "slow", "count", "p50", "p99", "max"));
+		for(String phase : phaseNames) {
+			ArrayList<Long> took = slowPhases.get(phase);
+			if(took == null) {
+				continue;
+			}
+			long[] nanos = new long[took.size()];
+			for(int i = 0; i < nanos.length; i++) {
+				nanos[i] = took.get(i);
+			}
+			Arrays.sort(nanos);
+			System.out.println(String.format(Locale.US, "%-8s %7d %10s %10s %10s", phase, nanos.length,
+					millis(percentile(nanos, 0.50)), millis(percentile(nanos, 0.99)), millis(nanos[nanos.length - 1])));
+		}
+		ArrayList<String> names = new ArrayList<String>(threads.keySet());
+		final TreeMap<String, Integer> counts = threads;
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return counts.get(b) - counts.get(a);
+			}
+		});
+		System.out.println();
+		System.out.println("Threads with the most slow phases:");
+		for(String name : names.subList(0, Math.min(5, names.size()))) {
+			System.out.println(String.format(Locale.US, "%7d  %s", threads.get(name), name));
+		}
+	}
+	
+	/**
+	 * percentile returns the value that the given fraction of the sorted values is at or below.
+	 * */
+	private static long percentile(long[] sorted, double fraction) {
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+	
+	private static String millis(long nanos) {
+		return String.format(Locale.US, "%.3fms", nanos / 1e6);
+	}
+	
+	private static String threadName(RecordedEvent event) {
+		RecordedThread thread = event.getThread();
+		if(thread == null) {
+			return "-";
+		}
+		return thread.getJavaName() != null ? thread.getJavaName() : thread.getOSName();
+	}
+	
+	/**
+	 * Request class that holds what a webserver.Request event says.
+	 * */
+	private static class Request {
+		final String path;
+		final String handler;
+		final String thread;
+		final int status;
+		final long bytes;
+		final long total;
+		final long[] phases = new long[phaseNames.length];
+		
+		Request(RecordedEvent event) {
+			path = event.getString("path");
+			handler = event.getString("handler");
+			thread = threadName(event);
+			status = event.getInt("status");
+			bytes = event.getLong("bytes");
+			total = event.getLong("total");
+			for(int phase = 0; phase < phaseNames.length; phase++) {
+				phases[phase] = event.getLong(phaseNames[phase]);
+			}
+		}
+	}
+}